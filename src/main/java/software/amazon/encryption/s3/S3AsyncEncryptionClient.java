@@ -20,6 +20,8 @@ import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.S3AsyncClientBuilder;
 import software.amazon.awssdk.services.s3.S3Configuration;
 import software.amazon.awssdk.services.s3.internal.crt.S3CrtAsyncClient;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadResponse;
 import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
 import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
 import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
@@ -37,12 +39,20 @@ import software.amazon.awssdk.services.s3.model.S3Request;
 import software.amazon.awssdk.services.s3.model.UploadPartRequest;
 import software.amazon.awssdk.services.s3.model.UploadPartResponse;
 import software.amazon.awssdk.services.s3.multipart.MultipartConfiguration;
+import software.amazon.encryption.s3.internal.BufferMemoryBudget;
+import software.amazon.encryption.s3.internal.CoalescingSubscriber;
 import software.amazon.encryption.s3.internal.GetEncryptedObjectPipeline;
 import software.amazon.encryption.s3.internal.InstructionFileConfig;
+import software.amazon.encryption.s3.internal.MultipartUploadMaterialsRegistry;
+import software.amazon.encryption.s3.internal.MultipartUploadObjectPipeline;
 import software.amazon.encryption.s3.internal.NoRetriesAsyncRequestBody;
 import software.amazon.encryption.s3.internal.PutEncryptedObjectPipeline;
 import software.amazon.encryption.s3.materials.AesKeyring;
+import software.amazon.encryption.s3.materials.AsyncCryptographicMaterialsManager;
+import software.amazon.encryption.s3.materials.AsyncKeyring;
+import software.amazon.encryption.s3.materials.AsyncKmsKeyring;
 import software.amazon.encryption.s3.materials.CryptographicMaterialsManager;
+import software.amazon.encryption.s3.materials.DefaultAsyncCryptoMaterialsManager;
 import software.amazon.encryption.s3.materials.DefaultCryptoMaterialsManager;
 import software.amazon.encryption.s3.materials.Keyring;
 import software.amazon.encryption.s3.materials.KmsKeyring;
@@ -51,17 +61,23 @@ import software.amazon.encryption.s3.materials.RsaKeyring;
 
 import javax.crypto.SecretKey;
 import java.net.URI;
+import java.nio.file.Path;
 import java.security.KeyPair;
 import java.security.Provider;
 import java.security.SecureRandom;
+import java.time.Duration;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
 import static software.amazon.encryption.s3.S3EncryptionClientUtilities.DEFAULT_BUFFER_SIZE_BYTES;
+import static software.amazon.encryption.s3.S3EncryptionClientUtilities.DEFAULT_PARALLEL_DECRYPTION_THRESHOLD_BYTES;
+import static software.amazon.encryption.s3.S3EncryptionClientUtilities.DEFAULT_PARALLEL_DOWNLOAD_CONCURRENCY;
+import static software.amazon.encryption.s3.S3EncryptionClientUtilities.DEFAULT_PARALLEL_DOWNLOAD_PART_SIZE_BYTES;
 import static software.amazon.encryption.s3.S3EncryptionClientUtilities.MAX_ALLOWED_BUFFER_SIZE_BYTES;
 import static software.amazon.encryption.s3.S3EncryptionClientUtilities.MIN_ALLOWED_BUFFER_SIZE_BYTES;
 import static software.amazon.encryption.s3.internal.ApiNameVersion.API_NAME_INTERCEPTOR;
@@ -79,6 +95,17 @@ public class S3AsyncEncryptionClient extends DelegatingS3AsyncClient {
     private final boolean _enableDelayedAuthenticationMode;
     private final boolean _enableMultipartPutObject;
     private final long _bufferSize;
+    private final boolean _enableBufferSpillToDisk;
+    private final Path _bufferSpillDirectory;
+    private final BufferMemoryBudget _bufferMemoryBudget;
+    private final boolean _enableOffHeapBuffering;
+    private final int _cipherChunkSize;
+    private final boolean _enableParallelDecryption;
+    private final long _parallelDecryptionThreshold;
+    private final boolean _enableParallelDownload;
+    private final long _parallelDownloadPartSize;
+    private final int _parallelDownloadConcurrency;
+    private final MultipartUploadObjectPipeline _multipartPipeline;
     private InstructionFileConfig _instructionFileConfig;
 
     private S3AsyncEncryptionClient(Builder builder) {
@@ -90,6 +117,17 @@ public class S3AsyncEncryptionClient extends DelegatingS3AsyncClient {
         _enableDelayedAuthenticationMode = builder._enableDelayedAuthenticationMode;
         _enableMultipartPutObject = builder._enableMultipartPutObject;
         _bufferSize = builder._bufferSize;
+        _enableBufferSpillToDisk = builder._enableBufferSpillToDisk;
+        _bufferSpillDirectory = builder._bufferSpillDirectory;
+        _bufferMemoryBudget = builder._bufferMemoryBudget;
+        _enableOffHeapBuffering = builder._enableOffHeapBuffering;
+        _cipherChunkSize = builder._cipherChunkSize;
+        _enableParallelDecryption = builder._enableParallelDecryption;
+        _parallelDecryptionThreshold = builder._parallelDecryptionThreshold;
+        _enableParallelDownload = builder._enableParallelDownload;
+        _parallelDownloadPartSize = builder._parallelDownloadPartSize;
+        _parallelDownloadConcurrency = builder._parallelDownloadConcurrency;
+        _multipartPipeline = builder._multipartPipeline;
         _instructionFileConfig = builder._instructionFileConfig;
     }
 
@@ -151,6 +189,7 @@ public class S3AsyncEncryptionClient extends DelegatingS3AsyncClient {
                 .s3AsyncClient(_wrappedClient)
                 .cryptoMaterialsManager(_cryptoMaterialsManager)
                 .secureRandom(_secureRandom)
+                .cipherChunkSize(_cipherChunkSize)
                 .build();
 
         return pipeline.putObject(putObjectRequest, requestBody);
@@ -169,6 +208,7 @@ public class S3AsyncEncryptionClient extends DelegatingS3AsyncClient {
                 .s3AsyncClient(mpuClient)
                 .cryptoMaterialsManager(_cryptoMaterialsManager)
                 .secureRandom(_secureRandom)
+                .cipherChunkSize(_cipherChunkSize)
                 .build();
         // Ensures parts are not retried to avoid corrupting ciphertext
         AsyncRequestBody noRetryBody = new NoRetriesAsyncRequestBody(requestBody);
@@ -202,16 +242,57 @@ public class S3AsyncEncryptionClient extends DelegatingS3AsyncClient {
     @Override
     public <T> CompletableFuture<T> getObject(GetObjectRequest getObjectRequest,
                                               AsyncResponseTransformer<GetObjectResponse, T> asyncResponseTransformer) {
-        GetEncryptedObjectPipeline pipeline = GetEncryptedObjectPipeline.builder()
+        GetEncryptedObjectPipeline pipeline = getObjectPipeline();
+
+        return pipeline.getObject(getObjectRequest, asyncResponseTransformer);
+    }
+
+    /**
+     * See {@link S3AsyncClient#getObject(GetObjectRequest, Path)}
+     * <p>
+     * In the S3AsyncEncryptionClient, the object is decrypted into a temporary file next to the
+     * destination, which is only moved into place once the whole object has been authenticated.
+     * This holds for objects of any size without buffering plaintext in memory, whether or not
+     * delayed authentication is enabled. An existing file at the destination is replaced, and is
+     * left as it was if the download fails.
+     * </p>
+     * @param getObjectRequest the request instance.
+     * @param destinationPath the file to write the decrypted object to.
+     * @return A future to the response, which completes once the file is in place.
+     *         <p>
+     *         The CompletableFuture returned by this method can be completed exceptionally with the following
+     *         exceptions.
+     *         <ul>
+     *         <li>NoSuchKeyException The specified key does not exist.</li>
+     *         <li>SdkException Base class for all exceptions that can be thrown by the SDK (both service and client).
+     *         Can be used for catch all scenarios.</li>
+     *         <li>S3EncryptionClientException Base class for all encryption client exceptions.</li>
+     *         </ul>
+     */
+    @Override
+    public CompletableFuture<GetObjectResponse> getObject(GetObjectRequest getObjectRequest, Path destinationPath) {
+        return getObjectPipeline().getObject(getObjectRequest, destinationPath);
+    }
+
+    private GetEncryptedObjectPipeline getObjectPipeline() {
+        return GetEncryptedObjectPipeline.builder()
                 .s3AsyncClient(_wrappedClient)
                 .cryptoMaterialsManager(_cryptoMaterialsManager)
                 .enableLegacyUnauthenticatedModes(_enableLegacyUnauthenticatedModes)
                 .enableDelayedAuthentication(_enableDelayedAuthenticationMode)
                 .bufferSize(_bufferSize)
+                .enableBufferSpillToDisk(_enableBufferSpillToDisk)
+                .bufferSpillDirectory(_bufferSpillDirectory)
+                .bufferMemoryBudget(_bufferMemoryBudget)
+                .enableOffHeapBuffering(_enableOffHeapBuffering)
+                .cipherChunkSize(_cipherChunkSize)
+                .enableParallelDecryption(_enableParallelDecryption)
+                .parallelDecryptionThreshold(_parallelDecryptionThreshold)
+                .enableParallelDownload(_enableParallelDownload)
+                .parallelDownloadPartSize(_parallelDownloadPartSize)
+                .parallelDownloadConcurrency(_parallelDownloadConcurrency)
                 .instructionFileConfig(_instructionFileConfig)
                 .build();
-
-        return pipeline.getObject(getObjectRequest, asyncResponseTransformer);
     }
 
     /**
@@ -262,22 +343,66 @@ public class S3AsyncEncryptionClient extends DelegatingS3AsyncClient {
                 .build());
     }
 
+    /**
+     * See {@link S3AsyncClient#createMultipartUpload(CreateMultipartUploadRequest)}
+     * <p>
+     * In the S3AsyncEncryptionClient, createMultipartUpload creates an encrypted
+     * multipart upload. See {@link S3AsyncEncryptionClient#uploadPart(UploadPartRequest, AsyncRequestBody)}
+     * for details on uploading its parts.
+     * </p>
+     * @param createMultipartUploadRequest the request instance
+     * @return A Java Future containing the result of the CreateMultipartUpload operation returned by the service.
+     */
     @Override
     public CompletableFuture<CreateMultipartUploadResponse> createMultipartUpload(CreateMultipartUploadRequest createMultipartUploadRequest) {
-        throw new UnsupportedOperationException("The S3 Async Encryption Client does not support low-level multipart uploads. " +
-                "Please use Multipart PutObject or the default (synchronous) client to use this API.");
+        return _multipartPipeline.createMultipartUploadAsync(createMultipartUploadRequest);
     }
 
+    /**
+     * See {@link S3AsyncClient#uploadPart(UploadPartRequest, AsyncRequestBody)}
+     * <p>
+     * In the S3AsyncEncryptionClient, uploadPart encrypts the part as it is written to S3.
+     * Parts may be uploaded concurrently and in any order, but every part except the last must
+     * be a multiple of 16 bytes, and parts which are uploaded out of order must all be the same
+     * size. The last part MUST be marked with {@link software.amazon.awssdk.services.s3.model.SdkPartType#LAST},
+     * and can only be uploaded once all other parts have been uploaded, as it carries the
+     * authentication tag of the whole object.
+     * </p>
+     * @param uploadPartRequest the request instance
+     * @param asyncRequestBody the part's content, whose length must be known up front
+     * @return A Java Future containing the result of the UploadPart operation returned by the service.
+     */
     @Override
     public CompletableFuture<UploadPartResponse> uploadPart(UploadPartRequest uploadPartRequest, AsyncRequestBody asyncRequestBody) {
-        throw new UnsupportedOperationException("The S3 Async Encryption Client does not support low-level multipart uploads. " +
-                "Please use Multipart PutObject or the default (synchronous) client to use this API.");
+        return _multipartPipeline.uploadPartAsync(uploadPartRequest, asyncRequestBody);
     }
 
+    /**
+     * See {@link S3AsyncClient#completeMultipartUpload(CompleteMultipartUploadRequest)}
+     * @param completeMultipartUploadRequest the request instance
+     * @return A Java Future containing the result of the CompleteMultipartUpload operation returned by the service.
+     */
     @Override
     public CompletableFuture<CompleteMultipartUploadResponse> completeMultipartUpload(CompleteMultipartUploadRequest completeMultipartUploadRequest) {
-        throw new UnsupportedOperationException("The S3 Async Encryption Client does not support low-level multipart uploads. " +
-                "Please use Multipart PutObject or the default (synchronous) client to use this API.");
+        return _multipartPipeline.completeMultipartUploadAsync(completeMultipartUploadRequest);
+    }
+
+    /**
+     * See {@link S3AsyncClient#abortMultipartUpload(AbortMultipartUploadRequest)}
+     * @param abortMultipartUploadRequest the request instance
+     * @return A Java Future containing the result of the AbortMultipartUpload operation returned by the service.
+     */
+    @Override
+    public CompletableFuture<AbortMultipartUploadResponse> abortMultipartUpload(AbortMultipartUploadRequest abortMultipartUploadRequest) {
+        return _multipartPipeline.abortMultipartUploadAsync(abortMultipartUploadRequest);
+    }
+
+    /**
+     * @return a snapshot of the encrypted multipart uploads in progress, and of those evicted
+     *         after being idle or turned away as too many were in progress
+     */
+    public MultipartUploadMaterialsRegistry.Metrics multipartUploadMetrics() {
+        return _multipartPipeline.uploadMetrics();
     }
 
     /**
@@ -293,8 +418,10 @@ public class S3AsyncEncryptionClient extends DelegatingS3AsyncClient {
     // Make sure to keep both clients in mind when adding new builder options
     public static class Builder implements S3AsyncClientBuilder {
         private S3AsyncClient _wrappedClient;
+        private MultipartUploadObjectPipeline _multipartPipeline;
         private CryptographicMaterialsManager _cryptoMaterialsManager;
         private Keyring _keyring;
+        private Executor _cryptoMaterialsExecutor;
         private SecretKey _aesKey;
         private PartialRsaKeyPair _rsaKeyPair;
         private String _kmsKeyId;
@@ -305,7 +432,21 @@ public class S3AsyncEncryptionClient extends DelegatingS3AsyncClient {
         private Provider _cryptoProvider = null;
         private SecureRandom _secureRandom = new SecureRandom();
         private long _bufferSize = -1L;
+        private boolean _enableBufferSpillToDisk = false;
+        private Path _bufferSpillDirectory = null;
+        private BufferMemoryBudget _bufferMemoryBudget = null;
+        private boolean _enableOffHeapBuffering = false;
+        private int _cipherChunkSize = CoalescingSubscriber.DEFAULT_TARGET_SIZE;
+        private boolean _enableParallelDecryption = false;
+        private long _parallelDecryptionThreshold = DEFAULT_PARALLEL_DECRYPTION_THRESHOLD_BYTES;
+        private boolean _enableParallelDownload = false;
+        private long _parallelDownloadPartSize = DEFAULT_PARALLEL_DOWNLOAD_PART_SIZE_BYTES;
+        private int _parallelDownloadConcurrency = DEFAULT_PARALLEL_DOWNLOAD_CONCURRENCY;
         private InstructionFileConfig _instructionFileConfig = null;
+        private int _maxMultipartUploads = MultipartUploadMaterialsRegistry.DEFAULT_MAX_UPLOADS;
+        private Duration _multipartUploadIdleTimeout = MultipartUploadMaterialsRegistry.DEFAULT_IDLE_TIMEOUT;
+        private boolean _abortIdleMultipartUploads = false;
+        private MultipartUploadMaterialsRegistry _multipartUploadRegistry;
 
         // generic AwsClient configuration to be shared by default clients
         private AwsCredentialsProvider _awsCredentialsProvider = null;
@@ -368,6 +509,8 @@ public class S3AsyncEncryptionClient extends DelegatingS3AsyncClient {
 
         /**
          * Specifies the {@link Keyring} to use for key wrapping and unwrapping.
+         * An {@link AsyncKeyring}, e.g. {@link AsyncKmsKeyring}, is called without blocking
+         * the SDK's threads.
          * @param keyring the Keyring instance to use
          * @return Returns a reference to this object so that method calls can be chained together.
          */
@@ -378,6 +521,19 @@ public class S3AsyncEncryptionClient extends DelegatingS3AsyncClient {
             return this;
         }
 
+        /**
+         * Specifies the executor to call a keyring or CMM which blocks, e.g. {@link KmsKeyring},
+         * on. Otherwise such a keyring is called on the SDK's threads, e.g. the one the
+         * response to getObject arrives on, which it holds up until the key provider answers.
+         * Not needed for an {@link AsyncKeyring} or {@link AsyncCryptographicMaterialsManager}.
+         * @param cryptoMaterialsExecutor the executor to get and decrypt data keys on
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder cryptoMaterialsExecutor(Executor cryptoMaterialsExecutor) {
+            this._cryptoMaterialsExecutor = cryptoMaterialsExecutor;
+            return this;
+        }
+
         /**
          * Specifies a "raw" AES key to use for key wrapping/unwrapping.
          * @param aesKey the AES key as a {@link SecretKey} instance
@@ -521,6 +677,176 @@ public class S3AsyncEncryptionClient extends DelegatingS3AsyncClient {
             return this;
         }
 
+        /**
+         * When set to true, objects larger than the buffer size are still authenticated
+         * before any plaintext is returned. Up to buffer size bytes of plaintext are held
+         * in memory and the remainder is written to a temporary file, which is deleted once
+         * the object has been read, the stream is cancelled, or decryption fails.
+         * Cannot be used with delayed authentication mode. Disabled by default.
+         * @param shouldEnableBufferSpillToDisk true to spill buffered plaintext to disk
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder enableBufferSpillToDisk(boolean shouldEnableBufferSpillToDisk) {
+            this._enableBufferSpillToDisk = shouldEnableBufferSpillToDisk;
+            return this;
+        }
+
+        /**
+         * Sets the directory in which temporary files are created when buffer spill to disk
+         * is enabled. By default, the system temporary-file directory is used. Temporary files
+         * hold decrypted plaintext, so the directory should only be readable by this application.
+         * @param bufferSpillDirectory the directory for temporary plaintext files
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder bufferSpillDirectory(Path bufferSpillDirectory) {
+            this._bufferSpillDirectory = bufferSpillDirectory;
+            return this;
+        }
+
+        /**
+         * Sets a budget which bounds the memory used to buffer plaintext across concurrent
+         * getObject requests while delayed authentication mode is disabled. Each request
+         * reserves the bytes it may buffer before its stream starts; requests which do not fit
+         * fail or wait according to the budget's admission policy. The same budget may be
+         * given to several clients to bound buffering across all of them, so closing the client
+         * does not close the budget. Unbounded by default.
+         * @param bufferMemoryBudget the budget to reserve buffered bytes against
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder bufferMemoryBudget(BufferMemoryBudget bufferMemoryBudget) {
+            this._bufferMemoryBudget = bufferMemoryBudget;
+            return this;
+        }
+
+        /**
+         * When set to true, objects buffered for authentication are held in direct (off-heap)
+         * memory instead of on the Java heap. The plaintext is returned as read-only views of
+         * that memory, which is freed once the views are no longer referenced.
+         * Cannot be used with delayed authentication mode. Disabled by default.
+         * @param shouldEnableOffHeapBuffering true to buffer objects off-heap
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder enableOffHeapBuffering(boolean shouldEnableOffHeapBuffering) {
+            this._enableOffHeapBuffering = shouldEnableOffHeapBuffering;
+            return this;
+        }
+
+        /**
+         * Sets the size, in bytes, up to which small buffers of a stream are gathered before
+         * they are encrypted or decrypted. Streams are often delivered in buffers of a few
+         * kilobytes or less; gathering them means far fewer cipher calls and downstream signals
+         * per byte. Buffers at least this large pass through as they are.
+         * Set to 0 to disable gathering. Defaults to 128 KiB.
+         * @param cipherChunkSize the target chunk size in bytes
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder cipherChunkSize(int cipherChunkSize) {
+            this._cipherChunkSize = cipherChunkSize;
+            return this;
+        }
+
+        /**
+         * Sets the most encrypted multipart uploads, created with createMultipartUpload or by a
+         * multipart putObject, which may be in progress at once. The client keeps each upload's
+         * data key in memory until it is completed or aborted, so this bounds the memory, and
+         * the key material, which uploads that are never finished can hold. Creating an upload
+         * beyond it fails. Defaults to 10,000.
+         * @param maxMultipartUploads the most uploads to have in progress at once
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder maxMultipartUploads(int maxMultipartUploads) {
+            this._maxMultipartUploads = maxMultipartUploads;
+            return this;
+        }
+
+        /**
+         * Sets how long an encrypted multipart upload may go without a part being uploaded
+         * before the client forgets it, zeroing its data key; its parts can then no longer be
+         * uploaded or completed through this client. Defaults to 24 hours.
+         * @param multipartUploadIdleTimeout how long an upload may be idle
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder multipartUploadIdleTimeout(Duration multipartUploadIdleTimeout) {
+            this._multipartUploadIdleTimeout = multipartUploadIdleTimeout;
+            return this;
+        }
+
+        /**
+         * When set to true, encrypted multipart uploads which the client forgets after being
+         * idle, see {@link #multipartUploadIdleTimeout(Duration)}, are also aborted in S3, so
+         * their parts are not stored, and charged for, until a lifecycle rule removes them.
+         * Disabled by default.
+         * @param shouldAbortIdleMultipartUploads true to abort idle uploads in S3
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder abortIdleMultipartUploads(boolean shouldAbortIdleMultipartUploads) {
+            this._abortIdleMultipartUploads = shouldAbortIdleMultipartUploads;
+            return this;
+        }
+
+        /**
+         * When set to true, objects buffered for authentication which are at least as large as the
+         * parallel decryption threshold are decrypted across the threads of the common
+         * {@link java.util.concurrent.ForkJoinPool}, rather than on a single thread. The tag is
+         * still verified before any plaintext is released.
+         * Cannot be used with delayed authentication mode. Disabled by default.
+         * @param shouldEnableParallelDecryption true to decrypt large buffered objects in parallel
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder enableParallelDecryption(boolean shouldEnableParallelDecryption) {
+            this._enableParallelDecryption = shouldEnableParallelDecryption;
+            return this;
+        }
+
+        /**
+         * Sets the size, in bytes, from which buffered objects are decrypted in parallel
+         * when parallel decryption is enabled. Defaults to 16 MiB.
+         * @param parallelDecryptionThreshold the smallest object size to decrypt in parallel
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder parallelDecryptionThreshold(long parallelDecryptionThreshold) {
+            this._parallelDecryptionThreshold = parallelDecryptionThreshold;
+            return this;
+        }
+
+        /**
+         * When set to true, objects fetched without a range are downloaded as several byte ranges
+         * at once rather than in a single stream. The object's metadata is resolved from the first
+         * range, the remaining ranges are fetched concurrently, and each is decrypted as soon as it
+         * arrives. Plaintext is released in order as it is decrypted, and the object's
+         * authentication tag is verified over the whole object before the download completes, so
+         * this requires delayed authentication mode. Only AES-GCM objects are downloaded in ranges.
+         * Disabled by default.
+         * @param shouldEnableParallelDownload true to download objects as concurrent byte ranges
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder enableParallelDownload(boolean shouldEnableParallelDownload) {
+            this._enableParallelDownload = shouldEnableParallelDownload;
+            return this;
+        }
+
+        /**
+         * Sets the size, in bytes, of each byte range of a parallel download. Must be a positive
+         * multiple of 16. Defaults to 8 MiB.
+         * @param parallelDownloadPartSize the size of each byte range
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder parallelDownloadPartSize(long parallelDownloadPartSize) {
+            this._parallelDownloadPartSize = parallelDownloadPartSize;
+            return this;
+        }
+
+        /**
+         * Sets how many byte ranges a parallel download fetches at once. At most this many ranges
+         * of each object are held in memory. Defaults to 8.
+         * @param parallelDownloadConcurrency the number of byte ranges to fetch at once
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder parallelDownloadConcurrency(int parallelDownloadConcurrency) {
+            this._parallelDownloadConcurrency = parallelDownloadConcurrency;
+            return this;
+        }
+
         /**
          * Allows the user to pass an instance of {@link Provider} to be used
          * for cryptographic operations. By default, the S3 Encryption Client
@@ -823,6 +1149,42 @@ public class S3AsyncEncryptionClient extends DelegatingS3AsyncClient {
                 _bufferSize = DEFAULT_BUFFER_SIZE_BYTES;
             }
 
+            if (_enableBufferSpillToDisk && _enableDelayedAuthenticationMode) {
+                throw new S3EncryptionClientException("Buffer spill to disk cannot be enabled when delayed authentication mode is enabled");
+            }
+
+            if (_bufferMemoryBudget != null && _enableDelayedAuthenticationMode) {
+                throw new S3EncryptionClientException("Buffer memory budget cannot be set when delayed authentication mode is enabled");
+            }
+
+            if (_enableOffHeapBuffering && _enableDelayedAuthenticationMode) {
+                throw new S3EncryptionClientException("Off-heap buffering cannot be enabled when delayed authentication mode is enabled");
+            }
+
+            if (_cipherChunkSize < 0) {
+                throw new S3EncryptionClientException("Cipher chunk size cannot be negative");
+            }
+
+            if (_enableParallelDecryption && _enableDelayedAuthenticationMode) {
+                throw new S3EncryptionClientException("Parallel decryption cannot be enabled when delayed authentication mode is enabled");
+            }
+
+            if (_parallelDecryptionThreshold < 0) {
+                throw new S3EncryptionClientException("Parallel decryption threshold cannot be negative");
+            }
+
+            if (_enableParallelDownload && !_enableDelayedAuthenticationMode) {
+                throw new S3EncryptionClientException("Parallel download releases plaintext before the whole object is authenticated, so it requires delayed authentication mode");
+            }
+
+            if (_parallelDownloadPartSize <= 0 || _parallelDownloadPartSize % 16 != 0) {
+                throw new S3EncryptionClientException("Parallel download part size must be a positive multiple of 16");
+            }
+
+            if (_parallelDownloadConcurrency < 1) {
+                throw new S3EncryptionClientException("Parallel download concurrency must be at least 1");
+            }
+
             if (_wrappedClient == null) {
                 _wrappedClient = S3AsyncClient.builder()
                         .credentialsProvider(_awsCredentialsProvider)
@@ -887,12 +1249,37 @@ public class S3AsyncEncryptionClient extends DelegatingS3AsyncClient {
             }
 
             if (_cryptoMaterialsManager == null) {
-                _cryptoMaterialsManager = DefaultCryptoMaterialsManager.builder()
-                        .keyring(_keyring)
-                        .cryptoProvider(_cryptoProvider)
-                        .build();
+                if (_keyring instanceof AsyncKeyring || _cryptoMaterialsExecutor != null) {
+                    _cryptoMaterialsManager = DefaultAsyncCryptoMaterialsManager.builder()
+                            .keyring(_keyring)
+                            .cryptoProvider(_cryptoProvider)
+                            .offloadExecutor(_cryptoMaterialsExecutor)
+                            .build();
+                } else {
+                    _cryptoMaterialsManager = DefaultCryptoMaterialsManager.builder()
+                            .keyring(_keyring)
+                            .cryptoProvider(_cryptoProvider)
+                            .build();
+                }
+            } else if (_cryptoMaterialsExecutor != null) {
+                _cryptoMaterialsManager = AsyncCryptographicMaterialsManager.offload(_cryptoMaterialsManager,
+                        _cryptoMaterialsExecutor);
             }
 
+            _multipartUploadRegistry = MultipartUploadMaterialsRegistry.builder()
+                    .maxUploads(_maxMultipartUploads)
+                    .idleTimeout(_multipartUploadIdleTimeout)
+                    .build();
+
+            _multipartPipeline = MultipartUploadObjectPipeline.builder()
+                    .s3AsyncClient(_wrappedClient)
+                    .cryptoMaterialsManager(_cryptoMaterialsManager)
+                    .secureRandom(_secureRandom)
+                    .cipherChunkSize(_cipherChunkSize)
+                    .materialsRegistry(_multipartUploadRegistry)
+                    .abortEvictedUploads(_abortIdleMultipartUploads)
+                    .build();
+
             return new S3AsyncEncryptionClient(this);
         }
 
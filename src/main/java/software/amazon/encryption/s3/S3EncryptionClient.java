@@ -3,11 +3,11 @@
 package software.amazon.encryption.s3;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import org.apache.commons.logging.LogFactory;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
 import software.amazon.awssdk.core.ResponseInputStream;
-import software.amazon.awssdk.core.async.AsyncRequestBody;
 import software.amazon.awssdk.core.async.AsyncResponseTransformer;
 import software.amazon.awssdk.core.client.builder.SdkSyncClientBuilder;
 import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
@@ -23,6 +23,7 @@ import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.kms.KmsClient;
 import software.amazon.awssdk.services.s3.DelegatingS3Client;
 import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3AsyncClientBuilder;
 import software.amazon.awssdk.services.s3.S3BaseClientBuilder;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.S3Configuration;
@@ -39,18 +40,27 @@ import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
 import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchUploadException;
 import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.Part;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 import software.amazon.awssdk.services.s3.model.PutObjectResponse;
 import software.amazon.awssdk.services.s3.model.S3Request;
 import software.amazon.awssdk.services.s3.model.UploadPartRequest;
 import software.amazon.awssdk.services.s3.model.UploadPartResponse;
 import software.amazon.encryption.s3.algorithms.AlgorithmSuite;
+import software.amazon.encryption.s3.internal.AdaptiveConcurrency;
+import software.amazon.encryption.s3.internal.BufferMemoryBudget;
+import software.amazon.encryption.s3.internal.ClientExecutor;
+import software.amazon.encryption.s3.internal.CoalescingSubscriber;
 import software.amazon.encryption.s3.internal.ConvertSDKRequests;
 import software.amazon.encryption.s3.internal.GetEncryptedObjectPipeline;
 import software.amazon.encryption.s3.internal.InstructionFileConfig;
-import software.amazon.encryption.s3.internal.MultiFileOutputStream;
+import software.amazon.encryption.s3.internal.MultipartCheckpoint;
+import software.amazon.encryption.s3.internal.MultipartCheckpointStore;
+import software.amazon.encryption.s3.internal.MultipartUploadMaterialsRegistry;
 import software.amazon.encryption.s3.internal.MultipartUploadObjectPipeline;
+import software.amazon.encryption.s3.internal.PartOutputStream;
 import software.amazon.encryption.s3.internal.PutEncryptedObjectPipeline;
 import software.amazon.encryption.s3.internal.UploadObjectObserver;
 import software.amazon.encryption.s3.materials.AesKeyring;
@@ -65,22 +75,24 @@ import software.amazon.encryption.s3.materials.RsaKeyring;
 import javax.crypto.SecretKey;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Path;
 import java.security.KeyPair;
 import java.security.Provider;
 import java.security.SecureRandom;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.function.Consumer;
 
 import static software.amazon.encryption.s3.S3EncryptionClientUtilities.DEFAULT_BUFFER_SIZE_BYTES;
+import static software.amazon.encryption.s3.S3EncryptionClientUtilities.DEFAULT_PARALLEL_DECRYPTION_THRESHOLD_BYTES;
+import static software.amazon.encryption.s3.S3EncryptionClientUtilities.DEFAULT_PARALLEL_DOWNLOAD_CONCURRENCY;
+import static software.amazon.encryption.s3.S3EncryptionClientUtilities.DEFAULT_PARALLEL_DOWNLOAD_PART_SIZE_BYTES;
 import static software.amazon.encryption.s3.S3EncryptionClientUtilities.INSTRUCTION_FILE_SUFFIX;
 import static software.amazon.encryption.s3.S3EncryptionClientUtilities.MAX_ALLOWED_BUFFER_SIZE_BYTES;
 import static software.amazon.encryption.s3.S3EncryptionClientUtilities.MIN_ALLOWED_BUFFER_SIZE_BYTES;
@@ -98,28 +110,57 @@ public class S3EncryptionClient extends DelegatingS3Client {
     public static final ExecutionAttribute<MultipartConfiguration> CONFIGURATION = new ExecutionAttribute<>("MultipartConfiguration");
 
     private final S3Client _wrappedClient;
-    private final S3AsyncClient _wrappedAsyncClient;
+    // Built on first use, unless one was given, as get and put only need the synchronous client
+    private final S3AsyncClientBuilder _wrappedAsyncClientBuilder;
+    private final Object _asyncLock = new Object();
+    private volatile S3AsyncClient _wrappedAsyncClient;
+    private volatile MultipartUploadObjectPipeline _multipartPipeline;
     private final CryptographicMaterialsManager _cryptoMaterialsManager;
     private final SecureRandom _secureRandom;
     private final boolean _enableLegacyUnauthenticatedModes;
     private final boolean _enableDelayedAuthenticationMode;
     private final boolean _enableMultipartPutObject;
-    private final MultipartUploadObjectPipeline _multipartPipeline;
     private final long _bufferSize;
+    private final boolean _enableBufferSpillToDisk;
+    private final Path _bufferSpillDirectory;
+    private final BufferMemoryBudget _bufferMemoryBudget;
+    private final boolean _enableOffHeapBuffering;
+    private final int _cipherChunkSize;
+    private final boolean _enableParallelDecryption;
+    private final long _parallelDecryptionThreshold;
+    private final boolean _enableParallelDownload;
+    private final long _parallelDownloadPartSize;
+    private final int _parallelDownloadConcurrency;
+    private final ClientExecutor _executor;
     private final InstructionFileConfig _instructionFileConfig;
+    private final MultipartUploadMaterialsRegistry _multipartUploadRegistry;
+    private final boolean _abortIdleMultipartUploads;
 
     private S3EncryptionClient(Builder builder) {
         super(builder._wrappedClient);
         _wrappedClient = builder._wrappedClient;
         _wrappedAsyncClient = builder._wrappedAsyncClient;
+        _wrappedAsyncClientBuilder = builder._wrappedAsyncClientBuilder;
         _cryptoMaterialsManager = builder._cryptoMaterialsManager;
         _secureRandom = builder._secureRandom;
         _enableLegacyUnauthenticatedModes = builder._enableLegacyUnauthenticatedModes;
         _enableDelayedAuthenticationMode = builder._enableDelayedAuthenticationMode;
         _enableMultipartPutObject = builder._enableMultipartPutObject;
-        _multipartPipeline = builder._multipartPipeline;
         _bufferSize = builder._bufferSize;
+        _enableBufferSpillToDisk = builder._enableBufferSpillToDisk;
+        _bufferSpillDirectory = builder._bufferSpillDirectory;
+        _bufferMemoryBudget = builder._bufferMemoryBudget;
+        _enableOffHeapBuffering = builder._enableOffHeapBuffering;
+        _cipherChunkSize = builder._cipherChunkSize;
+        _enableParallelDecryption = builder._enableParallelDecryption;
+        _parallelDecryptionThreshold = builder._parallelDecryptionThreshold;
+        _enableParallelDownload = builder._enableParallelDownload;
+        _parallelDownloadPartSize = builder._parallelDownloadPartSize;
+        _parallelDownloadConcurrency = builder._parallelDownloadConcurrency;
+        _executor = builder._executor;
         _instructionFileConfig = builder._instructionFileConfig;
+        _multipartUploadRegistry = builder._multipartUploadRegistry;
+        _abortIdleMultipartUploads = builder._abortIdleMultipartUploads;
     }
 
     /**
@@ -199,36 +240,18 @@ public class S3EncryptionClient extends DelegatingS3Client {
             }
         }
         PutEncryptedObjectPipeline pipeline = PutEncryptedObjectPipeline.builder()
-                .s3AsyncClient(_wrappedAsyncClient)
+                .s3Client(_wrappedClient)
                 .cryptoMaterialsManager(_cryptoMaterialsManager)
                 .secureRandom(_secureRandom)
+                .cipherChunkSize(_cipherChunkSize)
                 .build();
 
-        ExecutorService singleThreadExecutor = Executors.newSingleThreadExecutor();
-
         try {
-            CompletableFuture<PutObjectResponse> futurePut = pipeline.putObject(putObjectRequest,
-                    AsyncRequestBody.fromInputStream(
-                            requestBody.contentStreamProvider().newStream(),
-                            requestBody.optionalContentLength().orElse(-1L),
-                            singleThreadExecutor
-                    )
-            );
-
-            PutObjectResponse response = futurePut.join();
-
-            singleThreadExecutor.shutdown();
-
-            return response;
-
-        } catch (CompletionException completionException) {
-            singleThreadExecutor.shutdownNow();
-            throw new S3EncryptionClientException(completionException.getMessage(), completionException.getCause());
+            // The content is encrypted as the wrapped client reads it, on this thread
+            return pipeline.putObject(putObjectRequest, requestBody);
         } catch (Exception exception) {
-            singleThreadExecutor.shutdownNow();
             throw new S3EncryptionClientException(exception.getMessage(), exception);
         }
-
     }
 
     /**
@@ -252,14 +275,31 @@ public class S3EncryptionClient extends DelegatingS3Client {
                            ResponseTransformer<GetObjectResponse, T> responseTransformer)
             throws AwsServiceException, SdkClientException {
 
-        GetEncryptedObjectPipeline pipeline = GetEncryptedObjectPipeline.builder()
-                .s3AsyncClient(_wrappedAsyncClient)
-                .cryptoMaterialsManager(_cryptoMaterialsManager)
-                .enableLegacyUnauthenticatedModes(_enableLegacyUnauthenticatedModes)
-                .enableDelayedAuthentication(_enableDelayedAuthenticationMode)
-                .bufferSize(_bufferSize)
-                .instructionFileConfig(_instructionFileConfig)
-                .build();
+        GetEncryptedObjectPipeline pipeline = getObjectPipeline(false);
+        if (!pipeline.supportsSyncGetObject(getObjectRequest)) {
+            return getObjectAsync(getObjectRequest, responseTransformer);
+        }
+
+        final ResponseInputStream<GetObjectResponse> plaintext;
+        try {
+            plaintext = pipeline.getObject(getObjectRequest);
+        } catch (Exception e) {
+            throw new S3EncryptionClientException(e.getMessage(), e);
+        }
+        try {
+            return responseTransformer.transform(plaintext.response(), AbortableInputStream.create(plaintext));
+        } catch (Exception e) {
+            throw new S3EncryptionClientException("Unable to transform response.", e);
+        }
+    }
+
+    /**
+     * Gets the object through the async client, for the requests the synchronous
+     * pipeline does not support, e.g. ranged gets.
+     */
+    private <T> T getObjectAsync(GetObjectRequest getObjectRequest,
+                                 ResponseTransformer<GetObjectResponse, T> responseTransformer) {
+        GetEncryptedObjectPipeline pipeline = getObjectPipeline(true);
 
         try {
             ResponseInputStream<GetObjectResponse> joinFutureGet = pipeline.getObject(getObjectRequest, AsyncResponseTransformer.toBlockingInputStream()).join();
@@ -271,6 +311,56 @@ public class S3EncryptionClient extends DelegatingS3Client {
         }
     }
 
+    /**
+     * See {@link S3Client#getObject(GetObjectRequest, Path)}
+     * <p>
+     * In the S3EncryptionClient, the object is decrypted into a temporary file next to the
+     * destination, which is only moved into place once the whole object has been authenticated.
+     * This holds for objects of any size without buffering plaintext in memory, whether or not
+     * delayed authentication is enabled. An existing file at the destination is replaced, and is
+     * left as it was if the download fails.
+     * </p>
+     * @param getObjectRequest the request instance
+     * @param destinationPath the file to write the decrypted object to
+     * @return The response, once the file is in place.
+     * @throws SdkClientException If any client side error occurs such as an IO related failure, failure to get credentials, etc.
+     * @throws S3EncryptionClientException Base class for all encryption client exceptions.
+     */
+    @Override
+    public GetObjectResponse getObject(GetObjectRequest getObjectRequest, Path destinationPath)
+            throws AwsServiceException, SdkClientException {
+        try {
+            return getObjectPipeline(true).getObject(getObjectRequest, destinationPath).join();
+        } catch (CompletionException e) {
+            throw new S3EncryptionClientException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * @param async whether the pipeline needs the async client, which is built if it has not been yet
+     */
+    private GetEncryptedObjectPipeline getObjectPipeline(boolean async) {
+        return GetEncryptedObjectPipeline.builder()
+                .s3Client(_wrappedClient)
+                .s3AsyncClient(async ? wrappedAsyncClient() : null)
+                .cryptoMaterialsManager(_cryptoMaterialsManager)
+                .enableLegacyUnauthenticatedModes(_enableLegacyUnauthenticatedModes)
+                .enableDelayedAuthentication(_enableDelayedAuthenticationMode)
+                .bufferSize(_bufferSize)
+                .enableBufferSpillToDisk(_enableBufferSpillToDisk)
+                .bufferSpillDirectory(_bufferSpillDirectory)
+                .bufferMemoryBudget(_bufferMemoryBudget)
+                .enableOffHeapBuffering(_enableOffHeapBuffering)
+                .cipherChunkSize(_cipherChunkSize)
+                .enableParallelDecryption(_enableParallelDecryption)
+                .parallelDecryptionThreshold(_parallelDecryptionThreshold)
+                .enableParallelDownload(_enableParallelDownload)
+                .parallelDownloadPartSize(_parallelDownloadPartSize)
+                .parallelDownloadConcurrency(_parallelDownloadConcurrency)
+                .instructionFileConfig(_instructionFileConfig)
+                .build();
+    }
+
     private PutObjectResponse multipartPutObject(PutObjectRequest request, RequestBody requestBody) throws Throwable {
         // Similar logic exists in the MultipartUploadObjectPipeline,
         // but the request types do not match so refactoring is not possible
@@ -307,9 +397,19 @@ public class S3EncryptionClient extends DelegatingS3Client {
             multipartConfiguration = MultipartConfiguration.builder().build();
         }
 
-        ExecutorService es = multipartConfiguration.executorService();
-        if (es == null) {
-            throw new S3EncryptionClientException("ExecutorService should not be null, Please initialize during MultipartConfiguration");
+        // Parts share the client's executor, unless the configuration brings its own
+        // With auto-tuning, how many parts run at once follows how the uploads fare
+        final AdaptiveConcurrency concurrency = multipartConfiguration.autoTune()
+                && multipartConfiguration.usingDefaultExecutorService()
+                ? new AdaptiveConcurrency(multipartConfiguration.minConnections(), multipartConfiguration.maxConnections())
+                : null;
+        ExecutorService es;
+        if (concurrency != null) {
+            es = _executor.limitedTo(concurrency::limit);
+        } else if (multipartConfiguration.usingDefaultExecutorService()) {
+            es = _executor.limitedTo(multipartConfiguration.maxConnections());
+        } else {
+            es = multipartConfiguration.executorService();
         }
 
         UploadObjectObserver observer = multipartConfiguration.uploadObjectObserver();
@@ -317,41 +417,156 @@ public class S3EncryptionClient extends DelegatingS3Client {
             throw new S3EncryptionClientException("UploadObjectObserver should not be null, Please initialize during MultipartConfiguration");
         }
 
-        observer.init(request, _wrappedAsyncClient, this, es);
-        final String uploadId = observer.onUploadCreation(request);
+        observer.init(request, wrappedAsyncClient(), this, es, multipartConfiguration.maxPartsInFlight());
+        if (concurrency != null) {
+            observer.adaptiveConcurrency(concurrency);
+        }
+        // Chosen before the upload is created, so an object too large for 10,000 parts fails early
+        final long partSize = multipartConfiguration.partSize(contentLength);
+        final MultipartCheckpointStore checkpointStore = multipartConfiguration.checkpointStore();
+        if (checkpointStore != null && contentLength < 0) {
+            throw new S3EncryptionClientException("Checkpointed multipart uploads need the content length to be known");
+        }
+        // What the upload is created with, which a resumed upload must match
+        final CreateMultipartUploadRequest uploadRequest = ConvertSDKRequests.convertRequest(request);
+        MultipartCheckpoint checkpoint = checkpointStore == null
+                ? null
+                : resumableUpload(checkpointStore, uploadRequest, multipartConfiguration.resumeUploadId(), partSize,
+                        contentLength);
+        final String uploadId;
+        final int firstPartNumber;
+        if (checkpoint != null) {
+            uploadId = checkpoint.uploadId();
+            final List<CompletedPart> uploadedParts = new ArrayList<>();
+            for (MultipartCheckpoint.Part part : checkpoint.parts()) {
+                uploadedParts.add(CompletedPart.builder().partNumber(part.partNumber()).eTag(part.eTag()).build());
+            }
+            observer.onUploadResumption(uploadId, uploadedParts);
+            firstPartNumber = uploadedParts.size() + 1;
+        } else {
+            uploadId = observer.onUploadCreation(request);
+            firstPartNumber = 1;
+            if (checkpointStore != null) {
+                checkpoint = multipartPipeline().newCheckpoint(uploadId, uploadRequest, partSize, contentLength);
+                checkpointStore.create(checkpoint);
+            }
+        }
+        if (checkpoint != null) {
+            final MultipartCheckpoint uploadCheckpoint = checkpoint;
+            observer.partListener(part -> multipartPipeline().checkpointPart(checkpointStore, uploadCheckpoint,
+                    part.partNumber(), part.eTag()));
+        }
         final List<CompletedPart> partETags = new ArrayList<>();
 
-        MultiFileOutputStream outputStream = multipartConfiguration.multiFileOutputStream();
+        PartOutputStream outputStream = multipartConfiguration.partOutputStream();
         if (outputStream == null) {
-            throw new S3EncryptionClientException("MultiFileOutputStream should not be null, Please initialize during MultipartConfiguration");
+            throw new S3EncryptionClientException("PartOutputStream should not be null, Please initialize during MultipartConfiguration");
         }
 
         try {
             // initialize the multi-file output stream
-            outputStream.init(observer, multipartConfiguration.partSize(), multipartConfiguration.diskLimit());
-            // Kicks off the encryption-upload pipeline;
+            outputStream.init(observer, partSize, multipartConfiguration.diskLimit());
+            // Kicks off the encryption-upload pipeline; parts are uploaded as they are staged,
+            // and encryption stops at the next part should one fail.
             // Note outputStream is automatically closed upon method completion.
-            _multipartPipeline.putLocalObject(requestBody, uploadId, outputStream);
-            // block till all part have been uploaded
-            for (Future<Map<Integer, UploadPartResponse>> future : observer.futures()) {
-                Map<Integer, UploadPartResponse> partResponseMap = future.get();
-                partResponseMap.forEach((partNumber, uploadPartResponse) -> partETags.add(CompletedPart.builder()
-                        .partNumber(partNumber)
-                        .eTag(uploadPartResponse.eTag())
-                        .build()));
+            if (checkpoint != null) {
+                // Encrypted part by part, so the upload can be resumed after any part
+                multipartPipeline().putLocalObject(requestBody, uploadId, outputStream, partSize, contentLength,
+                        firstPartNumber);
+            } else {
+                multipartPipeline().putLocalObject(requestBody, uploadId, outputStream);
+            }
+            // block till all part have been uploaded, returning early if one fails
+            partETags.addAll(observer.awaitCompletion());
+        } catch (IOException | RuntimeException | Error ex) {
+            if (checkpoint != null) {
+                // Left in place to be resumed
+                observer.cancelParts();
+                multipartPipeline().releaseMultipartUpload(uploadId);
+                final String message = ex.getMessage() + " The multipart upload " + uploadId
+                        + " is left in place, and can be resumed by putting the same object again with its upload ID"
+                        + " as the MultipartConfiguration's resumeUploadId.";
+                if (ex instanceof S3EncryptionClientSecurityException) {
+                    // e.g. the content of the parts already uploaded has changed
+                    throw new S3EncryptionClientSecurityException(message, ex);
+                }
+                throw new S3EncryptionClientException(message, ex);
             }
-        } catch (IOException | InterruptedException | ExecutionException | RuntimeException | Error ex) {
             throw onAbort(observer, ex);
         } finally {
             if (multipartConfiguration.usingDefaultExecutorService()) {
-                // shut down the thread pool if it was created by the encryption client
+                // stop any parts still waiting for their turn; the client's executor carries on
                 es.shutdownNow();
             }
             // delete left-over temp files
             outputStream.cleanup();
         }
         // Complete upload
-        return ConvertSDKRequests.convertResponse(observer.onCompletion(partETags));
+        final PutObjectResponse response = ConvertSDKRequests.convertResponse(observer.onCompletion(partETags));
+        if (checkpointStore != null) {
+            checkpointStore.delete(request.bucket(), request.key());
+        }
+        return response;
+    }
+
+    /**
+     * Picks up the checkpointed upload to carry on, if the request asks for one, restoring the
+     * parts which S3 has. Otherwise any checkpointed upload of the object is aborted, as it
+     * would be left behind once the new upload replaces its checkpoint.
+     *
+     * @param resumeUploadId the upload the request asks to carry on, or null to start a new upload
+     * @return the checkpoint of the upload to carry on, or null to start a new upload
+     * @throws S3EncryptionClientException if the upload can't be carried on by this request
+     */
+    private MultipartCheckpoint resumableUpload(MultipartCheckpointStore checkpointStore,
+                                                CreateMultipartUploadRequest request, String resumeUploadId,
+                                                long partSize, long contentLength) {
+        final MultipartCheckpoint checkpoint = checkpointStore.load(request.bucket(), request.key());
+        if (resumeUploadId == null) {
+            if (checkpoint != null) {
+                try {
+                    abortMultipartUpload(builder -> builder.bucket(request.bucket())
+                            .key(request.key())
+                            .uploadId(checkpoint.uploadId()));
+                } catch (Exception e) {
+                    LogFactory.getLog(getClass()).debug("Failed to abort multi-part upload: " + checkpoint.uploadId(), e);
+                }
+                checkpointStore.delete(request.bucket(), request.key());
+            }
+            return null;
+        }
+        if (checkpoint == null || !resumeUploadId.equals(checkpoint.uploadId())) {
+            throw new S3EncryptionClientException("There is no checkpoint of the multipart upload " + resumeUploadId
+                    + " of " + request.bucket() + "/" + request.key() + " to resume");
+        }
+        if (checkpoint.partSize() != partSize || checkpoint.contentLength() != contentLength) {
+            // The object, or how it is split, has changed, so its parts can't be reused
+            throw new S3EncryptionClientException("The multipart upload " + resumeUploadId + " is of "
+                    + checkpoint.contentLength() + " bytes in parts of " + checkpoint.partSize()
+                    + " bytes, so it can't be resumed with " + contentLength + " bytes in parts of " + partSize);
+        }
+        if (!checkpoint.isFor(request)) {
+            // The object would otherwise get the metadata of the request which created the upload
+            throw new S3EncryptionClientException("The multipart upload " + resumeUploadId
+                    + " was created with other metadata or settings, so it can't be resumed by this request");
+        }
+        final Map<Integer, String> uploadedETags = new HashMap<>();
+        try {
+            for (Part part : _wrappedClient.listPartsPaginator(builder -> builder
+                    .overrideConfiguration(API_NAME_INTERCEPTOR)
+                    .bucket(request.bucket())
+                    .key(request.key())
+                    .uploadId(checkpoint.uploadId())).parts()) {
+                uploadedETags.put(part.partNumber(), part.eTag());
+            }
+        } catch (NoSuchUploadException e) {
+            // e.g. aborted by a lifecycle rule in the meantime
+            checkpointStore.delete(request.bucket(), request.key());
+            throw new S3EncryptionClientException("The multipart upload " + resumeUploadId
+                    + " no longer exists, so it can't be resumed", e);
+        }
+        multipartPipeline().resumeMultipartUpload(checkpoint, uploadedETags);
+        return checkpoint;
     }
 
     private <T extends Throwable> T onAbort(UploadObjectObserver observer, T t) {
@@ -377,17 +592,15 @@ public class S3EncryptionClient extends DelegatingS3Client {
 
         try {
             // Delete the object
-            DeleteObjectResponse deleteObjectResponse = _wrappedAsyncClient.deleteObject(actualRequest).join();
+            DeleteObjectResponse deleteObjectResponse = _wrappedClient.deleteObject(actualRequest);
             // If Instruction file exists, delete the instruction file as well.
             String instructionObjectKey = deleteObjectRequest.key() + INSTRUCTION_FILE_SUFFIX;
-            _wrappedAsyncClient.deleteObject(builder -> builder
+            _wrappedClient.deleteObject(builder -> builder
                     .overrideConfiguration(API_NAME_INTERCEPTOR)
                     .bucket(deleteObjectRequest.bucket())
-                    .key(instructionObjectKey)).join();
+                    .key(instructionObjectKey));
             // Return original deletion
             return deleteObjectResponse;
-        } catch (CompletionException e) {
-            throw new S3EncryptionClientException(e.getCause().getMessage(), e.getCause());
         } catch (Exception e) {
             throw new S3EncryptionClientException("Unable to delete object.", e);
         }
@@ -410,17 +623,15 @@ public class S3EncryptionClient extends DelegatingS3Client {
                 .build();
         try {
             // Delete the objects
-            DeleteObjectsResponse deleteObjectsResponse = _wrappedAsyncClient.deleteObjects(actualRequest).join();
+            DeleteObjectsResponse deleteObjectsResponse = _wrappedClient.deleteObjects(actualRequest);
             // If Instruction files exists, delete the instruction files as well.
             List<ObjectIdentifier> deleteObjects = instructionFileKeysToDelete(deleteObjectsRequest);
-            _wrappedAsyncClient.deleteObjects(DeleteObjectsRequest.builder()
+            _wrappedClient.deleteObjects(DeleteObjectsRequest.builder()
                     .overrideConfiguration(API_NAME_INTERCEPTOR)
                     .bucket(deleteObjectsRequest.bucket())
                     .delete(builder -> builder.objects(deleteObjects))
-                    .build()).join();
+                    .build());
             return deleteObjectsResponse;
-        } catch (CompletionException e) {
-            throw new S3EncryptionClientException(e.getCause().getMessage(), e.getCause());
         } catch (Exception e) {
             throw new S3EncryptionClientException("Unable to delete objects.", e);
         }
@@ -430,7 +641,7 @@ public class S3EncryptionClient extends DelegatingS3Client {
      * See {@link S3Client#createMultipartUpload(CreateMultipartUploadRequest)}
      * <p>
      * In the S3EncryptionClient, createMultipartUpload creates an encrypted
-     * multipart upload. Parts MUST be uploaded sequentially.
+     * multipart upload.
      * See {@link S3EncryptionClient#uploadPart(UploadPartRequest, RequestBody)} for details.
      * </p>
      * @param request the request instance
@@ -439,7 +650,7 @@ public class S3EncryptionClient extends DelegatingS3Client {
     @Override
     public CreateMultipartUploadResponse createMultipartUpload(CreateMultipartUploadRequest request) {
         try {
-            return _multipartPipeline.createMultipartUpload(request);
+            return multipartPipeline().createMultipartUpload(request);
         } catch (CompletionException e) {
             throw new S3EncryptionClientException(e.getCause().getMessage(), e.getCause());
         } catch (Exception e) {
@@ -450,11 +661,11 @@ public class S3EncryptionClient extends DelegatingS3Client {
     /**
      * See {@link S3Client#uploadPart(UploadPartRequest, RequestBody)}
      *
-     * <b>NOTE:</b> Because the encryption process requires context from block
-     * N-1 in order to encrypt block N, parts uploaded with the
-     * S3EncryptionClient (as opposed to the normal S3Client) must
-     * be uploaded serially, and in order. Otherwise, the previous encryption
-     * context isn't available to use when encrypting the current part.
+     * <b>NOTE:</b> Each part is encrypted at its own offset in the object, so parts
+     * may be uploaded concurrently and in any order, but parts which are uploaded out
+     * of order must all be the same size (except the last part). The last part carries
+     * the authentication tag of the whole object, so it can only be uploaded once all
+     * other parts have been uploaded.
      * @param request the request instance
      * @return Result of the UploadPart operation returned by the service.
      */
@@ -462,7 +673,7 @@ public class S3EncryptionClient extends DelegatingS3Client {
     public UploadPartResponse uploadPart(UploadPartRequest request, RequestBody requestBody)
             throws AwsServiceException, SdkClientException {
         try {
-            return _multipartPipeline.uploadPart(request, requestBody);
+            return multipartPipeline().uploadPart(request, requestBody);
         } catch (CompletionException e) {
             throw new S3EncryptionClientException(e.getCause().getMessage(), e.getCause());
         } catch (Exception e) {
@@ -479,7 +690,7 @@ public class S3EncryptionClient extends DelegatingS3Client {
     public CompleteMultipartUploadResponse completeMultipartUpload(CompleteMultipartUploadRequest request)
             throws AwsServiceException, SdkClientException {
         try {
-            return _multipartPipeline.completeMultipartUpload(request);
+            return multipartPipeline().completeMultipartUpload(request);
         } catch (CompletionException e) {
             throw new S3EncryptionClientException(e.getCause().getMessage(), e.getCause());
         } catch (Exception e) {
@@ -496,7 +707,7 @@ public class S3EncryptionClient extends DelegatingS3Client {
     public AbortMultipartUploadResponse abortMultipartUpload(AbortMultipartUploadRequest request)
             throws AwsServiceException, SdkClientException {
         try {
-            return _multipartPipeline.abortMultipartUpload(request);
+            return multipartPipeline().abortMultipartUpload(request);
         } catch (CompletionException e) {
             throw new S3EncryptionClientException(e.getCause().getMessage(), e.getCause());
         } catch (Exception e) {
@@ -505,12 +716,75 @@ public class S3EncryptionClient extends DelegatingS3Client {
     }
 
     /**
-     * Closes the wrapped clients.
+     * The wrapped async client, which is only needed for multipart uploads and the gets
+     * the synchronous pipeline does not support, so is built the first time it is needed.
+     */
+    private S3AsyncClient wrappedAsyncClient() {
+        S3AsyncClient client = _wrappedAsyncClient;
+        if (client == null) {
+            synchronized (_asyncLock) {
+                client = _wrappedAsyncClient;
+                if (client == null) {
+                    client = _wrappedAsyncClientBuilder.build();
+                    _wrappedAsyncClient = client;
+                }
+            }
+        }
+        return client;
+    }
+
+    private MultipartUploadObjectPipeline multipartPipeline() {
+        MultipartUploadObjectPipeline pipeline = _multipartPipeline;
+        if (pipeline == null) {
+            final S3AsyncClient asyncClient = wrappedAsyncClient();
+            synchronized (_asyncLock) {
+                pipeline = _multipartPipeline;
+                if (pipeline == null) {
+                    pipeline = MultipartUploadObjectPipeline.builder()
+                            .s3AsyncClient(asyncClient)
+                            .cryptoMaterialsManager(_cryptoMaterialsManager)
+                            .secureRandom(_secureRandom)
+                            .cipherChunkSize(_cipherChunkSize)
+                            .executorService(_executor)
+                            .materialsRegistry(_multipartUploadRegistry)
+                            .abortEvictedUploads(_abortIdleMultipartUploads)
+                            .build();
+                    _multipartPipeline = pipeline;
+                }
+            }
+        }
+        return pipeline;
+    }
+
+    /**
+     * @return a snapshot of the tasks run on the client's executor, e.g. the parts of
+     *         multipart putObject calls
+     */
+    public ClientExecutor.Metrics executorMetrics() {
+        return _executor.metrics();
+    }
+
+    /**
+     * @return a snapshot of the encrypted multipart uploads in progress, and of those evicted
+     *         after being idle or turned away as too many were in progress
+     */
+    public MultipartUploadMaterialsRegistry.Metrics multipartUploadMetrics() {
+        return _multipartUploadRegistry.metrics();
+    }
+
+    /**
+     * Closes the wrapped clients, and the client's executor unless it was supplied
+     * with {@link Builder#executorService(ExecutorService)}.
      */
     @Override
     public void close() {
+        _executor.close();
         _wrappedClient.close();
-        _wrappedAsyncClient.close();
+        synchronized (_asyncLock) {
+            if (_wrappedAsyncClient != null) {
+                _wrappedAsyncClient.close();
+            }
+        }
         _instructionFileConfig.closeClient();
     }
 
@@ -520,8 +794,7 @@ public class S3EncryptionClient extends DelegatingS3Client {
         // The non-encrypted APIs will use a default client.
         private S3Client _wrappedClient;
         private S3AsyncClient _wrappedAsyncClient;
-
-        private MultipartUploadObjectPipeline _multipartPipeline;
+        private S3AsyncClientBuilder _wrappedAsyncClientBuilder;
         private CryptographicMaterialsManager _cryptoMaterialsManager;
         private Keyring _keyring;
         private SecretKey _aesKey;
@@ -534,7 +807,24 @@ public class S3EncryptionClient extends DelegatingS3Client {
         private SecureRandom _secureRandom = new SecureRandom();
         private boolean _enableLegacyUnauthenticatedModes = false;
         private long _bufferSize = -1L;
+        private boolean _enableBufferSpillToDisk = false;
+        private Path _bufferSpillDirectory = null;
+        private BufferMemoryBudget _bufferMemoryBudget = null;
+        private boolean _enableOffHeapBuffering = false;
+        private int _cipherChunkSize = CoalescingSubscriber.DEFAULT_TARGET_SIZE;
+        private boolean _enableParallelDecryption = false;
+        private long _parallelDecryptionThreshold = DEFAULT_PARALLEL_DECRYPTION_THRESHOLD_BYTES;
+        private boolean _enableParallelDownload = false;
+        private long _parallelDownloadPartSize = DEFAULT_PARALLEL_DOWNLOAD_PART_SIZE_BYTES;
+        private int _parallelDownloadConcurrency = DEFAULT_PARALLEL_DOWNLOAD_CONCURRENCY;
+        private ExecutorService _executorService = null;
+        private boolean _enableVirtualThreads = false;
+        private ClientExecutor _executor;
         private InstructionFileConfig _instructionFileConfig = null;
+        private int _maxMultipartUploads = MultipartUploadMaterialsRegistry.DEFAULT_MAX_UPLOADS;
+        private Duration _multipartUploadIdleTimeout = MultipartUploadMaterialsRegistry.DEFAULT_IDLE_TIMEOUT;
+        private boolean _abortIdleMultipartUploads = false;
+        private MultipartUploadMaterialsRegistry _multipartUploadRegistry;
         // generic AwsClient configuration to be shared by default clients
         private AwsCredentialsProvider _awsCredentialsProvider = null;
         private Region _region = null;
@@ -758,6 +1048,205 @@ public class S3EncryptionClient extends DelegatingS3Client {
             return this;
         }
 
+        /**
+         * When set to true, objects larger than the buffer size are still authenticated
+         * before any plaintext is returned. Up to buffer size bytes of plaintext are held
+         * in memory and the remainder is written to a temporary file, which is deleted once
+         * the object has been read, the stream is cancelled, or decryption fails.
+         * Cannot be used with delayed authentication mode. Disabled by default.
+         * @param shouldEnableBufferSpillToDisk true to spill buffered plaintext to disk
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder enableBufferSpillToDisk(boolean shouldEnableBufferSpillToDisk) {
+            this._enableBufferSpillToDisk = shouldEnableBufferSpillToDisk;
+            return this;
+        }
+
+        /**
+         * Sets the directory in which temporary files are created when buffer spill to disk
+         * is enabled. By default, the system temporary-file directory is used. Temporary files
+         * hold decrypted plaintext, so the directory should only be readable by this application.
+         * @param bufferSpillDirectory the directory for temporary plaintext files
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder bufferSpillDirectory(Path bufferSpillDirectory) {
+            this._bufferSpillDirectory = bufferSpillDirectory;
+            return this;
+        }
+
+        /**
+         * Sets a budget which bounds the memory used to buffer plaintext across concurrent
+         * getObject requests while delayed authentication mode is disabled. Each request
+         * reserves the bytes it may buffer before its stream starts; requests which do not fit
+         * fail or wait according to the budget's admission policy. The same budget may be
+         * given to several clients to bound buffering across all of them, so closing the client
+         * does not close the budget. Unbounded by default.
+         * @param bufferMemoryBudget the budget to reserve buffered bytes against
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder bufferMemoryBudget(BufferMemoryBudget bufferMemoryBudget) {
+            this._bufferMemoryBudget = bufferMemoryBudget;
+            return this;
+        }
+
+        /**
+         * When set to true, objects buffered for authentication are held in direct (off-heap)
+         * memory instead of on the Java heap. The plaintext is returned as read-only views of
+         * that memory, which is freed once the views are no longer referenced.
+         * Cannot be used with delayed authentication mode. Disabled by default.
+         * @param shouldEnableOffHeapBuffering true to buffer objects off-heap
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder enableOffHeapBuffering(boolean shouldEnableOffHeapBuffering) {
+            this._enableOffHeapBuffering = shouldEnableOffHeapBuffering;
+            return this;
+        }
+
+        /**
+         * Sets the size, in bytes, up to which small buffers of a stream are gathered before
+         * they are encrypted or decrypted. Streams are often delivered in buffers of a few
+         * kilobytes or less; gathering them means far fewer cipher calls and downstream signals
+         * per byte. Buffers at least this large pass through as they are. Multipart uploads
+         * made by putObject also read and encrypt their content in chunks of this size.
+         * Set to 0 to disable gathering. Defaults to 128 KiB.
+         * @param cipherChunkSize the target chunk size in bytes
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder cipherChunkSize(int cipherChunkSize) {
+            this._cipherChunkSize = cipherChunkSize;
+            return this;
+        }
+
+        /**
+         * When set to true, objects buffered for authentication which are at least as large as the
+         * parallel decryption threshold are decrypted across the threads of the common
+         * {@link java.util.concurrent.ForkJoinPool}, rather than on a single thread. The tag is
+         * still verified before any plaintext is released.
+         * Cannot be used with delayed authentication mode. Disabled by default.
+         * @param shouldEnableParallelDecryption true to decrypt large buffered objects in parallel
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder enableParallelDecryption(boolean shouldEnableParallelDecryption) {
+            this._enableParallelDecryption = shouldEnableParallelDecryption;
+            return this;
+        }
+
+        /**
+         * Sets the size, in bytes, from which buffered objects are decrypted in parallel
+         * when parallel decryption is enabled. Defaults to 16 MiB.
+         * @param parallelDecryptionThreshold the smallest object size to decrypt in parallel
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder parallelDecryptionThreshold(long parallelDecryptionThreshold) {
+            this._parallelDecryptionThreshold = parallelDecryptionThreshold;
+            return this;
+        }
+
+        /**
+         * When set to true, objects fetched without a range are downloaded as several byte ranges
+         * at once rather than in a single stream. The object's metadata is resolved from the first
+         * range, the remaining ranges are fetched concurrently, and each is decrypted as soon as it
+         * arrives. Plaintext is released in order as it is decrypted, and the object's
+         * authentication tag is verified over the whole object before the download completes, so
+         * this requires delayed authentication mode. Only AES-GCM objects are downloaded in ranges.
+         * Disabled by default.
+         * @param shouldEnableParallelDownload true to download objects as concurrent byte ranges
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder enableParallelDownload(boolean shouldEnableParallelDownload) {
+            this._enableParallelDownload = shouldEnableParallelDownload;
+            return this;
+        }
+
+        /**
+         * Sets the size, in bytes, of each byte range of a parallel download. Must be a positive
+         * multiple of 16. Defaults to 8 MiB.
+         * @param parallelDownloadPartSize the size of each byte range
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder parallelDownloadPartSize(long parallelDownloadPartSize) {
+            this._parallelDownloadPartSize = parallelDownloadPartSize;
+            return this;
+        }
+
+        /**
+         * Sets how many byte ranges a parallel download fetches at once. At most this many ranges
+         * of each object are held in memory. Defaults to 8.
+         * @param parallelDownloadConcurrency the number of byte ranges to fetch at once
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder parallelDownloadConcurrency(int parallelDownloadConcurrency) {
+            this._parallelDownloadConcurrency = parallelDownloadConcurrency;
+            return this;
+        }
+
+        /**
+         * Sets the executor the client runs its blocking work on, e.g. uploading the parts of
+         * a multipart putObject, or reading the content given to uploadPart. It is shared by
+         * all requests, and is not shut down when the client is closed. By default, the client
+         * creates its own, which reuses idle threads between requests.
+         * Cannot be used with {@link #enableVirtualThreads(boolean)}.
+         * @param executorService the executor to run the client's blocking work on
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        @SuppressFBWarnings(value = "EI_EXPOSE_REP2", justification = "The executor is shared with the caller")
+        public Builder executorService(ExecutorService executorService) {
+            this._executorService = executorService;
+            return this;
+        }
+
+        /**
+         * When set to true, the client's own executor runs each task on a new virtual thread
+         * rather than on a pool of platform threads. Virtual threads need Java 21 or later;
+         * on earlier versions the client falls back to its pool of platform threads.
+         * Disabled by default.
+         * @param shouldEnableVirtualThreads true to run the client's blocking work on virtual threads
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder enableVirtualThreads(boolean shouldEnableVirtualThreads) {
+            this._enableVirtualThreads = shouldEnableVirtualThreads;
+            return this;
+        }
+
+        /**
+         * Sets the most encrypted multipart uploads, created with createMultipartUpload or by a
+         * multipart putObject, which may be in progress at once. The client keeps each upload's
+         * data key in memory until it is completed or aborted, so this bounds the memory, and
+         * the key material, which uploads that are never finished can hold. Creating an upload
+         * beyond it fails. Defaults to 10,000.
+         * @param maxMultipartUploads the most uploads to have in progress at once
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder maxMultipartUploads(int maxMultipartUploads) {
+            this._maxMultipartUploads = maxMultipartUploads;
+            return this;
+        }
+
+        /**
+         * Sets how long an encrypted multipart upload may go without a part being uploaded
+         * before the client forgets it, zeroing its data key; its parts can then no longer be
+         * uploaded or completed through this client. Defaults to 24 hours.
+         * @param multipartUploadIdleTimeout how long an upload may be idle
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder multipartUploadIdleTimeout(Duration multipartUploadIdleTimeout) {
+            this._multipartUploadIdleTimeout = multipartUploadIdleTimeout;
+            return this;
+        }
+
+        /**
+         * When set to true, encrypted multipart uploads which the client forgets after being
+         * idle, see {@link #multipartUploadIdleTimeout(Duration)}, are also aborted in S3, so
+         * their parts are not stored, and charged for, until a lifecycle rule removes them.
+         * Disabled by default.
+         * @param shouldAbortIdleMultipartUploads true to abort idle uploads in S3
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder abortIdleMultipartUploads(boolean shouldAbortIdleMultipartUploads) {
+            this._abortIdleMultipartUploads = shouldAbortIdleMultipartUploads;
+            return this;
+        }
+
         /**
          * Allows the user to pass an instance of {@link Provider} to be used
          * for cryptographic operations. By default, the S3 Encryption Client
@@ -1076,6 +1565,46 @@ public class S3EncryptionClient extends DelegatingS3Client {
                 _bufferSize = DEFAULT_BUFFER_SIZE_BYTES;
             }
 
+            if (_enableBufferSpillToDisk && _enableDelayedAuthenticationMode) {
+                throw new S3EncryptionClientException("Buffer spill to disk cannot be enabled when delayed authentication mode is enabled");
+            }
+
+            if (_bufferMemoryBudget != null && _enableDelayedAuthenticationMode) {
+                throw new S3EncryptionClientException("Buffer memory budget cannot be set when delayed authentication mode is enabled");
+            }
+
+            if (_enableOffHeapBuffering && _enableDelayedAuthenticationMode) {
+                throw new S3EncryptionClientException("Off-heap buffering cannot be enabled when delayed authentication mode is enabled");
+            }
+
+            if (_cipherChunkSize < 0) {
+                throw new S3EncryptionClientException("Cipher chunk size cannot be negative");
+            }
+
+            if (_enableParallelDecryption && _enableDelayedAuthenticationMode) {
+                throw new S3EncryptionClientException("Parallel decryption cannot be enabled when delayed authentication mode is enabled");
+            }
+
+            if (_parallelDecryptionThreshold < 0) {
+                throw new S3EncryptionClientException("Parallel decryption threshold cannot be negative");
+            }
+
+            if (_enableParallelDownload && !_enableDelayedAuthenticationMode) {
+                throw new S3EncryptionClientException("Parallel download releases plaintext before the whole object is authenticated, so it requires delayed authentication mode");
+            }
+
+            if (_parallelDownloadPartSize <= 0 || _parallelDownloadPartSize % 16 != 0) {
+                throw new S3EncryptionClientException("Parallel download part size must be a positive multiple of 16");
+            }
+
+            if (_parallelDownloadConcurrency < 1) {
+                throw new S3EncryptionClientException("Parallel download concurrency must be at least 1");
+            }
+
+            if (_executorService != null && _enableVirtualThreads) {
+                throw new S3EncryptionClientException("Virtual threads cannot be enabled when an executor service is set");
+            }
+
             if (_wrappedClient == null) {
                 _wrappedClient = S3Client.builder()
                         .credentialsProvider(_awsCredentialsProvider)
@@ -1097,7 +1626,8 @@ public class S3EncryptionClient extends DelegatingS3Client {
             }
 
             if (_wrappedAsyncClient == null) {
-                _wrappedAsyncClient = S3AsyncClient.builder()
+                // Only built if it is needed; see S3EncryptionClient#wrappedAsyncClient
+                _wrappedAsyncClientBuilder = S3AsyncClient.builder()
                         .credentialsProvider(_awsCredentialsProvider)
                         .region(_region)
                         .dualstackEnabled(_dualStackEnabled)
@@ -1112,8 +1642,7 @@ public class S3EncryptionClient extends DelegatingS3Client {
                         .httpClient(_asyncHttpClient)
                         .httpClientBuilder(_asyncHttpClientBuilder)
                         .disableS3ExpressSessionAuth(_disableS3ExpressSessionAuth)
-                        .crossRegionAccessEnabled(_crossRegionAccessEnabled)
-                        .build();
+                        .crossRegionAccessEnabled(_crossRegionAccessEnabled);
             }
 
             if (_instructionFileConfig == null) {
@@ -1160,10 +1689,13 @@ public class S3EncryptionClient extends DelegatingS3Client {
                         .build();
             }
 
-            _multipartPipeline = MultipartUploadObjectPipeline.builder()
-                    .s3AsyncClient(_wrappedAsyncClient)
-                    .cryptoMaterialsManager(_cryptoMaterialsManager)
-                    .secureRandom(_secureRandom)
+            _executor = _executorService != null
+                    ? ClientExecutor.wrap(_executorService)
+                    : ClientExecutor.create(_enableVirtualThreads);
+
+            _multipartUploadRegistry = MultipartUploadMaterialsRegistry.builder()
+                    .maxUploads(_maxMultipartUploads)
+                    .idleTimeout(_multipartUploadIdleTimeout)
                     .build();
 
             return new S3EncryptionClient(this);
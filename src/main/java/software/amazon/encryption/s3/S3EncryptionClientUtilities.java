@@ -24,6 +24,21 @@ public class S3EncryptionClientUtilities {
      */
     public static final long DEFAULT_BUFFER_SIZE_BYTES = 64 * 1024 * 1024;
 
+    /**
+     * The Default size above which buffered objects are decrypted in parallel, when enabled, is set to 16MiB.
+     */
+    public static final long DEFAULT_PARALLEL_DECRYPTION_THRESHOLD_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * The Default size of each byte range fetched by a parallel download is set to 8MiB.
+     */
+    public static final long DEFAULT_PARALLEL_DOWNLOAD_PART_SIZE_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * The Default number of byte ranges a parallel download fetches at once is set to 8.
+     */
+    public static final int DEFAULT_PARALLEL_DOWNLOAD_CONCURRENCY = 8;
+
     /**
      * For a given DeleteObjectsRequest, return a list of ObjectIdentifiers
      * representing the corresponding instruction files to delete.
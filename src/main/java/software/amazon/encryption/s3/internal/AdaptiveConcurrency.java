@@ -0,0 +1,160 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import software.amazon.encryption.s3.S3EncryptionClientException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tunes how many parts of a multipart upload run at once from how the parts fare, in the
+ * manner of TCP congestion control (additive increase, multiplicative decrease).
+ * <p>
+ * The limit starts at the lower bound and grows by one for each part uploaded, roughly
+ * doubling with each round of parts, until the first sign of congestion; from then on it
+ * grows by one per round. A part which fails, or which takes more than
+ * {@link #CONGESTION_LATENCY_FACTOR} times as long per byte as the fastest parts so far,
+ * halves the limit, at most once per round. The limit always stays within the bounds it
+ * was given.
+ */
+public class AdaptiveConcurrency {
+    /**
+     * How many times slower per byte than the fastest parts a part must be to count as congestion.
+     */
+    static final double CONGESTION_LATENCY_FACTOR = 2.0;
+    private static final double DECREASE_FACTOR = 0.5;
+    /**
+     * Weight of the newest part in the smoothed throughput.
+     */
+    private static final double SMOOTHING = 0.2;
+
+    private final int _minLimit;
+    private final int _maxLimit;
+    private double _limit;
+    private boolean _slowStart = true;
+    /**
+     * The fastest a part has been uploaded, in nanoseconds per byte, smoothed upwards
+     * slowly so that it follows a link which gets slower for good.
+     */
+    private double _baselineNanosPerByte = Double.NaN;
+    private double _throughputBytesPerSecond = Double.NaN;
+    private long _partsSinceDecrease;
+    private long _increases;
+    private long _decreases;
+
+    /**
+     * @param minLimit the fewest parts to run at once, and where the limit starts
+     * @param maxLimit the most parts to run at once
+     */
+    public AdaptiveConcurrency(final int minLimit, final int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new S3EncryptionClientException("Concurrency bounds must satisfy 1 <= min <= max: min="
+                    + minLimit + ", max=" + maxLimit);
+        }
+        _minLimit = minLimit;
+        _maxLimit = maxLimit;
+        _limit = minLimit;
+    }
+
+    /**
+     * @return how many parts may run at once now
+     */
+    public synchronized int limit() {
+        return (int) _limit;
+    }
+
+    /**
+     * Records a part which was uploaded.
+     *
+     * @param bytes   the size of the part
+     * @param elapsed how long the upload took
+     * @param unit    the unit of {@code elapsed}
+     */
+    public synchronized void onSuccess(final long bytes, final long elapsed, final TimeUnit unit) {
+        _partsSinceDecrease++;
+        final double nanos = Math.max(1, unit.toNanos(elapsed));
+        final double nanosPerByte = nanos / Math.max(1, bytes);
+        final double bytesPerSecond = bytes * 1e9 / nanos;
+        _throughputBytesPerSecond = Double.isNaN(_throughputBytesPerSecond)
+                ? bytesPerSecond
+                : SMOOTHING * bytesPerSecond + (1 - SMOOTHING) * _throughputBytesPerSecond;
+        if (Double.isNaN(_baselineNanosPerByte) || nanosPerByte < _baselineNanosPerByte) {
+            _baselineNanosPerByte = nanosPerByte;
+        } else {
+            _baselineNanosPerByte += SMOOTHING * SMOOTHING * (nanosPerByte - _baselineNanosPerByte);
+        }
+        if (nanosPerByte > CONGESTION_LATENCY_FACTOR * _baselineNanosPerByte) {
+            decrease();
+        } else {
+            increase();
+        }
+    }
+
+    /**
+     * Records a part which failed, e.g. because S3 asked the client to slow down.
+     */
+    public synchronized void onFailure() {
+        _partsSinceDecrease++;
+        decrease();
+    }
+
+    private void increase() {
+        final double increased = _slowStart ? _limit + 1 : _limit + 1 / _limit;
+        if (increased <= _maxLimit) {
+            _limit = increased;
+            _increases++;
+        } else if (_limit < _maxLimit) {
+            _limit = _maxLimit;
+            _increases++;
+        }
+    }
+
+    private void decrease() {
+        // The parts of the current round were sent at the old limit, so only they are
+        // waited out before decreasing again
+        if (_decreases > 0 && _partsSinceDecrease < _limit) {
+            return;
+        }
+        _slowStart = false;
+        _partsSinceDecrease = 0;
+        _limit = Math.max(_minLimit, Math.floor(_limit * DECREASE_FACTOR));
+        _decreases++;
+    }
+
+    public int minLimit() {
+        return _minLimit;
+    }
+
+    public int maxLimit() {
+        return _maxLimit;
+    }
+
+    /**
+     * @return the smoothed throughput of a single part upload, in bytes per second, or
+     *         NaN before any part has been uploaded
+     */
+    public synchronized double throughputBytesPerSecond() {
+        return _throughputBytesPerSecond;
+    }
+
+    /**
+     * @return how many times the limit was raised
+     */
+    public synchronized long increases() {
+        return _increases;
+    }
+
+    /**
+     * @return how many times the limit was cut
+     */
+    public synchronized long decreases() {
+        return _decreases;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AdaptiveConcurrency(limit=" + limit() + ", minLimit=" + _minLimit + ", maxLimit=" + _maxLimit
+                + ", throughputBytesPerSecond=" + _throughputBytesPerSecond + ", increases=" + _increases
+                + ", decreases=" + _decreases + ")";
+    }
+}
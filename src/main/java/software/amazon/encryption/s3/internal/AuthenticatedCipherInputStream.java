@@ -30,9 +30,18 @@ public class AuthenticatedCipherInputStream extends CipherInputStream {
         this(inputStream, cipher, false, false);
     }
 
+    public AuthenticatedCipherInputStream(InputStream inputStream, Cipher cipher, int inputBufferSize) {
+        this(inputStream, cipher, false, false, inputBufferSize);
+    }
+
     public AuthenticatedCipherInputStream(InputStream inputStream, Cipher cipher,
                                           boolean multipart, boolean lastMultipart) {
-        super(inputStream, cipher);
+        this(inputStream, cipher, multipart, lastMultipart, DEFAULT_IN_BUFFER_SIZE);
+    }
+
+    public AuthenticatedCipherInputStream(InputStream inputStream, Cipher cipher,
+                                          boolean multipart, boolean lastMultipart, int inputBufferSize) {
+        super(inputStream, cipher, inputBufferSize);
         this.multipart = multipart;
         this.lastMultipart = lastMultipart;
     }
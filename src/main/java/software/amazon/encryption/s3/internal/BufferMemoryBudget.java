@@ -0,0 +1,261 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import software.amazon.encryption.s3.S3EncryptionClientException;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the memory used to buffer plaintext while it is being authenticated.
+ * Before a buffered decryption starts, the bytes it may hold are reserved
+ * against the budget, and they are returned once the plaintext stream ends.
+ * A budget may be shared by several clients to bound memory across a process.
+ * <p>
+ * When a reservation does not fit, the {@link AdmissionPolicy} decides whether
+ * the request fails immediately or waits, up to the queue timeout, for other
+ * requests to release their bytes. Waiting requests are admitted in arrival order.
+ * <p>
+ * A budget which queues requests runs a daemon thread to time them out. As a budget
+ * may be shared by several clients, the clients do not close it; whoever creates it
+ * should {@link #close()} it once no client uses it.
+ */
+public class BufferMemoryBudget implements AutoCloseable {
+
+    /**
+     * What to do with a request whose reservation does not fit in the budget.
+     */
+    public enum AdmissionPolicy {
+        /**
+         * Fail the request immediately.
+         */
+        FAIL_FAST,
+        /**
+         * Wait for other requests to release their bytes, up to the queue timeout.
+         */
+        QUEUE
+    }
+
+    private final long _maxBytes;
+    private final AdmissionPolicy _admissionPolicy;
+    private final Duration _queueTimeout;
+    private final Deque<Waiter> _waiters = new ArrayDeque<>();
+    private long _reservedBytes = 0;
+    private long _queuedBytes = 0;
+    private ScheduledExecutorService _timeoutScheduler;
+    private boolean _closed = false;
+
+    private BufferMemoryBudget(Builder builder) {
+        _maxBytes = builder._maxBytes;
+        _admissionPolicy = builder._admissionPolicy;
+        _queueTimeout = builder._queueTimeout;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return the total number of bytes which may be reserved at once
+     */
+    public long maxBytes() {
+        return _maxBytes;
+    }
+
+    /**
+     * @return the number of bytes currently reserved by in-flight requests
+     */
+    public synchronized long reservedBytes() {
+        return _reservedBytes;
+    }
+
+    /**
+     * @return the number of bytes requested by requests waiting for admission
+     */
+    public synchronized long queuedBytes() {
+        return _queuedBytes;
+    }
+
+    /**
+     * Reserves bytes against the budget. The returned future completes once the bytes
+     * are reserved, or completes exceptionally if they cannot be reserved under this
+     * budget's policy. Every successful reservation must be given back with {@link #release(long)}.
+     */
+    CompletableFuture<Void> reserve(final long bytes) {
+        if (bytes > _maxBytes) {
+            return failedFuture(new S3EncryptionClientException("Unable to buffer " + bytes + " bytes: the request is "
+                    + "larger than the buffer memory budget of " + _maxBytes + " bytes."));
+        }
+        final Waiter waiter;
+        synchronized (this) {
+            if (_closed) {
+                return failedFuture(new S3EncryptionClientException("Unable to buffer " + bytes + " bytes: the "
+                        + "buffer memory budget has been closed."));
+            }
+            // Only admit directly when nobody is waiting, so large requests are not starved
+            if (_waiters.isEmpty() && _reservedBytes + bytes <= _maxBytes) {
+                _reservedBytes += bytes;
+                return CompletableFuture.completedFuture(null);
+            }
+            if (_admissionPolicy == AdmissionPolicy.FAIL_FAST) {
+                return failedFuture(new S3EncryptionClientException("Unable to buffer " + bytes + " bytes: the buffer "
+                        + "memory budget is exhausted (" + _reservedBytes + " of " + _maxBytes + " bytes reserved)."));
+            }
+            waiter = new Waiter(bytes);
+            _waiters.addLast(waiter);
+            _queuedBytes += bytes;
+            waiter.timeout = timeoutScheduler().schedule(() -> expire(waiter),
+                    _queueTimeout.toNanos(), TimeUnit.NANOSECONDS);
+        }
+        return waiter.future;
+    }
+
+    /**
+     * Returns previously reserved bytes to the budget and admits any waiting
+     * requests which now fit.
+     */
+    void release(final long bytes) {
+        Deque<Waiter> admitted = new ArrayDeque<>();
+        synchronized (this) {
+            _reservedBytes -= bytes;
+            while (!_waiters.isEmpty() && _reservedBytes + _waiters.peekFirst().bytes <= _maxBytes) {
+                Waiter waiter = _waiters.pollFirst();
+                _queuedBytes -= waiter.bytes;
+                _reservedBytes += waiter.bytes;
+                waiter.timeout.cancel(false);
+                admitted.add(waiter);
+            }
+        }
+        // Complete outside the lock, since completion runs the request's continuation
+        for (Waiter waiter : admitted) {
+            waiter.future.complete(null);
+        }
+    }
+
+    private void expire(final Waiter waiter) {
+        synchronized (this) {
+            if (!_waiters.remove(waiter)) {
+                // Already admitted
+                return;
+            }
+            _queuedBytes -= waiter.bytes;
+        }
+        waiter.future.completeExceptionally(new S3EncryptionClientException("Timed out after " + _queueTimeout
+                + " waiting to reserve " + waiter.bytes + " bytes of the buffer memory budget."));
+    }
+
+    /**
+     * Stops the thread which times out waiting requests, and fails any request still
+     * waiting. Reservations already granted can still be released, but no new ones are made.
+     */
+    @Override
+    public void close() {
+        final Deque<Waiter> waiting;
+        synchronized (this) {
+            if (_closed) {
+                return;
+            }
+            _closed = true;
+            waiting = new ArrayDeque<>(_waiters);
+            _waiters.clear();
+            _queuedBytes = 0;
+            if (_timeoutScheduler != null) {
+                _timeoutScheduler.shutdownNow();
+            }
+        }
+        for (Waiter waiter : waiting) {
+            waiter.future.completeExceptionally(new S3EncryptionClientException("Unable to buffer " + waiter.bytes
+                    + " bytes: the buffer memory budget has been closed."));
+        }
+    }
+
+    private synchronized ScheduledExecutorService timeoutScheduler() {
+        if (_timeoutScheduler == null) {
+            ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "s3ec-buffer-budget-timeout");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.setRemoveOnCancelPolicy(true);
+            _timeoutScheduler = scheduler;
+        }
+        return _timeoutScheduler;
+    }
+
+    private static CompletableFuture<Void> failedFuture(Throwable t) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(t);
+        return future;
+    }
+
+    private static final class Waiter {
+        private final long bytes;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private ScheduledFuture<?> timeout;
+
+        private Waiter(long bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    public static class Builder {
+        private long _maxBytes = -1L;
+        private AdmissionPolicy _admissionPolicy = AdmissionPolicy.FAIL_FAST;
+        private Duration _queueTimeout = Duration.ofSeconds(30);
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the total number of bytes which may be buffered at once. Required.
+         * @param maxBytes the budget in bytes
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder maxBytes(long maxBytes) {
+            _maxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Sets what happens to a request which does not fit in the budget.
+         * Defaults to {@link AdmissionPolicy#FAIL_FAST}.
+         * @param admissionPolicy the admission policy
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder admissionPolicy(AdmissionPolicy admissionPolicy) {
+            _admissionPolicy = admissionPolicy;
+            return this;
+        }
+
+        /**
+         * Sets how long a request waits for admission under {@link AdmissionPolicy#QUEUE}
+         * before it fails. Defaults to 30 seconds.
+         * @param queueTimeout the maximum time to wait
+         * @return Returns a reference to this object so that method calls can be chained together.
+         */
+        public Builder queueTimeout(Duration queueTimeout) {
+            _queueTimeout = queueTimeout;
+            return this;
+        }
+
+        public BufferMemoryBudget build() {
+            if (_maxBytes <= 0) {
+                throw new S3EncryptionClientException("The buffer memory budget must be a positive number of bytes.");
+            }
+            if (_admissionPolicy == null) {
+                throw new S3EncryptionClientException("Admission policy cannot be null.");
+            }
+            if (_queueTimeout == null || _queueTimeout.isNegative()) {
+                throw new S3EncryptionClientException("Queue timeout must be zero or positive.");
+            }
+            return new BufferMemoryBudget(this);
+        }
+    }
+}
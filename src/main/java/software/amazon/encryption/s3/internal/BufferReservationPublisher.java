@@ -0,0 +1,94 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.core.async.SdkPublisher;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Holds a reservation against a {@link BufferMemoryBudget} for the lifetime of
+ * a plaintext stream. The reservation is released once the subscriber has been
+ * told that the stream completed or failed, or once it has cancelled, or when
+ * {@link #release()} is called because the stream will never be subscribed to.
+ * <p>
+ * This covers the subscriber's handling of every buffer it is sent, up to and
+ * including its completion. Unlike the synchronous path, which holds its
+ * reservation until the plaintext stream is closed, it does not cover plaintext
+ * which the subscriber keeps after it completes, such as the result of
+ * {@code AsyncResponseTransformer.toBytes()}; that memory belongs to the caller.
+ */
+public class BufferReservationPublisher implements SdkPublisher<ByteBuffer> {
+
+    private final SdkPublisher<ByteBuffer> wrappedPublisher;
+    private final BufferMemoryBudget budget;
+    private final long reservedBytes;
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    public BufferReservationPublisher(final SdkPublisher<ByteBuffer> wrappedPublisher, final BufferMemoryBudget budget,
+                                      final long reservedBytes) {
+        this.wrappedPublisher = wrappedPublisher;
+        this.budget = budget;
+        this.reservedBytes = reservedBytes;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
+        wrappedPublisher.subscribe(new Subscriber<ByteBuffer>() {
+            @Override
+            public void onSubscribe(Subscription s) {
+                subscriber.onSubscribe(new Subscription() {
+                    @Override
+                    public void request(long n) {
+                        s.request(n);
+                    }
+
+                    @Override
+                    public void cancel() {
+                        try {
+                            s.cancel();
+                        } finally {
+                            release();
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onNext(ByteBuffer byteBuffer) {
+                subscriber.onNext(byteBuffer);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                try {
+                    subscriber.onError(t);
+                } finally {
+                    release();
+                }
+            }
+
+            @Override
+            public void onComplete() {
+                // Released only once the subscriber is done with the last buffer it was sent
+                try {
+                    subscriber.onComplete();
+                } finally {
+                    release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Releases the reservation, if it has not been released already.
+     */
+    public void release() {
+        if (released.compareAndSet(false, true)) {
+            budget.release(reservedBytes);
+        }
+    }
+}
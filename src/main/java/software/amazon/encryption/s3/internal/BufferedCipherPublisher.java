@@ -4,31 +4,48 @@ package software.amazon.encryption.s3.internal;
 
 import org.reactivestreams.Subscriber;
 import software.amazon.awssdk.core.async.SdkPublisher;
-import software.amazon.encryption.s3.materials.CryptographicMaterials;
+import software.amazon.encryption.s3.materials.DecryptionMaterials;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
 
 public class BufferedCipherPublisher implements SdkPublisher<ByteBuffer> {
 
     private final SdkPublisher<ByteBuffer> wrappedPublisher;
     private final Long contentLength;
-    private final CryptographicMaterials materials;
+    private final DecryptionMaterials materials;
     private final byte[] iv;
     private final long bufferSize;
+    private final boolean offHeap;
+    private final ForkJoinPool parallelPool;
 
     public BufferedCipherPublisher(final SdkPublisher<ByteBuffer> wrappedPublisher, final Long contentLength,
-                                   final CryptographicMaterials materials, final byte[] iv, final long bufferSize) {
+                                   final DecryptionMaterials materials, final byte[] iv, final long bufferSize,
+                                   final boolean offHeap) {
+        this(wrappedPublisher, contentLength, materials, iv, bufferSize, offHeap, null);
+    }
+
+    /**
+     * @param parallelPool the pool to decrypt the object across once it is buffered,
+     *                     or null to decrypt it on the thread which completes the stream
+     */
+    public BufferedCipherPublisher(final SdkPublisher<ByteBuffer> wrappedPublisher, final Long contentLength,
+                                   final DecryptionMaterials materials, final byte[] iv, final long bufferSize,
+                                   final boolean offHeap, final ForkJoinPool parallelPool) {
         this.wrappedPublisher = wrappedPublisher;
         this.contentLength = contentLength;
         this.materials = materials;
         this.iv = iv;
         this.bufferSize = bufferSize;
+        this.offHeap = offHeap;
+        this.parallelPool = parallelPool;
     }
 
     @Override
     public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
         // Wrap the (customer) subscriber in a CipherSubscriber, then subscribe it
         // to the wrapped (ciphertext) publisher
-        wrappedPublisher.subscribe(new BufferedCipherSubscriber(subscriber, contentLength, materials, iv, bufferSize));
+        wrappedPublisher.subscribe(new BufferedCipherSubscriber(subscriber, contentLength, materials, iv, bufferSize, offHeap,
+                parallelPool));
     }
 }
@@ -4,39 +4,70 @@ package software.amazon.encryption.s3.internal;
 
 import org.reactivestreams.Subscriber;
 import org.reactivestreams.Subscription;
-import software.amazon.awssdk.utils.BinaryUtils;
 import software.amazon.encryption.s3.S3EncryptionClientException;
 import software.amazon.encryption.s3.S3EncryptionClientSecurityException;
-import software.amazon.encryption.s3.materials.CryptographicMaterials;
+import software.amazon.encryption.s3.materials.DecryptionMaterials;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A subscriber which decrypts data by buffering the object's contents
  * so that authentication can be done before any plaintext is released.
  * This prevents "release of unauthenticated plaintext" at the cost of
  * allocating a large buffer.
+ * <p>
+ * The ciphertext is collected into a single buffer sized to the object and
+ * decrypted in place, so the object is held in memory only once. Objects too
+ * large for one buffer are split across segments and decrypted with a
+ * {@link GcmCtrDecryptor}. Given a pool, the object is instead decrypted across its
+ * threads by a {@link ParallelGcmDecryptor}, and the plaintext is released from the pool
+ * once the tag is verified, rather than blocking the thread which delivered the last of the
+ * ciphertext. Plaintext is released as read-only slices of the buffer.
  */
 public class BufferedCipherSubscriber implements Subscriber<ByteBuffer> {
+    // The largest multiple of the block size which can back a single array or ByteBuffer
+    static final int MAX_SEGMENT_SIZE = (Integer.MAX_VALUE - 15) & ~15;
+    private static final int RELEASE_SLICE_SIZE = 1024 * 1024;
 
-    private final AtomicInteger contentRead = new AtomicInteger(0);
+    private final AtomicLong contentRead = new AtomicLong(0);
     private final AtomicBoolean doneFinal = new AtomicBoolean(false);
     private final Subscriber<? super ByteBuffer> wrappedSubscriber;
-    private final int contentLength;
+    private final long contentLength;
+    private final int segmentSize;
     private Cipher cipher;
-    private final CryptographicMaterials materials;
+    private final DecryptionMaterials materials;
     private final byte[] iv;
+    private final ByteBuffer[] segments;
+    private final ForkJoinPool parallelPool;
 
-    private byte[] outputBuffer;
-    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    BufferedCipherSubscriber(Subscriber<? super ByteBuffer> wrappedSubscriber, Long contentLength, DecryptionMaterials materials,
+                             byte[] iv, long bufferSizeInBytes, boolean offHeap) {
+        this(wrappedSubscriber, contentLength, materials, iv, bufferSizeInBytes, offHeap, null, MAX_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param parallelPool the pool to decrypt the object across, or null to decrypt it on the calling thread
+     */
+    BufferedCipherSubscriber(Subscriber<? super ByteBuffer> wrappedSubscriber, Long contentLength, DecryptionMaterials materials,
+                             byte[] iv, long bufferSizeInBytes, boolean offHeap, ForkJoinPool parallelPool) {
+        this(wrappedSubscriber, contentLength, materials, iv, bufferSizeInBytes, offHeap, parallelPool, MAX_SEGMENT_SIZE);
+    }
+
+    BufferedCipherSubscriber(Subscriber<? super ByteBuffer> wrappedSubscriber, Long contentLength, DecryptionMaterials materials,
+                             byte[] iv, long bufferSizeInBytes, boolean offHeap, int segmentSize) {
+        this(wrappedSubscriber, contentLength, materials, iv, bufferSizeInBytes, offHeap, null, segmentSize);
+    }
 
-    BufferedCipherSubscriber(Subscriber<? super ByteBuffer> wrappedSubscriber, Long contentLength, CryptographicMaterials materials, byte[] iv, long bufferSizeInBytes) {
+    BufferedCipherSubscriber(Subscriber<? super ByteBuffer> wrappedSubscriber, Long contentLength, DecryptionMaterials materials,
+                             byte[] iv, long bufferSizeInBytes, boolean offHeap, ForkJoinPool parallelPool, int segmentSize) {
         this.wrappedSubscriber = wrappedSubscriber;
         if (contentLength == null) {
             throw new S3EncryptionClientException("contentLength cannot be null in buffered mode. To enable unbounded " +
@@ -48,64 +79,69 @@ public class BufferedCipherSubscriber implements Subscriber<ByteBuffer> {
                     "or enable Delayed Authentication mode to disable buffered decryption."));
 
         }
-        this.contentLength = Math.toIntExact(contentLength);
+        this.contentLength = contentLength;
+        this.segmentSize = segmentSize;
         this.materials = materials;
         this.iv = iv;
-        cipher = materials.getCipher(iv);
+        this.segments = allocateSegments(contentLength, segmentSize, offHeap);
+        this.parallelPool = parallelPool;
+        // A single segment is decrypted with one doFinal; segmented content is decrypted by a GcmCtrDecryptor
+        this.cipher = segments.length == 1 && parallelPool == null ? materials.getCipher(iv) : null;
+    }
+
+    private static ByteBuffer[] allocateSegments(long length, int segmentSize, boolean offHeap) {
+        int count = (int) Math.max(1, (length + segmentSize - 1) / segmentSize);
+        ByteBuffer[] segments = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            int size = (int) Math.min(segmentSize, length - (long) i * segmentSize);
+            segments[i] = offHeap ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        }
+        return segments;
     }
 
     @Override
     public void onSubscribe(Subscription s) {
+        if (contentRead.get() > 0 && !doneFinal.get()) {
+            // The stream was reset and is sent again from the start: overwrite what was
+            // buffered, with a new cipher using the same materials to avoid reinit issues
+            contentRead.set(0);
+            if (cipher != null) {
+                cipher = CipherProvider.createAndInitCipher(materials, iv);
+            }
+        }
         wrappedSubscriber.onSubscribe(s);
     }
 
     @Override
     public void onNext(ByteBuffer byteBuffer) {
-        int amountToReadFromByteBuffer = getAmountToReadFromByteBuffer(byteBuffer);
+        final long offset = contentRead.getAndAdd(byteBuffer.remaining());
+        final int amountToReadFromByteBuffer = (int) Math.min(byteBuffer.remaining(), Math.max(0, contentLength - offset));
 
         if (amountToReadFromByteBuffer > 0) {
-            byte[] buf = BinaryUtils.copyBytesFrom(byteBuffer, amountToReadFromByteBuffer);
-            try {
-                outputBuffer = cipher.update(buf, 0, amountToReadFromByteBuffer);
-            } catch (final IllegalStateException exception) {
-                // This happens when the stream is reset and the cipher is reused with the
-                // same key/IV. It's actually fine here, because the data is the same, but any
-                // sane implementation will throw an exception.
-                // Request a new cipher using the same materials to avoid reinit issues
-                cipher = CipherProvider.createAndInitCipher(materials, iv);
-            }
-
-            if (outputBuffer == null && amountToReadFromByteBuffer < cipher.getBlockSize()) {
-                // The underlying data is too short to fill in the block cipher
-                // This is true at the end of the file, so complete to get the final
-                // bytes
-                this.onComplete();
+            // Copy the ciphertext into place without consuming the caller's buffer
+            ByteBuffer source = byteBuffer.duplicate();
+            ((Buffer) source).limit(source.position() + amountToReadFromByteBuffer);
+            long position = offset;
+            while (source.hasRemaining()) {
+                ByteBuffer segment = segments[(int) (position / segmentSize)].duplicate();
+                ((Buffer) segment).position((int) (position % segmentSize));
+                int length = Math.min(segment.remaining(), source.remaining());
+                ByteBuffer chunk = source.duplicate();
+                ((Buffer) chunk).limit(chunk.position() + length);
+                segment.put(chunk);
+                ((Buffer) source).position(source.position() + length);
+                position += length;
             }
 
-            // Enqueue the buffer until all data is read
-            buffers.add(ByteBuffer.wrap(outputBuffer));
-
             // Sometimes, onComplete won't be called, so we check if all
             // data is read to avoid hanging indefinitely
-            if (contentRead.get() == contentLength) {
+            if (offset + amountToReadFromByteBuffer == contentLength) {
                 this.onComplete();
+            } else {
+                // This avoids the subscriber waiting indefinitely for more data
+                // without actually releasing any plaintext before it can be authenticated
+                wrappedSubscriber.onNext(CipherSubscriber.EMPTY_BUFFER);
             }
-            // This avoids the subscriber waiting indefinitely for more data
-            // without actually releasing any plaintext before it can be authenticated
-            wrappedSubscriber.onNext(ByteBuffer.allocate(0));
-        }
-
-    }
-
-    private int getAmountToReadFromByteBuffer(ByteBuffer byteBuffer) {
-
-        long amountReadSoFar = contentRead.getAndAdd(byteBuffer.remaining());
-        long amountRemaining = Math.max(0, contentLength - amountReadSoFar);
-
-        if (amountRemaining > byteBuffer.remaining()) {
-            return byteBuffer.remaining();
-        } else {
-            return Math.toIntExact(amountRemaining);
         }
     }
 
@@ -116,26 +152,106 @@ public class BufferedCipherSubscriber implements Subscriber<ByteBuffer> {
 
     @Override
     public void onComplete() {
-        if (doneFinal.get()) {
+        if (!doneFinal.compareAndSet(false, true)) {
             // doFinal has already been called, bail out
             return;
         }
+        final long plaintextLength;
         try {
-            outputBuffer = cipher.doFinal();
-            doneFinal.set(true);
-            // Once doFinal is called, then we can release the plaintext
-            if (contentRead.get() == contentLength) {
-                while (!buffers.isEmpty()) {
-                    wrappedSubscriber.onNext(buffers.remove());
+            final long ciphertextRead = Math.min(contentRead.get(), contentLength);
+            if (parallelPool != null) {
+                if (ciphertextRead < contentLength) {
+                    throw new AEADBadTagException("Object ended before the authentication tag was read.");
                 }
+                new ParallelGcmDecryptor(materials, iv, parallelPool).decrypt(segments, contentLength)
+                        .whenComplete((length, failure) -> {
+                            if (failure == null) {
+                                release(length);
+                            } else {
+                                // The decryptor's own failures arrive wrapped
+                                wrappedSubscriber.onError(failure instanceof CompletionException && failure.getCause() != null
+                                        ? failure.getCause() : failure);
+                            }
+                        });
+                return;
+            } else if (segments.length == 1) {
+                plaintextLength = decryptInPlace(segments[0], (int) ciphertextRead);
+            } else {
+                plaintextLength = decryptSegments(ciphertextRead);
             }
-            // Send the final bytes to the wrapped subscriber
-            wrappedSubscriber.onNext(ByteBuffer.wrap(outputBuffer));
         } catch (final GeneralSecurityException exception) {
             // Forward error, else the wrapped subscriber waits indefinitely
             wrappedSubscriber.onError(exception);
             throw new S3EncryptionClientSecurityException(exception.getMessage(), exception);
         }
+        release(plaintextLength);
+    }
+
+    /**
+     * Releases the plaintext, which must already be authenticated, and completes the wrapped subscriber.
+     */
+    private void release(long plaintextLength) {
+        long remaining = plaintextLength;
+        for (ByteBuffer segment : segments) {
+            final int segmentPlaintext = (int) Math.min(segment.capacity(), remaining);
+            // A long offset, since stepping past a segment close to 2 GiB would overflow an int
+            for (long offset = 0; offset < segmentPlaintext; offset += RELEASE_SLICE_SIZE) {
+                wrappedSubscriber.onNext(slice(segment, (int) offset, (int) Math.min(RELEASE_SLICE_SIZE, segmentPlaintext - offset)));
+            }
+            remaining -= segmentPlaintext;
+        }
         wrappedSubscriber.onComplete();
     }
+
+    private int decryptInPlace(ByteBuffer segment, int length) throws GeneralSecurityException {
+        try {
+            return doFinalInPlace(segment, length);
+        } catch (final IllegalStateException exception) {
+            // This happens when the cipher is reused with the same key/IV, e.g. after a reset.
+            // The data is the same, so request a new cipher using the same materials and retry
+            cipher = CipherProvider.createAndInitCipher(materials, iv);
+            return doFinalInPlace(segment, length);
+        }
+    }
+
+    private int doFinalInPlace(ByteBuffer segment, int length) throws GeneralSecurityException {
+        if (segment.hasArray()) {
+            return cipher.doFinal(segment.array(), segment.arrayOffset(), length, segment.array(), segment.arrayOffset());
+        }
+        ByteBuffer input = segment.duplicate();
+        ((Buffer) input).limit(length);
+        return cipher.doFinal(input, segment.duplicate());
+    }
+
+    private long decryptSegments(long ciphertextRead) throws GeneralSecurityException {
+        final int tagLength = materials.algorithmSuite().cipherTagLengthBytes();
+        if (ciphertextRead < contentLength) {
+            throw new AEADBadTagException("Object ended before the authentication tag was read.");
+        }
+        final long bodyLength = contentLength - tagLength;
+        final GcmCtrDecryptor decryptor = new GcmCtrDecryptor(materials, iv);
+        final byte[] expectedTag = new byte[tagLength];
+        for (int i = 0; i < segments.length; i++) {
+            final long segmentStart = (long) i * segmentSize;
+            final int bodyInSegment = (int) Math.max(0, Math.min(segments[i].capacity(), bodyLength - segmentStart));
+            ByteBuffer ciphertext = segments[i].duplicate();
+            ((Buffer) ciphertext).limit(bodyInSegment);
+            decryptor.update(ciphertext, segments[i].duplicate());
+            // The tag may straddle the last two segments
+            ByteBuffer tag = segments[i].duplicate();
+            ((Buffer) tag).position(bodyInSegment);
+            if (tag.hasRemaining()) {
+                tag.get(expectedTag, (int) (segmentStart + bodyInSegment - bodyLength), tag.remaining());
+            }
+        }
+        decryptor.verify(expectedTag);
+        return bodyLength;
+    }
+
+    private static ByteBuffer slice(ByteBuffer segment, int offset, int length) {
+        ByteBuffer view = segment.asReadOnlyBuffer();
+        ((Buffer) view).position(offset);
+        ((Buffer) view).limit(offset + length);
+        return view.slice();
+    }
 }
@@ -0,0 +1,94 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reads a list of buffers one after another, e.g. plaintext which has been authenticated
+ * in full before any of it is read. The buffers may be on or off heap. Each buffer is
+ * dropped once it has been read, and the release hook runs once, at the end of the
+ * stream or when it is closed, whichever comes first.
+ */
+public class ByteBuffersInputStream extends InputStream {
+    private final List<ByteBuffer> _buffers;
+    private final Runnable _onRelease;
+    private final AtomicBoolean _released = new AtomicBoolean(false);
+    private int _current = 0;
+
+    public ByteBuffersInputStream(final List<ByteBuffer> buffers, final Runnable onRelease) {
+        _buffers = buffers;
+        _onRelease = onRelease;
+    }
+
+    @Override
+    public int read() {
+        final ByteBuffer buffer = currentBuffer();
+        return buffer == null ? -1 : buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) {
+        if (len == 0) {
+            return 0;
+        }
+        final ByteBuffer buffer = currentBuffer();
+        if (buffer == null) {
+            return -1;
+        }
+        final int length = Math.min(len, buffer.remaining());
+        buffer.get(b, off, length);
+        return length;
+    }
+
+    @Override
+    public long skip(final long n) {
+        long skipped = 0;
+        ByteBuffer buffer;
+        while (skipped < n && (buffer = currentBuffer()) != null) {
+            final int length = (int) Math.min(n - skipped, buffer.remaining());
+            ((Buffer) buffer).position(buffer.position() + length);
+            skipped += length;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        final ByteBuffer buffer = _current < _buffers.size() ? _buffers.get(_current) : null;
+        return buffer == null ? 0 : buffer.remaining();
+    }
+
+    @Override
+    public void close() {
+        release();
+    }
+
+    /**
+     * @return the first buffer with bytes left to read, or null at the end of the stream
+     */
+    private ByteBuffer currentBuffer() {
+        while (_current < _buffers.size()) {
+            final ByteBuffer buffer = _buffers.get(_current);
+            if (buffer != null && buffer.hasRemaining()) {
+                return buffer;
+            }
+            // Let go of the buffer as soon as it has been read
+            _buffers.set(_current++, null);
+        }
+        release();
+        return null;
+    }
+
+    private void release() {
+        if (_released.compareAndSet(false, true)) {
+            _buffers.clear();
+            _current = 0;
+            _onRelease.run();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cancels a stream as soon as it is subscribed to, so that its connection is released
+ * when its content will not be read.
+ */
+class CancellingSubscriber implements Subscriber<ByteBuffer> {
+    @Override
+    public void onSubscribe(Subscription s) {
+        s.cancel();
+    }
+
+    @Override
+    public void onNext(ByteBuffer byteBuffer) {
+        // Do nothing.
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        // Do nothing.
+    }
+
+    @Override
+    public void onComplete() {
+        // Do nothing.
+    }
+}
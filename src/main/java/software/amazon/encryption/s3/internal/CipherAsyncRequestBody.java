@@ -21,13 +21,38 @@ public class CipherAsyncRequestBody implements AsyncRequestBody {
     private final CryptographicMaterials materials;
     private final byte[] iv;
     private final boolean isLastPart;
+    private final int chunkSize;
+    private final MultipartPartEncryptor partEncryptor;
 
-    public CipherAsyncRequestBody(final AsyncRequestBody wrappedAsyncRequestBody, final Long ciphertextLength, final CryptographicMaterials materials, final byte[] iv, final boolean isLastPart) {
+    /**
+     * @param chunkSize the size up to which small plaintext buffers are gathered
+     *                  before each cipher call, or 0 to pass them on as they arrive
+     */
+    public CipherAsyncRequestBody(final AsyncRequestBody wrappedAsyncRequestBody, final Long ciphertextLength, final CryptographicMaterials materials, final byte[] iv, final boolean isLastPart, final int chunkSize) {
         this.wrappedAsyncRequestBody = wrappedAsyncRequestBody;
         this.ciphertextLength = ciphertextLength;
         this.materials = materials;
         this.iv = iv;
         this.isLastPart = isLastPart;
+        this.chunkSize = chunkSize;
+        this.partEncryptor = null;
+    }
+
+    /**
+     * Encrypts one part of a multipart upload independently of the other parts.
+     */
+    public CipherAsyncRequestBody(final AsyncRequestBody wrappedAsyncRequestBody, final Long ciphertextLength, final MultipartPartEncryptor partEncryptor, final int chunkSize) {
+        this.wrappedAsyncRequestBody = wrappedAsyncRequestBody;
+        this.ciphertextLength = ciphertextLength;
+        this.materials = null;
+        this.iv = null;
+        this.isLastPart = partEncryptor.isLastPart();
+        this.chunkSize = chunkSize;
+        this.partEncryptor = partEncryptor;
+    }
+
+    public CipherAsyncRequestBody(final AsyncRequestBody wrappedAsyncRequestBody, final Long ciphertextLength, final CryptographicMaterials materials, final byte[] iv, final boolean isLastPart) {
+        this(wrappedAsyncRequestBody, ciphertextLength, materials, iv, isLastPart, CoalescingSubscriber.DEFAULT_TARGET_SIZE);
     }
 
     public CipherAsyncRequestBody(final AsyncRequestBody wrappedAsyncRequestBody, final Long ciphertextLength, final CryptographicMaterials materials, final byte[] iv) {
@@ -38,9 +63,13 @@ public class CipherAsyncRequestBody implements AsyncRequestBody {
 
     @Override
     public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
-        wrappedAsyncRequestBody.subscribe(new CipherSubscriber(subscriber,
-                contentLength().orElseThrow(() -> new S3EncryptionClientException("Unbounded streams are currently not supported.")),
-                materials, iv, isLastPart));
+        final Long length = contentLength().orElseThrow(() -> new S3EncryptionClientException("Unbounded streams are currently not supported."));
+        CipherSubscriber cipherSubscriber = partEncryptor != null
+                ? new CipherSubscriber(subscriber, length, partEncryptor)
+                : new CipherSubscriber(subscriber, length, materials, iv, isLastPart);
+        // The wrapped body carries the plaintext, so its length is the one the coalescing stage sees
+        wrappedAsyncRequestBody.subscribe(CoalescingSubscriber.coalesce(cipherSubscriber,
+                wrappedAsyncRequestBody.contentLength().orElse(null), chunkSize));
     }
 
     @Override
@@ -3,19 +3,25 @@
 package software.amazon.encryption.s3.internal;
 
 import software.amazon.awssdk.core.io.SdkFilterInputStream;
+import software.amazon.encryption.s3.S3EncryptionClientException;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
 import java.io.IOException;
 import java.io.InputStream;
 
 /**
  * A cipher stream for encrypting or decrypting data using an unauthenticated block cipher.
+ * <p>
+ * The wrapped stream is read in chunks of up to the input buffer size. When a caller
+ * reads into an array large enough for the cipher's output, the chunk is processed
+ * directly into that array; otherwise output is held in a reused buffer until it is read.
  */
 public class CipherInputStream extends SdkFilterInputStream {
     private static final int MAX_RETRY_COUNT = 1000;
-    private static final int DEFAULT_IN_BUFFER_SIZE = 512;
+    public static final int DEFAULT_IN_BUFFER_SIZE = 64 * 1024;
     protected final Cipher cipher;
 
     protected boolean eofReached;
@@ -23,11 +29,23 @@ public class CipherInputStream extends SdkFilterInputStream {
     protected byte[] outputBuffer;
     protected int currentPosition;
     protected int maxPosition;
+    /**
+     * True if the last read of the wrapped stream returned no data,
+     * as opposed to data which the cipher has not yet produced output for.
+     */
+    private boolean inputStalled;
 
     public CipherInputStream(InputStream inputStream, Cipher cipher) {
+        this(inputStream, cipher, DEFAULT_IN_BUFFER_SIZE);
+    }
+
+    public CipherInputStream(InputStream inputStream, Cipher cipher, int inputBufferSize) {
         super(inputStream);
+        if (inputBufferSize <= 0) {
+            throw new S3EncryptionClientException("Input buffer size must be positive");
+        }
         this.cipher = cipher;
-        this.inputBuffer = new byte[DEFAULT_IN_BUFFER_SIZE];
+        this.inputBuffer = new byte[inputBufferSize];
     }
 
     @Override
@@ -47,6 +65,12 @@ public class CipherInputStream extends SdkFilterInputStream {
 
     @Override
     public int read(byte buffer[], int off, int targetLength) throws IOException {
+        if (currentPosition >= maxPosition && !eofReached && targetLength > 0) {
+            int length = readDirect(buffer, off, targetLength);
+            if (length > 0) {
+                return length;
+            }
+        }
         if (!readNextChunk()) {
             return -1;
         }
@@ -75,8 +99,7 @@ public class CipherInputStream extends SdkFilterInputStream {
                     throw new IOException("Exceeded maximum number of attempts to read next chunk of data");
                 }
                 length = nextChunk();
-                // If outputBuffer != null, it means that data is being read off of the InputStream
-                if (outputBuffer == null) {
+                if (inputStalled) {
                     retryCount++;
                 }
             } while (length == 0);
@@ -88,6 +111,47 @@ public class CipherInputStream extends SdkFilterInputStream {
         return true;
     }
 
+    /**
+     * Reads the next chunk of the wrapped stream and processes it directly into
+     * the caller's array, as long as the cipher's output is certain to fit.
+     *
+     * @return the number of bytes written to the caller's array, or 0 if the
+     * caller should fall back to the buffered path, e.g. at the end of the stream
+     */
+    private int readDirect(byte[] buffer, int off, int targetLength) throws IOException {
+        int retryCount = 0;
+        while (!eofReached) {
+            abortIfNeeded();
+            int readLength = Math.min(inputBuffer.length, targetLength);
+            // Leave room for whatever the cipher holds back or adds, such as a partial block or a tag
+            readLength -= Math.max(0, cipher.getOutputSize(readLength) - targetLength);
+            if (readLength <= 0 || cipher.getOutputSize(readLength) > targetLength) {
+                return 0;
+            }
+            int length = in.read(inputBuffer, 0, readLength);
+            if (length == -1) {
+                endOfFileReached();
+                return 0;
+            }
+            if (length == 0) {
+                if (++retryCount > MAX_RETRY_COUNT) {
+                    throw new IOException("Exceeded maximum number of attempts to read next chunk of data");
+                }
+                continue;
+            }
+            try {
+                int outputLength = cipher.update(inputBuffer, 0, length, buffer, off);
+                if (outputLength > 0) {
+                    return outputLength;
+                }
+            } catch (ShortBufferException exception) {
+                throw new S3EncryptionClientException(exception.getMessage(), exception);
+            }
+            // The cipher is holding back the input, e.g. less than a block, so read on
+        }
+        return 0;
+    }
+
     /**
      * {@inheritDoc}
      * <p>
@@ -154,14 +218,42 @@ public class CipherInputStream extends SdkFilterInputStream {
         if (eofReached) {
             return -1;
         }
-        outputBuffer = null;
         int length = in.read(inputBuffer);
         if (length == -1) {
             return endOfFileReached();
         }
-        outputBuffer = cipher.update(inputBuffer, 0, length);
+        inputStalled = length == 0;
         currentPosition = 0;
-        return maxPosition = (outputBuffer == null ? 0 : outputBuffer.length);
+        return maxPosition = update(length);
+    }
+
+    /**
+     * Processes the first {@code length} bytes of the input buffer into the start of
+     * the output buffer, which is reused from chunk to chunk.
+     * @return the number of output bytes
+     */
+    private int update(int length) {
+        // A (non-buffering) cipher emits at most one partial block more than it is given.
+        // getOutputSize is not used up front as it includes everything a provider has
+        // buffered internally (e.g. GCM decryption), which update does not write out.
+        ensureOutputCapacity(length + cipher.getBlockSize());
+        try {
+            try {
+                return cipher.update(inputBuffer, 0, length, outputBuffer, 0);
+            } catch (ShortBufferException retry) {
+                // Input is not consumed when the output is too short, so try again with room for everything
+                ensureOutputCapacity(cipher.getOutputSize(length));
+                return cipher.update(inputBuffer, 0, length, outputBuffer, 0);
+            }
+        } catch (ShortBufferException exception) {
+            throw new S3EncryptionClientException(exception.getMessage(), exception);
+        }
+    }
+
+    private void ensureOutputCapacity(int capacity) {
+        if (outputBuffer == null || outputBuffer.length < capacity) {
+            outputBuffer = new byte[capacity];
+        }
     }
 
     protected int endOfFileReached() {
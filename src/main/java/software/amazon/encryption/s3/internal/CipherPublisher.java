@@ -22,9 +22,21 @@ public class CipherPublisher implements SdkPublisher<ByteBuffer> {
     private final String contentRange;
     private final int cipherTagLengthBits;
     private final byte[] iv;
+    private final int chunkSize;
 
     public CipherPublisher(final SdkPublisher<ByteBuffer> wrappedPublisher, final Long contentLength, long[] range,
                            String contentRange, int cipherTagLengthBits, final CryptographicMaterials materials, final byte[] iv) {
+        this(wrappedPublisher, contentLength, range, contentRange, cipherTagLengthBits, materials, iv,
+                CoalescingSubscriber.DEFAULT_TARGET_SIZE);
+    }
+
+    /**
+     * @param chunkSize the size up to which small ciphertext buffers are gathered
+     *                  before each cipher call, or 0 to pass them on as they arrive
+     */
+    public CipherPublisher(final SdkPublisher<ByteBuffer> wrappedPublisher, final Long contentLength, long[] range,
+                           String contentRange, int cipherTagLengthBits, final CryptographicMaterials materials, final byte[] iv,
+                           final int chunkSize) {
         this.wrappedPublisher = wrappedPublisher;
         this.materials = materials;
         this.contentLength = contentLength;
@@ -32,6 +44,7 @@ public class CipherPublisher implements SdkPublisher<ByteBuffer> {
         this.contentRange = contentRange;
         this.cipherTagLengthBits = cipherTagLengthBits;
         this.iv = iv;
+        this.chunkSize = chunkSize;
     }
 
     @Override
@@ -39,6 +52,7 @@ public class CipherPublisher implements SdkPublisher<ByteBuffer> {
         // Wrap the (customer) subscriber in a CipherSubscriber, then subscribe it
         // to the wrapped (ciphertext) publisher
         Subscriber<? super ByteBuffer> wrappedSubscriber = RangedGetUtils.adjustToDesiredRange(subscriber, range, contentRange, cipherTagLengthBits);
-        wrappedPublisher.subscribe(new CipherSubscriber(wrappedSubscriber, contentLength, materials, iv));
+        wrappedPublisher.subscribe(CoalescingSubscriber.coalesce(
+                new CipherSubscriber(wrappedSubscriber, contentLength, materials, iv), contentLength, chunkSize));
     }
 }
@@ -4,17 +4,26 @@ package software.amazon.encryption.s3.internal;
 
 import org.reactivestreams.Subscriber;
 import org.reactivestreams.Subscription;
-import software.amazon.awssdk.utils.BinaryUtils;
+import software.amazon.encryption.s3.S3EncryptionClientException;
 import software.amazon.encryption.s3.S3EncryptionClientSecurityException;
 import software.amazon.encryption.s3.materials.CryptographicMaterials;
 
 import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class CipherSubscriber implements Subscriber<ByteBuffer> {
+    /**
+     * Shared buffer sent downstream when there is nothing to emit.
+     * It has zero capacity, so it cannot be written to; it is not read-only
+     * so that subscribers which call {@link ByteBuffer#array()} keep working.
+     */
+    static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
     private final AtomicLong contentRead = new AtomicLong(0);
     private final Subscriber<? super ByteBuffer> wrappedSubscriber;
     private final Cipher cipher;
@@ -22,9 +31,18 @@ public class CipherSubscriber implements Subscriber<ByteBuffer> {
     private final boolean isLastPart;
     private final int tagLength;
     private final boolean isEncrypt;
+    // Set when encrypting one part of a multipart upload independently of the others
+    private final MultipartPartEncryptor partEncryptor;
     private final AtomicBoolean finalBytesCalled = new AtomicBoolean(false);
 
-    private byte[] outputBuffer;
+    /**
+     * Scratch space the cipher writes into. It is reused across onNext calls
+     * and only the bytes produced are copied out, so each chunk costs a single
+     * allocation of exactly the size handed downstream. Emitted buffers are
+     * never recycled, as downstream is free to hold on to them.
+     */
+    private ByteBuffer outputBuffer;
+    private int pendingOutputLength;
 
     CipherSubscriber(Subscriber<? super ByteBuffer> wrappedSubscriber, Long contentLength, CryptographicMaterials materials, byte[] iv, boolean isLastPart) {
         this.wrappedSubscriber = wrappedSubscriber;
@@ -33,6 +51,17 @@ public class CipherSubscriber implements Subscriber<ByteBuffer> {
         this.isLastPart = isLastPart;
         this.tagLength = materials.algorithmSuite().cipherTagLengthBytes();
         this.isEncrypt = (CipherMode.DECRYPT != materials.cipherMode());
+        this.partEncryptor = null;
+    }
+
+    CipherSubscriber(Subscriber<? super ByteBuffer> wrappedSubscriber, Long contentLength, MultipartPartEncryptor partEncryptor) {
+        this.wrappedSubscriber = wrappedSubscriber;
+        this.contentLength = contentLength;
+        this.cipher = partEncryptor.cipher();
+        this.isLastPart = partEncryptor.isLastPart();
+        this.tagLength = partEncryptor.tagLength();
+        this.isEncrypt = true;
+        this.partEncryptor = partEncryptor;
     }
 
     CipherSubscriber(Subscriber<? super ByteBuffer> wrappedSubscriber, Long contentLength, CryptographicMaterials materials, byte[] iv) {
@@ -50,52 +79,43 @@ public class CipherSubscriber implements Subscriber<ByteBuffer> {
         int amountToReadFromByteBuffer = getAmountToReadFromByteBuffer(byteBuffer);
 
         if (amountToReadFromByteBuffer > 0) {
-            byte[] buf = BinaryUtils.copyBytesFrom(byteBuffer, amountToReadFromByteBuffer);
-            outputBuffer = cipher.update(buf, 0, amountToReadFromByteBuffer);
+            int outputLength = partEncryptor == null
+                    ? update(byteBuffer, amountToReadFromByteBuffer)
+                    : updatePart(byteBuffer, amountToReadFromByteBuffer);
 
-            if (outputBuffer == null || outputBuffer.length == 0) {
+            /*
+             Check if stream has read all expected content.
+             Once all content has been read, call `finalBytes`.
+
+             This determines that all content has been read by checking if
+             the amount of data read so far plus the tag length is at least the content length.
+             Once this is true, downstream will never call `request` again
+             (beyond the current request that is being responded to in this onNext invocation.)
+             As a result, this class can only call `wrappedSubscriber.onNext` one more time.
+             (Reactive streams require that downstream sends a `request(n)`
+             to indicate it is ready for more data, and upstream responds to that request by calling `onNext`.
+             The `n` in request is the maximum number of `onNext` calls that downstream
+             will allow upstream to make, and seems to always be 1 for the AsyncBodySubscriber.)
+             Since this class can only call `wrappedSubscriber.onNext` once,
+             it must send all remaining data in the next onNext call,
+             including the result of cipher.doFinal(), if applicable.
+             Calling `wrappedSubscriber.onNext` more than once for `request(1)`
+             violates the Reactive Streams specification and can cause exceptions downstream.
+            */
+            // tagLength should only be added on Encrypt, and only the last part carries a tag
+            if (contentRead.get() + (isEncrypt && isLastPart ? tagLength : 0) >= contentLength) {
+                // All content has been read; complete the stream.
+                pendingOutputLength = outputLength;
+                finalBytes();
+            } else if (outputLength == 0) {
                 // The underlying data is too short to fill in the block cipher.
-                // Note that while the JCE Javadoc specifies that the outputBuffer is null in this case,
-                // in practice SunJCE and ACCP return an empty buffer instead, hence checks for
-                // null OR length == 0.
-
-                // tagLength should only be added on Encrypt
-                if (contentRead.get() + (isEncrypt ? tagLength : 0) >= contentLength) {
-                    // All content has been read, so complete to get the final bytes
-                    finalBytes();
-                    return;
-                }
-                // Otherwise, wait for more bytes. To avoid blocking,
+                // Wait for more bytes. To avoid blocking,
                 // send an empty buffer to the wrapped subscriber.
-                wrappedSubscriber.onNext(ByteBuffer.allocate(0));
+                wrappedSubscriber.onNext(EMPTY_BUFFER);
             } else {
-                /*
-                 Check if stream has read all expected content.
-                 Once all content has been read, call `finalBytes`.
-
-                 This determines that all content has been read by checking if
-                 the amount of data read so far plus the tag length is at least the content length.
-                 Once this is true, downstream will never call `request` again
-                 (beyond the current request that is being responded to in this onNext invocation.)
-                 As a result, this class can only call `wrappedSubscriber.onNext` one more time.
-                 (Reactive streams require that downstream sends a `request(n)`
-                 to indicate it is ready for more data, and upstream responds to that request by calling `onNext`.
-                 The `n` in request is the maximum number of `onNext` calls that downstream
-                 will allow upstream to make, and seems to always be 1 for the AsyncBodySubscriber.)
-                 Since this class can only call `wrappedSubscriber.onNext` once,
-                 it must send all remaining data in the next onNext call,
-                 including the result of cipher.doFinal(), if applicable.
-                 Calling `wrappedSubscriber.onNext` more than once for `request(1)`
-                 violates the Reactive Streams specification and can cause exceptions downstream.
-                */
-                if (contentRead.get() + (isEncrypt ? tagLength : 0) >= contentLength) {
-                    // All content has been read; complete the stream.
-                    finalBytes();
-                } else {
-                    // Needs to read more data, so send the data downstream,
-                    // expecting that downstream will continue to request more data.
-                    wrappedSubscriber.onNext(ByteBuffer.wrap(outputBuffer));
-                }
+                // Needs to read more data, so send the data downstream,
+                // expecting that downstream will continue to request more data.
+                wrappedSubscriber.onNext(copyOfOutput(outputLength));
             }
         } else {
             // Do nothing
@@ -103,6 +123,78 @@ public class CipherSubscriber implements Subscriber<ByteBuffer> {
         }
     }
 
+    /**
+     * Runs the cipher over the next {@code length} bytes of {@code byteBuffer} without copying them.
+     * The buffer may be direct; its position and limit are left as they were found.
+     * @return the number of output bytes written to the start of outputBuffer
+     */
+    private int update(ByteBuffer byteBuffer, int length) {
+        final int position = byteBuffer.position();
+        final int limit = byteBuffer.limit();
+        // A (non-buffering) cipher emits at most one partial block more than it is given.
+        // getOutputSize is not used up front as it includes everything a provider has
+        // buffered internally (e.g. GCM decryption), which update does not write out.
+        ensureOutputCapacity(length + cipher.getBlockSize());
+        try {
+            // This cast is necessary to ensure compatibility with Java 1.8/8
+            // when compiling with a newer Java version than 8
+            ((Buffer) byteBuffer).limit(position + length);
+            ((Buffer) outputBuffer).clear();
+            try {
+                return cipher.update(byteBuffer, outputBuffer);
+            } catch (ShortBufferException retry) {
+                // Input is not consumed when the output is too short, so try again with room for everything
+                ensureOutputCapacity(cipher.getOutputSize(length));
+                ((Buffer) outputBuffer).clear();
+                return cipher.update(byteBuffer, outputBuffer);
+            }
+        } catch (ShortBufferException exception) {
+            throw new S3EncryptionClientException(exception.getMessage(), exception);
+        } finally {
+            ((Buffer) byteBuffer).limit(limit);
+            ((Buffer) byteBuffer).position(position);
+        }
+    }
+
+    /**
+     * Passes the next {@code length} bytes of a part through its encryptor, which holds back
+     * plaintext until it has been checked against earlier attempts at the part, and encrypts
+     * whatever it releases.
+     * @return the number of output bytes written to the start of outputBuffer
+     */
+    private int updatePart(ByteBuffer byteBuffer, int length) {
+        final ByteBuffer plaintext = byteBuffer.duplicate();
+        ((Buffer) plaintext).limit(plaintext.position() + length);
+        final ByteBuffer released;
+        try {
+            released = partEncryptor.admit(plaintext);
+        } catch (final S3EncryptionClientSecurityException exception) {
+            // Forward error, else the wrapped subscriber waits indefinitely
+            wrappedSubscriber.onError(exception);
+            throw exception;
+        }
+        return update(released, released.remaining());
+    }
+
+    private void ensureOutputCapacity(int capacity) {
+        if (outputBuffer == null || outputBuffer.capacity() < capacity) {
+            outputBuffer = ByteBuffer.allocate(capacity);
+        }
+    }
+
+    /**
+     * Downstream may retain the buffers it is given (and some subscribers read them via
+     * {@link ByteBuffer#array()}), so each emitted buffer wraps an exactly-sized array of its own.
+     */
+    private ByteBuffer copyOfOutput(int length) {
+        if (length == 0) {
+            return EMPTY_BUFFER;
+        }
+        byte[] output = new byte[length];
+        System.arraycopy(outputBuffer.array(), outputBuffer.arrayOffset(), output, 0, length);
+        return ByteBuffer.wrap(output);
+    }
+
     private int getAmountToReadFromByteBuffer(ByteBuffer byteBuffer) {
         // If content length is null, we should include everything in the cipher because the stream is essentially
         // unbounded.
@@ -147,44 +239,48 @@ public class CipherSubscriber implements Subscriber<ByteBuffer> {
             return;
         }
 
-        // If this isn't the last part, skip doFinal and just send outputBuffer downstream.
+        // If this isn't the last part, skip doFinal and just send the pending output downstream.
         // doFinal requires that all parts have been processed to compute the tag,
         // so the tag will only be computed when the last part is processed.
-        if (!isLastPart) {
-            wrappedSubscriber.onNext(ByteBuffer.wrap(outputBuffer));
+        final int pending = pendingOutputLength;
+        pendingOutputLength = 0;
+        // A part encrypted on its own always finishes its cipher, as the part's tag yields its GHASH;
+        // a part sharing the object's cipher leaves it to the parts after it.
+        if (!isLastPart && (partEncryptor == null || partEncryptor.sharesCipher())) {
+            if (partEncryptor != null) {
+                partEncryptor.finishShared();
+            }
+            wrappedSubscriber.onNext(copyOfOutput(pending));
             return;
         }
 
         // If this is the last part, compute doFinal and include its result in the value sent downstream.
-        // The result of doFinal MUST be included with the bytes that were in outputBuffer in the final onNext call.
-        byte[] finalBytes;
+        // The result of doFinal MUST be included with the bytes that are pending in the final onNext call,
+        // so doFinal writes directly after them and a single buffer is emitted.
+        // Downstream has requested one item in its request method, so this class can only call onNext once.
+        int finalLength;
         try {
-            finalBytes = cipher.doFinal();
+            final int finalOutputSize = cipher.getOutputSize(0);
+            if (outputBuffer == null || outputBuffer.capacity() - pending < finalOutputSize) {
+                ByteBuffer pendingOutput = outputBuffer;
+                outputBuffer = ByteBuffer.allocate(pending + finalOutputSize);
+                if (pending > 0) {
+                    System.arraycopy(pendingOutput.array(), pendingOutput.arrayOffset(), outputBuffer.array(), outputBuffer.arrayOffset(), pending);
+                }
+            }
+            finalLength = cipher.doFinal(outputBuffer.array(), outputBuffer.arrayOffset() + pending);
+            if (partEncryptor != null) {
+                finalLength = partEncryptor.finish(outputBuffer.array(), outputBuffer.arrayOffset() + pending, finalLength);
+            }
         } catch (final GeneralSecurityException exception) {
-            // Even if doFinal fails, downstream still expects to receive the bytes that were in outputBuffer
-            wrappedSubscriber.onNext(ByteBuffer.wrap(outputBuffer));
+            // Even if doFinal fails, downstream still expects to receive the bytes that were pending
+            wrappedSubscriber.onNext(copyOfOutput(pending));
             // Forward error, else the wrapped subscriber waits indefinitely
             wrappedSubscriber.onError(exception);
             throw new S3EncryptionClientSecurityException(exception.getMessage(), exception);
         }
 
-        // Combine the bytes from outputBuffer and finalBytes into one onNext call.
-        // Downstream has requested one item in its request method, so this class can only call onNext once.
-        // This single onNext call must contain both the bytes from outputBuffer and the tag.
-        byte[] combinedBytes;
-        if (outputBuffer != null && outputBuffer.length > 0 && finalBytes != null && finalBytes.length > 0) {
-            combinedBytes = new byte[outputBuffer.length + finalBytes.length];
-            System.arraycopy(outputBuffer, 0, combinedBytes, 0, outputBuffer.length);
-            System.arraycopy(finalBytes, 0, combinedBytes, outputBuffer.length, finalBytes.length);
-        } else if (outputBuffer != null && outputBuffer.length > 0) {
-            combinedBytes = outputBuffer;
-        } else if (finalBytes != null && finalBytes.length > 0) {
-            combinedBytes = finalBytes;
-        } else {
-            combinedBytes = new byte[0];
-        }
-
-        wrappedSubscriber.onNext(ByteBuffer.wrap(combinedBytes));
+        wrappedSubscriber.onNext(copyOfOutput(pending + finalLength));
     }
 
 }
\ No newline at end of file
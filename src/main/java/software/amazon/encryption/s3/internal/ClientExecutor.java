@@ -0,0 +1,370 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import software.amazon.encryption.s3.S3EncryptionClientException;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * The executor a client runs its blocking work on, e.g. uploading the parts of a multipart
+ * putObject, shared by every request rather than created per call. Counts the tasks it runs,
+ * see {@link #metrics()}.
+ * <p>
+ * The client's own executor either runs each task on a new virtual thread, which needs
+ * Java 21 or later, or reuses a pool of daemon threads which grows as needed, up to
+ * {@link #MAX_POOL_THREADS}, and lets idle threads go after a minute. Once every thread is
+ * busy, further tasks wait in order for one to be free, so the number of platform threads
+ * stays bounded however many requests run at once. A caller-supplied executor is used as
+ * is, and is left for the caller to shut down.
+ */
+public class ClientExecutor extends AbstractExecutorService {
+    /**
+     * The most threads the client's own pool runs. Tasks are mostly blocking I/O, so this
+     * is well above the number of processors.
+     */
+    public static final int MAX_POOL_THREADS = Math.max(64, 8 * Runtime.getRuntime().availableProcessors());
+    private static final long IDLE_THREAD_KEEP_ALIVE_SECONDS = 60;
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final ExecutorService _delegate;
+    private final boolean _owned;
+    private final boolean _virtualThreads;
+    private final AtomicLong _submittedTasks = new AtomicLong();
+    private final AtomicLong _completedTasks = new AtomicLong();
+    private final AtomicLong _failedTasks = new AtomicLong();
+    private final AtomicInteger _activeTasks = new AtomicInteger();
+    private final AtomicInteger _peakActiveTasks = new AtomicInteger();
+
+    private ClientExecutor(final ExecutorService delegate, final boolean owned, final boolean virtualThreads) {
+        _delegate = delegate;
+        _owned = owned;
+        _virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Creates an executor owned by the client.
+     * @param virtualThreads whether to run each task on a new virtual thread; before
+     *                       Java 21, which has no virtual threads, this falls back to the
+     *                       pool of daemon threads
+     */
+    public static ClientExecutor create(final boolean virtualThreads) {
+        return create(virtualThreads, MAX_POOL_THREADS);
+    }
+
+    static ClientExecutor create(final boolean virtualThreads, final int maxPoolThreads) {
+        if (virtualThreads && virtualThreadsAvailable()) {
+            return new ClientExecutor(newVirtualThreadPerTaskExecutor(), true, true);
+        }
+        // A pool only adds threads beyond its core size when its queue is full, so the core
+        // size is the cap, and core threads time out so that an idle pool holds no threads
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(maxPoolThreads, maxPoolThreads,
+                IDLE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "s3ec-executor-" + THREAD_COUNT.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return new ClientExecutor(pool, true, false);
+    }
+
+    /**
+     * Wraps an executor supplied by the caller, which {@link #close()} leaves running.
+     */
+    public static ClientExecutor wrap(final ExecutorService executorService) {
+        return new ClientExecutor(executorService, false, false);
+    }
+
+    /**
+     * @return whether this Java runtime can run tasks on virtual threads, i.e. is Java 21 or later
+     */
+    public static boolean virtualThreadsAvailable() {
+        return virtualThreadPerTaskExecutorFactory() != null;
+    }
+
+    private static Method virtualThreadPerTaskExecutorFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException exception) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        // Looked up reflectively, as this is built for, and runs on, Java 8
+        final Method factory = virtualThreadPerTaskExecutorFactory();
+        try {
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException exception) {
+            throw new S3EncryptionClientException("Unable to create a virtual thread executor", exception);
+        }
+    }
+
+    /**
+     * Bounds how many of the tasks given to the returned executor run at once; the rest
+     * wait in order for a running task to finish. Tasks still run on this executor, so
+     * one executor can be shared between requests which each have their own limit.
+     */
+    public ExecutorService limitedTo(final int maxConcurrentTasks) {
+        if (maxConcurrentTasks < 1) {
+            throw new S3EncryptionClientException("The maximum number of concurrent tasks must be at least 1");
+        }
+        return new LimitedExecutor(this, () -> maxConcurrentTasks);
+    }
+
+    /**
+     * As {@link #limitedTo(int)}, with a limit which may change between tasks, e.g. one
+     * tuned by {@link AdaptiveConcurrency}. The limit is read each time a task is given or
+     * finishes; lowering it lets running tasks finish rather than stopping them.
+     */
+    public ExecutorService limitedTo(final IntSupplier maxConcurrentTasks) {
+        return new LimitedExecutor(this, maxConcurrentTasks);
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        _submittedTasks.incrementAndGet();
+        _delegate.execute(() -> {
+            final int active = _activeTasks.incrementAndGet();
+            _peakActiveTasks.accumulateAndGet(active, Math::max);
+            try {
+                command.run();
+                _completedTasks.incrementAndGet();
+            } catch (RuntimeException | Error exception) {
+                _failedTasks.incrementAndGet();
+                throw exception;
+            } finally {
+                _activeTasks.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * @return a snapshot of the tasks this executor has run
+     */
+    public Metrics metrics() {
+        return new Metrics(this);
+    }
+
+    /**
+     * @return whether tasks run on virtual threads
+     */
+    public boolean usesVirtualThreads() {
+        return _virtualThreads;
+    }
+
+    /**
+     * Shuts the executor down if the client created it; a caller-supplied executor is left running.
+     */
+    public void close() {
+        if (_owned) {
+            _delegate.shutdown();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        close();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return _owned ? _delegate.shutdownNow() : new ArrayList<>();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return _delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return _delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return _delegate.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * A snapshot of the tasks a {@link ClientExecutor} has run.
+     */
+    public static final class Metrics {
+        private final long _submittedTasks;
+        private final long _completedTasks;
+        private final long _failedTasks;
+        private final int _activeTasks;
+        private final int _peakActiveTasks;
+        private final boolean _virtualThreads;
+
+        private Metrics(final ClientExecutor executor) {
+            _submittedTasks = executor._submittedTasks.get();
+            _completedTasks = executor._completedTasks.get();
+            _failedTasks = executor._failedTasks.get();
+            _activeTasks = executor._activeTasks.get();
+            _peakActiveTasks = executor._peakActiveTasks.get();
+            _virtualThreads = executor._virtualThreads;
+        }
+
+        /**
+         * @return the number of tasks given to the executor
+         */
+        public long submittedTasks() {
+            return _submittedTasks;
+        }
+
+        /**
+         * @return the number of tasks which ran to completion
+         */
+        public long completedTasks() {
+            return _completedTasks;
+        }
+
+        /**
+         * @return the number of tasks which threw; a task given to {@code submit}
+         *         reports its failure through its future instead
+         */
+        public long failedTasks() {
+            return _failedTasks;
+        }
+
+        /**
+         * @return the number of tasks running now
+         */
+        public int activeTasks() {
+            return _activeTasks;
+        }
+
+        /**
+         * @return the most tasks which have run at once
+         */
+        public int peakActiveTasks() {
+            return _peakActiveTasks;
+        }
+
+        /**
+         * @return the number of tasks submitted but not yet started
+         */
+        public long queuedTasks() {
+            return _submittedTasks - _completedTasks - _failedTasks - _activeTasks;
+        }
+
+        /**
+         * @return whether tasks run on virtual threads
+         */
+        public boolean virtualThreads() {
+            return _virtualThreads;
+        }
+
+        @Override
+        public String toString() {
+            return "ClientExecutor.Metrics(submittedTasks=" + _submittedTasks + ", completedTasks=" + _completedTasks
+                    + ", failedTasks=" + _failedTasks + ", activeTasks=" + _activeTasks
+                    + ", peakActiveTasks=" + _peakActiveTasks + ", virtualThreads=" + _virtualThreads + ")";
+        }
+    }
+
+    /**
+     * Hands tasks on to a shared executor, no more than a given number at a time.
+     */
+    private static final class LimitedExecutor extends AbstractExecutorService {
+        private final ExecutorService _executor;
+        private final IntSupplier _maxConcurrentTasks;
+        private final Deque<Runnable> _queue = new ArrayDeque<>();
+        private int _running = 0;
+        private boolean _shutdown = false;
+
+        private LimitedExecutor(final ExecutorService executor, final IntSupplier maxConcurrentTasks) {
+            _executor = executor;
+            _maxConcurrentTasks = maxConcurrentTasks;
+        }
+
+        @Override
+        public synchronized void execute(final Runnable command) {
+            if (_shutdown) {
+                throw new RejectedExecutionException("The executor has been shut down");
+            }
+            _queue.addLast(command);
+            startQueuedTasks();
+        }
+
+        private synchronized void startQueuedTasks() {
+            // One task always runs, whatever the limit, so the queue never stalls
+            while (_running < Math.max(1, _maxConcurrentTasks.getAsInt()) && !_queue.isEmpty()) {
+                final Runnable task = _queue.pollFirst();
+                _running++;
+                try {
+                    _executor.execute(() -> {
+                        try {
+                            task.run();
+                        } finally {
+                            taskFinished();
+                        }
+                    });
+                } catch (RuntimeException exception) {
+                    _running--;
+                    throw exception;
+                }
+            }
+        }
+
+        private synchronized void taskFinished() {
+            _running--;
+            startQueuedTasks();
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void shutdown() {
+            _shutdown = true;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized List<Runnable> shutdownNow() {
+            _shutdown = true;
+            final List<Runnable> queued = new ArrayList<>(_queue);
+            _queue.clear();
+            notifyAll();
+            return queued;
+        }
+
+        @Override
+        public synchronized boolean isShutdown() {
+            return _shutdown;
+        }
+
+        @Override
+        public synchronized boolean isTerminated() {
+            return _shutdown && _running == 0 && _queue.isEmpty();
+        }
+
+        @Override
+        public synchronized boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!isTerminated()) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        }
+    }
+}
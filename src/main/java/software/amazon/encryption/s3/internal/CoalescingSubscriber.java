@@ -0,0 +1,156 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gathers small upstream buffers into chunks of at least the target size before
+ * passing them on, so that the {@link CipherSubscriber} behind it makes far fewer
+ * cipher calls and downstream signals per byte.
+ * <p>
+ * Each upstream buffer results in at most one buffer sent on. When a buffer is
+ * absorbed without anything being sent, one more buffer is requested from upstream
+ * in its place, so the demand outstanding upstream always equals the demand
+ * outstanding downstream. An upstream which sends a buffer from within request
+ * would call back into this for every buffer absorbed, so those requests are
+ * trampolined: one made while another is in progress is left to it. Buffers
+ * which are already large enough pass through without being copied.
+ * <p>
+ * The chunk buffer is reused once the subscriber it is sent to returns, so this
+ * must only be placed in front of a subscriber which does not retain its input,
+ * as {@link CipherSubscriber} does not.
+ */
+public class CoalescingSubscriber implements Subscriber<ByteBuffer> {
+    /**
+     * The default target size: large enough to amortize the per-call cost of the cipher,
+     * small enough to stay in cache.
+     */
+    public static final int DEFAULT_TARGET_SIZE = 128 * 1024;
+
+    private final Subscriber<? super ByteBuffer> wrappedSubscriber;
+    private final int targetSize;
+    private final Long contentLength;
+
+    private Subscription upstream;
+    // Allocated when the first buffer is gathered, as streams of one large enough buffer need none
+    private ByteBuffer chunk;
+    private long contentRead = 0;
+    // Buffers to request from upstream in place of absorbed ones, which a request in progress will make
+    private final AtomicLong replacementsOwed = new AtomicLong(0);
+
+    /**
+     * @param contentLength the number of bytes upstream will send, or null if unknown.
+     *                      Gathered bytes are sent on as soon as this many have arrived,
+     *                      since upstream does not always signal onComplete promptly.
+     */
+    CoalescingSubscriber(Subscriber<? super ByteBuffer> wrappedSubscriber, Long contentLength, int targetSize) {
+        this.wrappedSubscriber = wrappedSubscriber;
+        this.contentLength = contentLength;
+        this.targetSize = targetSize;
+    }
+
+    /**
+     * Places a coalescing stage in front of {@code subscriber} unless coalescing is disabled
+     * by a target size of zero (or less).
+     */
+    static Subscriber<ByteBuffer> coalesce(Subscriber<ByteBuffer> subscriber, Long contentLength, int targetSize) {
+        if (targetSize <= 0) {
+            return subscriber;
+        }
+        return new CoalescingSubscriber(subscriber, contentLength, targetSize);
+    }
+
+    @Override
+    public void onSubscribe(Subscription s) {
+        upstream = s;
+        wrappedSubscriber.onSubscribe(s);
+    }
+
+    @Override
+    public void onNext(ByteBuffer byteBuffer) {
+        contentRead += byteBuffer.remaining();
+        final boolean allContentRead = contentLength != null && contentRead >= contentLength;
+        final int gathered = chunk == null ? 0 : chunk.position();
+
+        if (gathered == 0 && (byteBuffer.remaining() >= targetSize || allContentRead)) {
+            wrappedSubscriber.onNext(byteBuffer);
+            return;
+        }
+
+        if (gathered + byteBuffer.remaining() < targetSize && !allContentRead) {
+            if (chunk == null) {
+                chunk = allocateChunk();
+            }
+            chunk.put(byteBuffer.duplicate());
+            // Nothing was sent on for this buffer, so ask for another in its place
+            requestReplacement();
+            return;
+        }
+
+        // Send the gathered bytes and this buffer together, as only one buffer may be sent for it
+        final ByteBuffer output;
+        if (chunk.remaining() >= byteBuffer.remaining()) {
+            output = chunk;
+        } else {
+            output = ByteBuffer.allocate(gathered + byteBuffer.remaining());
+            output.put(chunk.array(), chunk.arrayOffset(), gathered);
+        }
+        output.put(byteBuffer.duplicate());
+        // This cast is necessary to ensure compatibility with Java 1.8/8
+        // when compiling with a newer Java version than 8
+        ((Buffer) output).flip();
+        wrappedSubscriber.onNext(output);
+        ((Buffer) chunk).clear();
+    }
+
+    /**
+     * Requests one more buffer from upstream. When this is called again from within that
+     * request, as a synchronous upstream sends the next buffer before returning, the new
+     * request is made by the outer call once it returns, so the stack does not grow.
+     */
+    private void requestReplacement() {
+        if (replacementsOwed.getAndIncrement() != 0) {
+            return;
+        }
+        long owed = 1;
+        do {
+            upstream.request(owed);
+            owed = replacementsOwed.addAndGet(-owed);
+        } while (owed != 0);
+    }
+
+    /**
+     * Allocates room for a buffer of up to the target size on top of what has been gathered,
+     * so that the usual run of small buffers never needs a new chunk, but no more than the
+     * whole object when its length is known.
+     */
+    private ByteBuffer allocateChunk() {
+        long capacity = Math.min(Integer.MAX_VALUE - 8, 2L * targetSize);
+        if (contentLength != null) {
+            capacity = Math.min(capacity, contentLength);
+        }
+        return ByteBuffer.allocate((int) capacity);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        wrappedSubscriber.onError(t);
+    }
+
+    @Override
+    public void onComplete() {
+        // Gathered bytes mean the last buffer was absorbed, so downstream's demand for it is still outstanding
+        if (chunk != null && chunk.position() > 0) {
+            ((Buffer) chunk).flip();
+            wrappedSubscriber.onNext(chunk);
+            ((Buffer) chunk).clear();
+        }
+        wrappedSubscriber.onComplete();
+    }
+}
@@ -0,0 +1,11 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.encryption.s3.materials.EncryptionMaterials;
+
+@FunctionalInterface
+public interface ContentEncryptionStrategy {
+    EncryptedContent encryptContent(EncryptionMaterials materials, RequestBody content);
+}
@@ -7,10 +7,29 @@ import software.amazon.encryption.s3.S3EncryptionClientException;
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.NoSuchPaddingException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.Provider;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 public class CryptoFactory {
+    // Cipher.getInstance resolves the provider and service on every call, which costs
+    // several times more than init. Ciphers which never leave the calling thread are
+    // reused per thread, keyed by provider (by identity) and then by transformation.
+    // No initial-value lambda, so the thread-local holds no reference to this class's loader.
+    private static final ThreadLocal<Map<Provider, Map<String, Cipher>>> POOLED_CIPHERS = new ThreadLocal<>();
+
+    /**
+     * Work to do with a pooled cipher. The cipher must be initialized before use
+     * and must not be used or retained after the function returns.
+     */
+    public interface CipherFunction<T> {
+        T apply(Cipher cipher) throws GeneralSecurityException;
+    }
+
     public static Cipher createCipher(String algorithm, Provider provider)
             throws NoSuchPaddingException, NoSuchAlgorithmException {
         // if the user has specified a provider, go with that.
@@ -22,6 +41,50 @@ public class CryptoFactory {
         return Cipher.getInstance(algorithm);
     }
 
+    /**
+     * Applies the function to a cipher reused from earlier calls on this thread, or a new
+     * cipher if there is none. This is only for work which completes within the function,
+     * such as wrapping or unwrapping a data key; ciphers which are handed to a stream must
+     * come from {@link #createCipher(String, Provider)}.
+     */
+    public static <T> T withPooledCipher(String algorithm, Provider provider, CipherFunction<T> function)
+            throws GeneralSecurityException {
+        Map<String, Cipher> pool = pool(provider);
+        // Removing the cipher while it is in use means a nested call gets its own
+        Cipher cipher = pool.remove(algorithm);
+        T result;
+        if (cipher == null) {
+            cipher = createCipher(algorithm, provider);
+            result = function.apply(cipher);
+        } else {
+            try {
+                result = function.apply(cipher);
+            } catch (InvalidKeyException exception) {
+                // Without an explicit provider, the reused cipher is bound to whichever provider
+                // accepted an earlier key, which may not accept this one. A new cipher selects again.
+                cipher = createCipher(algorithm, provider);
+                result = function.apply(cipher);
+            }
+        }
+        // Only a cipher whose work completed normally goes back into the pool
+        pool.put(algorithm, cipher);
+        return result;
+    }
+
+    private static Map<String, Cipher> pool(Provider provider) {
+        Map<Provider, Map<String, Cipher>> pools = POOLED_CIPHERS.get();
+        if (pools == null) {
+            pools = new IdentityHashMap<>();
+            POOLED_CIPHERS.set(pools);
+        }
+        Map<String, Cipher> pool = pools.get(provider);
+        if (pool == null) {
+            pool = new HashMap<>();
+            pools.put(provider, pool);
+        }
+        return pool;
+    }
+
     public  static KeyGenerator generateKey(String algorithm, Provider provider) {
         KeyGenerator generator;
         try {
@@ -3,10 +3,12 @@
 package software.amazon.encryption.s3.internal;
 
 import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.sync.RequestBody;
 
 public class EncryptedContent {
 
     private AsyncRequestBody _encryptedRequestBody;
+    private RequestBody _encryptedSyncRequestBody;
     private long _ciphertextLength = -1;
     protected byte[] _iv;
 
@@ -16,6 +18,12 @@ public class EncryptedContent {
         _ciphertextLength = ciphertextLength;
     }
 
+    public EncryptedContent(final byte[] iv, final RequestBody encryptedRequestBody, final long ciphertextLength) {
+        _iv = iv;
+        _encryptedSyncRequestBody = encryptedRequestBody;
+        _ciphertextLength = ciphertextLength;
+    }
+
     public byte[] getIv() {
         return _iv;
     }
@@ -28,4 +36,8 @@ public class EncryptedContent {
         return _encryptedRequestBody;
     }
 
+    public RequestBody getCiphertext() {
+        return _encryptedSyncRequestBody;
+    }
+
 }
@@ -0,0 +1,107 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import software.amazon.encryption.s3.S3EncryptionClientException;
+import software.amazon.encryption.s3.algorithms.AlgorithmSuite;
+import software.amazon.encryption.s3.legacy.internal.AesCtrUtils;
+import software.amazon.encryption.s3.materials.CryptographicMaterials;
+import software.amazon.encryption.s3.materials.DecryptionMaterials;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+/**
+ * Decrypts AES-GCM content as it arrives, without relying on the JCE provider,
+ * which may hold all GCM ciphertext in memory until doFinal.
+ * <p>
+ * The ciphertext is decrypted with AES-CTR starting at the first GCM counter block,
+ * and the plaintext is re-encrypted with AES-GCM under the same key and IV. Both
+ * ciphers stream. The re-encryption yields the original ciphertext and therefore
+ * the tag it should carry, which {@link #verify(byte[])} compares with the tag
+ * received at the end of the object. Plaintext must not be released until
+ * verification succeeds.
+ */
+public class GcmCtrDecryptor {
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    private final Cipher _ctrCipher;
+    private final Cipher _tagCipher;
+    private final int _tagLength;
+    private byte[] _plaintextScratch;
+    private byte[] _discardScratch;
+
+    public GcmCtrDecryptor(final DecryptionMaterials materials, final byte[] iv) {
+        if (materials.algorithmSuite() != AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF) {
+            throw new S3EncryptionClientException("Streaming authenticated decryption is only supported for " +
+                    AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF.cipherName());
+        }
+        // CTR decryption starting at the first GCM counter block produces the GCM plaintext
+        CryptographicMaterials ctrMaterials = materials.toBuilder()
+                .algorithmSuite(AlgorithmSuite.ALG_AES_256_CTR_IV16_TAG16_NO_KDF)
+                .build();
+        _ctrCipher = CipherProvider.createAndInitCipher(ctrMaterials, AesCtrUtils.adjustIV(iv, 0));
+        _tagLength = materials.algorithmSuite().cipherTagLengthBytes();
+        try {
+            _tagCipher = CryptoFactory.createCipher(materials.algorithmSuite().cipherName(), materials.cryptoProvider());
+            _tagCipher.init(Cipher.ENCRYPT_MODE, materials.dataKey(),
+                    new GCMParameterSpec(materials.algorithmSuite().cipherTagLengthBits(), iv));
+        } catch (GeneralSecurityException exception) {
+            throw new S3EncryptionClientException(exception.getMessage(), exception);
+        }
+    }
+
+    /**
+     * Decrypts the remaining bytes of ciphertext into plaintext, advancing both.
+     * The two buffers may share the same memory at the same position, in which
+     * case the ciphertext is decrypted in place.
+     * @return the number of plaintext bytes written
+     */
+    public int update(final ByteBuffer ciphertext, final ByteBuffer plaintext) throws GeneralSecurityException {
+        final int end = ciphertext.limit();
+        int written = 0;
+        try {
+            while (ciphertext.position() < end) {
+                final int length = Math.min(CHUNK_SIZE, end - ciphertext.position());
+                ensureScratchCapacity(length);
+                // This cast is necessary to ensure compatibility with Java 1.8/8
+                // when compiling with a newer Java version than 8
+                ((java.nio.Buffer) ciphertext).limit(ciphertext.position() + length);
+                // Decrypting into scratch rather than in place avoids the provider copying the input
+                final int produced = _ctrCipher.update(ciphertext, ByteBuffer.wrap(_plaintextScratch));
+                plaintext.put(_plaintextScratch, 0, produced);
+                // The re-encrypted ciphertext is discarded; only the tag computed at the end is needed
+                _tagCipher.update(_plaintextScratch, 0, produced, _discardScratch, 0);
+                written += produced;
+            }
+        } finally {
+            ((java.nio.Buffer) ciphertext).limit(end);
+        }
+        return written;
+    }
+
+    /**
+     * Completes decryption and checks the received tag.
+     * @throws AEADBadTagException if the tag does not match the decrypted content
+     */
+    public void verify(final byte[] expectedTag) throws GeneralSecurityException {
+        final byte[] finalCiphertext = _tagCipher.doFinal();
+        final byte[] computedTag = new byte[_tagLength];
+        System.arraycopy(finalCiphertext, finalCiphertext.length - _tagLength, computedTag, 0, _tagLength);
+        if (!MessageDigest.isEqual(computedTag, expectedTag)) {
+            throw new AEADBadTagException("Tag mismatch!");
+        }
+    }
+
+    private void ensureScratchCapacity(final int length) {
+        if (_plaintextScratch == null || _plaintextScratch.length < length + _ctrCipher.getBlockSize()) {
+            _plaintextScratch = new byte[length + _ctrCipher.getBlockSize()];
+            // GCM encryption may hold back up to a block, so it can emit one more block than it was given
+            _discardScratch = new byte[_plaintextScratch.length + _tagCipher.getBlockSize()];
+        }
+    }
+}
@@ -0,0 +1,112 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Arithmetic in GF(2^128) as defined for the GHASH function of AES-GCM
+ * (NIST SP 800-38D). Used to combine GHASHes which are computed over separate
+ * pieces of the same ciphertext, so that GCM can be split across tasks or parts.
+ * <p>
+ * Elements are held as two longs, most significant (first) bits first.
+ */
+final class GcmUtils {
+    static final int BLOCK_SIZE = 16;
+    // x^128 + x^7 + x^2 + x + 1, in GCM's reflected bit order
+    private static final long R = 0xE100000000000000L;
+    // The multiplicative identity, which is the element with only the first bit set
+    private static final long[] ONE = {1L << 63, 0};
+
+    private GcmUtils() {
+    }
+
+    /**
+     * Multiplies two elements (NIST SP 800-38D, Algorithm 1).
+     */
+    static long[] multiply(final long[] x, final long[] y) {
+        long zHigh = 0;
+        long zLow = 0;
+        long vHigh = y[0];
+        long vLow = y[1];
+        for (int i = 0; i < 128; i++) {
+            final long bit = i < 64 ? x[0] >>> (63 - i) : x[1] >>> (127 - i);
+            if ((bit & 1) != 0) {
+                zHigh ^= vHigh;
+                zLow ^= vLow;
+            }
+            final boolean carry = (vLow & 1) != 0;
+            vLow = (vLow >>> 1) | (vHigh << 63);
+            vHigh >>>= 1;
+            if (carry) {
+                vHigh ^= R;
+            }
+        }
+        return new long[]{zHigh, zLow};
+    }
+
+    static long[] power(final long[] base, long exponent) {
+        long[] result = ONE;
+        long[] square = base;
+        while (exponent > 0) {
+            if ((exponent & 1) != 0) {
+                result = multiply(result, square);
+            }
+            square = multiply(square, square);
+            exponent >>>= 1;
+        }
+        return result;
+    }
+
+    /**
+     * The multiplicative inverse of a non-zero element, which is x^(2^128 - 2).
+     * As 2^128 - 2 is 127 ones followed by a zero in binary, that is the
+     * product of x^(2^i) for i from 1 to 127.
+     */
+    static long[] inverse(final long[] x) {
+        long[] result = ONE;
+        long[] square = x;
+        for (int i = 1; i < 128; i++) {
+            square = multiply(square, square);
+            result = multiply(result, square);
+        }
+        return result;
+    }
+
+    static long[] xor(final long[] a, final long[] b) {
+        return new long[]{a[0] ^ b[0], a[1] ^ b[1]};
+    }
+
+    static long[] fromBytes(final byte[] bytes, final int offset) {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, BLOCK_SIZE);
+        return new long[]{buffer.getLong(), buffer.getLong()};
+    }
+
+    static byte[] toBytes(final long[] element) {
+        return ByteBuffer.allocate(BLOCK_SIZE).putLong(element[0]).putLong(element[1]).array();
+    }
+
+    /**
+     * The lengths block which ends every GHASH: the AAD length then the ciphertext
+     * length, both in bits.
+     */
+    static long[] lengthsBlock(final long aadLength, final long ciphertextLength) {
+        return new long[]{aadLength * 8, ciphertextLength * 8};
+    }
+
+    /**
+     * Returns the pre-counter block J0, given the first counter block of the
+     * content, J0 + 1, as returned by
+     * {@link software.amazon.encryption.s3.legacy.internal.AesCtrUtils#adjustIV}.
+     */
+    static byte[] preCounterBlock(final byte[] firstCounterBlock) {
+        final byte[] counter = firstCounterBlock.clone();
+        final int value = ((counter[12] & 0xFF) << 24 | (counter[13] & 0xFF) << 16
+                | (counter[14] & 0xFF) << 8 | (counter[15] & 0xFF)) - 1;
+        counter[12] = (byte) (value >>> 24);
+        counter[13] = (byte) (value >>> 16);
+        counter[14] = (byte) (value >>> 8);
+        counter[15] = (byte) value;
+        return counter;
+    }
+}
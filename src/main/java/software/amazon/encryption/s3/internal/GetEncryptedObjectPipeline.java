@@ -3,24 +3,40 @@
 package software.amazon.encryption.s3.internal;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.core.async.AsyncResponseTransformer;
 import software.amazon.awssdk.core.async.SdkPublisher;
+import software.amazon.awssdk.http.AbortableInputStream;
 import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectResponse;
 import software.amazon.encryption.s3.S3EncryptionClientException;
+import software.amazon.encryption.s3.S3EncryptionClientSecurityException;
 import software.amazon.encryption.s3.algorithms.AlgorithmSuite;
 import software.amazon.encryption.s3.legacy.internal.AesCtrUtils;
 import software.amazon.encryption.s3.legacy.internal.RangedGetUtils;
+import software.amazon.encryption.s3.materials.AsyncCryptographicMaterialsManager;
 import software.amazon.encryption.s3.materials.CryptographicMaterialsManager;
 import software.amazon.encryption.s3.materials.DecryptMaterialsRequest;
 import software.amazon.encryption.s3.materials.DecryptionMaterials;
 import software.amazon.encryption.s3.materials.EncryptedDataKey;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
 
 import static software.amazon.encryption.s3.internal.ApiNameVersion.API_NAME_INTERCEPTOR;
 
@@ -31,24 +47,46 @@ import static software.amazon.encryption.s3.internal.ApiNameVersion.API_NAME_INT
  * information is available from the returned object.
  */
 public class GetEncryptedObjectPipeline {
+    private final S3Client _s3Client;
     private final S3AsyncClient _s3AsyncClient;
     private final CryptographicMaterialsManager _cryptoMaterialsManager;
     private final boolean _enableLegacyUnauthenticatedModes;
     private final boolean _enableDelayedAuthentication;
     private final long _bufferSize;
     private final InstructionFileConfig _instructionFileConfig;
+    private final boolean _enableBufferSpillToDisk;
+    private final Path _bufferSpillDirectory;
+    private final BufferMemoryBudget _bufferMemoryBudget;
+    private final boolean _enableOffHeapBuffering;
+    private final int _cipherChunkSize;
+    private final boolean _enableParallelDecryption;
+    private final long _parallelDecryptionThreshold;
+    private final boolean _enableParallelDownload;
+    private final long _parallelDownloadPartSize;
+    private final int _parallelDownloadConcurrency;
 
     public static Builder builder() {
         return new Builder();
     }
 
     private GetEncryptedObjectPipeline(Builder builder) {
+        this._s3Client = builder._s3Client;
         this._s3AsyncClient = builder._s3AsyncClient;
         this._cryptoMaterialsManager = builder._cryptoMaterialsManager;
         this._enableLegacyUnauthenticatedModes = builder._enableLegacyUnauthenticatedModes;
         this._enableDelayedAuthentication = builder._enableDelayedAuthentication;
         this._bufferSize = builder._bufferSize;
         this._instructionFileConfig = builder._instructionFileConfig;
+        this._enableBufferSpillToDisk = builder._enableBufferSpillToDisk;
+        this._bufferSpillDirectory = builder._bufferSpillDirectory;
+        this._bufferMemoryBudget = builder._bufferMemoryBudget;
+        this._enableOffHeapBuffering = builder._enableOffHeapBuffering;
+        this._cipherChunkSize = builder._cipherChunkSize;
+        this._enableParallelDecryption = builder._enableParallelDecryption;
+        this._parallelDecryptionThreshold = builder._parallelDecryptionThreshold;
+        this._enableParallelDownload = builder._enableParallelDownload;
+        this._parallelDownloadPartSize = builder._parallelDownloadPartSize;
+        this._parallelDownloadConcurrency = builder._parallelDownloadConcurrency;
     }
 
     public <T> CompletableFuture<T> getObject(GetObjectRequest getObjectRequest, AsyncResponseTransformer<GetObjectResponse, T> asyncResponseTransformer) {
@@ -61,19 +99,429 @@ public class GetEncryptedObjectPipeline {
         if (!_enableLegacyUnauthenticatedModes && getObjectRequest.range() != null) {
             throw new S3EncryptionClientException("Enable legacy unauthenticated modes to use Ranged Get.");
         }
+        if (_enableParallelDownload && getObjectRequest.range() == null && getObjectRequest.partNumber() == null) {
+            return parallelGetObject(getObjectRequest, asyncResponseTransformer);
+        }
         return _s3AsyncClient.getObject(adjustedRangeRequest, new DecryptingResponseTransformer<>(asyncResponseTransformer,
                 getObjectRequest));
     }
 
+    /**
+     * Downloads and decrypts the object to a file. The plaintext is staged in a temporary file
+     * next to the destination, which is only moved into place once the whole object has been
+     * authenticated, so neither the destination nor memory ever holds unauthenticated plaintext,
+     * whatever the size of the object.
+     */
+    public CompletableFuture<GetObjectResponse> getObject(GetObjectRequest getObjectRequest, Path destination) {
+        String cryptoRange = RangedGetUtils.getCryptoRangeAsString(getObjectRequest.range());
+        GetObjectRequest adjustedRangeRequest = getObjectRequest.toBuilder()
+                .overrideConfiguration(API_NAME_INTERCEPTOR)
+                .range(cryptoRange)
+                .build();
+        if (!_enableLegacyUnauthenticatedModes && getObjectRequest.range() != null) {
+            throw new S3EncryptionClientException("Enable legacy unauthenticated modes to use Ranged Get.");
+        }
+        final StagedFileResponseTransformer fileTransformer = new StagedFileResponseTransformer(destination);
+        if (_enableParallelDownload && getObjectRequest.range() == null && getObjectRequest.partNumber() == null) {
+            return parallelGetObject(getObjectRequest, fileTransformer);
+        }
+        return _s3AsyncClient.getObject(adjustedRangeRequest, new DecryptingResponseTransformer<>(fileTransformer,
+                getObjectRequest, true));
+    }
+
+    /**
+     * Whether {@link #getObject(GetObjectRequest)} can get this object with the synchronous
+     * client. Ranged gets, spilling to disk and parallel download are only implemented on
+     * top of the async client.
+     */
+    public boolean supportsSyncGetObject(GetObjectRequest getObjectRequest) {
+        return _s3Client != null
+                && getObjectRequest.range() == null
+                && !_enableBufferSpillToDisk
+                && !_enableParallelDownload;
+    }
+
+    /**
+     * Gets and decrypts the object with the synchronous client. CBC and GCM with delayed
+     * authentication are decrypted as the returned stream is read. In the default (buffered)
+     * mode, the whole object is read and authenticated on the calling thread, within the same
+     * buffer size and memory budget as the async path, before the stream is returned.
+     */
+    public ResponseInputStream<GetObjectResponse> getObject(GetObjectRequest getObjectRequest) {
+        if (!supportsSyncGetObject(getObjectRequest)) {
+            throw new S3EncryptionClientException("This request can only be made with an async client.");
+        }
+        final ResponseInputStream<GetObjectResponse> ciphertext = _s3Client.getObject(getObjectRequest.toBuilder()
+                .overrideConfiguration(API_NAME_INTERCEPTOR)
+                .build());
+        try {
+            final GetObjectResponse response = ciphertext.response();
+            final ContentMetadata contentMetadata = new ContentMetadataDecodingStrategy(_instructionFileConfig)
+                    .decode(getObjectRequest, response);
+            final DecryptionMaterials materials = prepareMaterialsFromRequest(getObjectRequest, response, contentMetadata);
+            final byte[] iv = contentMetadata.contentIv();
+            final int chunkSize = _cipherChunkSize > 0 ? _cipherChunkSize : CipherInputStream.DEFAULT_IN_BUFFER_SIZE;
+            final InputStream plaintext;
+            if (materials.algorithmSuite().equals(AlgorithmSuite.ALG_AES_256_CBC_IV16_NO_KDF)) {
+                plaintext = new CipherInputStream(ciphertext, materials.getCipher(iv), chunkSize);
+            } else if (_enableDelayedAuthentication) {
+                plaintext = new AuthenticatedCipherInputStream(ciphertext, materials.getCipher(iv), chunkSize);
+            } else {
+                plaintext = decryptBuffered(ciphertext, response.contentLength(), materials, iv, chunkSize);
+            }
+            return new ResponseInputStream<>(response, AbortableInputStream.create(plaintext, ciphertext::abort));
+        } catch (IOException exception) {
+            ciphertext.abort();
+            throw new S3EncryptionClientException("Unable to read the object.", exception);
+        } catch (RuntimeException exception) {
+            // Release the connection rather than draining the rest of the object
+            ciphertext.abort();
+            throw exception;
+        }
+    }
+
+    /**
+     * Reads the whole object and authenticates it before any plaintext is released, by
+     * feeding the same subscriber the async path uses from the calling thread.
+     */
+    private InputStream decryptBuffered(final InputStream ciphertext, final Long contentLength,
+                                        final DecryptionMaterials materials, final byte[] iv,
+                                        final int chunkSize) throws IOException {
+        final long reservedBytes = _bufferMemoryBudget == null || contentLength == null
+                ? 0 : Math.min(contentLength, _bufferSize);
+        if (reservedBytes > 0) {
+            // Nothing is allocated or read until the reservation is granted
+            try {
+                _bufferMemoryBudget.reserve(reservedBytes).join();
+            } catch (CompletionException exception) {
+                throw exception.getCause() instanceof RuntimeException
+                        ? (RuntimeException) exception.getCause() : exception;
+            }
+        }
+        final Runnable release = reservedBytes > 0 ? () -> _bufferMemoryBudget.release(reservedBytes) : () -> { };
+        try {
+            final ForkJoinPool parallelPool = _enableParallelDecryption && contentLength != null
+                    && contentLength >= _parallelDecryptionThreshold ? ForkJoinPool.commonPool() : null;
+            final PlaintextCollector collector = new PlaintextCollector();
+            final BufferedCipherSubscriber decryptor = new BufferedCipherSubscriber(collector, contentLength,
+                    materials, iv, _bufferSize, _enableOffHeapBuffering, parallelPool);
+            decryptor.onSubscribe(collector);
+            // The subscriber copies each chunk into its own buffers, so one chunk is reused throughout
+            final byte[] chunk = new byte[chunkSize];
+            int length;
+            // Stops reading early once decryption has completed or failed
+            while (!collector.isDone() && (length = ciphertext.read(chunk)) != -1) {
+                decryptor.onNext(ByteBuffer.wrap(chunk, 0, length));
+            }
+            decryptor.onComplete();
+            // Everything has been read, so this returns the connection
+            ciphertext.close();
+            collector.awaitDone();
+            if (collector._error != null) {
+                throw new S3EncryptionClientSecurityException(collector._error.getMessage(), collector._error);
+            }
+            return new ByteBuffersInputStream(collector._plaintext, release);
+        } catch (IOException | RuntimeException | Error exception) {
+            release.run();
+            throw exception;
+        }
+    }
+
+    /**
+     * Collects the plaintext a {@link BufferedCipherSubscriber} releases once the object is
+     * authenticated. Doubles as the (unused) subscription, as the ciphertext is pushed to the
+     * subscriber as it is read.
+     */
+    private static class PlaintextCollector implements Subscriber<ByteBuffer>, Subscription {
+        private final List<ByteBuffer> _plaintext = new ArrayList<>();
+        private final CountDownLatch _done = new CountDownLatch(1);
+        // Set on the parallel decryption pool, and read on the thread reading the ciphertext
+        private volatile Throwable _error;
+        private volatile boolean _completed;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            // Do nothing.
+        }
+
+        @Override
+        public void onNext(ByteBuffer byteBuffer) {
+            if (byteBuffer.hasRemaining()) {
+                _plaintext.add(byteBuffer);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            _error = throwable;
+            _done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            _completed = true;
+            _done.countDown();
+        }
+
+        boolean isDone() {
+            return _completed || _error != null;
+        }
+
+        /**
+         * Waits for the plaintext to be released, since parallel decryption releases it from its pool
+         * after the last of the ciphertext has been pushed.
+         */
+        void awaitDone() {
+            try {
+                _done.await();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new S3EncryptionClientException("Interrupted while decrypting the object", exception);
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            // Do nothing.
+        }
+
+        @Override
+        public void cancel() {
+            // Do nothing.
+        }
+    }
+
+    /**
+     * Downloads the object as several byte ranges at once. The first range also resolves the
+     * object's metadata and length; the rest are fetched concurrently, each is decrypted with
+     * AES-CTR at its counter offset as soon as it arrives, and the GCM tag is checked over the
+     * whole object before the plaintext stream completes. Plaintext is released before the tag
+     * is checked, so this requires delayed authentication. Content which is not GCM is still
+     * fetched in ranges, carrying on from the first, but is decrypted as one stream.
+     */
+    private <T> CompletableFuture<T> parallelGetObject(final GetObjectRequest getObjectRequest,
+                                                       final AsyncResponseTransformer<GetObjectResponse, T> asyncResponseTransformer) {
+        final int tagLength = AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF.cipherTagLengthBytes();
+        // The first range goes a tag past the part size, so that an object whose content
+        // fits in one part is fetched, tag included, in one request
+        final GetObjectRequest firstRangeRequest = getObjectRequest.toBuilder()
+                .overrideConfiguration(API_NAME_INTERCEPTOR)
+                .range(rangeHeader(0, _parallelDownloadPartSize + tagLength))
+                .build();
+        return _s3AsyncClient.getObject(firstRangeRequest, AsyncResponseTransformer.toBytes()).thenCompose(firstRange -> {
+            final long contentLength = totalLength(firstRange.response());
+            // Describe the whole object, so that its metadata is not read as that of a ranged get
+            final GetObjectResponse response = firstRange.response().toBuilder()
+                    .contentLength(contentLength)
+                    .contentRange(null)
+                    .build();
+            final ContentMetadata contentMetadata = new ContentMetadataDecodingStrategy(_instructionFileConfig)
+                    .decode(getObjectRequest, response);
+            if (contentMetadata.algorithmSuite() != AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF) {
+                // Only GCM can be decrypted in ranges, so anything else is decrypted in order,
+                // without fetching the first range again
+                return decryptInOrder(getObjectRequest, response, firstRange.asByteArrayUnsafe(), asyncResponseTransformer);
+            }
+            return prepareMaterialsAsync(getObjectRequest, contentLength, contentMetadata).thenCompose(materials -> {
+                final ParallelGcmDecryptor decryptor = new ParallelGcmDecryptor(materials, contentMetadata.contentIv(),
+                        ForkJoinPool.commonPool());
+                final RangedDownload download = new RangedDownload(getObjectRequest, response.eTag(), contentLength,
+                        firstRange.asByteArrayUnsafe(), decryptor);
+
+                final CompletableFuture<T> result = asyncResponseTransformer.prepare();
+                asyncResponseTransformer.onResponse(response);
+                asyncResponseTransformer.onStream(new OrderedPartPublisher(download.partCount(),
+                        _parallelDownloadConcurrency, download::fetchPart, download::verifyTag));
+                return result;
+            });
+        });
+    }
+
+    /**
+     * Decrypts an object which was found not to be GCM after its first range was fetched, as one
+     * stream made of that range and the ranges after it, which are fetched as they are needed.
+     * @param response describes the whole object
+     */
+    private <T> CompletableFuture<T> decryptInOrder(final GetObjectRequest getObjectRequest, final GetObjectResponse response,
+                                                    final byte[] firstRange,
+                                                    final AsyncResponseTransformer<GetObjectResponse, T> asyncResponseTransformer) {
+        final long contentLength = response.contentLength();
+        final int partCount = (int) (1 + (contentLength - firstRange.length + _parallelDownloadPartSize - 1) / _parallelDownloadPartSize);
+        final DecryptingResponseTransformer<T> transformer = new DecryptingResponseTransformer<>(asyncResponseTransformer, getObjectRequest);
+        final CompletableFuture<T> result = transformer.prepare();
+        try {
+            transformer.onResponse(response);
+        } catch (RuntimeException exception) {
+            transformer.exceptionOccurred(exception);
+            return result;
+        }
+        transformer.onStream(new OrderedPartPublisher(partCount, _parallelDownloadConcurrency, partIndex -> {
+            if (partIndex == 0) {
+                return CompletableFuture.completedFuture(ByteBuffer.wrap(firstRange));
+            }
+            final long start = firstRange.length + (partIndex - 1) * _parallelDownloadPartSize;
+            final long end = Math.min(contentLength, start + _parallelDownloadPartSize);
+            final GetObjectRequest rangeRequest = getObjectRequest.toBuilder()
+                    .overrideConfiguration(API_NAME_INTERCEPTOR)
+                    .range(rangeHeader(start, end))
+                    // Every range must come from the same version of the object
+                    .ifMatch(response.eTag())
+                    .build();
+            return _s3AsyncClient.getObject(rangeRequest, AsyncResponseTransformer.toBytes()).thenApply(range -> {
+                if (range.asByteArrayUnsafe().length != end - start) {
+                    throw new S3EncryptionClientException("Expected " + (end - start) + " bytes from offset " + start
+                            + " of the object, but received " + range.asByteArrayUnsafe().length);
+                }
+                return ByteBuffer.wrap(range.asByteArrayUnsafe());
+            });
+        }, () -> { }));
+        return result;
+    }
+
+    /**
+     * The layout and state of one parallel download. The body is split at multiples of the part
+     * size, and the last part also holds the tag, so the tag is never split across parts.
+     */
+    private class RangedDownload {
+        private final GetObjectRequest _request;
+        private final String _eTag;
+        private final long _contentLength;
+        private final long _bodyLength;
+        private final byte[] _firstRange;
+        private final ParallelGcmDecryptor _decryptor;
+        private final int _partCount;
+        private final long[][] _partHashes;
+        private final long[] _partLengths;
+        private volatile byte[] _tag;
+
+        RangedDownload(final GetObjectRequest request, final String eTag, final long contentLength,
+                       final byte[] firstRange, final ParallelGcmDecryptor decryptor) {
+            final int tagLength = AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF.cipherTagLengthBytes();
+            if (contentLength < tagLength) {
+                throw new S3EncryptionClientSecurityException("Object ended before the authentication tag was read.");
+            }
+            _request = request;
+            _eTag = eTag;
+            _contentLength = contentLength;
+            _bodyLength = contentLength - tagLength;
+            _firstRange = firstRange;
+            _decryptor = decryptor;
+            _partCount = (int) Math.max(1, (_bodyLength + _parallelDownloadPartSize - 1) / _parallelDownloadPartSize);
+            _partHashes = new long[_partCount][];
+            _partLengths = new long[_partCount];
+        }
+
+        int partCount() {
+            return _partCount;
+        }
+
+        CompletableFuture<ByteBuffer> fetchPart(final int partIndex) {
+            final long start = partIndex * _parallelDownloadPartSize;
+            final long end = partIndex == _partCount - 1 ? _contentLength : start + _parallelDownloadPartSize;
+            if (partIndex == 0) {
+                // The first range has already been fetched
+                return CompletableFuture.supplyAsync(() -> decryptPart(0, _firstRange, end), ForkJoinPool.commonPool());
+            }
+            final GetObjectRequest rangeRequest = _request.toBuilder()
+                    .overrideConfiguration(API_NAME_INTERCEPTOR)
+                    .range(rangeHeader(start, end))
+                    // Every range must come from the same version of the object
+                    .ifMatch(_eTag)
+                    .build();
+            return _s3AsyncClient.getObject(rangeRequest, AsyncResponseTransformer.toBytes())
+                    .thenApplyAsync(range -> decryptPart(partIndex, range.asByteArrayUnsafe(), end - start),
+                            ForkJoinPool.commonPool());
+        }
+
+        /**
+         * Decrypts the first {@code length} bytes of {@code ciphertext} as the given part, in place.
+         */
+        private ByteBuffer decryptPart(final int partIndex, final byte[] ciphertext, final long length) {
+            final long start = partIndex * _parallelDownloadPartSize;
+            if (ciphertext.length < length) {
+                throw new S3EncryptionClientException("Expected " + length + " bytes from offset " + start
+                        + " of the object, but received " + ciphertext.length);
+            }
+            final int bodyLength = (int) (Math.min(start + length, _bodyLength) - start);
+            if (partIndex == _partCount - 1) {
+                _tag = Arrays.copyOfRange(ciphertext, bodyLength, (int) length);
+            }
+            final ByteBuffer part = ByteBuffer.wrap(ciphertext, 0, bodyLength);
+            try {
+                _partHashes[partIndex] = _decryptor.decryptPart(part, start);
+            } catch (GeneralSecurityException exception) {
+                throw new S3EncryptionClientSecurityException(exception.getMessage(), exception);
+            }
+            _partLengths[partIndex] = bodyLength;
+            return part;
+        }
+
+        void verifyTag() {
+            try {
+                _decryptor.verifyTag(_partHashes, _partLengths, _tag);
+            } catch (GeneralSecurityException exception) {
+                throw new S3EncryptionClientSecurityException(exception.getMessage(), exception);
+            }
+        }
+    }
+
+    /**
+     * The Range header for the bytes [start, end) of an object.
+     */
+    private static String rangeHeader(final long start, final long end) {
+        return "bytes=" + start + "-" + (end - 1);
+    }
+
+    /**
+     * The length of the whole object, from the Content-Range of a ranged response (bytes start-end/length).
+     */
+    private static long totalLength(final GetObjectResponse response) {
+        final String contentRange = response.contentRange();
+        if (contentRange == null) {
+            return response.contentLength();
+        }
+        final int slash = contentRange.lastIndexOf('/');
+        if (slash < 0 || contentRange.endsWith("*")) {
+            throw new S3EncryptionClientException("Unable to determine the object length from Content-Range: " + contentRange);
+        }
+        return Long.parseLong(contentRange.substring(slash + 1).trim());
+    }
+
     private DecryptionMaterials prepareMaterialsFromRequest(final GetObjectRequest getObjectRequest, final GetObjectResponse getObjectResponse,
                                                             final ContentMetadata contentMetadata) {
+        checkContentRange(getObjectRequest, getObjectResponse);
+        return prepareMaterials(getObjectRequest, getObjectResponse.contentLength(), contentMetadata);
+    }
+
+    private static void checkContentRange(final GetObjectRequest getObjectRequest, final GetObjectResponse getObjectResponse) {
         // If the response contains a range, but the request does not,
         // then this is an unsupported case where the client is using multipart downloads.
         // Until this is supported, throw an exception
         if (getObjectRequest.range() == null && getObjectResponse.contentRange() != null) {
             throw new S3EncryptionClientException("Content range in response but is missing from request. Ensure multipart upload is not enabled on the wrapped async client.");
         }
+    }
+
+    private DecryptionMaterials prepareMaterials(final GetObjectRequest getObjectRequest, final Long ciphertextLength,
+                                                 final ContentMetadata contentMetadata) {
+        return _cryptoMaterialsManager.decryptMaterials(decryptMaterialsRequest(getObjectRequest, ciphertextLength, contentMetadata));
+    }
+
+    /**
+     * As {@link #prepareMaterials}, without blocking if the CMM is an {@link AsyncCryptographicMaterialsManager}.
+     */
+    private CompletableFuture<DecryptionMaterials> prepareMaterialsAsync(final GetObjectRequest getObjectRequest,
+                                                                         final Long ciphertextLength,
+                                                                         final ContentMetadata contentMetadata) {
+        final DecryptMaterialsRequest materialsRequest = decryptMaterialsRequest(getObjectRequest, ciphertextLength, contentMetadata);
+        if (_cryptoMaterialsManager instanceof AsyncCryptographicMaterialsManager) {
+            return ((AsyncCryptographicMaterialsManager) _cryptoMaterialsManager).decryptMaterialsAsync(materialsRequest);
+        }
+        return CompletableFuture.completedFuture(_cryptoMaterialsManager.decryptMaterials(materialsRequest));
+    }
 
+    private DecryptMaterialsRequest decryptMaterialsRequest(final GetObjectRequest getObjectRequest, final Long ciphertextLength,
+                                                            final ContentMetadata contentMetadata) {
         AlgorithmSuite algorithmSuite = contentMetadata.algorithmSuite();
         if (!_enableLegacyUnauthenticatedModes && algorithmSuite.isLegacy()) {
             throw new S3EncryptionClientException("Enable legacy unauthenticated modes to use legacy content decryption: " + algorithmSuite.cipherName());
@@ -81,16 +529,14 @@ public class GetEncryptedObjectPipeline {
 
         List<EncryptedDataKey> encryptedDataKeys = Collections.singletonList(contentMetadata.encryptedDataKey());
 
-        DecryptMaterialsRequest materialsRequest = DecryptMaterialsRequest.builder()
+        return DecryptMaterialsRequest.builder()
                 .s3Request(getObjectRequest)
                 .algorithmSuite(algorithmSuite)
                 .encryptedDataKeys(encryptedDataKeys)
                 .encryptionContext(contentMetadata.encryptedDataKeyContext())
-                .ciphertextLength(getObjectResponse.contentLength())
+                .ciphertextLength(ciphertextLength)
                 .contentRange(getObjectRequest.range())
                 .build();
-
-        return _cryptoMaterialsManager.decryptMaterials(materialsRequest);
     }
 
     private class DecryptingResponseTransformer<T> implements AsyncResponseTransformer<GetObjectResponse, T> {
@@ -104,14 +550,38 @@ public class GetEncryptedObjectPipeline {
         ContentMetadata contentMetadata;
         GetObjectResponse getObjectResponse;
         DecryptionMaterials materials;
+        /**
+         * The materials still being fetched by an {@link AsyncCryptographicMaterialsManager};
+         * the wrapped transformer is only given the response once they arrive.
+         */
+        CompletableFuture<DecryptionMaterials> materialsFuture;
         ContentMetadataDecodingStrategy contentMetadataStrategy = new ContentMetadataDecodingStrategy(_instructionFileConfig);
 
+        /**
+         * Whether the wrapped transformer holds back everything it receives until the stream
+         * completes, in which case plaintext can be streamed to it before it is authenticated.
+         */
+        final boolean wrappedTransformerIsStaged;
+
         CompletableFuture<T> resultFuture;
 
+        /**
+         * The buffer memory reserved for this object, once granted, and whether the response
+         * has failed, in which case a reservation granted afterwards is released at once.
+         */
+        volatile BufferReservationPublisher reservation;
+        volatile boolean failed;
+
         DecryptingResponseTransformer(AsyncResponseTransformer<GetObjectResponse, T> wrappedAsyncResponseTransformer,
                                       GetObjectRequest getObjectRequest) {
+            this(wrappedAsyncResponseTransformer, getObjectRequest, false);
+        }
+
+        DecryptingResponseTransformer(AsyncResponseTransformer<GetObjectResponse, T> wrappedAsyncResponseTransformer,
+                                      GetObjectRequest getObjectRequest, boolean wrappedTransformerIsStaged) {
             this.wrappedAsyncResponseTransformer = wrappedAsyncResponseTransformer;
             this.getObjectRequest = getObjectRequest;
+            this.wrappedTransformerIsStaged = wrappedTransformerIsStaged;
         }
 
         @Override
@@ -124,17 +594,54 @@ public class GetEncryptedObjectPipeline {
         public void onResponse(GetObjectResponse response) {
             getObjectResponse = response;
             contentMetadata = contentMetadataStrategy.decode(getObjectRequest, response);
+            if (_cryptoMaterialsManager instanceof AsyncCryptographicMaterialsManager) {
+                // Don't hold up the SDK's response thread while the key provider is called
+                checkContentRange(getObjectRequest, response);
+                materialsFuture = prepareMaterialsAsync(getObjectRequest, response.contentLength(), contentMetadata);
+                return;
+            }
             materials = prepareMaterialsFromRequest(getObjectRequest, response, contentMetadata);
             wrappedAsyncResponseTransformer.onResponse(response);
         }
 
         @Override
         public void exceptionOccurred(Throwable error) {
+            failed = true;
+            // The plaintext stream may never be subscribed to, which is what would release the budget
+            final BufferReservationPublisher reservation = this.reservation;
+            if (reservation != null) {
+                reservation.release();
+            }
             wrappedAsyncResponseTransformer.exceptionOccurred(error);
         }
 
         @Override
         public void onStream(SdkPublisher<ByteBuffer> ciphertextPublisher) {
+            if (materialsFuture == null) {
+                decryptStream(ciphertextPublisher);
+                return;
+            }
+            // Nothing is read from the ciphertext stream until the materials arrive
+            materialsFuture.whenComplete((decryptionMaterials, error) -> {
+                if (error != null) {
+                    // Cancel the ciphertext stream so the connection is released
+                    ciphertextPublisher.subscribe(new CancellingSubscriber());
+                    wrappedAsyncResponseTransformer.exceptionOccurred(
+                            error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+                    return;
+                }
+                materials = decryptionMaterials;
+                try {
+                    wrappedAsyncResponseTransformer.onResponse(getObjectResponse);
+                    decryptStream(ciphertextPublisher);
+                } catch (RuntimeException exception) {
+                    // Nothing else would complete the wrapped transformer's future
+                    wrappedAsyncResponseTransformer.exceptionOccurred(exception);
+                }
+            });
+        }
+
+        private void decryptStream(SdkPublisher<ByteBuffer> ciphertextPublisher) {
             long[] desiredRange = RangedGetUtils.getRange(materials.getContentRange());
             long[] cryptoRange = RangedGetUtils.getCryptoRange(materials.getContentRange());
             AlgorithmSuite algorithmSuite = materials.algorithmSuite();
@@ -143,33 +650,110 @@ public class GetEncryptedObjectPipeline {
                 iv = AesCtrUtils.adjustIV(iv, cryptoRange[0]);
             }
 
-            if (algorithmSuite.equals(AlgorithmSuite.ALG_AES_256_CBC_IV16_NO_KDF)
+            final boolean streamsIntoStagedOutput = wrappedTransformerIsStaged
+                    && algorithmSuite.equals(AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF)
+                    && getObjectResponse.contentLength() != null;
+            if (streamsIntoStagedOutput) {
+                // GCM into a staged output is decrypted with CTR as it arrives, and the tag is checked
+                // before the stream completes, so the object is never held in memory
+                wrappedAsyncResponseTransformer.onStream(new StagedCipherPublisher(ciphertextPublisher,
+                        getObjectResponse.contentLength(), materials, iv));
+            } else if (algorithmSuite.equals(AlgorithmSuite.ALG_AES_256_CBC_IV16_NO_KDF)
                     || algorithmSuite.equals(AlgorithmSuite.ALG_AES_256_CTR_IV16_TAG16_NO_KDF)
-                    || _enableDelayedAuthentication) {
-                // CBC and GCM with delayed auth enabled use a standard publisher
+                    || _enableDelayedAuthentication || wrappedTransformerIsStaged) {
+                // CBC, and GCM with delayed auth enabled, use a standard publisher
                 CipherPublisher plaintextPublisher = new CipherPublisher(ciphertextPublisher,
-                        getObjectResponse.contentLength(), desiredRange, contentMetadata.contentRange(), algorithmSuite.cipherTagLengthBits(), materials, iv);
+                        getObjectResponse.contentLength(), desiredRange, contentMetadata.contentRange(), algorithmSuite.cipherTagLengthBits(), materials, iv,
+                        _cipherChunkSize);
                 wrappedAsyncResponseTransformer.onStream(plaintextPublisher);
             } else {
-                // Use buffered publisher for GCM when delayed auth is not enabled
-                BufferedCipherPublisher plaintextPublisher = new BufferedCipherPublisher(ciphertextPublisher,
-                        getObjectResponse.contentLength(), materials, iv, _bufferSize);
-                wrappedAsyncResponseTransformer.onStream(plaintextPublisher);
+                final Long contentLength = getObjectResponse.contentLength();
+                final SdkPublisher<ByteBuffer> plaintextPublisher;
+                if (_enableBufferSpillToDisk && contentLength != null && contentLength > _bufferSize) {
+                    // Objects larger than the buffer are authenticated before release, spilling plaintext to disk
+                    plaintextPublisher = new SpillingCipherPublisher(ciphertextPublisher,
+                            contentLength, materials, iv, _bufferSize, _bufferSpillDirectory);
+                } else {
+                    // Use buffered publisher for GCM when delayed auth is not enabled
+                    final ForkJoinPool parallelPool = _enableParallelDecryption && contentLength != null
+                            && contentLength >= _parallelDecryptionThreshold ? ForkJoinPool.commonPool() : null;
+                    plaintextPublisher = new BufferedCipherPublisher(ciphertextPublisher,
+                            contentLength, materials, iv, _bufferSize, _enableOffHeapBuffering, parallelPool);
+                }
+                if (_bufferMemoryBudget == null) {
+                    wrappedAsyncResponseTransformer.onStream(plaintextPublisher);
+                } else {
+                    onStreamWithinBudget(ciphertextPublisher, plaintextPublisher, contentLength);
+                }
             }
         }
+
+        /**
+         * Reserves the bytes this object may buffer before handing the plaintext stream on.
+         * Nothing is read from the ciphertext stream until the reservation is granted.
+         */
+        private void onStreamWithinBudget(SdkPublisher<ByteBuffer> ciphertextPublisher,
+                                          SdkPublisher<ByteBuffer> plaintextPublisher, Long contentLength) {
+            // At most bufferSize bytes are ever held, whether or not the rest spills to disk
+            final long reservedBytes = contentLength == null ? _bufferSize : Math.min(contentLength, _bufferSize);
+            _bufferMemoryBudget.reserve(reservedBytes).whenComplete((ignored, error) -> {
+                if (error != null) {
+                    // Cancel the ciphertext stream so the connection is released
+                    ciphertextPublisher.subscribe(new CancellingSubscriber());
+                    wrappedAsyncResponseTransformer.exceptionOccurred(error);
+                    return;
+                }
+                final BufferReservationPublisher reservation =
+                        new BufferReservationPublisher(plaintextPublisher, _bufferMemoryBudget, reservedBytes);
+                this.reservation = reservation;
+                if (failed) {
+                    // The response failed while waiting for the reservation
+                    reservation.release();
+                    ciphertextPublisher.subscribe(new CancellingSubscriber());
+                    return;
+                }
+                try {
+                    wrappedAsyncResponseTransformer.onStream(reservation);
+                } catch (RuntimeException exception) {
+                    reservation.release();
+                    wrappedAsyncResponseTransformer.exceptionOccurred(exception);
+                }
+            });
+        }
     }
 
     public static class Builder {
+        private S3Client _s3Client;
         private S3AsyncClient _s3AsyncClient;
         private CryptographicMaterialsManager _cryptoMaterialsManager;
         private boolean _enableLegacyUnauthenticatedModes;
         private boolean _enableDelayedAuthentication;
         private long _bufferSize;
         private InstructionFileConfig _instructionFileConfig;
+        private boolean _enableBufferSpillToDisk;
+        private Path _bufferSpillDirectory;
+        private BufferMemoryBudget _bufferMemoryBudget;
+        private boolean _enableOffHeapBuffering;
+        private int _cipherChunkSize = CoalescingSubscriber.DEFAULT_TARGET_SIZE;
+        private boolean _enableParallelDecryption;
+        private long _parallelDecryptionThreshold;
+        private boolean _enableParallelDownload;
+        private long _parallelDownloadPartSize;
+        private int _parallelDownloadConcurrency;
 
         private Builder() {
         }
 
+        /**
+         * Note that this does NOT create a defensive clone of S3Client. Any modifications made to the wrapped
+         * S3Client will be reflected in this Builder.
+         */
+        @SuppressFBWarnings(value = "EI_EXPOSE_REP2", justification = "Pass mutability into wrapping client")
+        public Builder s3Client(S3Client s3Client) {
+            this._s3Client = s3Client;
+            return this;
+        }
+
         /**
          * Note that this does NOT create a defensive clone of S3Client. Any modifications made to the wrapped
          * S3Client will be reflected in this Builder.
@@ -205,6 +789,56 @@ public class GetEncryptedObjectPipeline {
             return this;
         }
 
+        public Builder enableBufferSpillToDisk(boolean enableBufferSpillToDisk) {
+            this._enableBufferSpillToDisk = enableBufferSpillToDisk;
+            return this;
+        }
+
+        public Builder bufferSpillDirectory(Path bufferSpillDirectory) {
+            this._bufferSpillDirectory = bufferSpillDirectory;
+            return this;
+        }
+
+        public Builder bufferMemoryBudget(BufferMemoryBudget bufferMemoryBudget) {
+            this._bufferMemoryBudget = bufferMemoryBudget;
+            return this;
+        }
+
+        public Builder enableOffHeapBuffering(boolean enableOffHeapBuffering) {
+            this._enableOffHeapBuffering = enableOffHeapBuffering;
+            return this;
+        }
+
+        public Builder cipherChunkSize(int cipherChunkSize) {
+            this._cipherChunkSize = cipherChunkSize;
+            return this;
+        }
+
+        public Builder enableParallelDecryption(boolean enableParallelDecryption) {
+            this._enableParallelDecryption = enableParallelDecryption;
+            return this;
+        }
+
+        public Builder parallelDecryptionThreshold(long parallelDecryptionThreshold) {
+            this._parallelDecryptionThreshold = parallelDecryptionThreshold;
+            return this;
+        }
+
+        public Builder enableParallelDownload(boolean enableParallelDownload) {
+            this._enableParallelDownload = enableParallelDownload;
+            return this;
+        }
+
+        public Builder parallelDownloadPartSize(long parallelDownloadPartSize) {
+            this._parallelDownloadPartSize = parallelDownloadPartSize;
+            return this;
+        }
+
+        public Builder parallelDownloadConcurrency(int parallelDownloadConcurrency) {
+            this._parallelDownloadConcurrency = parallelDownloadConcurrency;
+            return this;
+        }
+
         public GetEncryptedObjectPipeline build() {
             return new GetEncryptedObjectPipeline(this);
         }
@@ -0,0 +1,112 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Computes the GHASH of a stream of bytes under a given hash key H (NIST SP 800-38D,
+ * Algorithm 2), without a lengths block. The last block is padded with zeros.
+ * <p>
+ * Each multiplication by H uses a table of the multiples of H by every 4-bit value,
+ * so a block costs 32 table lookups rather than the 128 steps of
+ * {@link GcmUtils#multiply}.
+ */
+final class Ghash {
+    // The reduction of the 4 bits shifted out of the low end, for each value of those bits
+    private static final long[] LAST4 = {
+            0x0000L, 0x1c20L, 0x3840L, 0x2460L, 0x7080L, 0x6ca0L, 0x48c0L, 0x54e0L,
+            0xe100L, 0xfd20L, 0xd940L, 0xc560L, 0x9180L, 0x8da0L, 0xa9c0L, 0xb5e0L
+    };
+
+    private final long[] _tableHigh = new long[16];
+    private final long[] _tableLow = new long[16];
+    private final byte[] _partial = new byte[GcmUtils.BLOCK_SIZE];
+    private int _partialLength = 0;
+    private long _high = 0;
+    private long _low = 0;
+
+    /**
+     * @param hashKey the hash key H, the encryption of the all-zero block under the data key
+     */
+    Ghash(final long[] hashKey) {
+        long high = hashKey[0];
+        long low = hashKey[1];
+        _tableHigh[8] = high;
+        _tableLow[8] = low;
+        // The 4-bit values are in GCM's reflected bit order, so 8 is H and 4, 2 and 1 are H * x, x^2 and x^3
+        for (int i = 4; i > 0; i >>= 1) {
+            final long reduction = (low & 1) != 0 ? 0xE100000000000000L : 0;
+            low = (high << 63) | (low >>> 1);
+            high = (high >>> 1) ^ reduction;
+            _tableHigh[i] = high;
+            _tableLow[i] = low;
+        }
+        for (int i = 2; i <= 8; i *= 2) {
+            for (int j = 1; j < i; j++) {
+                _tableHigh[i + j] = _tableHigh[i] ^ _tableHigh[j];
+                _tableLow[i + j] = _tableLow[i] ^ _tableLow[j];
+            }
+        }
+    }
+
+    /**
+     * Hashes the remaining bytes of {@code input}, advancing it.
+     */
+    void update(final ByteBuffer input) {
+        if (_partialLength > 0) {
+            final int length = Math.min(input.remaining(), _partial.length - _partialLength);
+            input.get(_partial, _partialLength, length);
+            _partialLength += length;
+            if (_partialLength < _partial.length) {
+                return;
+            }
+            hashBlock(ByteBuffer.wrap(_partial).getLong(0), ByteBuffer.wrap(_partial).getLong(8));
+            _partialLength = 0;
+        }
+        while (input.remaining() >= GcmUtils.BLOCK_SIZE) {
+            hashBlock(input.getLong(), input.getLong());
+        }
+        final int rest = input.remaining();
+        input.get(_partial, 0, rest);
+        _partialLength = rest;
+    }
+
+    /**
+     * @return the GHASH of every byte hashed, with the last block padded with zeros
+     */
+    long[] finish() {
+        if (_partialLength > 0) {
+            for (int i = _partialLength; i < _partial.length; i++) {
+                _partial[i] = 0;
+            }
+            hashBlock(ByteBuffer.wrap(_partial).getLong(0), ByteBuffer.wrap(_partial).getLong(8));
+            _partialLength = 0;
+        }
+        return new long[]{_high, _low};
+    }
+
+    /**
+     * Sets the state to (state ^ block) * H, taking the product one 4-bit value at a time
+     * from the last to the first.
+     */
+    private void hashBlock(final long blockHigh, final long blockLow) {
+        final long xHigh = _high ^ blockHigh;
+        final long xLow = _low ^ blockLow;
+        long zHigh = 0;
+        long zLow = 0;
+        for (int i = 31; i >= 0; i--) {
+            final long half = i < 16 ? xHigh : xLow;
+            final int nibble = (int) (half >>> (60 - 4 * (i & 15))) & 0xF;
+            if (i != 31) {
+                final int remainder = (int) (zLow & 0xF);
+                zLow = (zHigh << 60) | (zLow >>> 4);
+                zHigh = (zHigh >>> 4) ^ (LAST4[remainder] << 48);
+            }
+            zHigh ^= _tableHigh[nibble];
+            zLow ^= _tableLow[nibble];
+        }
+        _high = zHigh;
+        _low = zLow;
+    }
+}
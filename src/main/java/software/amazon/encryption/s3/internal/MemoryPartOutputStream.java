@@ -0,0 +1,209 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Stages the encrypted parts of a multipart putObject in memory rather than in temporary
+ * files, so parts are uploaded straight from memory and nothing touches the disk. Each part
+ * is written into a buffer from a {@link PartBufferPool}, which is given back once the part
+ * has been uploaded. When every buffer of the pool is in use, writing blocks until a part
+ * has been uploaded, which bounds the memory an upload uses.
+ * <p>
+ * Used through
+ * {@link software.amazon.encryption.s3.materials.MultipartConfiguration.Builder#partBufferPool(PartBufferPool)}.
+ * The disk limit does not apply; the pool's size bounds memory instead.
+ */
+public class MemoryPartOutputStream extends PartOutputStream {
+    private final PartBufferPool pool;
+    /**
+     * Buffers handed to the observer whose part has not been uploaded yet.
+     */
+    private final Set<ByteBuffer> inFlight = Collections.synchronizedSet(
+            Collections.newSetFromMap(new IdentityHashMap<>()));
+    private UploadObjectObserver observer;
+    private int partSize = DEFAULT_PART_SIZE;
+    private int partsCreated;
+    private long totalBytesWritten;
+    private ByteBuffer current;
+    private boolean closed;
+
+    /**
+     * Construct an instance staging parts in the given pool. The
+     * {@link #init(UploadObjectObserver, long, long)} must be called before
+     * this stream is considered fully initialized.
+     */
+    public MemoryPartOutputStream(PartBufferPool pool) {
+        if (pool == null) {
+            throw new IllegalArgumentException("Please specify a part buffer pool");
+        }
+        this.pool = pool;
+    }
+
+    /**
+     * Used to initialize this stream. This method is an SPI (service provider
+     * interface) that is called from <code>S3EncryptionClient</code>.
+     *
+     * @param observer  the upload object observer
+     * @param partSize  part size for multipart upload
+     * @param diskLimit ignored, as nothing is written to disk
+     * @return this object
+     */
+    @Override
+    public MemoryPartOutputStream init(UploadObjectObserver observer,
+                                       long partSize, long diskLimit) {
+        if (observer == null) {
+            throw new IllegalArgumentException("Observer must be specified");
+        }
+        // A part must fit in one buffer
+        if (partSize > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Part size is too large to stage in memory: partSize=" + partSize);
+        }
+        this.observer = observer;
+        this.partSize = (int) partSize;
+        return this;
+    }
+
+    /**
+     * This method would block as necessary if every buffer of the pool is in use.
+     */
+    @Override
+    public void write(int b) throws IOException {
+        buffer().put((byte) b);
+        totalBytesWritten++;
+    }
+
+    /**
+     * This method would block as necessary if every buffer of the pool is in use.
+     */
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    /**
+     * This method would block as necessary if every buffer of the pool is in use.
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            final ByteBuffer buffer = buffer();
+            final int length = Math.min(len, buffer.remaining());
+            buffer.put(b, off, length);
+            off += length;
+            len -= length;
+            totalBytesWritten += length;
+        }
+    }
+
+    /**
+     * Returns the buffer to be written to, handing the current part on to the
+     * observer once it is full, and blocking as necessary if every buffer of the
+     * pool is in use.
+     */
+    private ByteBuffer buffer() throws IOException {
+        if (closed) {
+            throw new IOException("Output stream is already closed");
+        }
+        if (current == null || !current.hasRemaining()) {
+            if (current != null) {
+                // notify about the new part ready for processing
+                createPart(false);
+            }
+            partsCreated++;
+            current = pool.acquire(partSize);
+        }
+        return current;
+    }
+
+    private void createPart(boolean isLastPart) {
+        final ByteBuffer part = current;
+        current = null;
+        ((Buffer) part).flip();
+        inFlight.add(part);
+        observer.onPartCreate(new PartCreationEvent(part, partsCreated, isLastPart, event -> {
+            // Only give the buffer back once, should cleanup have already discarded it
+            if (inFlight.remove(part)) {
+                pool.release(part);
+            }
+        }));
+    }
+
+    @Override
+    public void flush() {
+        // Nothing is written out until a part is complete
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (current != null) {
+            if (current.position() == 0) {
+                pool.release(current);
+                current = null;
+            } else {
+                // notify about the new part ready for processing
+                createPart(true);
+            }
+        }
+    }
+
+    /**
+     * Gives back the buffers of any parts which were not uploaded, e.g. because the upload
+     * was aborted. Those buffers are not reused, as a cancelled upload may still read them.
+     */
+    @Override
+    public void cleanup() {
+        if (current != null) {
+            pool.release(current);
+            current = null;
+        }
+        synchronized (inFlight) {
+            for (ByteBuffer part : inFlight) {
+                pool.discard(part);
+            }
+            inFlight.clear();
+        }
+    }
+
+    /**
+     * @return the number of parts staged so far
+     */
+    @Override
+    public int getNumFilesWritten() {
+        return partsCreated;
+    }
+
+    @Override
+    public long getPartSize() {
+        return partSize;
+    }
+
+    @Override
+    public long getTotalBytesWritten() {
+        return totalBytesWritten;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public long getDiskLimit() {
+        return 0;
+    }
+
+    public PartBufferPool getPool() {
+        return pool;
+    }
+}
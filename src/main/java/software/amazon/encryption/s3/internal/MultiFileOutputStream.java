@@ -10,12 +10,10 @@ import software.amazon.encryption.s3.S3EncryptionClientException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.UUID;
 import java.util.concurrent.Semaphore;
 
-public class MultiFileOutputStream extends OutputStream implements OnFileDelete {
-    static final int DEFAULT_PART_SIZE = 5 << 20; // 5MB
+public class MultiFileOutputStream extends PartOutputStream implements OnFileDelete {
     private final File root;
     private final String namePrefix;
     private int filesCreated;
@@ -83,6 +81,7 @@ public class MultiFileOutputStream extends OutputStream implements OnFileDelete
      * @param diskLimit the maximum disk space to be used for this multipart upload
      * @return this object
      */
+    @Override
     public MultiFileOutputStream init(UploadObjectObserver observer,
                                       long partSize, long diskLimit) {
         if (observer == null) {
@@ -218,6 +217,7 @@ public class MultiFileOutputStream extends OutputStream implements OnFileDelete
         }
     }
 
+    @Override
     public void cleanup() {
         for (int i = 0; i < getNumFilesWritten(); i++) {
             File f = getFile(i);
@@ -234,6 +234,7 @@ public class MultiFileOutputStream extends OutputStream implements OnFileDelete
      * @return the number of files written with the specified prefix with the
      * part number as the file extension.
      */
+    @Override
     public int getNumFilesWritten() {
         return filesCreated;
     }
@@ -242,6 +243,7 @@ public class MultiFileOutputStream extends OutputStream implements OnFileDelete
         return new File(root, namePrefix + "." + partNumber);
     }
 
+    @Override
     public long getPartSize() {
         return partSize;
     }
@@ -254,14 +256,17 @@ public class MultiFileOutputStream extends OutputStream implements OnFileDelete
         return namePrefix;
     }
 
+    @Override
     public long getTotalBytesWritten() {
         return totalBytesWritten;
     }
 
+    @Override
     public boolean isClosed() {
         return closed;
     }
 
+    @Override
     public long getDiskLimit() {
         return diskLimit;
     }
@@ -0,0 +1,248 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import software.amazon.awssdk.core.SdkField;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.encryption.s3.S3EncryptionClient;
+import software.amazon.encryption.s3.S3EncryptionClientException;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * What is needed to resume an encrypted multipart putObject after the process which started
+ * it has gone: the upload, a digest of the request which created it, the object's encryption
+ * metadata (which holds the wrapped data key and the IV), and for each part which was uploaded,
+ * where it lies in the object, the part's GHASH contribution to the object's tag and the digest
+ * of its plaintext.
+ * <p>
+ * The GHASH contributions and plaintext digests are sealed under the data key, so a checkpoint
+ * reveals no more than the object's metadata does. See {@link MultipartCheckpointStore}.
+ */
+public class MultipartCheckpoint {
+    private final String _bucket;
+    private final String _key;
+    private final String _uploadId;
+    private final long _partSize;
+    private final long _contentLength;
+    private final String _requestDigest;
+    private final Map<String, String> _encryptionMetadata;
+    private final TreeMap<Integer, Part> _parts = new TreeMap<>();
+
+    private MultipartCheckpoint(Builder builder) {
+        _bucket = builder._bucket;
+        _key = builder._key;
+        _uploadId = builder._uploadId;
+        _partSize = builder._partSize;
+        _contentLength = builder._contentLength;
+        _requestDigest = builder._requestDigest;
+        _encryptionMetadata = Collections.unmodifiableMap(new HashMap<>(builder._encryptionMetadata));
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public String bucket() {
+        return _bucket;
+    }
+
+    public String key() {
+        return _key;
+    }
+
+    public String uploadId() {
+        return _uploadId;
+    }
+
+    public long partSize() {
+        return _partSize;
+    }
+
+    public long contentLength() {
+        return _contentLength;
+    }
+
+    /**
+     * @return the digest of the request which created the upload, see {@link #requestDigest(CreateMultipartUploadRequest)}
+     */
+    public String requestDigest() {
+        return _requestDigest;
+    }
+
+    /**
+     * @return whether the upload was created by the same request, so that the object it makes
+     *         has the metadata and settings the given request asks for
+     */
+    public boolean isFor(CreateMultipartUploadRequest request) {
+        return requestDigest(request).equals(_requestDigest);
+    }
+
+    /**
+     * Digests what a request sets on the object it creates: its metadata, headers and settings,
+     * and the encryption context it is encrypted with. An SSE-C key is only included by its MD5,
+     * which the request also holds.
+     */
+    public static String requestDigest(CreateMultipartUploadRequest request) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException exception) {
+            throw new S3EncryptionClientException("Unable to digest the multipart upload request", exception);
+        }
+        final StringBuilder fields = new StringBuilder();
+        for (SdkField<?> field : request.sdkFields()) {
+            if ("SSECustomerKey".equals(field.memberName())) {
+                continue;
+            }
+            fields.append(field.memberName()).append('=').append(canonical(field.getValueOrDefault(request))).append('\n');
+        }
+        final Map<String, String> encryptionContext = request.overrideConfiguration()
+                .flatMap(configuration -> configuration.executionAttributes()
+                        .getOptionalAttribute(S3EncryptionClient.ENCRYPTION_CONTEXT))
+                .orElse(null);
+        fields.append("EncryptionContext=").append(canonical(encryptionContext));
+        return Base64.getEncoder().encodeToString(digest.digest(fields.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Maps, such as the metadata, in key order, so the same entries always digest the same.
+     */
+    private static String canonical(final Object value) {
+        return value instanceof Map ? new TreeMap<>((Map<?, ?>) value).toString() : String.valueOf(value);
+    }
+
+    /**
+     * @return the object metadata which describes how it is encrypted
+     */
+    public Map<String, String> encryptionMetadata() {
+        return _encryptionMetadata;
+    }
+
+    /**
+     * @return the parts recorded as uploaded, in part number order
+     */
+    public synchronized List<Part> parts() {
+        return new ArrayList<>(_parts.values());
+    }
+
+    synchronized void addPart(final Part part) {
+        _parts.put(part.partNumber(), part);
+    }
+
+    /**
+     * Forgets every part from the given part number on, e.g. those S3 does not have.
+     */
+    synchronized void retainPartsBefore(final int partNumber) {
+        _parts.tailMap(partNumber, true).clear();
+    }
+
+    /**
+     * A part which was uploaded.
+     */
+    public static final class Part {
+        private final int _partNumber;
+        private final String _eTag;
+        private final long _offset;
+        private final long _length;
+        private final byte[] _sealedState;
+
+        Part(final int partNumber, final String eTag, final long offset, final long length, final byte[] sealedState) {
+            _partNumber = partNumber;
+            _eTag = eTag;
+            _offset = offset;
+            _length = length;
+            _sealedState = sealedState.clone();
+        }
+
+        public int partNumber() {
+            return _partNumber;
+        }
+
+        public String eTag() {
+            return _eTag;
+        }
+
+        /**
+         * @return where the part starts in the plaintext, which fixes its first counter block
+         */
+        public long offset() {
+            return _offset;
+        }
+
+        public long length() {
+            return _length;
+        }
+
+        /**
+         * @return the part's GHASH contribution, sealed under the data key
+         */
+        byte[] sealedState() {
+            return _sealedState.clone();
+        }
+    }
+
+    public static class Builder {
+        private String _bucket;
+        private String _key;
+        private String _uploadId;
+        private long _partSize;
+        private long _contentLength = -1;
+        private String _requestDigest;
+        private Map<String, String> _encryptionMetadata = Collections.emptyMap();
+
+        private Builder() {
+        }
+
+        public Builder bucket(String bucket) {
+            _bucket = bucket;
+            return this;
+        }
+
+        public Builder key(String key) {
+            _key = key;
+            return this;
+        }
+
+        public Builder uploadId(String uploadId) {
+            _uploadId = uploadId;
+            return this;
+        }
+
+        public Builder partSize(long partSize) {
+            _partSize = partSize;
+            return this;
+        }
+
+        public Builder contentLength(long contentLength) {
+            _contentLength = contentLength;
+            return this;
+        }
+
+        public Builder requestDigest(String requestDigest) {
+            _requestDigest = requestDigest;
+            return this;
+        }
+
+        public Builder encryptionMetadata(Map<String, String> encryptionMetadata) {
+            _encryptionMetadata = encryptionMetadata;
+            return this;
+        }
+
+        public MultipartCheckpoint build() {
+            if (_bucket == null || _key == null || _uploadId == null || _requestDigest == null) {
+                throw new IllegalArgumentException("A checkpoint needs a bucket, key, upload ID and request digest");
+            }
+            return new MultipartCheckpoint(this);
+        }
+    }
+}
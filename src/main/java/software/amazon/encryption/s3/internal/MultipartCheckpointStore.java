@@ -0,0 +1,253 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.apache.commons.logging.LogFactory;
+import software.amazon.encryption.s3.S3EncryptionClientException;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Keeps a {@link MultipartCheckpoint} for each encrypted multipart putObject in progress, in a
+ * local directory, so that an upload interrupted by the process going away can be resumed by
+ * the next putObject of the same bucket and key.
+ * <p>
+ * Each checkpoint is a file which is written once when the upload is created, and to which a
+ * line is appended as each part is uploaded, so recording a part costs the same however many
+ * parts came before it. A line left half-written by a crash is ignored, and its part uploaded
+ * again. Checkpoint files are only readable by their owner, where the file system allows.
+ */
+public class MultipartCheckpointStore {
+    private static final String SUFFIX = ".checkpoint";
+    private static final String METADATA_PREFIX = "metadata.";
+    private static final String PART_PREFIX = "part.";
+    private static final Base64.Encoder ENCODER = Base64.getEncoder();
+    private static final Base64.Decoder DECODER = Base64.getDecoder();
+
+    private final Path _directory;
+
+    private MultipartCheckpointStore(Builder builder) {
+        _directory = builder._directory;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public Path directory() {
+        return _directory;
+    }
+
+    /**
+     * @return the checkpoint of the upload in progress to the given bucket and key, or null if there is none
+     * @throws S3EncryptionClientException if the checkpoint cannot be read
+     */
+    public synchronized MultipartCheckpoint load(final String bucket, final String key) {
+        final Path file = file(bucket, key);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        final String[] lines;
+        try {
+            // Decoded leniently, as the last line may stop part way through a character
+            lines = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).split("\r?\n|\r");
+        } catch (IOException exception) {
+            throw new S3EncryptionClientException("Unable to read the multipart upload checkpoint " + file, exception);
+        }
+        // Each line is loaded on its own, so that a line left half-written by a crash
+        // can't keep the rest of the checkpoint from being read
+        final Properties properties = new Properties();
+        for (int i = 0; i < lines.length; i++) {
+            try {
+                properties.load(new StringReader(lines[i]));
+            } catch (IOException | IllegalArgumentException exception) {
+                if (i < lines.length - 1) {
+                    throw new S3EncryptionClientException("Unable to read the multipart upload checkpoint " + file,
+                            exception);
+                }
+                // Only the last line can have been cut short by a crash, as lines are only appended
+                LogFactory.getLog(getClass()).debug("Ignoring the unreadable last line of the checkpoint " + file,
+                        exception);
+            }
+        }
+        final Map<String, String> metadata = new HashMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(METADATA_PREFIX)) {
+                metadata.put(name.substring(METADATA_PREFIX.length()), properties.getProperty(name));
+            }
+        }
+        final MultipartCheckpoint checkpoint;
+        try {
+            checkpoint = MultipartCheckpoint.builder()
+                    .bucket(properties.getProperty("bucket"))
+                    .key(properties.getProperty("key"))
+                    .uploadId(properties.getProperty("uploadId"))
+                    .partSize(Long.parseLong(properties.getProperty("partSize")))
+                    .contentLength(Long.parseLong(properties.getProperty("contentLength")))
+                    .requestDigest(properties.getProperty("requestDigest"))
+                    .encryptionMetadata(metadata)
+                    .build();
+        } catch (IllegalArgumentException | NullPointerException exception) {
+            throw new S3EncryptionClientException("The multipart upload checkpoint " + file + " is incomplete", exception);
+        }
+        if (!bucket.equals(checkpoint.bucket()) || !key.equals(checkpoint.key())) {
+            throw new S3EncryptionClientException("The multipart upload checkpoint " + file + " is for another object");
+        }
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(PART_PREFIX)) {
+                final MultipartCheckpoint.Part part = parsePart(name, properties.getProperty(name));
+                if (part != null) {
+                    checkpoint.addPart(part);
+                }
+            }
+        }
+        return checkpoint;
+    }
+
+    private static MultipartCheckpoint.Part parsePart(final String name, final String value) {
+        // offset,length,state,eTag; the ETag goes last as it may hold anything
+        final String[] fields = value.split(",", 4);
+        try {
+            if (fields.length != 4) {
+                throw new IllegalArgumentException("missing fields");
+            }
+            return new MultipartCheckpoint.Part(Integer.parseInt(name.substring(PART_PREFIX.length())), fields[3],
+                    Long.parseLong(fields[0]), Long.parseLong(fields[1]), DECODER.decode(fields[2]));
+        } catch (IllegalArgumentException exception) {
+            // e.g. the line was being appended when the process went away; the part is uploaded again
+            LogFactory.getLog(MultipartCheckpointStore.class).debug("Ignoring unreadable checkpoint of " + name, exception);
+            return null;
+        }
+    }
+
+    /**
+     * Writes a new checkpoint, replacing any other for the same bucket and key.
+     */
+    public synchronized void create(final MultipartCheckpoint checkpoint) {
+        final Properties properties = new Properties();
+        properties.setProperty("bucket", checkpoint.bucket());
+        properties.setProperty("key", checkpoint.key());
+        properties.setProperty("uploadId", checkpoint.uploadId());
+        properties.setProperty("partSize", Long.toString(checkpoint.partSize()));
+        properties.setProperty("contentLength", Long.toString(checkpoint.contentLength()));
+        properties.setProperty("requestDigest", checkpoint.requestDigest());
+        checkpoint.encryptionMetadata().forEach((name, value) -> properties.setProperty(METADATA_PREFIX + name, value));
+        for (MultipartCheckpoint.Part part : checkpoint.parts()) {
+            properties.setProperty(PART_PREFIX + part.partNumber(), format(part));
+        }
+        final Path file = file(checkpoint.bucket(), checkpoint.key());
+        Path temp = null;
+        try {
+            // Temp files are only readable by their owner on POSIX file systems
+            temp = Files.createTempFile(_directory, file.getFileName().toString(), ".tmp");
+            Files.write(temp, toBytes(properties), StandardOpenOption.TRUNCATE_EXISTING);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException exception) {
+            deleteQuietly(temp);
+            throw new S3EncryptionClientException("Unable to write the multipart upload checkpoint " + file, exception);
+        }
+    }
+
+    /**
+     * Records that a part of the checkpoint's upload has been uploaded.
+     */
+    public synchronized void recordPart(final MultipartCheckpoint checkpoint, final MultipartCheckpoint.Part part) {
+        checkpoint.addPart(part);
+        final Properties properties = new Properties();
+        properties.setProperty(PART_PREFIX + part.partNumber(), format(part));
+        final Path file = file(checkpoint.bucket(), checkpoint.key());
+        try {
+            Files.write(file, toBytes(properties), StandardOpenOption.APPEND);
+        } catch (IOException exception) {
+            throw new S3EncryptionClientException("Unable to write the multipart upload checkpoint " + file, exception);
+        }
+    }
+
+    /**
+     * Removes the checkpoint of the given bucket and key, if any, e.g. once the upload is complete.
+     */
+    public synchronized void delete(final String bucket, final String key) {
+        try {
+            Files.deleteIfExists(file(bucket, key));
+        } catch (IOException exception) {
+            LogFactory.getLog(getClass()).debug("Ignoring failure to delete checkpoint of " + bucket + "/" + key,
+                    exception);
+        }
+    }
+
+    private static String format(final MultipartCheckpoint.Part part) {
+        return part.offset() + "," + part.length() + "," + ENCODER.encodeToString(part.sealedState()) + "," + part.eTag();
+    }
+
+    private static byte[] toBytes(final Properties properties) throws IOException {
+        final StringWriter writer = new StringWriter();
+        properties.store(writer, null);
+        return writer.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The file of a bucket and key, named by their hash, as keys may hold any character.
+     */
+    private Path file(final String bucket, final String key) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(bucket.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '/');
+            final StringBuilder name = new StringBuilder();
+            for (byte b : digest.digest(key.getBytes(StandardCharsets.UTF_8))) {
+                name.append(String.format("%02x", b));
+            }
+            return _directory.resolve(name.append(SUFFIX).toString());
+        } catch (NoSuchAlgorithmException exception) {
+            throw new S3EncryptionClientException("Unable to name the multipart upload checkpoint", exception);
+        }
+    }
+
+    private static void deleteQuietly(final Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ignored) {
+            // Left for the caller to clean up
+        }
+    }
+
+    public static class Builder {
+        private Path _directory;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the directory to keep checkpoints in. Required; it should be on a local disk
+         * which outlives the process, and not shared with other hosts.
+         */
+        public Builder directory(Path directory) {
+            _directory = directory;
+            return this;
+        }
+
+        public MultipartCheckpointStore build() {
+            if (_directory == null || !Files.isDirectory(_directory) || !Files.isWritable(_directory)) {
+                throw new S3EncryptionClientException("A multipart checkpoint store needs a writable directory: "
+                        + _directory);
+            }
+            return new MultipartCheckpointStore(this);
+        }
+    }
+}
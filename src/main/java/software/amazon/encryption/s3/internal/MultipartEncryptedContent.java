@@ -3,6 +3,7 @@
 package software.amazon.encryption.s3.internal;
 
 import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.sync.RequestBody;
 
 import javax.crypto.Cipher;
 
@@ -10,7 +11,7 @@ public class MultipartEncryptedContent extends EncryptedContent {
     private final Cipher _cipher;
 
     public MultipartEncryptedContent(byte[] iv, Cipher cipher, long ciphertextLength) {
-        super(iv, null, ciphertextLength);
+        super(iv, (AsyncRequestBody) null, ciphertextLength);
         _cipher = cipher;
         _iv = iv;
     }
@@ -25,6 +26,16 @@ public class MultipartEncryptedContent extends EncryptedContent {
         throw new UnsupportedOperationException("MultipartEncryptedContent does not support async ciphertext!");
     }
 
+    /**
+     * MultipartEncryptedContent cannot store a ciphertext RequestBody
+     * as it one is generated for each part using the cipher in this class.
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public RequestBody getCiphertext() {
+        throw new UnsupportedOperationException("MultipartEncryptedContent does not support ciphertext!");
+    }
+
     /**
      * @return the cipher used for the duration of the multipart upload
      */
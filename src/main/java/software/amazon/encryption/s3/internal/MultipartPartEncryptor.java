@@ -0,0 +1,256 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import software.amazon.encryption.s3.S3EncryptionClientException;
+import software.amazon.encryption.s3.S3EncryptionClientSecurityException;
+
+import javax.crypto.Cipher;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Encrypts one part of an encrypted multipart upload.
+ * <p>
+ * A part uploaded in order carries on with the object's own cipher, which only the last part
+ * finishes. Any other part is encrypted independently: its cipher is an AES-GCM cipher which
+ * starts at the part's counter block in the object, so its ciphertext is exactly the
+ * ciphertext of that range of the object. Its tag is not sent; instead the GHASH of the part's
+ * ciphertext is recovered from it and recorded with the {@link MultipartUploadMaterials}. The
+ * last part combines the GHASHes of all parts into the tag of the whole object, and sends that
+ * after its ciphertext.
+ * <p>
+ * A retried part is encrypted with the same keystream as before, so it must be the same
+ * plaintext. The plaintext of every attempt is digested in windows as it is taken in, and a
+ * retry holds back each window of what earlier attempts encrypted until its digest matches.
+ * A retry whose plaintext differs fails before any ciphertext of the differing window is released.
+ */
+public class MultipartPartEncryptor {
+    static final int MIN_WINDOW_SIZE = 1024 * 1024;
+    // Bounds the digests kept for each part, at the cost of holding back larger windows on a retry
+    private static final int MAX_WINDOWS = 64;
+
+    /**
+     * The plaintext some attempt at a part has taken in, as the digests of consecutive windows
+     * of it. The last window may be partial.
+     */
+    static final class EncryptedPlaintext {
+        private final int _windowSize;
+        private final List<byte[]> _windowDigests;
+        private final long _length;
+
+        private EncryptedPlaintext(final int windowSize, final List<byte[]> windowDigests, final long length) {
+            _windowSize = windowSize;
+            _windowDigests = Collections.unmodifiableList(windowDigests);
+            _length = length;
+        }
+
+        long length() {
+            return _length;
+        }
+    }
+
+    private final MultipartUploadMaterials _materials;
+    private final int _partNumber;
+    private final long _offset;
+    private final long _length;
+    private final boolean _isLastPart;
+    private final Cipher _cipher;
+    private final boolean _sharesCipher;
+    private final int _tagLength;
+    // What earlier attempts at the part encrypted, or null if this is the first
+    private final EncryptedPlaintext _previous;
+    private final int _windowSize;
+    private final MessageDigest _windowDigest;
+    private final List<byte[]> _windowDigests = new ArrayList<>();
+    // How much plaintext this attempt has taken in, and how much of it is held back to be checked
+    private long _taken;
+    private byte[] _held = new byte[0];
+    private int _heldLength;
+
+    MultipartPartEncryptor(final MultipartUploadMaterials materials, final int partNumber, final long offset,
+                           final long length, final boolean isLastPart, final Cipher cipher,
+                           final boolean sharesCipher) {
+        this(materials, partNumber, offset, length, isLastPart, cipher, sharesCipher, null);
+    }
+
+    MultipartPartEncryptor(final MultipartUploadMaterials materials, final int partNumber, final long offset,
+                           final long length, final boolean isLastPart, final Cipher cipher,
+                           final boolean sharesCipher, final EncryptedPlaintext previous) {
+        _materials = materials;
+        _partNumber = partNumber;
+        _offset = offset;
+        _length = length;
+        _isLastPart = isLastPart;
+        _cipher = cipher;
+        _sharesCipher = sharesCipher;
+        _tagLength = materials.algorithmSuite().cipherTagLengthBytes();
+        _previous = previous;
+        _windowSize = previous != null ? previous._windowSize
+                : (int) Math.max(MIN_WINDOW_SIZE, (length + MAX_WINDOWS - 1) / MAX_WINDOWS);
+        try {
+            _windowDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException exception) {
+            throw new S3EncryptionClientException("Unable to digest the plaintext of part " + partNumber, exception);
+        }
+    }
+
+    /**
+     * Takes in the next bytes of the part's plaintext before they are encrypted. Bytes which
+     * earlier attempts at the part encrypted are held back until the rest of their window has
+     * been taken in and found to be the same.
+     * @return the plaintext which may be encrypted now, in order; possibly none
+     * @throws S3EncryptionClientSecurityException if the plaintext differs from what an earlier
+     *                                             attempt at the part encrypted
+     */
+    synchronized ByteBuffer admit(final ByteBuffer plaintext) {
+        if (_previous == null || _taken >= _previous._length) {
+            record(plaintext.duplicate());
+            return plaintext;
+        }
+        final ByteBuffer input = plaintext.duplicate();
+        final byte[] released = new byte[_heldLength + input.remaining()];
+        int releasedLength = 0;
+        while (input.hasRemaining() && _taken < _previous._length) {
+            // A window is checked at its end, or where the earlier attempts stopped
+            final long checkEnd = Math.min((_taken / _windowSize + 1) * _windowSize, _previous._length);
+            final int length = (int) Math.min(input.remaining(), checkEnd - _taken);
+            if (_held.length < _heldLength + length) {
+                _held = Arrays.copyOf(_held, (int) Math.min(_windowSize, Math.max(_heldLength + length, 2L * _held.length)));
+            }
+            final ByteBuffer bytes = input.duplicate();
+            // This cast is necessary to ensure compatibility with Java 1.8/8
+            // when compiling with a newer Java version than 8
+            ((Buffer) bytes).limit(bytes.position() + length);
+            bytes.duplicate().get(_held, _heldLength, length);
+            _heldLength += length;
+            record(bytes);
+            ((Buffer) input).position(bytes.position());
+            if (_taken == checkEnd) {
+                final byte[] expected = _previous._windowDigests.get((int) ((checkEnd - 1) / _windowSize));
+                if (!MessageDigest.isEqual(expected, digestOfWindow())) {
+                    throw new S3EncryptionClientSecurityException("The content of part " + _partNumber + " differs from "
+                            + "the content encrypted for it by an earlier attempt. A retried part must have the same "
+                            + "content, as it is encrypted with the same keystream. The upload must be aborted.");
+                }
+                System.arraycopy(_held, 0, released, releasedLength, _heldLength);
+                releasedLength += _heldLength;
+                _heldLength = 0;
+            }
+        }
+        // Anything past what the earlier attempts encrypted needs no check
+        final int rest = input.remaining();
+        record(input.duplicate());
+        input.get(released, releasedLength, rest);
+        return ByteBuffer.wrap(released, 0, releasedLength + rest);
+    }
+
+    /**
+     * Digests plaintext as it is taken in, window by window.
+     */
+    private void record(final ByteBuffer bytes) {
+        while (bytes.hasRemaining()) {
+            final int length = (int) Math.min(bytes.remaining(), _windowSize - _taken % _windowSize);
+            final ByteBuffer window = bytes.duplicate();
+            ((Buffer) window).limit(window.position() + length);
+            _windowDigest.update(window);
+            ((Buffer) bytes).position(bytes.position() + length);
+            _taken += length;
+            if (_taken % _windowSize == 0) {
+                _windowDigests.add(_windowDigest.digest());
+            }
+        }
+    }
+
+    /**
+     * @return the digest of the window taken in last, so far
+     */
+    private byte[] digestOfWindow() {
+        if (_taken % _windowSize == 0) {
+            return _windowDigests.get(_windowDigests.size() - 1);
+        }
+        try {
+            return ((MessageDigest) _windowDigest.clone()).digest();
+        } catch (CloneNotSupportedException exception) {
+            throw new S3EncryptionClientException("Unable to digest the plaintext of part " + _partNumber, exception);
+        }
+    }
+
+    /**
+     * @return the plaintext this attempt has taken in, to check later attempts against, or
+     *         the earlier attempts' if they took in more
+     */
+    synchronized EncryptedPlaintext encryptedPlaintext() {
+        if (_previous != null && _previous._length >= _taken) {
+            return _previous;
+        }
+        final List<byte[]> digests = new ArrayList<>(_windowDigests);
+        if (_taken % _windowSize != 0) {
+            digests.add(digestOfWindow());
+        }
+        return new EncryptedPlaintext(_windowSize, digests, _taken);
+    }
+
+    /**
+     * Returns the cipher to encrypt the part with. Once the cipher shared with the parts before
+     * this one is handed out, the part can no longer be started again with it.
+     */
+    public Cipher cipher() {
+        if (_sharesCipher) {
+            _materials.useSharedCipher(_partNumber);
+        }
+        return _cipher;
+    }
+
+    /**
+     * @return whether the part carries on with the object's own cipher, which is only finished by the last part
+     */
+    public boolean sharesCipher() {
+        return _sharesCipher;
+    }
+
+    public boolean isLastPart() {
+        return _isLastPart;
+    }
+
+    public int tagLength() {
+        return _tagLength;
+    }
+
+    /**
+     * Takes the output of the cipher's doFinal, which ends with the part's own tag, and records
+     * the part as encrypted. For the last part the tag is replaced in place with the tag of the
+     * whole object; for any other part it is dropped.
+     * @return the number of bytes of the output to send
+     */
+    int finish(final byte[] output, final int offset, final int length) throws GeneralSecurityException {
+        final int tagOffset = offset + length - _tagLength;
+        if (_sharesCipher) {
+            // The shared cipher's tag is already the tag of the whole object
+            _materials.completeSharedPart(_partNumber, Arrays.copyOfRange(output, tagOffset, offset + length));
+            return length;
+        }
+        _materials.completePart(_partNumber, _materials.partGhash(_offset, _length, output, tagOffset));
+        if (!_isLastPart) {
+            return length - _tagLength;
+        }
+        final byte[] tag = _materials.assembleTag(_partNumber);
+        System.arraycopy(tag, 0, output, tagOffset, _tagLength);
+        return length;
+    }
+
+    /**
+     * Records a part which shares the object's cipher as encrypted, once all of it has been
+     * passed through the cipher. The cipher is left unfinished for the parts after it.
+     */
+    void finishShared() {
+        _materials.completeSharedPart(_partNumber, null);
+    }
+}
@@ -5,17 +5,25 @@ package software.amazon.encryption.s3.internal;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import software.amazon.awssdk.services.s3.model.S3Request;
 import software.amazon.encryption.s3.S3EncryptionClientException;
+import software.amazon.encryption.s3.S3EncryptionClientSecurityException;
 import software.amazon.encryption.s3.algorithms.AlgorithmSuite;
+import software.amazon.encryption.s3.legacy.internal.AesCtrUtils;
 import software.amazon.encryption.s3.materials.CryptographicMaterials;
 import software.amazon.encryption.s3.materials.EncryptionMaterials;
 
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.Provider;
+import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Map;
+import java.util.TreeMap;
 
 public class MultipartUploadMaterials implements CryptographicMaterials {
 
@@ -32,8 +40,11 @@ public class MultipartUploadMaterials implements CryptographicMaterials {
     private final byte[] _plaintextDataKey;
     private final Provider _cryptoProvider;
     private long _plaintextLength;
-    private boolean hasFinalPartBeenSeen;
+    private volatile boolean hasFinalPartBeenSeen;
+    private volatile boolean _destroyed;
     private final Cipher _cipher;
+    // The object metadata which describes how it is encrypted, kept for checkpoints
+    private final Map<String, String> _encryptionMetadata;
 
     private MultipartUploadMaterials(Builder builder) {
         this._s3Request = builder._s3Request;
@@ -43,6 +54,7 @@ public class MultipartUploadMaterials implements CryptographicMaterials {
         this._cryptoProvider = builder._cryptoProvider;
         this._plaintextLength = builder._plaintextLength;
         this._cipher = builder._cipher;
+        this._encryptionMetadata = builder._encryptionMetadata;
     }
 
     static public Builder builder() {
@@ -53,19 +65,68 @@ public class MultipartUploadMaterials implements CryptographicMaterials {
         return hasFinalPartBeenSeen;
     }
 
-    public final void setHasFinalPartBeenSeen(boolean hasFinalPartBeenSeen) {
+    public final synchronized void setHasFinalPartBeenSeen(boolean hasFinalPartBeenSeen) {
         this.hasFinalPartBeenSeen = hasFinalPartBeenSeen;
     }
 
+    private static final int CHECKPOINT_IV_LENGTH = 12;
+    private static final int GHASH_LENGTH = 16;
+    // SHA-256, see MultipartUploadObjectPipeline
+    private static final int PLAINTEXT_DIGEST_LENGTH = 32;
+    private static final SecureRandom CHECKPOINT_RANDOM = new SecureRandom();
+
+    /**
+     * The parts which have been started, by part number.
+     */
+    private final TreeMap<Integer, PartState> _parts = new TreeMap<>();
+
+    /**
+     * The GHASH key H, and the inverse of its square, which are derived from the data key when first needed.
+     */
+    private long[] _hashKey;
+    private long[] _inverseHashKeySquared;
+
     /**
-     * Can be used to enforce serial uploads.
+     * The size every part but the last must have, once a part has been placed by it because
+     * the part before it had not been started; 0 until then.
      */
-    private int partNumber;
+    private long _uniformPartSize;
 
     /**
-     * True if a multipart upload is currently in progress; false otherwise.
+     * How far the object's own cipher has been used for parts uploaded in order. Parts which
+     * start only once the part before them has been encrypted share that cipher, and so need
+     * no cipher of their own. Once a part is uploaded concurrently or out of order, the cipher
+     * is finished at the end of the parts which shared it, and that prefix of the object
+     * counts as one part whose GHASH contribution is recovered from the tag.
      */
-    private volatile boolean partUploadInProgress;
+    private enum Sharing { OPEN, CLOSING, CLOSED, BROKEN }
+
+    private Sharing _sharing = Sharing.OPEN;
+    // Parts 1 to _sharedParts were encrypted with the shared cipher, _sharedLength bytes in all
+    private int _sharedParts;
+    private long _sharedLength;
+    // The part using the shared cipher, or 0 if none is
+    private int _sharedPartInProgress;
+    // The GHASH contribution of the shared parts, once the shared cipher has been finished
+    private long[] _sharedGhash;
+    // The tag of the whole object, when the last part was encrypted with the shared cipher
+    private byte[] _sharedTag;
+
+    private static final class PartState {
+        private long offset;
+        private long length;
+        private boolean inProgress;
+        // Whether the part shares the object's cipher, and whether that cipher has been handed out for it
+        private boolean sharesCipher;
+        private boolean sharedCipherUsed;
+        // The part's GHASH contribution, once it has been encrypted
+        private long[] ghash;
+        // The digest of the part's plaintext, for parts which can be checkpointed
+        private byte[] plaintextDigest;
+        // What has been encrypted for the part, which a retry must match, and the attempt in progress
+        private MultipartPartEncryptor.EncryptedPlaintext encrypted;
+        private MultipartPartEncryptor attempt;
+    }
 
     /**
      * When calling with an IV, sanity check that the given IV matches the
@@ -84,62 +145,482 @@ public class MultipartUploadMaterials implements CryptographicMaterials {
     }
 
     /**
-     * Can be used to check the next part number must either be the same (if it
-     * was a retry) or increment by exactly 1 during a serial part uploads.
+     * Starts the upload of a part, which may run concurrently with the uploads of other parts
+     * and need not follow them in order. A part which starts once the part before it has been
+     * encrypted carries on with the object's own cipher, as when the object is encrypted in one
+     * pass. Any other part is encrypted independently, starting at the counter block of its
+     * offset in the object, so the object is the same either way; this needs a provider which
+     * supports 16-byte GCM IVs.
      * <p>
-     * As a side effect, the {@link #partUploadInProgress} will be set to true
-     * upon successful completion of this method. Caller of this method is
-     * responsible to call {@link #endPartUpload()} in a finally block once
-     * the respective part-upload is completed (either normally or abruptly).
+     * A part's offset is the end of the part before it when that part has been started.
+     * Otherwise every part before it is taken to be the same size as the parts seen so far,
+     * which is how parts are usually split; from then on, every part is checked against that
+     * size as it starts. The last part can only be started once all other parts have been
+     * encrypted, as it carries the tag of the whole object.
+     * <p>
+     * The caller of this method is responsible to call {@link #endPartUpload(int)} in a
+     * finally block once the respective part-upload is completed (either normally or abruptly).
      *
-     * @throws S3EncryptionClientException if parallel part upload is detected
-     * @see #endPartUpload()
+     * @throws S3EncryptionClientException if the part is already being uploaded, if the parts
+     *                                     cannot be assembled into one object, or if the part
+     *                                     needs a cipher of its own which the provider cannot create
+     * @see #endPartUpload(int)
+     */
+    protected MultipartPartEncryptor beginPartUpload(final int partNumber, final long partContentLength,
+                                                     final boolean isLastPart) {
+        return beginPartUpload(partNumber, partContentLength, isLastPart, false);
+    }
+
+    /**
+     * @param independent whether the part must be encrypted with a cipher of its own, even when
+     *                    it could share the object's cipher, e.g. so that it can be checkpointed
+     * @see #beginPartUpload(int, long, boolean)
      */
-    protected void beginPartUpload(final int nextPartNumber, final long partContentLength) {
-        if (nextPartNumber < 1)
+    protected synchronized MultipartPartEncryptor beginPartUpload(final int partNumber, final long partContentLength,
+                                                                  final boolean isLastPart, final boolean independent) {
+        if (partNumber < 1)
             throw new IllegalArgumentException("part number must be at least 1");
-        if (partUploadInProgress) {
-            throw new S3EncryptionClientException(
-                    "Parts are required to be uploaded in series");
-        }
-        synchronized (this) {
-            if (nextPartNumber - partNumber <= 1) {
-                partNumber = nextPartNumber;
-                partUploadInProgress = true;
-                incrementPlaintextSize(partContentLength);
+        checkNotDestroyed();
+        if (_sharing == Sharing.BROKEN) {
+            throw new S3EncryptionClientException("A part failed while being encrypted with the cipher shared by the " +
+                    "parts uploaded in order, so the tag of the object can no longer be computed. " +
+                    "The upload must be aborted.");
+        }
+        PartState part = _parts.get(partNumber);
+        if (part != null && part.inProgress) {
+            throw new S3EncryptionClientException("Part " + partNumber + " is already being uploaded");
+        }
+        if (part != null && part.encrypted != null && part.encrypted.length() > 0 && part.length != partContentLength) {
+            throw new S3EncryptionClientSecurityException("Part " + partNumber + " was retried with a different length. "
+                    + "A retried part must have the same content, as it is encrypted with the same keystream. "
+                    + "The upload must be aborted.");
+        }
+        if (isLastPart) {
+            // Checked and claimed under this lock, so two parts can't both finish the object
+            if (hasFinalPartBeenSeen) {
+                throw new S3EncryptionClientException("This part was specified as the last part in a multipart " +
+                        "upload, but a previous part was already marked as the last part. Only the last part of the " +
+                        "upload should be marked as the last part.");
+            }
+            checkPartsBefore(partNumber);
+        }
+
+        final long offset;
+        boolean placedByPartSize = false;
+        if (part != null) {
+            // A retry keeps its place in the object
+            offset = part.offset;
+        } else if (partNumber == 1) {
+            offset = 0;
+        } else if (_parts.containsKey(partNumber - 1)) {
+            final PartState previous = _parts.get(partNumber - 1);
+            offset = previous.offset + previous.length;
+        } else {
+            placedByPartSize = true;
+            offset = (partNumber - 1) * uniformPartSize(partContentLength);
+        }
+
+        final PartState next = _parts.get(partNumber + 1);
+        if (!isLastPart && next != null && next.offset != offset + partContentLength) {
+            throw new S3EncryptionClientException(partsNotContiguousMessage(partNumber + 1));
+        }
+        checkPartSize(partNumber, offset, partContentLength, isLastPart, placedByPartSize);
+        if (offset + partContentLength > AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF.cipherMaxContentLengthBytes()) {
+            throw new S3EncryptionClientException("The contentLength of the object you are attempting to encrypt exceeds" +
+                    "the maximum length allowed for GCM encryption.");
+        }
+
+        // The shared cipher holds back a partial block, so only the last part may end within one
+        final boolean sharesCipher = !independent && part == null && _sharing == Sharing.OPEN
+                && _sharedPartInProgress == 0 && partNumber == _sharedParts + 1
+                && _parts.higherKey(partNumber) == null
+                && (isLastPart || partContentLength % _algorithmSuite.cipherBlockSizeBytes() == 0);
+        // Created before anything changes, so a provider which cannot create it leaves the upload as it was
+        final Cipher cipher = sharesCipher ? _cipher : createPartCipher(offset);
+
+        if (placedByPartSize && _uniformPartSize == 0) {
+            _uniformPartSize = offset / (partNumber - 1);
+        }
+        // A retry of a part which shared the cipher does not stop the parts after it from sharing it
+        if (!sharesCipher && partNumber > _sharedParts && _sharing == Sharing.OPEN) {
+            if (_sharedPartInProgress == 0) {
+                finishSharedCipher();
             } else {
-                throw new S3EncryptionClientException(
-                        "Parts are required to be uploaded in series (partNumber="
-                                + partNumber + ", nextPartNumber="
-                                + nextPartNumber + ")");
+                _sharing = Sharing.CLOSING;
+            }
+        }
+        if (part == null) {
+            part = new PartState();
+            _parts.put(partNumber, part);
+        }
+        part.offset = offset;
+        part.length = partContentLength;
+        part.inProgress = true;
+        part.sharesCipher = sharesCipher;
+        part.sharedCipherUsed = false;
+        part.ghash = null;
+        if (sharesCipher) {
+            _sharedPartInProgress = partNumber;
+        }
+        _plaintextLength = Math.max(_plaintextLength, offset + partContentLength);
+        part.attempt = new MultipartPartEncryptor(this, partNumber, offset, partContentLength, isLastPart, cipher,
+                sharesCipher, part.encrypted);
+        if (isLastPart) {
+            // Cleared again should the part fail
+            hasFinalPartBeenSeen = true;
+        }
+        return part.attempt;
+    }
+
+    /**
+     * The size of the parts which have been seen so far (other than the last part), or the
+     * size of this part when it is the first one seen.
+     */
+    private long uniformPartSize(final long partContentLength) {
+        if (_uniformPartSize > 0) {
+            return _uniformPartSize;
+        }
+        for (PartState part : _parts.values()) {
+            if (part.length > 0) {
+                return part.length;
             }
         }
+        return partContentLength;
     }
 
     /**
-     * Increments the plaintextSize as parts come in, checking to
-     * ensure that the max GCM size limit is not exceeded.
-     * @param lengthOfPartToAdd the length of the incoming part
-     * @return the new _plaintextLength value
+     * Once any part has been placed by the part size, checks that a starting part lies where
+     * that size puts it, and is that size unless it is the last part. When this part is the
+     * first to be placed so, the parts already started are checked too.
      */
-    private synchronized long incrementPlaintextSize(final long lengthOfPartToAdd) {
-        if (_plaintextLength + lengthOfPartToAdd > AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF.cipherMaxContentLengthBytes()) {
-            throw new S3EncryptionClientException("The contentLength of the object you are attempting to encrypt exceeds" +
-                    "the maximum length allowed for GCM encryption.");
+    private void checkPartSize(final int partNumber, final long offset, final long partContentLength,
+                               final boolean isLastPart, final boolean placedByPartSize) {
+        final long partSize = _uniformPartSize > 0 ? _uniformPartSize
+                : placedByPartSize ? offset / (partNumber - 1) : 0;
+        if (partSize == 0) {
+            return;
+        }
+        if (offset != (partNumber - 1) * partSize || (!isLastPart && partContentLength != partSize)) {
+            throw new S3EncryptionClientException(partsNotContiguousMessage(partNumber));
+        }
+        if (_uniformPartSize == 0) {
+            for (Map.Entry<Integer, PartState> entry : _parts.entrySet()) {
+                if (entry.getValue().offset != (entry.getKey() - 1) * partSize
+                        || entry.getValue().length != partSize) {
+                    throw new S3EncryptionClientException(partsNotContiguousMessage(partNumber));
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that every part before the last has been encrypted, and that each starts where the one before it ends.
+     */
+    private void checkPartsBefore(final int lastPartNumber) {
+        long expectedOffset = 0;
+        for (int partNumber = 1; partNumber < lastPartNumber; partNumber++) {
+            final PartState part = _parts.get(partNumber);
+            if (part == null || !isEncrypted(partNumber, part)) {
+                throw new S3EncryptionClientException("The last part of an encrypted multipart upload can only be " +
+                        "uploaded once all other parts have been uploaded, but part " + partNumber + " has not been.");
+            }
+            if (part.offset != expectedOffset) {
+                throw new S3EncryptionClientException(partsNotContiguousMessage(partNumber));
+            }
+            expectedOffset += part.length;
+        }
+        final PartState last = _parts.get(lastPartNumber);
+        if (last != null && last.offset != expectedOffset) {
+            throw new S3EncryptionClientException(partsNotContiguousMessage(lastPartNumber));
+        }
+    }
+
+    private static String partsNotContiguousMessage(final int partNumber) {
+        return "Part " + partNumber + " does not start where the part before it ends. Parts of an encrypted " +
+                "multipart upload which are uploaded out of order must all be the same size, except the last part. " +
+                "The upload must be aborted.";
+    }
+
+    private boolean isEncrypted(final int partNumber, final PartState part) {
+        return part.ghash != null || (partNumber <= _sharedParts && _sharing != Sharing.CLOSING);
+    }
+
+    /**
+     * Records the GHASH contribution of a part once all of it has been encrypted.
+     */
+    synchronized void completePart(final int partNumber, final long[] ghash) {
+        _parts.get(partNumber).ghash = ghash;
+    }
+
+    /**
+     * Notes that the shared cipher is about to be used for a part, after which the part can no
+     * longer be started again with it.
+     */
+    synchronized void useSharedCipher(final int partNumber) {
+        _parts.get(partNumber).sharedCipherUsed = true;
+    }
+
+    /**
+     * Records a part encrypted with the shared cipher, once all of it has been encrypted. For
+     * the last part, this is given the tag of the whole object.
+     */
+    synchronized void completeSharedPart(final int partNumber, final byte[] tag) {
+        final PartState part = _parts.get(partNumber);
+        _sharedParts = partNumber;
+        _sharedLength = part.offset + part.length;
+        _sharedPartInProgress = 0;
+        if (tag != null) {
+            _sharedTag = tag.clone();
+            _sharing = Sharing.CLOSED;
+        } else if (_sharing == Sharing.CLOSING) {
+            finishSharedCipher();
+        }
+    }
+
+    /**
+     * Stops sharing the object's cipher. Its tag yields the GHASH contribution of the parts
+     * which shared it, as if they were one part.
+     */
+    private void finishSharedCipher() {
+        _sharing = Sharing.CLOSED;
+        if (_sharedParts == 0) {
+            return;
+        }
+        try {
+            _sharedGhash = partGhash(0, _sharedLength, _cipher.doFinal(), 0);
+        } catch (GeneralSecurityException exception) {
+            _sharing = Sharing.BROKEN;
+            throw new S3EncryptionClientException("Unable to finish the cipher shared by the parts uploaded in order: "
+                    + exception.getMessage(), exception);
+        }
+    }
+
+    /**
+     * Records the digest of a part's plaintext, so that when the upload is resumed the part is
+     * only reused for the same content.
+     */
+    synchronized void recordPlaintextDigest(final int partNumber, final byte[] digest) {
+        final PartState part = _parts.get(partNumber);
+        if (part != null) {
+            part.plaintextDigest = digest.clone();
         }
-        _plaintextLength += lengthOfPartToAdd;
-        return _plaintextLength;
     }
 
     /**
-     * Used to mark the completion of a part upload before the next. Should be
+     * Returns the checkpoint of a part which has been uploaded, with its GHASH contribution and
+     * the digest of its plaintext sealed under the data key, as together with the ciphertext the
+     * GHASH contribution would reveal the GHASH key.
+     *
+     * @return the checkpoint, or null if the part can't be reused when the upload is resumed, e.g.
+     *         because it only holds the end of the last part
+     */
+    synchronized MultipartCheckpoint.Part checkpointPart(final int partNumber, final String eTag) {
+        final PartState part = _parts.get(partNumber);
+        if (part == null || part.ghash == null || part.plaintextDigest == null) {
+            return null;
+        }
+        try {
+            final byte[] iv = new byte[CHECKPOINT_IV_LENGTH];
+            CHECKPOINT_RANDOM.nextBytes(iv);
+            final Cipher cipher = checkpointCipher(Cipher.ENCRYPT_MODE, iv, partNumber, part.offset, part.length);
+            final byte[] checkpointed = Arrays.copyOf(GcmUtils.toBytes(part.ghash), GHASH_LENGTH + PLAINTEXT_DIGEST_LENGTH);
+            System.arraycopy(part.plaintextDigest, 0, checkpointed, GHASH_LENGTH, PLAINTEXT_DIGEST_LENGTH);
+            final byte[] sealed = cipher.doFinal(checkpointed);
+            final byte[] state = new byte[iv.length + sealed.length];
+            System.arraycopy(iv, 0, state, 0, iv.length);
+            System.arraycopy(sealed, 0, state, iv.length, sealed.length);
+            return new MultipartCheckpoint.Part(partNumber, eTag, part.offset, part.length, state);
+        } catch (GeneralSecurityException exception) {
+            throw new S3EncryptionClientException("Unable to checkpoint part " + partNumber, exception);
+        }
+    }
+
+    /**
+     * Restores a part uploaded by an earlier process from its checkpoint, as if it had been
+     * encrypted here, so the parts after it can follow on and the last part can assemble the tag.
+     * The part is not reused until {@link #verifyRestoredPart(int, byte[])} has matched its plaintext.
+     *
+     * @throws S3EncryptionClientException if the checkpoint was not made with this data key, or was altered
+     */
+    synchronized void restorePart(final MultipartCheckpoint.Part checkpoint) {
+        final byte[] state = checkpoint.sealedState();
+        final byte[] opened;
+        try {
+            if (state.length < CHECKPOINT_IV_LENGTH) {
+                throw new GeneralSecurityException("checkpoint is too short");
+            }
+            final byte[] iv = Arrays.copyOf(state, CHECKPOINT_IV_LENGTH);
+            final Cipher cipher = checkpointCipher(Cipher.DECRYPT_MODE, iv, checkpoint.partNumber(),
+                    checkpoint.offset(), checkpoint.length());
+            opened = cipher.doFinal(state, CHECKPOINT_IV_LENGTH, state.length - CHECKPOINT_IV_LENGTH);
+            if (opened.length != GHASH_LENGTH + PLAINTEXT_DIGEST_LENGTH) {
+                // e.g. written without the digest of the plaintext, so the part can't be checked
+                throw new GeneralSecurityException("checkpoint has no plaintext digest");
+            }
+        } catch (GeneralSecurityException exception) {
+            throw new S3EncryptionClientException("Unable to restore part " + checkpoint.partNumber()
+                    + " from its checkpoint", exception);
+        }
+        final PartState part = new PartState();
+        part.offset = checkpoint.offset();
+        part.length = checkpoint.length();
+        part.ghash = GcmUtils.fromBytes(opened, 0);
+        part.plaintextDigest = Arrays.copyOfRange(opened, GHASH_LENGTH, opened.length);
+        _parts.put(checkpoint.partNumber(), part);
+        // The object's cipher did not encrypt the restored parts, so no part after them can share it
+        _sharing = Sharing.CLOSED;
+        _plaintextLength = Math.max(_plaintextLength, part.offset + part.length);
+    }
+
+    /**
+     * Checks the plaintext given for a restored part against the digest in its checkpoint, in
+     * constant time.
+     *
+     * @return whether the part was restored and its plaintext is the same
+     */
+    synchronized boolean verifyRestoredPart(final int partNumber, final byte[] plaintextDigest) {
+        final PartState part = _parts.get(partNumber);
+        return part != null && part.plaintextDigest != null
+                && MessageDigest.isEqual(part.plaintextDigest, plaintextDigest);
+    }
+
+    /**
+     * A cipher to seal a part's GHASH contribution with, bound to where the part lies in the object.
+     */
+    private Cipher checkpointCipher(final int mode, final byte[] iv, final int partNumber, final long offset,
+                                    final long length) throws GeneralSecurityException {
+        final Cipher cipher = CryptoFactory.createCipher(_algorithmSuite.cipherName(), _cryptoProvider);
+        cipher.init(mode, dataKey(), new GCMParameterSpec(_algorithmSuite.cipherTagLengthBits(), iv));
+        cipher.updateAAD(("s3ec-multipart-checkpoint:" + partNumber + ":" + offset + ":" + length)
+                .getBytes(StandardCharsets.UTF_8));
+        return cipher;
+    }
+
+    /**
+     * @return the object metadata which describes how it is encrypted
+     */
+    public Map<String, String> encryptionMetadata() {
+        return _encryptionMetadata;
+    }
+
+    /**
+     * Used to mark the completion of a part upload, whether or not it succeeded. Should be
      * invoked in finally block, and must be preceded previously by a call to
-     * {@link #beginPartUpload(int, long)}.
+     * {@link #beginPartUpload(int, long, boolean)}.
+     *
+     * @see #beginPartUpload(int, long, boolean)
+     */
+    protected synchronized void endPartUpload(final int partNumber) {
+        final PartState part = _parts.get(partNumber);
+        if (part != null) {
+            part.inProgress = false;
+        }
+        if (part != null && part.attempt != null) {
+            // Kept even if the attempt failed, as some of its ciphertext may have been sent
+            part.encrypted = part.attempt.encryptedPlaintext();
+            part.attempt = null;
+        }
+        if (part != null && partNumber == _sharedPartInProgress) {
+            // The part did not finish with the shared cipher
+            _sharedPartInProgress = 0;
+            if (part.sharedCipherUsed) {
+                _sharing = Sharing.BROKEN;
+                return;
+            }
+            // Nothing was encrypted, so the part can start again as if it never had
+            _parts.remove(partNumber);
+            if (_sharing == Sharing.CLOSING) {
+                finishSharedCipher();
+            }
+        }
+    }
+
+    /**
+     * Creates a GCM encryption cipher whose first counter block is the one at {@code offset}
+     * in the object, and whose tag is therefore the GHASH of the part's ciphertext masked with
+     * the encryption of the block before it.
+     * <p>
+     * The pre-counter block J0 of a GCM cipher is only the IV itself for 12-byte IVs; for a 16-byte
+     * IV X it is GHASH(X, lengths) = X*H^2 + L*H, where L holds the IV's length. So the IV which
+     * gives the part's pre-counter block is (J0 + L*H) * H^-2. This requires a provider which
+     * supports 16-byte GCM IVs for every part but the first.
      *
-     * @see #beginPartUpload(int, long)
+     * @throws S3EncryptionClientException if the provider cannot create the cipher
      */
-    protected void endPartUpload() {
-        partUploadInProgress = false;
+    synchronized Cipher createPartCipher(final long offset) {
+        try {
+            final byte[] iv;
+            if (offset == 0) {
+                iv = getIv();
+            } else {
+                final long[] preCounterBlock = GcmUtils.fromBytes(partPreCounterBlock(offset), 0);
+                final long[] ivLength = GcmUtils.lengthsBlock(0, GcmUtils.BLOCK_SIZE);
+                iv = GcmUtils.toBytes(GcmUtils.multiply(
+                        GcmUtils.xor(preCounterBlock, GcmUtils.multiply(ivLength, hashKey())), _inverseHashKeySquared));
+            }
+            final Cipher cipher = CryptoFactory.createCipher(_algorithmSuite.cipherName(), _cryptoProvider);
+            cipher.init(Cipher.ENCRYPT_MODE, dataKey(), new GCMParameterSpec(_algorithmSuite.cipherTagLengthBits(), iv));
+            return cipher;
+        } catch (GeneralSecurityException exception) {
+            throw new S3EncryptionClientException("Unable to create the cipher for a part uploaded concurrently or out "
+                    + "of order, which needs a crypto provider that supports 16-byte GCM IVs. Upload the parts in "
+                    + "order, each once the one before it has completed, to use one cipher for all of them: "
+                    + exception.getMessage(), exception);
+        }
+    }
+
+    /**
+     * Removes the mask and the lengths block from the tag of a part's cipher, leaving the part's GHASH contribution.
+     */
+    synchronized long[] partGhash(final long offset, final long length, final byte[] tag, final int tagOffset)
+            throws GeneralSecurityException {
+        final long[] masked = GcmUtils.fromBytes(tag, tagOffset);
+        final long[] ghashWithLengths = GcmUtils.xor(masked, encryptBlock(partPreCounterBlock(offset)));
+        return GcmUtils.xor(ghashWithLengths, GcmUtils.multiply(GcmUtils.lengthsBlock(0, length), hashKey()));
+    }
+
+    /**
+     * Combines the GHASH contributions of all parts, in order, into the tag of the whole object.
+     */
+    synchronized byte[] assembleTag(final int lastPartNumber) throws GeneralSecurityException {
+        if (lastPartNumber <= _sharedParts && _sharedTag != null) {
+            // A retry of the last part, which was first encrypted with the shared cipher
+            return _sharedTag.clone();
+        }
+        final long[] h = hashKey();
+        // The parts which shared the object's cipher count as one
+        long[] ghash = _sharedParts > 0 ? _sharedGhash : new long[2];
+        long length = _sharedLength;
+        for (int partNumber = _sharedParts + 1; partNumber <= lastPartNumber; partNumber++) {
+            final PartState part = _parts.get(partNumber);
+            if (part == null || part.ghash == null || part.offset != length) {
+                throw new S3EncryptionClientException("Part " + partNumber + " changed while the last part was " +
+                        "being uploaded. The upload must be aborted.");
+            }
+            final long blocks = (part.length + GcmUtils.BLOCK_SIZE - 1) / GcmUtils.BLOCK_SIZE;
+            ghash = GcmUtils.xor(GcmUtils.multiply(ghash, GcmUtils.power(h, blocks)), part.ghash);
+            length += part.length;
+        }
+        ghash = GcmUtils.xor(ghash, GcmUtils.multiply(GcmUtils.lengthsBlock(0, length), h));
+        return GcmUtils.toBytes(GcmUtils.xor(ghash, encryptBlock(partPreCounterBlock(0))));
+    }
+
+    private byte[] partPreCounterBlock(final long offset) {
+        return GcmUtils.preCounterBlock(AesCtrUtils.adjustIV(getIv(), offset));
+    }
+
+    private long[] hashKey() throws GeneralSecurityException {
+        if (_hashKey == null) {
+            _hashKey = encryptBlock(new byte[GcmUtils.BLOCK_SIZE]);
+            _inverseHashKeySquared = GcmUtils.inverse(GcmUtils.multiply(_hashKey, _hashKey));
+        }
+        return _hashKey;
+    }
+
+    private long[] encryptBlock(final byte[] block) throws GeneralSecurityException {
+        final Cipher ecb = CryptoFactory.createCipher("AES/ECB/NoPadding", _cryptoProvider);
+        ecb.init(Cipher.ENCRYPT_MODE, dataKey());
+        return GcmUtils.fromBytes(ecb.doFinal(block), 0);
     }
 
     @Override
@@ -163,11 +644,47 @@ public class MultipartUploadMaterials implements CryptographicMaterials {
         return _encryptionContext;
     }
 
+    /**
+     * @throws S3EncryptionClientException if the materials have been destroyed
+     */
     @Override
     public SecretKey dataKey() {
+        checkNotDestroyed();
         return new SecretKeySpec(_plaintextDataKey, algorithmSuite().dataKeyAlgorithm());
     }
 
+    private void checkNotDestroyed() {
+        if (_destroyed) {
+            throw new S3EncryptionClientException("The materials of this multipart upload are no longer available, "
+                    + "as the upload was completed, aborted, or evicted after being idle");
+        }
+    }
+
+    /**
+     * Zeroes the data key and forgets the state of the parts, once the upload is over or has
+     * been given up on. Ciphers already created for parts being encrypted keep working, but
+     * no other part can be started.
+     */
+    synchronized void destroy() {
+        _destroyed = true;
+        if (_plaintextDataKey != null) {
+            Arrays.fill(_plaintextDataKey, (byte) 0);
+        }
+        if (_hashKey != null) {
+            Arrays.fill(_hashKey, 0);
+            Arrays.fill(_inverseHashKeySquared, 0);
+        }
+        if (_sharedGhash != null) {
+            Arrays.fill(_sharedGhash, 0);
+        }
+        for (PartState part : _parts.values()) {
+            if (part.ghash != null) {
+                Arrays.fill(part.ghash, 0);
+            }
+        }
+        _parts.clear();
+    }
+
     @Override
     public Provider cryptoProvider() {
         return _cryptoProvider;
@@ -186,6 +703,7 @@ public class MultipartUploadMaterials implements CryptographicMaterials {
         private long _plaintextLength = 0;
         private Provider _cryptoProvider = null;
         private Cipher _cipher = null;
+        private Map<String, String> _encryptionMetadata = Collections.emptyMap();
 
         private Builder() {
         }
@@ -222,6 +740,13 @@ public class MultipartUploadMaterials implements CryptographicMaterials {
             return this;
         }
 
+        public Builder encryptionMetadata(Map<String, String> encryptionMetadata) {
+            _encryptionMetadata = encryptionMetadata == null
+                    ? Collections.emptyMap()
+                    : Collections.unmodifiableMap(encryptionMetadata);
+            return this;
+        }
+
         public Builder fromEncryptionMaterials(final EncryptionMaterials materials) {
             _s3Request = materials.s3Request();
             _algorithmSuite = materials.algorithmSuite();
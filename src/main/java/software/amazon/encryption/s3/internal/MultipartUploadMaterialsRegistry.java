@@ -0,0 +1,343 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import software.amazon.encryption.s3.S3EncryptionClientException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * The materials of the encrypted multipart uploads in progress, by upload ID, which hold each
+ * upload's plaintext data key. Uploads are removed when they are completed or aborted; those
+ * which are neither, e.g. because the caller gave up on them, are evicted once they have been
+ * idle for longer than the idle timeout, so that their data keys do not stay in memory for the
+ * life of the client. The data key of an upload which is removed or evicted is zeroed.
+ * <p>
+ * An upload is idle while none of its parts is being encrypted. Idle uploads are looked for
+ * at most once a minute, when {@link #evictIdle()} is called, rather than on a thread of
+ * their own. At most the maximum number of uploads can be in progress at once; this is
+ * checked when an upload is created, so uploads created concurrently may briefly go over it.
+ */
+public class MultipartUploadMaterialsRegistry {
+    public static final int DEFAULT_MAX_UPLOADS = 10_000;
+    public static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofHours(24);
+    private static final long MAX_SWEEP_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final ConcurrentHashMap<String, Upload> _uploads = new ConcurrentHashMap<>();
+    private final int _maxUploads;
+    private final long _idleTimeoutNanos;
+    private final long _sweepIntervalNanos;
+    private final LongSupplier _nanoClock;
+    private final AtomicLong _nextSweepNanos;
+    private final AtomicInteger _peakUploads = new AtomicInteger();
+    private final AtomicLong _registeredUploads = new AtomicLong();
+    private final AtomicLong _evictedUploads = new AtomicLong();
+    private final AtomicLong _rejectedUploads = new AtomicLong();
+
+    private MultipartUploadMaterialsRegistry(Builder builder) {
+        _maxUploads = builder._maxUploads;
+        _idleTimeoutNanos = builder._idleTimeout.toNanos();
+        _sweepIntervalNanos = Math.min(_idleTimeoutNanos, MAX_SWEEP_INTERVAL_NANOS);
+        _nanoClock = builder._nanoClock;
+        _nextSweepNanos = new AtomicLong(_nanoClock.getAsLong() + _sweepIntervalNanos);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Makes room for an upload about to be created, evicting idle uploads first if there is none.
+     *
+     * @return the uploads evicted, for their uploads in S3 to be aborted if need be
+     * @throws S3EncryptionClientException if the maximum number of uploads are in progress
+     */
+    public List<Upload> reserve() {
+        final List<Upload> evicted = _uploads.size() >= _maxUploads ? sweep() : evictIdle();
+        if (_uploads.size() >= _maxUploads) {
+            _rejectedUploads.incrementAndGet();
+            throw new S3EncryptionClientException("Unable to start another encrypted multipart upload: "
+                    + _maxUploads + " are already in progress. Complete or abort uploads which are no longer needed.");
+        }
+        return evicted;
+    }
+
+    /**
+     * Adds an upload, replacing any other with the same upload ID.
+     */
+    public void register(final String uploadId, final String bucket, final String key,
+                         final MultipartUploadMaterials materials) {
+        final Upload previous = _uploads.put(uploadId, new Upload(uploadId, bucket, key, materials, _nanoClock.getAsLong()));
+        if (previous != null && previous._materials != materials) {
+            previous.destroy();
+        }
+        _registeredUploads.incrementAndGet();
+        _peakUploads.accumulateAndGet(_uploads.size(), Math::max);
+    }
+
+    /**
+     * @return the materials of the upload, or null if it is unknown, e.g. because it was evicted
+     */
+    public MultipartUploadMaterials get(final String uploadId) {
+        final Upload upload = _uploads.get(uploadId);
+        if (upload == null) {
+            return null;
+        }
+        synchronized (upload) {
+            // Removed and destroyed since it was looked up
+            if (upload._destroyed) {
+                return null;
+            }
+            upload._lastUsedNanos = _nanoClock.getAsLong();
+        }
+        return upload._materials;
+    }
+
+    /**
+     * Marks the upload as in use, so it is not evicted, until {@link #release(String)} is called.
+     *
+     * @return the materials of the upload, or null if it is unknown
+     */
+    public MultipartUploadMaterials acquire(final String uploadId) {
+        final Upload upload = _uploads.get(uploadId);
+        if (upload == null) {
+            return null;
+        }
+        synchronized (upload) {
+            // Evicted since it was looked up; once acquired, it can't be evicted until released
+            if (upload._destroyed) {
+                return null;
+            }
+            upload._users++;
+            upload._lastUsedNanos = _nanoClock.getAsLong();
+        }
+        return upload._materials;
+    }
+
+    public void release(final String uploadId) {
+        final Upload upload = _uploads.get(uploadId);
+        if (upload == null) {
+            return;
+        }
+        synchronized (upload) {
+            upload._users = Math.max(0, upload._users - 1);
+            upload._lastUsedNanos = _nanoClock.getAsLong();
+        }
+    }
+
+    /**
+     * Removes an upload once it is completed or aborted, zeroing its data key.
+     */
+    public void remove(final String uploadId) {
+        final Upload upload = _uploads.remove(uploadId);
+        if (upload != null) {
+            upload.destroy();
+        }
+    }
+
+    /**
+     * Evicts the uploads which have been idle for longer than the idle timeout, if it is time
+     * to look for them.
+     *
+     * @return the uploads evicted, for their uploads in S3 to be aborted if need be
+     */
+    public List<Upload> evictIdle() {
+        final long now = _nanoClock.getAsLong();
+        final long nextSweep = _nextSweepNanos.get();
+        // Only one caller looks for idle uploads at a time
+        if (now - nextSweep < 0 || !_nextSweepNanos.compareAndSet(nextSweep, now + _sweepIntervalNanos)) {
+            return Collections.emptyList();
+        }
+        return sweep();
+    }
+
+    private List<Upload> sweep() {
+        final long now = _nanoClock.getAsLong();
+        final List<Upload> evicted = new ArrayList<>();
+        for (Upload upload : _uploads.values()) {
+            // Checked and evicted under the upload's lock, so it can't be acquired in between
+            synchronized (upload) {
+                if (upload._users > 0 || now - upload._lastUsedNanos <= _idleTimeoutNanos) {
+                    continue;
+                }
+                if (!_uploads.remove(upload._uploadId, upload)) {
+                    continue;
+                }
+                upload.destroy();
+            }
+            _evictedUploads.incrementAndGet();
+            evicted.add(upload);
+        }
+        return evicted;
+    }
+
+    public int maxUploads() {
+        return _maxUploads;
+    }
+
+    public Duration idleTimeout() {
+        return Duration.ofNanos(_idleTimeoutNanos);
+    }
+
+    /**
+     * @return a snapshot of the uploads registered, evicted and turned away so far
+     */
+    public Metrics metrics() {
+        return new Metrics(this);
+    }
+
+    /**
+     * An upload in progress.
+     */
+    public static final class Upload {
+        private final String _uploadId;
+        private final String _bucket;
+        private final String _key;
+        private final MultipartUploadMaterials _materials;
+        private volatile long _lastUsedNanos;
+        // Guarded by this
+        private int _users;
+        // Guarded by this
+        private boolean _destroyed;
+
+        private Upload(final String uploadId, final String bucket, final String key,
+                       final MultipartUploadMaterials materials, final long lastUsedNanos) {
+            _uploadId = uploadId;
+            _bucket = bucket;
+            _key = key;
+            _materials = materials;
+            _lastUsedNanos = lastUsedNanos;
+        }
+
+        /**
+         * Zeroes the upload's data key once it is no longer registered.
+         */
+        private synchronized void destroy() {
+            _destroyed = true;
+            _materials.destroy();
+        }
+
+        public String uploadId() {
+            return _uploadId;
+        }
+
+        public String bucket() {
+            return _bucket;
+        }
+
+        public String key() {
+            return _key;
+        }
+    }
+
+    /**
+     * A snapshot of the registry's counters.
+     */
+    public static final class Metrics {
+        private final int _uploads;
+        private final int _peakUploads;
+        private final long _registeredUploads;
+        private final long _evictedUploads;
+        private final long _rejectedUploads;
+
+        private Metrics(final MultipartUploadMaterialsRegistry registry) {
+            _uploads = registry._uploads.size();
+            _peakUploads = registry._peakUploads.get();
+            _registeredUploads = registry._registeredUploads.get();
+            _evictedUploads = registry._evictedUploads.get();
+            _rejectedUploads = registry._rejectedUploads.get();
+        }
+
+        /**
+         * @return the number of uploads in progress
+         */
+        public int uploads() {
+            return _uploads;
+        }
+
+        /**
+         * @return the most uploads which have been in progress at once
+         */
+        public int peakUploads() {
+            return _peakUploads;
+        }
+
+        /**
+         * @return the number of uploads created or resumed
+         */
+        public long registeredUploads() {
+            return _registeredUploads;
+        }
+
+        /**
+         * @return the number of uploads evicted after being idle for too long
+         */
+        public long evictedUploads() {
+            return _evictedUploads;
+        }
+
+        /**
+         * @return the number of uploads turned away as the maximum were in progress
+         */
+        public long rejectedUploads() {
+            return _rejectedUploads;
+        }
+
+        @Override
+        public String toString() {
+            return "MultipartUploadMaterialsRegistry.Metrics(uploads=" + _uploads + ", peakUploads=" + _peakUploads
+                    + ", registeredUploads=" + _registeredUploads + ", evictedUploads=" + _evictedUploads
+                    + ", rejectedUploads=" + _rejectedUploads + ")";
+        }
+    }
+
+    public static class Builder {
+        private int _maxUploads = DEFAULT_MAX_UPLOADS;
+        private Duration _idleTimeout = DEFAULT_IDLE_TIMEOUT;
+        private LongSupplier _nanoClock = System::nanoTime;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the most encrypted multipart uploads which may be in progress at once.
+         * Defaults to 10,000.
+         */
+        public Builder maxUploads(int maxUploads) {
+            _maxUploads = maxUploads;
+            return this;
+        }
+
+        /**
+         * Sets how long an upload may go without a part being encrypted before it is evicted.
+         * Defaults to 24 hours.
+         */
+        public Builder idleTimeout(Duration idleTimeout) {
+            _idleTimeout = idleTimeout;
+            return this;
+        }
+
+        Builder nanoClock(LongSupplier nanoClock) {
+            _nanoClock = nanoClock;
+            return this;
+        }
+
+        public MultipartUploadMaterialsRegistry build() {
+            if (_maxUploads < 1) {
+                throw new S3EncryptionClientException("maxUploads must be at least 1: " + _maxUploads);
+            }
+            if (_idleTimeout == null || _idleTimeout.isNegative() || _idleTimeout.isZero()) {
+                throw new S3EncryptionClientException("idleTimeout must be positive: " + _idleTimeout);
+            }
+            return new MultipartUploadMaterialsRegistry(this);
+        }
+    }
+}
@@ -3,6 +3,7 @@
 package software.amazon.encryption.s3.internal;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import org.apache.commons.logging.LogFactory;
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
 import software.amazon.awssdk.core.async.AsyncRequestBody;
 import software.amazon.awssdk.core.exception.SdkClientException;
@@ -14,38 +15,61 @@ import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
 import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
 import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
 import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
 import software.amazon.awssdk.services.s3.model.SdkPartType;
 import software.amazon.awssdk.services.s3.model.UploadPartRequest;
 import software.amazon.awssdk.services.s3.model.UploadPartResponse;
 import software.amazon.awssdk.utils.IoUtils;
 import software.amazon.encryption.s3.S3EncryptionClientException;
+import software.amazon.encryption.s3.S3EncryptionClientSecurityException;
 import software.amazon.encryption.s3.algorithms.AlgorithmSuite;
+import software.amazon.encryption.s3.materials.AsyncCryptographicMaterialsManager;
 import software.amazon.encryption.s3.materials.CryptographicMaterialsManager;
+import software.amazon.encryption.s3.materials.DecryptMaterialsRequest;
+import software.amazon.encryption.s3.materials.DecryptionMaterials;
 import software.amazon.encryption.s3.materials.EncryptionMaterials;
 import software.amazon.encryption.s3.materials.EncryptionMaterialsRequest;
 
 import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import static software.amazon.encryption.s3.internal.ApiNameVersion.API_NAME_INTERCEPTOR;
 
 public class MultipartUploadObjectPipeline {
+    private static final List<String> ENCRYPTION_METADATA = Arrays.asList(
+            MetadataKeyConstants.ENCRYPTED_DATA_KEY_V2,
+            MetadataKeyConstants.ENCRYPTED_DATA_KEY_ALGORITHM,
+            MetadataKeyConstants.ENCRYPTED_DATA_KEY_CONTEXT,
+            MetadataKeyConstants.CONTENT_IV,
+            MetadataKeyConstants.CONTENT_CIPHER,
+            MetadataKeyConstants.CONTENT_CIPHER_TAG_LENGTH);
     final private S3AsyncClient _s3AsyncClient;
     final private CryptographicMaterialsManager _cryptoMaterialsManager;
     final private MultipartContentEncryptionStrategy _contentEncryptionStrategy;
     final private ContentMetadataEncodingStrategy _contentMetadataEncodingStrategy;
     /**
-     * Map of data about in progress encrypted multipart uploads.
+     * Data about in progress encrypted multipart uploads.
      */
-    private final Map<String, MultipartUploadMaterials> _multipartUploadMaterials;
+    private final MultipartUploadMaterialsRegistry _multipartUploadMaterials;
+    private final boolean _abortEvictedUploads;
+    private final int _cipherChunkSize;
+    private final ExecutorService _executorService;
 
     private MultipartUploadObjectPipeline(Builder builder) {
         this._s3AsyncClient = builder._s3AsyncClient;
@@ -53,6 +77,9 @@ public class MultipartUploadObjectPipeline {
         this._contentEncryptionStrategy = builder._contentEncryptionStrategy;
         this._contentMetadataEncodingStrategy = builder._contentMetadataEncodingStrategy;
         this._multipartUploadMaterials = builder._multipartUploadMaterials;
+        this._abortEvictedUploads = builder._abortEvictedUploads;
+        this._cipherChunkSize = builder._cipherChunkSize;
+        this._executorService = builder._executorService;
     }
 
     public static Builder builder() {
@@ -60,11 +87,28 @@ public class MultipartUploadObjectPipeline {
     }
 
     public CreateMultipartUploadResponse createMultipartUpload(CreateMultipartUploadRequest request) {
+        return createMultipartUploadAsync(request).join();
+    }
+
+    /**
+     * Creates an encrypted multipart upload without blocking on the request to S3.
+     */
+    public CompletableFuture<CreateMultipartUploadResponse> createMultipartUploadAsync(CreateMultipartUploadRequest request) {
+        onEviction(_multipartUploadMaterials.reserve());
         EncryptionMaterialsRequest.Builder requestBuilder = EncryptionMaterialsRequest.builder()
                 .s3Request(request);
 
-        EncryptionMaterials materials = _cryptoMaterialsManager.getEncryptionMaterials(requestBuilder.build());
+        if (_cryptoMaterialsManager instanceof AsyncCryptographicMaterialsManager) {
+            // Nothing waits on the key provider; the upload is created once the materials arrive
+            return ((AsyncCryptographicMaterialsManager) _cryptoMaterialsManager)
+                    .getEncryptionMaterialsAsync(requestBuilder.build())
+                    .thenCompose(materials -> createMultipartUploadAsync(request, materials));
+        }
+        return createMultipartUploadAsync(request, _cryptoMaterialsManager.getEncryptionMaterials(requestBuilder.build()));
+    }
 
+    private CompletableFuture<CreateMultipartUploadResponse> createMultipartUploadAsync(CreateMultipartUploadRequest request,
+                                                                                       EncryptionMaterials materials) {
         MultipartEncryptedContent encryptedContent = _contentEncryptionStrategy.initMultipartEncryption(materials);
 
         Map<String, String> metadata = new HashMap<>(request.metadata());
@@ -73,23 +117,25 @@ public class MultipartUploadObjectPipeline {
                 .overrideConfiguration(API_NAME_INTERCEPTOR)
                 .metadata(metadata).build();
 
-        CreateMultipartUploadResponse response = _s3AsyncClient.createMultipartUpload(request).join();
-
         MultipartUploadMaterials mpuMaterials = MultipartUploadMaterials.builder()
                 .fromEncryptionMaterials(materials)
                 .cipher(encryptedContent.getCipher())
+                .encryptionMetadata(encryptionMetadata(metadata))
                 .build();
 
-        _multipartUploadMaterials.put(response.uploadId(), mpuMaterials);
-
-        return response;
+        final String bucket = request.bucket();
+        final String key = request.key();
+        return _s3AsyncClient.createMultipartUpload(request).whenComplete((response, throwable) -> {
+            if (throwable == null) {
+                _multipartUploadMaterials.register(response.uploadId(), bucket, key, mpuMaterials);
+            } else {
+                mpuMaterials.destroy();
+            }
+        });
     }
 
     public UploadPartResponse uploadPart(UploadPartRequest request, RequestBody requestBody)
             throws AwsServiceException, SdkClientException {
-
-        final AlgorithmSuite algorithmSuite = AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF;
-        final int blockSize = algorithmSuite.cipherBlockSizeBytes();
         // Validate the partSize / contentLength in the request and requestBody
         // There is similar logic in PutEncryptedObjectPipeline,
         // but this uses non-async requestBody, so the code is not shared
@@ -110,6 +156,53 @@ public class MultipartUploadObjectPipeline {
             partContentLength = requestBody.optionalContentLength().orElse(-1L);
         }
 
+        // Without a shared executor, each part is read on a thread of its own
+        final ExecutorService executor = _executorService != null ? _executorService : Executors.newSingleThreadExecutor();
+        try {
+            final AsyncRequestBody asyncRequestBody = AsyncRequestBody.fromInputStream(
+                    requestBody.contentStreamProvider().newStream(),
+                    partContentLength, // this MUST be the original contentLength; it refers to the plaintext stream
+                    executor
+            );
+            return uploadPart(request, asyncRequestBody, partContentLength).join();
+        } finally {
+            if (executor != _executorService) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Encrypts and uploads a part without blocking; the part is read from {@code requestBody}
+     * as S3 consumes it.
+     */
+    public CompletableFuture<UploadPartResponse> uploadPartAsync(UploadPartRequest request, AsyncRequestBody requestBody) {
+        // Every failure is returned in the future, as callers compose on it rather than catch
+        try {
+            // Validate the partSize / contentLength in the request and requestBody
+            final long partContentLength;
+            if (request.contentLength() != null) {
+                if (requestBody.contentLength().isPresent() && !request.contentLength().equals(requestBody.contentLength().get())) {
+                    // if the contentLength values do not match, throw an exception, since we don't know which is correct
+                    throw new S3EncryptionClientException("The contentLength provided in the request object MUST match the " +
+                            "contentLength in the request body");
+                }
+                partContentLength = request.contentLength();
+            } else {
+                partContentLength = requestBody.contentLength().orElseThrow(() -> new S3EncryptionClientException("Unbounded streams are currently not supported."));
+            }
+            return uploadPart(request, requestBody, partContentLength);
+        } catch (RuntimeException e) {
+            final CompletableFuture<UploadPartResponse> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private CompletableFuture<UploadPartResponse> uploadPart(UploadPartRequest request, AsyncRequestBody requestBody,
+                                                             long partContentLength) {
+        final AlgorithmSuite algorithmSuite = AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF;
+        final int blockSize = algorithmSuite.cipherBlockSizeBytes();
         final boolean isLastPart = request.sdkPartType() != null && request.sdkPartType().equals(SdkPartType.LAST);
         final int cipherTagLength = isLastPart ? algorithmSuite.cipherTagLengthBytes() : 0;
         final long ciphertextLength = partContentLength + cipherTagLength;
@@ -127,52 +220,50 @@ public class MultipartUploadObjectPipeline {
                 .build();
 
         final String uploadId = actualRequest.uploadId();
-        final MultipartUploadMaterials materials = _multipartUploadMaterials.get(uploadId);
-        if (materials == null) {
-            throw new S3EncryptionClientException("No client-side information available on upload ID " + uploadId);
+        onEviction(_multipartUploadMaterials.evictIdle());
+        final MultipartUploadMaterials materials = acquire(uploadId);
+        final int partNumber = actualRequest.partNumber();
+        final MultipartPartEncryptor partEncryptor;
+        try {
+            // Parts may be uploaded concurrently and in any order, as each is encrypted at its own offset;
+            // a last part is rejected if another part was already marked as the last
+            partEncryptor = materials.beginPartUpload(partNumber, partContentLength, isLastPart);
+        } catch (RuntimeException e) {
+            _multipartUploadMaterials.release(uploadId);
+            throw e;
         }
-        final UploadPartResponse response;
-        // Checks the parts are uploaded in series
-        materials.beginPartUpload(actualRequest.partNumber(), partContentLength);
-        Cipher cipher = materials.getCipher(materials.getIv());
-
-        ExecutorService singleThreadExecutor = Executors.newSingleThreadExecutor();
 
+        final CompletableFuture<UploadPartResponse> response;
         try {
-            final AsyncRequestBody cipherAsyncRequestBody = new CipherAsyncRequestBody(
-                AsyncRequestBody.fromInputStream(
-                    requestBody.contentStreamProvider().newStream(),
-                    partContentLength, // this MUST be the original contentLength; it refers to the plaintext stream
-                    singleThreadExecutor
-                ),
-                ciphertextLength, materials, cipher.getIV(), isLastPart
-            );
-
-            // Ensure we haven't already seen the last part
-            if (isLastPart) {
-                if (materials.hasFinalPartBeenSeen()) {
-                    throw new S3EncryptionClientException("This part was specified as the last part in a multipart " +
-                            "upload, but a previous part was already marked as the last part. Only the last part of the " +
-                            "upload should be marked as the last part.");
-                }
-            }
+            final AsyncRequestBody cipherAsyncRequestBody = new CipherAsyncRequestBody(requestBody,
+                    ciphertextLength, partEncryptor, _cipherChunkSize);
             // Ensures parts are not retried to avoid corrupting ciphertext
             AsyncRequestBody noRetryBody = new NoRetriesAsyncRequestBody(cipherAsyncRequestBody);
-            response =  _s3AsyncClient.uploadPart(actualRequest, noRetryBody).join();
-        } finally {
-            materials.endPartUpload();
-        }
-        if (isLastPart) {
-            materials.setHasFinalPartBeenSeen(true);
+            response = _s3AsyncClient.uploadPart(actualRequest, noRetryBody);
+        } catch (RuntimeException e) {
+            if (isLastPart) {
+                materials.setHasFinalPartBeenSeen(false);
+            }
+            materials.endPartUpload(partNumber);
+            _multipartUploadMaterials.release(uploadId);
+            throw e;
         }
-
-        singleThreadExecutor.shutdown();
-
-        return response;
+        return response.whenComplete((uploadPartResponse, throwable) -> {
+            if (throwable != null && isLastPart) {
+                // The last part may be uploaded again
+                materials.setHasFinalPartBeenSeen(false);
+            }
+            materials.endPartUpload(partNumber);
+            _multipartUploadMaterials.release(uploadId);
+        });
     }
 
     public CompleteMultipartUploadResponse completeMultipartUpload(CompleteMultipartUploadRequest request)
             throws AwsServiceException, SdkClientException {
+        return completeMultipartUploadAsync(request).join();
+    }
+
+    public CompletableFuture<CompleteMultipartUploadResponse> completeMultipartUploadAsync(CompleteMultipartUploadRequest request) {
         String uploadId = request.uploadId();
         final MultipartUploadMaterials uploadContext = _multipartUploadMaterials.get(uploadId);
 
@@ -186,27 +277,345 @@ public class MultipartUploadObjectPipeline {
                 .overrideConfiguration(API_NAME_INTERCEPTOR)
                 .build();
 
-        CompleteMultipartUploadResponse response = _s3AsyncClient.completeMultipartUpload(actualRequest).join();
-
-        _multipartUploadMaterials.remove(uploadId);
-        return response;
+        return _s3AsyncClient.completeMultipartUpload(actualRequest).thenApply(response -> {
+            _multipartUploadMaterials.remove(uploadId);
+            return response;
+        });
     }
 
     public AbortMultipartUploadResponse abortMultipartUpload(AbortMultipartUploadRequest request) {
+        return abortMultipartUploadAsync(request).join();
+    }
+
+    public CompletableFuture<AbortMultipartUploadResponse> abortMultipartUploadAsync(AbortMultipartUploadRequest request) {
         _multipartUploadMaterials.remove(request.uploadId());
         AbortMultipartUploadRequest actualRequest = request.toBuilder()
                 .overrideConfiguration(API_NAME_INTERCEPTOR)
                 .build();
-        return _s3AsyncClient.abortMultipartUpload(actualRequest).join();
+        return _s3AsyncClient.abortMultipartUpload(actualRequest);
     }
 
-    public void putLocalObject(RequestBody requestBody, String uploadId, OutputStream os) throws IOException {
+    /**
+     * Forgets an upload which is left in S3 to be resumed later from its checkpoint, zeroing
+     * its data key.
+     */
+    public void releaseMultipartUpload(String uploadId) {
+        _multipartUploadMaterials.remove(uploadId);
+    }
+
+    /**
+     * Aborts the uploads evicted from the registry after being idle, if configured to.
+     */
+    private void onEviction(final List<MultipartUploadMaterialsRegistry.Upload> evicted) {
+        for (MultipartUploadMaterialsRegistry.Upload upload : evicted) {
+            LogFactory.getLog(getClass()).warn("Evicted the encrypted multipart upload " + upload.uploadId()
+                    + " of " + upload.bucket() + "/" + upload.key() + " after it was idle for longer than "
+                    + _multipartUploadMaterials.idleTimeout());
+            if (_abortEvictedUploads) {
+                _s3AsyncClient.abortMultipartUpload(builder -> builder
+                        .overrideConfiguration(API_NAME_INTERCEPTOR)
+                        .bucket(upload.bucket())
+                        .key(upload.key())
+                        .uploadId(upload.uploadId())).whenComplete((response, throwable) -> {
+                            if (throwable != null) {
+                                LogFactory.getLog(getClass()).debug("Failed to abort multi-part upload: "
+                                        + upload.uploadId(), throwable);
+                            }
+                        });
+            }
+        }
+    }
+
+    /**
+     * @return a snapshot of the encrypted multipart uploads in progress, evicted and turned away
+     */
+    public MultipartUploadMaterialsRegistry.Metrics uploadMetrics() {
+        return _multipartUploadMaterials.metrics();
+    }
+
+    /**
+     * The entries of an object's metadata which describe how it is encrypted.
+     */
+    private static Map<String, String> encryptionMetadata(final Map<String, String> metadata) {
+        final Map<String, String> encryptionMetadata = new HashMap<>();
+        for (String name : ENCRYPTION_METADATA) {
+            if (metadata.containsKey(name)) {
+                encryptionMetadata.put(name, metadata.get(name));
+            }
+        }
+        return encryptionMetadata;
+    }
+
+    /**
+     * Starts a checkpoint of an upload created by this pipeline from the given request, for it
+     * to be resumed should this process go away.
+     */
+    public MultipartCheckpoint newCheckpoint(String uploadId, CreateMultipartUploadRequest request, long partSize,
+                                             long contentLength) {
+        return MultipartCheckpoint.builder()
+                .bucket(request.bucket())
+                .key(request.key())
+                .uploadId(uploadId)
+                .partSize(partSize)
+                .contentLength(contentLength)
+                .requestDigest(MultipartCheckpoint.requestDigest(request))
+                .encryptionMetadata(materials(uploadId).encryptionMetadata())
+                .build();
+    }
+
+    /**
+     * Records in the store that a part of the checkpoint's upload has been uploaded. A part
+     * which only holds the end of the last part is not recorded, as it is uploaded again
+     * with the last part.
+     */
+    public void checkpointPart(MultipartCheckpointStore store, MultipartCheckpoint checkpoint, int partNumber,
+                               String eTag) {
+        final MultipartCheckpoint.Part part = materials(checkpoint.uploadId()).checkpointPart(partNumber, eTag);
+        if (part != null) {
+            store.recordPart(checkpoint, part);
+        }
+    }
+
+    /**
+     * Picks up an upload from its checkpoint: decrypts the data key from the object's encryption
+     * metadata, and restores the parts which were uploaded, as S3 confirms, so the upload carries
+     * on from the first part after them. The last part is always uploaded again, as it holds the
+     * tag of the whole object.
+     *
+     * @param uploadedETags the ETags of the parts S3 has, by part number
+     * @return the number of parts restored, from part 1 on; the checkpoint keeps only those
+     */
+    public int resumeMultipartUpload(MultipartCheckpoint checkpoint, Map<Integer, String> uploadedETags) {
+        onEviction(_multipartUploadMaterials.reserve());
+        final GetObjectRequest objectRequest = GetObjectRequest.builder()
+                .bucket(checkpoint.bucket())
+                .key(checkpoint.key())
+                .build();
+        // The metadata always holds the data key, so instruction files are not needed
+        final ContentMetadata contentMetadata = new ContentMetadataDecodingStrategy(InstructionFileConfig.builder()
+                .disableInstructionFile(true)
+                .build())
+                .decode(objectRequest, GetObjectResponse.builder().metadata(checkpoint.encryptionMetadata()).build());
+        final AlgorithmSuite algorithmSuite = contentMetadata.algorithmSuite();
+        if (!AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF.equals(algorithmSuite)) {
+            throw new S3EncryptionClientException("Only AES-GCM multipart uploads can be resumed: " + algorithmSuite);
+        }
+        final DecryptionMaterials decryptionMaterials = _cryptoMaterialsManager.decryptMaterials(
+                DecryptMaterialsRequest.builder()
+                        .s3Request(objectRequest)
+                        .algorithmSuite(algorithmSuite)
+                        .encryptedDataKeys(Collections.singletonList(contentMetadata.encryptedDataKey()))
+                        .encryptionContext(contentMetadata.encryptedDataKeyContext())
+                        .build());
+
+        final Cipher cipher;
+        try {
+            cipher = CryptoFactory.createCipher(algorithmSuite.cipherName(), decryptionMaterials.cryptoProvider());
+            cipher.init(Cipher.ENCRYPT_MODE, decryptionMaterials.dataKey(),
+                    new GCMParameterSpec(algorithmSuite.cipherTagLengthBits(), contentMetadata.contentIv()));
+        } catch (GeneralSecurityException exception) {
+            throw new S3EncryptionClientException("Unable to resume the multipart upload: " + exception.getMessage(),
+                    exception);
+        }
+        final MultipartUploadMaterials materials = MultipartUploadMaterials.builder()
+                .s3Request(CreateMultipartUploadRequest.builder()
+                        .bucket(checkpoint.bucket())
+                        .key(checkpoint.key())
+                        .build())
+                .algorithmSuite(algorithmSuite)
+                .encryptionContext(decryptionMaterials.encryptionContext())
+                .plaintextDataKey(decryptionMaterials.plaintextDataKey())
+                .cryptoProvider(decryptionMaterials.cryptoProvider())
+                .cipher(cipher)
+                .encryptionMetadata(checkpoint.encryptionMetadata())
+                .build();
+
+        // Only whole parts which follow on from each other, and which S3 has, are kept
+        int restored = 0;
+        for (MultipartCheckpoint.Part part : checkpoint.parts()) {
+            final boolean isLastPart = checkpoint.contentLength() >= 0
+                    && part.offset() + part.length() >= checkpoint.contentLength();
+            if (part.partNumber() != restored + 1
+                    || part.offset() != restored * checkpoint.partSize()
+                    || part.length() != checkpoint.partSize()
+                    || isLastPart
+                    || !part.eTag().equals(uploadedETags.get(part.partNumber()))) {
+                break;
+            }
+            try {
+                materials.restorePart(part);
+            } catch (S3EncryptionClientException exception) {
+                LogFactory.getLog(getClass()).debug("Uploading part " + part.partNumber() + " again", exception);
+                break;
+            }
+            restored++;
+        }
+        checkpoint.retainPartsBefore(restored + 1);
+        _multipartUploadMaterials.register(checkpoint.uploadId(), checkpoint.bucket(), checkpoint.key(), materials);
+        return restored;
+    }
+
+    private MultipartUploadMaterials materials(final String uploadId) {
         final MultipartUploadMaterials materials = _multipartUploadMaterials.get(uploadId);
+        if (materials == null) {
+            throw noMaterials(uploadId);
+        }
+        return materials;
+    }
+
+    /**
+     * Marks the upload as in use, so it is not evicted, until it is released.
+     */
+    private MultipartUploadMaterials acquire(final String uploadId) {
+        final MultipartUploadMaterials materials = _multipartUploadMaterials.acquire(uploadId);
+        if (materials == null) {
+            throw noMaterials(uploadId);
+        }
+        return materials;
+    }
+
+    private static S3EncryptionClientException noMaterials(final String uploadId) {
+        return new S3EncryptionClientException("No client-side information available on upload ID " + uploadId
+                + "; it may have been evicted after being idle");
+    }
+
+    /**
+     * Encrypts the object into {@code os} part by part, each part with a cipher of its own
+     * starting at its offset, as {@link #uploadPart(UploadPartRequest, RequestBody)} does. Unlike
+     * one cipher over the whole object, the state between parts can be checkpointed, so the
+     * upload can be resumed from any part. The digest of each part's plaintext is recorded with
+     * it, and the plaintext of the parts before {@code firstPartNumber} is read and checked
+     * against theirs before anything is encrypted, so uploaded parts are only reused for the
+     * same content.
+     *
+     * @param partSize        the size of each part but the last, a whole number of cipher blocks
+     * @param contentLength   the length of the object
+     * @param firstPartNumber the part to start from; the parts before it have been restored
+     * @throws S3EncryptionClientSecurityException if the content of a restored part has changed
+     */
+    public void putLocalObject(RequestBody requestBody, String uploadId, OutputStream os, long partSize,
+                               long contentLength, int firstPartNumber) throws IOException {
+        final MultipartUploadMaterials materials = acquire(uploadId);
+        try {
+            putLocalObject(requestBody, materials, os, partSize, contentLength, firstPartNumber);
+        } finally {
+            _multipartUploadMaterials.release(uploadId);
+        }
+    }
+
+    private void putLocalObject(RequestBody requestBody, MultipartUploadMaterials materials, OutputStream os,
+                                long partSize, long contentLength, int firstPartNumber) throws IOException {
+        final int blockSize = materials.algorithmSuite().cipherBlockSizeBytes();
+        if (partSize % blockSize != 0) {
+            throw new S3EncryptionClientException("The part size of a resumable upload must be a multiple of the "
+                    + "cipher block size (" + blockSize + "): " + partSize);
+        }
+        if (contentLength < 0) {
+            throw new S3EncryptionClientException("Resumable uploads need the content length to be known");
+        }
+        final int chunkSize = _cipherChunkSize > 0 ? _cipherChunkSize : CipherInputStream.DEFAULT_IN_BUFFER_SIZE;
+        final MessageDigest digest = plaintextDigest();
+        try (InputStream plaintext = requestBody.contentStreamProvider().newStream()) {
+            final byte[] buffer = new byte[chunkSize];
+            long offset = 0;
+            for (int partNumber = 1; partNumber < firstPartNumber; partNumber++) {
+                readPart(plaintext, buffer, partSize, digest, null);
+                if (!materials.verifyRestoredPart(partNumber, digest.digest())) {
+                    throw new S3EncryptionClientSecurityException("The content of part " + partNumber
+                            + " differs from the part already uploaded, so the upload can't be resumed");
+                }
+                offset += partSize;
+            }
+            int partNumber = firstPartNumber;
+            do {
+                final long length = Math.min(partSize, contentLength - offset);
+                final boolean isLastPart = offset + length == contentLength;
+                // Each part has a cipher of its own, so that it can be checkpointed
+                final MultipartPartEncryptor encryptor = materials.beginPartUpload(partNumber, length, isLastPart, true);
+                try {
+                    final Cipher cipher = encryptor.cipher();
+                    readPart(plaintext, buffer, length, digest, (bytes, read) -> {
+                        final byte[] ciphertext = cipher.update(bytes, 0, read);
+                        if (ciphertext != null) {
+                            os.write(ciphertext);
+                        }
+                    });
+                    materials.recordPlaintextDigest(partNumber, digest.digest());
+                    final byte[] last = cipher.doFinal();
+                    os.write(last, 0, encryptor.finish(last, 0, last.length));
+                } catch (GeneralSecurityException exception) {
+                    throw new S3EncryptionClientException("Unable to encrypt part " + partNumber, exception);
+                } finally {
+                    materials.endPartUpload(partNumber);
+                }
+                offset += length;
+                partNumber++;
+            } while (offset < contentLength);
+            materials.setHasFinalPartBeenSeen(true);
+        } finally {
+            // This will create last part of MultiFileOutputStream upon close
+            IoUtils.closeQuietly(os, null);
+        }
+    }
+
+    /**
+     * What is done with each chunk of a part's plaintext as it is read.
+     */
+    private interface ChunkConsumer {
+        void accept(byte[] chunk, int length) throws IOException;
+    }
+
+    /**
+     * Reads the next {@code length} bytes of plaintext into the digest, handing each chunk on
+     * to the consumer, if any.
+     */
+    private static void readPart(final InputStream in, final byte[] buffer, final long length,
+                                 final MessageDigest digest, final ChunkConsumer consumer) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            final int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1) {
+                throw new S3EncryptionClientException("The content ended before its content length");
+            }
+            digest.update(buffer, 0, read);
+            if (consumer != null) {
+                consumer.accept(buffer, read);
+            }
+            remaining -= read;
+        }
+    }
+
+    private static MessageDigest plaintextDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException exception) {
+            throw new S3EncryptionClientException("Unable to digest the parts of a resumable upload", exception);
+        }
+    }
+
+    public void putLocalObject(RequestBody requestBody, String uploadId, OutputStream os) throws IOException {
+        final MultipartUploadMaterials materials = acquire(uploadId);
+        try {
+            putLocalObject(requestBody, materials, os);
+        } finally {
+            _multipartUploadMaterials.release(uploadId);
+        }
+    }
+
+    private void putLocalObject(RequestBody requestBody, MultipartUploadMaterials materials, OutputStream os)
+            throws IOException {
         Cipher cipher = materials.getCipher(materials.getIv());
-        final InputStream cipherInputStream = new AuthenticatedCipherInputStream(requestBody.contentStreamProvider().newStream(), cipher);
+        // The plaintext is read, encrypted and written in chunks of the configured size
+        final int chunkSize = _cipherChunkSize > 0 ? _cipherChunkSize : CipherInputStream.DEFAULT_IN_BUFFER_SIZE;
+        final InputStream cipherInputStream = new AuthenticatedCipherInputStream(requestBody.contentStreamProvider().newStream(),
+                cipher, chunkSize);
 
         try {
-            IoUtils.copy(cipherInputStream, os);
+            final byte[] buffer = new byte[chunkSize];
+            int length;
+            while ((length = cipherInputStream.read(buffer)) != -1) {
+                os.write(buffer, 0, length);
+            }
             materials.setHasFinalPartBeenSeen(true);
         } finally {
             // This will create last part of MultiFileOutputStream upon close
@@ -215,12 +624,14 @@ public class MultipartUploadObjectPipeline {
     }
 
     public static class Builder {
-        private final Map<String, MultipartUploadMaterials> _multipartUploadMaterials =
-                Collections.synchronizedMap(new HashMap<>());
+        private MultipartUploadMaterialsRegistry _multipartUploadMaterials;
+        private boolean _abortEvictedUploads = false;
         private final ContentMetadataEncodingStrategy _contentMetadataEncodingStrategy = new ObjectMetadataEncodingStrategy();
         private S3AsyncClient _s3AsyncClient;
         private CryptographicMaterialsManager _cryptoMaterialsManager;
         private SecureRandom _secureRandom;
+        private int _cipherChunkSize = CoalescingSubscriber.DEFAULT_TARGET_SIZE;
+        private ExecutorService _executorService;
         // To Create Cipher which is used in during uploadPart requests.
         private MultipartContentEncryptionStrategy _contentEncryptionStrategy;
 
@@ -247,12 +658,50 @@ public class MultipartUploadObjectPipeline {
             return this;
         }
 
+        public Builder cipherChunkSize(int cipherChunkSize) {
+            this._cipherChunkSize = cipherChunkSize;
+            return this;
+        }
+
+        /**
+         * The executor to read the parts given to {@link #uploadPart(UploadPartRequest, RequestBody)} on.
+         * The pipeline does not shut it down.
+         */
+        @SuppressFBWarnings(value = "EI_EXPOSE_REP2", justification = "The executor is shared with the client")
+        public Builder executorService(ExecutorService executorService) {
+            this._executorService = executorService;
+            return this;
+        }
+
+        /**
+         * The registry to keep the materials of the uploads in progress in, which bounds how
+         * many there may be and how long they may be idle. Defaults to a registry of its own
+         * with the defaults of {@link MultipartUploadMaterialsRegistry}.
+         */
+        public Builder materialsRegistry(MultipartUploadMaterialsRegistry materialsRegistry) {
+            this._multipartUploadMaterials = materialsRegistry;
+            return this;
+        }
+
+        /**
+         * Whether to abort the uploads in S3 which are evicted after being idle, rather than
+         * only forgetting their materials. Defaults to false.
+         */
+        public Builder abortEvictedUploads(boolean abortEvictedUploads) {
+            this._abortEvictedUploads = abortEvictedUploads;
+            return this;
+        }
+
         public MultipartUploadObjectPipeline build() {
+            if (_multipartUploadMaterials == null) {
+                _multipartUploadMaterials = MultipartUploadMaterialsRegistry.builder().build();
+            }
             // Default to AesGcm since it is the only active (non-legacy) content encryption strategy
             if (_contentEncryptionStrategy == null) {
                 _contentEncryptionStrategy = StreamingAesGcmContentStrategy
                         .builder()
                         .secureRandom(_secureRandom)
+                        .cipherChunkSize(_cipherChunkSize)
                         .build();
             }
             return new MultipartUploadObjectPipeline(this);
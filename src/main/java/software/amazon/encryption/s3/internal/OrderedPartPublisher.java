@@ -0,0 +1,183 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.core.async.SdkPublisher;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the parts of an object in order, while fetching up to a fixed number of
+ * parts at once. A part is only fetched once fewer than that many parts are fetched
+ * but not yet sent downstream, so at most that many parts are ever held in memory.
+ * <p>
+ * Once every part has been sent, the finisher runs (e.g. to check the object's
+ * authentication tag), and the stream completes only if it succeeds. If any part
+ * fails, the stream fails without waiting for the parts before it.
+ */
+public class OrderedPartPublisher implements SdkPublisher<ByteBuffer> {
+    /**
+     * Fetches the part with the given index, from 0.
+     */
+    public interface PartFetcher {
+        CompletableFuture<ByteBuffer> fetch(int partIndex);
+    }
+
+    /**
+     * Runs once all parts have been sent; throwing fails the stream instead of completing it.
+     */
+    public interface Finisher {
+        void finish() throws Exception;
+    }
+
+    private final int _partCount;
+    private final int _concurrency;
+    private final PartFetcher _fetcher;
+    private final Finisher _finisher;
+    private final CompletableFuture<ByteBuffer>[] _parts;
+    private final AtomicBoolean _subscribed = new AtomicBoolean(false);
+    private final AtomicInteger _wip = new AtomicInteger(0);
+    private final AtomicLong _demand = new AtomicLong(0);
+
+    private volatile Subscriber<? super ByteBuffer> _subscriber;
+    private volatile boolean _cancelled = false;
+    // Only touched within drain, which runs on one thread at a time
+    private int _nextToFetch = 0;
+    private int _nextToSend = 0;
+    private boolean _terminated = false;
+
+    @SuppressWarnings("unchecked")
+    public OrderedPartPublisher(final int partCount, final int concurrency, final PartFetcher fetcher, final Finisher finisher) {
+        _partCount = partCount;
+        _concurrency = Math.max(1, concurrency);
+        _fetcher = fetcher;
+        _finisher = finisher;
+        _parts = new CompletableFuture[partCount];
+    }
+
+    @Override
+    public void subscribe(final Subscriber<? super ByteBuffer> subscriber) {
+        if (!_subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                    // Do nothing.
+                }
+
+                @Override
+                public void cancel() {
+                    // Do nothing.
+                }
+            });
+            subscriber.onError(new IllegalStateException("This publisher only supports one subscriber"));
+            return;
+        }
+        _subscriber = subscriber;
+        subscriber.onSubscribe(new Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    _cancelled = true;
+                    subscriber.onError(new IllegalArgumentException("Demand must be positive"));
+                    return;
+                }
+                _demand.getAndUpdate(current -> Long.MAX_VALUE - current < n ? Long.MAX_VALUE : current + n);
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                _cancelled = true;
+            }
+        });
+        // Start fetching ahead of the first request
+        drain();
+    }
+
+    /**
+     * Starts fetches and sends parts as far as the window and demand allow. Called whenever
+     * either changes; only one thread runs the loop at a time, and calls made while it runs
+     * make it go round again.
+     */
+    private void drain() {
+        if (_wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            boolean progress = true;
+            while (progress && !_terminated && !_cancelled) {
+                progress = false;
+                while (_nextToFetch < _partCount && _nextToFetch - _nextToSend < _concurrency) {
+                    final int index = _nextToFetch++;
+                    CompletableFuture<ByteBuffer> part;
+                    try {
+                        part = _fetcher.fetch(index);
+                    } catch (RuntimeException exception) {
+                        part = new CompletableFuture<>();
+                        part.completeExceptionally(exception);
+                    }
+                    _parts[index] = part;
+                    part.whenComplete((ignored, error) -> drain());
+                }
+                final Throwable failure = firstFailure();
+                if (failure != null) {
+                    terminate(failure);
+                    break;
+                }
+                // Sending stops at the first part not yet fetched, to go round and fetch more
+                while (_demand.get() > 0 && _nextToSend < _nextToFetch && _parts[_nextToSend].isDone()) {
+                    final ByteBuffer part = _parts[_nextToSend].join();
+                    // Release the part as soon as it has been sent
+                    _parts[_nextToSend] = null;
+                    _nextToSend++;
+                    _demand.decrementAndGet();
+                    _subscriber.onNext(part);
+                    progress = true;
+                }
+                if (_nextToSend == _partCount) {
+                    finish();
+                }
+            }
+            missed = _wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private Throwable firstFailure() {
+        for (int i = _nextToSend; i < _nextToFetch; i++) {
+            if (_parts[i].isCompletedExceptionally()) {
+                try {
+                    _parts[i].join();
+                } catch (CompletionException exception) {
+                    return exception.getCause() != null ? exception.getCause() : exception;
+                } catch (RuntimeException exception) {
+                    return exception;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void finish() {
+        try {
+            _finisher.finish();
+        } catch (Exception exception) {
+            terminate(exception);
+            return;
+        }
+        _terminated = true;
+        _subscriber.onComplete();
+    }
+
+    private void terminate(final Throwable error) {
+        _terminated = true;
+        _subscriber.onError(error);
+    }
+}
@@ -0,0 +1,267 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import software.amazon.encryption.s3.S3EncryptionClientException;
+import software.amazon.encryption.s3.algorithms.AlgorithmSuite;
+import software.amazon.encryption.s3.legacy.internal.AesCtrUtils;
+import software.amazon.encryption.s3.materials.CryptographicMaterials;
+import software.amazon.encryption.s3.materials.DecryptionMaterials;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+
+import static software.amazon.encryption.s3.internal.GcmUtils.fromBytes;
+import static software.amazon.encryption.s3.internal.GcmUtils.multiply;
+import static software.amazon.encryption.s3.internal.GcmUtils.power;
+import static software.amazon.encryption.s3.internal.GcmUtils.toBytes;
+import static software.amazon.encryption.s3.internal.GcmUtils.xor;
+
+/**
+ * Decrypts AES-GCM content which is held in memory across several cores.
+ * <p>
+ * GCM is AES-CTR for confidentiality plus a GHASH over the ciphertext for the tag.
+ * The ciphertext is split into block-aligned tasks, and each task decrypts its range
+ * with AES-CTR starting at the range's counter block, and computes the GHASH of its
+ * ciphertext. The task GHASHes are combined by multiplying each by the power of the
+ * hash key H which accounts for the blocks after it, and the tag is checked once all
+ * tasks are done. Plaintext must not be released unless the future returned by
+ * {@link #decrypt} completes normally.
+ * <p>
+ * H is the encryption of the all-zero block under the data key, and a task's GHASH is
+ * computed with a {@link Ghash} keyed by it. No GCM encryption is ever run under the data key.
+ */
+public class ParallelGcmDecryptor {
+    /**
+     * The smallest range worth decrypting as a separate task, since each task's GHASH is
+     * combined with a handful of field multiplications. Tasks are not made larger than
+     * needed to keep every core busy.
+     */
+    static final int MIN_TASK_SIZE = 1024 * 1024;
+    private static final int MAX_TASK_SIZE = 16 * 1024 * 1024;
+    private static final int TASKS_PER_THREAD = 4;
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int BLOCK_SIZE = GcmUtils.BLOCK_SIZE;
+
+    private final DecryptionMaterials _materials;
+    private final byte[] _iv;
+    private final ForkJoinPool _pool;
+    private final int _tagLength;
+    private final int _minTaskSize;
+
+    public ParallelGcmDecryptor(final DecryptionMaterials materials, final byte[] iv, final ForkJoinPool pool) {
+        this(materials, iv, pool, MIN_TASK_SIZE);
+    }
+
+    ParallelGcmDecryptor(final DecryptionMaterials materials, final byte[] iv, final ForkJoinPool pool, final int minTaskSize) {
+        if (materials.algorithmSuite() != AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF) {
+            throw new S3EncryptionClientException("Parallel decryption is only supported for " +
+                    AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF.cipherName());
+        }
+        _materials = materials;
+        _iv = iv.clone();
+        _pool = pool;
+        _tagLength = materials.algorithmSuite().cipherTagLengthBytes();
+        _minTaskSize = minTaskSize;
+    }
+
+    /**
+     * Decrypts the ciphertext held in {@code segments} in place and verifies its tag.
+     * The segments are logically one buffer; every one but the last must be full.
+     * The ranges are decrypted on the pool and the calling thread does not wait for them.
+     * @param contentLength the length of the ciphertext, including the tag
+     * @return a future of the length of the plaintext, which starts at the start of the first
+     * segment. It fails with an {@link AEADBadTagException} if the object is truncated or the
+     * tag does not match.
+     */
+    public CompletableFuture<Long> decrypt(final ByteBuffer[] segments, final long contentLength) {
+        final long bodyLength = contentLength - _tagLength;
+        final byte[] expectedTag;
+        final long[] h;
+        try {
+            if (contentLength < _tagLength) {
+                throw new AEADBadTagException("Object ended before the authentication tag was read.");
+            }
+            expectedTag = read(segments, bodyLength, _tagLength);
+            h = hashKey();
+        } catch (final GeneralSecurityException exception) {
+            final CompletableFuture<Long> failed = new CompletableFuture<>();
+            failed.completeExceptionally(exception);
+            return failed;
+        }
+
+        final long taskSize = taskSize(bodyLength);
+        final List<CompletableFuture<long[]>> tasks = new ArrayList<>();
+        for (long start = 0; start < bodyLength; start += taskSize) {
+            final long taskStart = start;
+            final long taskEnd = Math.min(bodyLength, start + taskSize);
+            tasks.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return decryptRange(segments, 0, taskStart, taskEnd, h);
+                } catch (final GeneralSecurityException exception) {
+                    throw new CompletionException(exception);
+                }
+            }, _pool));
+        }
+
+        // Runs on the thread which completes the last task, once every range is decrypted
+        return CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            long[] ghash = new long[2];
+            for (int i = 0; i < tasks.size(); i++) {
+                final long taskBlocks = (Math.min(bodyLength, (i + 1) * taskSize) - i * taskSize + BLOCK_SIZE - 1) / BLOCK_SIZE;
+                ghash = xor(multiply(ghash, power(h, taskBlocks)), tasks.get(i).join());
+            }
+            try {
+                checkTag(ghash, bodyLength, expectedTag, h);
+            } catch (final GeneralSecurityException exception) {
+                throw new CompletionException(exception);
+            }
+            return bodyLength;
+        });
+    }
+
+    /**
+     * Decrypts one range of the object's body in place, for callers which fetch the object in
+     * ranges. {@code part} holds exactly the ciphertext starting at {@code offset}, which must be
+     * a multiple of the block size, and must not include any of the tag.
+     * @return the part's GHASH contribution, to be passed to {@link #verifyTag}
+     */
+    public long[] decryptPart(final ByteBuffer part, final long offset) throws GeneralSecurityException {
+        return decryptRange(new ByteBuffer[]{part.slice()}, offset, offset, offset + part.remaining(), hashKey());
+    }
+
+    /**
+     * Checks the tag of the whole object against the GHASH contributions of its parts.
+     * @param partHashes  the results of {@link #decryptPart}, in the order of the parts
+     * @param partLengths the length of each part
+     * @throws AEADBadTagException if the tag does not match
+     */
+    public void verifyTag(final long[][] partHashes, final long[] partLengths, final byte[] expectedTag)
+            throws GeneralSecurityException {
+        final long[] h = hashKey();
+        long[] ghash = new long[2];
+        long bodyLength = 0;
+        for (int i = 0; i < partHashes.length; i++) {
+            final long blocks = (partLengths[i] + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            ghash = xor(multiply(ghash, power(h, blocks)), partHashes[i]);
+            bodyLength += partLengths[i];
+        }
+        checkTag(ghash, bodyLength, expectedTag, h);
+    }
+
+    private void checkTag(final long[] combinedHash, final long bodyLength, final byte[] expectedTag, final long[] h)
+            throws GeneralSecurityException {
+        // Range GHASHes already carry their final multiplication by H, so only the lengths block
+        // (no AAD, then the ciphertext length in bits) is still to be added and multiplied
+        final long[] ghash = xor(combinedHash, multiply(GcmUtils.lengthsBlock(0, bodyLength), h));
+        final long[] computedTag = xor(ghash, encryptPreCounterBlock(AesCtrUtils.adjustIV(_iv, 0)));
+        if (!MessageDigest.isEqual(toBytes(computedTag), expectedTag)) {
+            throw new AEADBadTagException("Tag mismatch!");
+        }
+    }
+
+    private long taskSize(final long bodyLength) {
+        final long perThread = bodyLength / ((long) _pool.getParallelism() * TASKS_PER_THREAD);
+        final long size = Math.max(_minTaskSize, Math.min(MAX_TASK_SIZE, perThread));
+        // Tasks must start on a block boundary to start at a counter block
+        return Math.max(BLOCK_SIZE, size & ~(BLOCK_SIZE - 1));
+    }
+
+    /**
+     * Decrypts [start, end) of the body in place, where the segments hold the body from {@code base} on.
+     * @return the GHASH of the range's ciphertext, multiplied by H
+     */
+    private long[] decryptRange(final ByteBuffer[] segments, final long base, final long start, final long end,
+                                final long[] h) throws GeneralSecurityException {
+        final CryptographicMaterials ctrMaterials = _materials.toBuilder()
+                .algorithmSuite(AlgorithmSuite.ALG_AES_256_CTR_IV16_TAG16_NO_KDF)
+                .build();
+        final Cipher ctrCipher = CipherProvider.createAndInitCipher(ctrMaterials, AesCtrUtils.adjustIV(_iv, start));
+        final Ghash ghash = new Ghash(h);
+
+        final byte[] scratch = new byte[(int) Math.min(CHUNK_SIZE, end - start) + BLOCK_SIZE];
+        forEachPiece(segments, start - base, end - base, piece -> {
+            while (piece.hasRemaining()) {
+                final ByteBuffer chunk = piece.duplicate();
+                // This cast is necessary to ensure compatibility with Java 1.8/8
+                // when compiling with a newer Java version than 8
+                ((Buffer) chunk).limit(chunk.position() + Math.min(CHUNK_SIZE, piece.remaining()));
+                final int position = chunk.position();
+                // Each chunk is hashed before it is decrypted in place, while it is still in cache
+                ghash.update(chunk.duplicate());
+                // Decrypting into scratch rather than in place avoids the provider copying the input
+                final int produced = ctrCipher.update(chunk, ByteBuffer.wrap(scratch));
+                ((Buffer) chunk).position(position);
+                chunk.put(scratch, 0, produced);
+                ((Buffer) piece).position(chunk.position());
+            }
+        });
+        return multiply(ghash.finish(), h);
+    }
+
+    private interface PieceConsumer {
+        void accept(ByteBuffer piece) throws GeneralSecurityException;
+    }
+
+    /**
+     * Passes the range [start, end) of the segments as one view per segment it spans.
+     */
+    private static void forEachPiece(final ByteBuffer[] segments, final long start, final long end,
+                                     final PieceConsumer consumer) throws GeneralSecurityException {
+        long segmentStart = 0;
+        for (ByteBuffer segment : segments) {
+            final long segmentEnd = segmentStart + segment.capacity();
+            if (segmentEnd > start && segmentStart < end) {
+                final ByteBuffer piece = segment.duplicate();
+                ((Buffer) piece).limit((int) (Math.min(end, segmentEnd) - segmentStart));
+                ((Buffer) piece).position((int) (Math.max(start, segmentStart) - segmentStart));
+                consumer.accept(piece);
+            }
+            segmentStart = segmentEnd;
+        }
+    }
+
+    private static byte[] read(final ByteBuffer[] segments, final long start, final int length) throws GeneralSecurityException {
+        final byte[] bytes = new byte[length];
+        final int[] offset = {0};
+        forEachPiece(segments, start, start + length, piece -> {
+            final int pieceLength = piece.remaining();
+            piece.get(bytes, offset[0], pieceLength);
+            offset[0] += pieceLength;
+        });
+        if (offset[0] < length) {
+            throw new AEADBadTagException("Object ended before the authentication tag was read.");
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the GHASH hash key H, the encryption of the all-zero block under the data key
+     */
+    private long[] hashKey() throws GeneralSecurityException {
+        return encryptBlock(new byte[BLOCK_SIZE]);
+    }
+
+    private long[] encryptBlock(final byte[] block) throws GeneralSecurityException {
+        final Cipher ecb = CryptoFactory.createCipher("AES/ECB/NoPadding", _materials.cryptoProvider());
+        ecb.init(Cipher.ENCRYPT_MODE, _materials.dataKey());
+        return fromBytes(ecb.doFinal(block), 0);
+    }
+
+    /**
+     * Encrypts the pre-counter block J0, given the first counter block of the
+     * content, J0 + 1, as returned by {@link AesCtrUtils#adjustIV}.
+     */
+    private long[] encryptPreCounterBlock(final byte[] firstCounterBlock) throws GeneralSecurityException {
+        return encryptBlock(GcmUtils.preCounterBlock(firstCounterBlock));
+    }
+}
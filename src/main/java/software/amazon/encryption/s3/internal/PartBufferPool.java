@@ -0,0 +1,148 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import software.amazon.encryption.s3.S3EncryptionClientException;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A bounded pool of buffers to stage multipart upload parts in memory. At most
+ * {@code maxBuffers} buffers are handed out at once; acquiring one more blocks until a
+ * part has been uploaded and its buffer given back. Buffers which are given back are
+ * kept and reused for parts of the same size, so steady-state uploads allocate nothing.
+ * <p>
+ * A pool may be shared by several uploads, in which case it bounds the memory they use
+ * between them. Only buffers of the part size last asked for are kept, so uploads with
+ * different part sizes sharing a pool allocate more often, but never hold on to buffers
+ * which no part can use.
+ */
+public class PartBufferPool {
+    private final int _maxBuffers;
+    private final boolean _directBuffers;
+    private final Deque<ByteBuffer> _free = new ArrayDeque<>();
+    private int _outstanding = 0;
+    // The capacity of the buffers kept in _free
+    private int _capacity = 0;
+
+    private PartBufferPool(Builder builder) {
+        _maxBuffers = builder._maxBuffers;
+        _directBuffers = builder._directBuffers;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public int maxBuffers() {
+        return _maxBuffers;
+    }
+
+    public boolean directBuffers() {
+        return _directBuffers;
+    }
+
+    /**
+     * @return the number of buffers handed out and not yet given back
+     */
+    public synchronized int outstandingBuffers() {
+        return _outstanding;
+    }
+
+    /**
+     * Takes an empty buffer of the given capacity, blocking until one is available.
+     * @throws S3EncryptionClientException if the thread is interrupted while waiting
+     */
+    ByteBuffer acquire(final int capacity) {
+        synchronized (this) {
+            while (_outstanding >= _maxBuffers) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // Don't want to re-interrupt, so it won't cause SDK stream to be
+                    // closed in case the thread is reused for a different request
+                    throw new S3EncryptionClientException(e.getMessage(), e);
+                }
+            }
+            _outstanding++;
+            if (capacity != _capacity) {
+                // Parts of another size can't reuse the free buffers, so they are dropped
+                _capacity = capacity;
+                _free.clear();
+            }
+            final ByteBuffer free = _free.pollFirst();
+            if (free != null) {
+                // This cast is necessary to ensure compatibility with Java 1.8/8
+                // when compiling with a newer Java version than 8
+                ((Buffer) free).clear();
+                return free;
+            }
+        }
+        return _directBuffers ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Gives a buffer back to be reused once nothing reads from it any more. A buffer
+     * of another size than the parts now being staged is not kept.
+     */
+    synchronized void release(final ByteBuffer buffer) {
+        if (buffer.capacity() == _capacity) {
+            _free.addFirst(buffer);
+        }
+        returned();
+    }
+
+    /**
+     * Gives back a buffer's place in the pool without reusing the buffer, e.g. when an
+     * aborted upload may still be reading from it.
+     */
+    synchronized void discard(final ByteBuffer buffer) {
+        returned();
+    }
+
+    private void returned() {
+        _outstanding--;
+        // Never keep more idle buffers than could be handed out at once
+        while (_free.size() > _maxBuffers) {
+            _free.pollLast();
+        }
+        notifyAll();
+    }
+
+    public static class Builder {
+        private int _maxBuffers = 4;
+        private boolean _directBuffers = false;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets how many parts may be staged in memory at once, across all uploads using
+         * this pool. Must be at least 2, so a part can be uploaded while the next is
+         * written. Defaults to 4.
+         */
+        public Builder maxBuffers(int maxBuffers) {
+            _maxBuffers = maxBuffers;
+            return this;
+        }
+
+        /**
+         * When set to true, parts are staged in direct (off-heap) buffers, which the HTTP
+         * client can send without copying. Disabled by default.
+         */
+        public Builder directBuffers(boolean directBuffers) {
+            _directBuffers = directBuffers;
+            return this;
+        }
+
+        public PartBufferPool build() {
+            if (_maxBuffers < 2) {
+                throw new S3EncryptionClientException("A part buffer pool must hold at least 2 buffers");
+            }
+            return new PartBufferPool(this);
+        }
+    }
+}
@@ -3,9 +3,11 @@
 package software.amazon.encryption.s3.internal;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 
 public class PartCreationEvent {
     private final File part;
+    private final ByteBuffer content;
     private final int partNumber;
     private final boolean isLastPart;
     private final OnFileDelete fileDeleteObserver;
@@ -16,18 +18,41 @@ public class PartCreationEvent {
             throw new IllegalArgumentException("part must not be specified");
         }
         this.part = part;
+        this.content = null;
+        this.partNumber = partNumber;
+        this.isLastPart = isLastPart;
+        this.fileDeleteObserver = fileDeleteObserver;
+    }
+
+    PartCreationEvent(ByteBuffer content, int partNumber, boolean isLastPart,
+                      OnFileDelete fileDeleteObserver) {
+        if (content == null) {
+            throw new IllegalArgumentException("content must be specified");
+        }
+        this.part = null;
+        this.content = content;
         this.partNumber = partNumber;
         this.isLastPart = isLastPart;
         this.fileDeleteObserver = fileDeleteObserver;
     }
 
     /**
-     * Returns a non-null part (in the form of a file) for multipart upload.
+     * Returns the part (in the form of a file) for multipart upload;
+     * or null if the part is staged in memory.
      */
     public File getPart() {
         return part;
     }
 
+    /**
+     * Returns the part, from its position to its limit, if it is staged in memory;
+     * or null if it is staged in a file. The observer is told once the part has been
+     * uploaded, after which the buffer must no longer be read.
+     */
+    public ByteBuffer getContent() {
+        return content;
+    }
+
     public int getPartNumber() {
         return partNumber;
     }
@@ -0,0 +1,50 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import java.io.OutputStream;
+
+/**
+ * An output stream which stages the encrypted content of a multipart putObject as parts,
+ * handing each part to an {@link UploadObjectObserver} once it is complete. Parts are given
+ * to the observer as {@link PartCreationEvent}s, which carry the part's content in whatever
+ * form it is staged in.
+ *
+ * @see MultiFileOutputStream
+ * @see MemoryPartOutputStream
+ */
+public abstract class PartOutputStream extends OutputStream {
+    static final int DEFAULT_PART_SIZE = 5 << 20; // 5MB
+
+    /**
+     * Used to initialize this stream. This method is an SPI (service provider
+     * interface) that is called from <code>S3EncryptionClient</code>.
+     * <p>
+     * Implementation of this method should never block.
+     *
+     * @param observer  the upload object observer
+     * @param partSize  part size for multipart upload
+     * @param diskLimit the maximum disk space to be used for this multipart upload
+     * @return this object
+     */
+    public abstract PartOutputStream init(UploadObjectObserver observer, long partSize, long diskLimit);
+
+    /**
+     * Releases whatever holds the parts which were not uploaded, e.g. because the upload
+     * failed or was aborted.
+     */
+    public abstract void cleanup();
+
+    /**
+     * @return the number of parts staged so far
+     */
+    public abstract int getNumFilesWritten();
+
+    public abstract long getPartSize();
+
+    public abstract long getTotalBytesWritten();
+
+    public abstract boolean isClosed();
+
+    public abstract long getDiskLimit();
+}
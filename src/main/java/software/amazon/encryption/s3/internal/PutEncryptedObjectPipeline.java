@@ -4,11 +4,14 @@ package software.amazon.encryption.s3.internal;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 import software.amazon.awssdk.services.s3.model.PutObjectResponse;
 import software.amazon.encryption.s3.S3EncryptionClientException;
 import software.amazon.encryption.s3.algorithms.AlgorithmSuite;
+import software.amazon.encryption.s3.materials.AsyncCryptographicMaterialsManager;
 import software.amazon.encryption.s3.materials.CryptographicMaterialsManager;
 import software.amazon.encryption.s3.materials.EncryptionMaterials;
 import software.amazon.encryption.s3.materials.EncryptionMaterialsRequest;
@@ -16,6 +19,7 @@ import software.amazon.encryption.s3.materials.EncryptionMaterialsRequest;
 import java.security.SecureRandom;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 
 import static software.amazon.encryption.s3.internal.ApiNameVersion.API_NAME_INTERCEPTOR;
@@ -23,8 +27,10 @@ import static software.amazon.encryption.s3.internal.ApiNameVersion.API_NAME_INT
 public class PutEncryptedObjectPipeline {
 
     final private S3AsyncClient _s3AsyncClient;
+    final private S3Client _s3Client;
     final private CryptographicMaterialsManager _cryptoMaterialsManager;
     final private AsyncContentEncryptionStrategy _asyncContentEncryptionStrategy;
+    final private ContentEncryptionStrategy _contentEncryptionStrategy;
     final private ContentMetadataEncodingStrategy _contentMetadataEncodingStrategy;
 
     public static Builder builder() {
@@ -33,19 +39,54 @@ public class PutEncryptedObjectPipeline {
 
     private PutEncryptedObjectPipeline(Builder builder) {
         this._s3AsyncClient = builder._s3AsyncClient;
+        this._s3Client = builder._s3Client;
         this._cryptoMaterialsManager = builder._cryptoMaterialsManager;
         this._asyncContentEncryptionStrategy = builder._asyncContentEncryptionStrategy;
+        this._contentEncryptionStrategy = builder._contentEncryptionStrategy;
         this._contentMetadataEncodingStrategy = builder._contentMetadataEncodingStrategy;
     }
 
     public CompletableFuture<PutObjectResponse> putObject(PutObjectRequest request, AsyncRequestBody requestBody) {
+        final long contentLength = contentLength(request, requestBody.contentLength());
+        if (_cryptoMaterialsManager instanceof AsyncCryptographicMaterialsManager) {
+            // Nothing waits on the key provider; the upload starts once the materials arrive
+            return ((AsyncCryptographicMaterialsManager) _cryptoMaterialsManager)
+                    .getEncryptionMaterialsAsync(encryptionMaterialsRequest(request, contentLength))
+                    .thenCompose(materials -> putObject(request, requestBody, materials));
+        }
+        return putObject(request, requestBody, encryptionMaterials(request, contentLength));
+    }
+
+    private CompletableFuture<PutObjectResponse> putObject(PutObjectRequest request, AsyncRequestBody requestBody,
+                                                           EncryptionMaterials materials) {
+        EncryptedContent encryptedContent = _asyncContentEncryptionStrategy.encryptContent(materials, requestBody);
+
+        return _s3AsyncClient.putObject(encryptedPutRequest(request, materials, encryptedContent),
+                encryptedContent.getAsyncCiphertext());
+    }
+
+    /**
+     * Encrypts and uploads the object on the calling thread, through the synchronous client.
+     * The content is encrypted as it is read by the request, so no other thread is involved.
+     */
+    public PutObjectResponse putObject(PutObjectRequest request, RequestBody requestBody) {
+        final long contentLength = contentLength(request, requestBody.optionalContentLength());
+        EncryptionMaterials materials = encryptionMaterials(request, contentLength);
+
+        EncryptedContent encryptedContent = _contentEncryptionStrategy.encryptContent(materials, requestBody);
+
+        return _s3Client.putObject(encryptedPutRequest(request, materials, encryptedContent),
+                encryptedContent.getCiphertext());
+    }
+
+    private static long contentLength(PutObjectRequest request, Optional<Long> requestBodyLength) {
         final Long contentLength;
         if (request.contentLength() != null) {
-            if (requestBody.contentLength().isPresent() && !request.contentLength().equals(requestBody.contentLength().get())) {
+            if (requestBodyLength.isPresent() && !request.contentLength().equals(requestBodyLength.get())) {
                 // if the contentLength values do not match, throw an exception, since we don't know which is correct
                 throw new S3EncryptionClientException("The contentLength provided in the request object MUST match the " +
                         "contentLength in the request body");
-            } else if (!requestBody.contentLength().isPresent()) {
+            } else if (!requestBodyLength.isPresent()) {
                 // no contentLength in request body, use the one in request
                 contentLength = request.contentLength();
             } else {
@@ -53,38 +94,46 @@ public class PutEncryptedObjectPipeline {
                 contentLength = request.contentLength();
             }
         } else {
-            contentLength = requestBody.contentLength().orElseThrow(() -> new S3EncryptionClientException("Unbounded streams are currently not supported."));
+            contentLength = requestBodyLength.orElseThrow(() -> new S3EncryptionClientException("Unbounded streams are currently not supported."));
         }
 
         if (contentLength > AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF.cipherMaxContentLengthBytes()) {
             throw new S3EncryptionClientException("The contentLength of the object you are attempting to encrypt exceeds" +
                     "the maximum length allowed for GCM encryption.");
         }
+        return contentLength;
+    }
 
-        EncryptionMaterialsRequest encryptionMaterialsRequest = EncryptionMaterialsRequest.builder()
+    private EncryptionMaterials encryptionMaterials(PutObjectRequest request, long contentLength) {
+        return _cryptoMaterialsManager.getEncryptionMaterials(encryptionMaterialsRequest(request, contentLength));
+    }
+
+    private static EncryptionMaterialsRequest encryptionMaterialsRequest(PutObjectRequest request, long contentLength) {
+        return EncryptionMaterialsRequest.builder()
                 .s3Request(request)
                 .plaintextLength(contentLength)
                 .build();
+    }
 
-        EncryptionMaterials materials = _cryptoMaterialsManager.getEncryptionMaterials(encryptionMaterialsRequest);
-
-        EncryptedContent encryptedContent = _asyncContentEncryptionStrategy.encryptContent(materials, requestBody);
-
+    private PutObjectRequest encryptedPutRequest(PutObjectRequest request, EncryptionMaterials materials,
+                                                 EncryptedContent encryptedContent) {
         Map<String, String> metadata = new HashMap<>(request.metadata());
         metadata = _contentMetadataEncodingStrategy.encodeMetadata(materials, encryptedContent.getIv(), metadata);
-        PutObjectRequest encryptedPutRequest = request.toBuilder()
+        return request.toBuilder()
                 .overrideConfiguration(API_NAME_INTERCEPTOR)
                 .contentLength(encryptedContent.getCiphertextLength())
                 .metadata(metadata)
                 .build();
-        return _s3AsyncClient.putObject(encryptedPutRequest, encryptedContent.getAsyncCiphertext());
     }
 
     public static class Builder {
         private S3AsyncClient _s3AsyncClient;
+        private S3Client _s3Client;
         private CryptographicMaterialsManager _cryptoMaterialsManager;
         private SecureRandom _secureRandom;
+        private int _cipherChunkSize = CoalescingSubscriber.DEFAULT_TARGET_SIZE;
         private AsyncContentEncryptionStrategy _asyncContentEncryptionStrategy;
+        private ContentEncryptionStrategy _contentEncryptionStrategy;
         private final ContentMetadataEncodingStrategy _contentMetadataEncodingStrategy = new ObjectMetadataEncodingStrategy();
 
         private Builder() {
@@ -100,6 +149,16 @@ public class PutEncryptedObjectPipeline {
             return this;
         }
 
+        /**
+         * Note that this does NOT create a defensive clone of S3Client. Any modifications made to the wrapped
+         * S3Client will be reflected in this Builder.
+         */
+        @SuppressFBWarnings(value = "EI_EXPOSE_REP2", justification = "Pass mutability into wrapping client")
+        public Builder s3Client(S3Client s3Client) {
+            this._s3Client = s3Client;
+            return this;
+        }
+
         public Builder cryptoMaterialsManager(CryptographicMaterialsManager cryptoMaterialsManager) {
             this._cryptoMaterialsManager = cryptoMaterialsManager;
             return this;
@@ -110,13 +169,25 @@ public class PutEncryptedObjectPipeline {
             return this;
         }
 
+        public Builder cipherChunkSize(int cipherChunkSize) {
+            this._cipherChunkSize = cipherChunkSize;
+            return this;
+        }
+
         public PutEncryptedObjectPipeline build() {
             // Default to AesGcm since it is the only active (non-legacy) content encryption strategy
-            if (_asyncContentEncryptionStrategy == null) {
-                _asyncContentEncryptionStrategy = StreamingAesGcmContentStrategy
+            if (_asyncContentEncryptionStrategy == null || _contentEncryptionStrategy == null) {
+                StreamingAesGcmContentStrategy contentEncryptionStrategy = StreamingAesGcmContentStrategy
                         .builder()
                         .secureRandom(_secureRandom)
+                        .cipherChunkSize(_cipherChunkSize)
                         .build();
+                if (_asyncContentEncryptionStrategy == null) {
+                    _asyncContentEncryptionStrategy = contentEncryptionStrategy;
+                }
+                if (_contentEncryptionStrategy == null) {
+                    _contentEncryptionStrategy = contentEncryptionStrategy;
+                }
             }
             return new PutEncryptedObjectPipeline(this);
         }
@@ -0,0 +1,153 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * An append-only byte store with two tiers. Bytes are kept on the heap until
+ * {@code memoryLimit} bytes are held; everything after that is appended to a
+ * temporary file. Bytes are read back in the order they were written.
+ * The temporary file is deleted when the buffer is closed.
+ * <p>
+ * The buffer may be closed by one thread, e.g. when the stream is cancelled,
+ * while another reads from it, so every operation holds the buffer's lock.
+ * Once closed, reads and writes fail rather than touch a deleted file.
+ */
+public class SpillBuffer implements Closeable {
+    private static final String SPILL_FILE_PREFIX = "s3ec-spill-";
+    private static final String SPILL_FILE_SUFFIX = ".tmp";
+
+    private final long _memoryLimit;
+    private final Path _directory;
+    private final Queue<ByteBuffer> _memoryTier = new ArrayDeque<>();
+    private long _memoryBytes = 0;
+
+    private Path _spillFile;
+    private FileChannel _fileTier;
+    private long _fileBytes = 0;
+    private long _fileReadPosition = 0;
+    private boolean _spilled = false;
+    private boolean _closed = false;
+
+    /**
+     * @param memoryLimit the number of bytes to hold on the heap before spilling to disk
+     * @param directory the directory in which to create the temporary file,
+     *                  or null to use the default temporary-file directory
+     */
+    public SpillBuffer(final long memoryLimit, final Path directory) {
+        _memoryLimit = memoryLimit;
+        _directory = directory;
+    }
+
+    /**
+     * Appends bytes to the buffer. The bytes are copied, so the caller may reuse src.
+     */
+    public synchronized void write(final byte[] src, final int offset, final int length) throws IOException {
+        checkNotClosed();
+        if (length == 0) {
+            return;
+        }
+        // Once anything is spilled, all later bytes must follow it to preserve ordering
+        if (!_spilled && _memoryBytes + length <= _memoryLimit) {
+            byte[] chunk = new byte[length];
+            System.arraycopy(src, offset, chunk, 0, length);
+            _memoryTier.add(ByteBuffer.wrap(chunk));
+            _memoryBytes += length;
+            return;
+        }
+        if (_fileTier == null) {
+            openSpillFile();
+        }
+        _spilled = true;
+        ByteBuffer source = ByteBuffer.wrap(src, offset, length);
+        while (source.hasRemaining()) {
+            _fileBytes += _fileTier.write(source, _fileBytes);
+        }
+    }
+
+    /**
+     * Reads the next chunk of buffered bytes. Chunks held in memory are returned as-is;
+     * chunks read from disk are at most {@code maxChunkSize} bytes.
+     * @return the next chunk, or null if all bytes have been read
+     * @throws IOException if the buffer has been closed
+     */
+    public synchronized ByteBuffer read(final int maxChunkSize) throws IOException {
+        checkNotClosed();
+        ByteBuffer chunk = _memoryTier.poll();
+        if (chunk != null) {
+            _memoryBytes -= chunk.remaining();
+            return chunk;
+        }
+        long remaining = _fileBytes - _fileReadPosition;
+        if (remaining <= 0) {
+            return null;
+        }
+        chunk = ByteBuffer.allocate((int) Math.min(maxChunkSize, remaining));
+        while (chunk.hasRemaining()) {
+            int read = _fileTier.read(chunk, _fileReadPosition);
+            if (read < 0) {
+                throw new IOException("Spill file " + _spillFile + " ended before all buffered bytes were read");
+            }
+            _fileReadPosition += read;
+        }
+        // This cast is necessary to ensure compatibility with Java 1.8/8
+        // when compiling with a newer Java version than 8
+        ((java.nio.Buffer) chunk).flip();
+        return chunk;
+    }
+
+    /**
+     * @return true if every byte written has been read
+     */
+    public synchronized boolean isEmpty() {
+        return _memoryTier.isEmpty() && _fileBytes - _fileReadPosition <= 0;
+    }
+
+    /**
+     * @return true if any bytes have been written to disk
+     */
+    public synchronized boolean hasSpilled() {
+        return _spilled;
+    }
+
+    /**
+     * Drops any unread bytes and deletes the temporary file, if one was created.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        _closed = true;
+        _memoryTier.clear();
+        _memoryBytes = 0;
+        if (_fileTier != null) {
+            try {
+                _fileTier.close();
+            } finally {
+                Files.deleteIfExists(_spillFile);
+                _fileTier = null;
+            }
+        }
+    }
+
+    private void checkNotClosed() throws IOException {
+        if (_closed) {
+            throw new IOException("The buffer has been closed");
+        }
+    }
+
+    private void openSpillFile() throws IOException {
+        _spillFile = _directory == null
+                ? Files.createTempFile(SPILL_FILE_PREFIX, SPILL_FILE_SUFFIX)
+                : Files.createTempFile(_directory, SPILL_FILE_PREFIX, SPILL_FILE_SUFFIX);
+        _fileTier = FileChannel.open(_spillFile, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+    }
+}
@@ -0,0 +1,38 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.reactivestreams.Subscriber;
+import software.amazon.awssdk.core.async.SdkPublisher;
+import software.amazon.encryption.s3.materials.DecryptionMaterials;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+public class SpillingCipherPublisher implements SdkPublisher<ByteBuffer> {
+
+    private final SdkPublisher<ByteBuffer> wrappedPublisher;
+    private final Long contentLength;
+    private final DecryptionMaterials materials;
+    private final byte[] iv;
+    private final long bufferSize;
+    private final Path spillDirectory;
+
+    public SpillingCipherPublisher(final SdkPublisher<ByteBuffer> wrappedPublisher, final Long contentLength,
+                                   final DecryptionMaterials materials, final byte[] iv, final long bufferSize,
+                                   final Path spillDirectory) {
+        this.wrappedPublisher = wrappedPublisher;
+        this.contentLength = contentLength;
+        this.materials = materials;
+        this.iv = iv;
+        this.bufferSize = bufferSize;
+        this.spillDirectory = spillDirectory;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
+        // Wrap the (customer) subscriber in a SpillingCipherSubscriber, then subscribe it
+        // to the wrapped (ciphertext) publisher
+        wrappedPublisher.subscribe(new SpillingCipherSubscriber(subscriber, contentLength, materials, iv, bufferSize, spillDirectory));
+    }
+}
@@ -0,0 +1,238 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.encryption.s3.S3EncryptionClientException;
+import software.amazon.encryption.s3.S3EncryptionClientSecurityException;
+import software.amazon.encryption.s3.materials.DecryptionMaterials;
+
+import javax.crypto.AEADBadTagException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A subscriber which decrypts AES-GCM content of any size without releasing
+ * unauthenticated plaintext. Plaintext is held in a {@link SpillBuffer}, which
+ * keeps up to the configured buffer size on the heap and writes the rest to a
+ * temporary file. Nothing is sent downstream until the tag has been verified.
+ * <p>
+ * JCE providers may hold all GCM ciphertext in memory until doFinal, which would
+ * defeat the purpose of spilling, so decryption is done by a {@link GcmCtrDecryptor}.
+ */
+public class SpillingCipherSubscriber implements Subscriber<ByteBuffer> {
+    private static final int RELEASE_CHUNK_SIZE = 128 * 1024;
+
+    private final AtomicLong contentRead = new AtomicLong(0);
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+    private final AtomicLong demand = new AtomicLong(0);
+    private final AtomicInteger drainsPending = new AtomicInteger(0);
+    private final Subscriber<? super ByteBuffer> wrappedSubscriber;
+    private final long contentLength;
+    private final long ciphertextLength;
+    private final GcmCtrDecryptor decryptor;
+    private final byte[] expectedTag;
+    private final SpillBuffer plaintext;
+
+    private Subscription upstream;
+    private byte[] outputBuffer;
+    private volatile boolean releasing = false;
+    private volatile boolean done = false;
+
+    SpillingCipherSubscriber(Subscriber<? super ByteBuffer> wrappedSubscriber, Long contentLength, DecryptionMaterials materials,
+                             byte[] iv, long bufferSizeInBytes, Path spillDirectory) {
+        this.wrappedSubscriber = wrappedSubscriber;
+        if (contentLength == null) {
+            throw new S3EncryptionClientException("contentLength cannot be null in buffered mode. To enable unbounded " +
+                    "streaming, reconfigure the S3 Encryption Client with Delayed Authentication mode enabled.");
+        }
+        final int tagLength = materials.algorithmSuite().cipherTagLengthBytes();
+        if (contentLength < tagLength) {
+            throw new S3EncryptionClientSecurityException("The object is shorter than the authentication tag.");
+        }
+        this.contentLength = contentLength;
+        this.ciphertextLength = contentLength - tagLength;
+        this.expectedTag = new byte[tagLength];
+        this.decryptor = new GcmCtrDecryptor(materials, iv);
+        this.plaintext = new SpillBuffer(bufferSizeInBytes, spillDirectory);
+    }
+
+    @Override
+    public void onSubscribe(Subscription s) {
+        upstream = s;
+        wrappedSubscriber.onSubscribe(new Subscription() {
+            @Override
+            public void request(long n) {
+                addDemand(n);
+                if (releasing) {
+                    drain();
+                } else {
+                    upstream.request(n);
+                }
+            }
+
+            @Override
+            public void cancel() {
+                done = true;
+                upstream.cancel();
+                closeQuietly();
+            }
+        });
+    }
+
+    @Override
+    public void onNext(ByteBuffer byteBuffer) {
+        if (finished.get()) {
+            return;
+        }
+        final long readSoFar = contentRead.getAndAdd(byteBuffer.remaining());
+        final int length = (int) Math.min(byteBuffer.remaining(), Math.max(0, contentLength - readSoFar));
+        try {
+            process(byteBuffer.duplicate(), readSoFar, length);
+        } catch (IOException | GeneralSecurityException exception) {
+            fail(new S3EncryptionClientException("Unable to buffer plaintext: " + exception.getMessage(), exception));
+            return;
+        }
+
+        if (readSoFar + length >= contentLength) {
+            // All content has been read; the demand for this onNext is met by the released plaintext
+            finish();
+        } else {
+            // This avoids the subscriber waiting indefinitely for more data
+            // without actually releasing any plaintext before it can be authenticated
+            demand.decrementAndGet();
+            wrappedSubscriber.onNext(CipherSubscriber.EMPTY_BUFFER);
+        }
+    }
+
+    private void process(ByteBuffer input, long offset, int length) throws IOException, GeneralSecurityException {
+        // The ciphertext body is everything before the tag
+        int bodyLength = (int) Math.max(0, Math.min(length, ciphertextLength - offset));
+        if (bodyLength > 0) {
+            // This cast is necessary to ensure compatibility with Java 1.8/8
+            // when compiling with a newer Java version than 8
+            ((java.nio.Buffer) input).limit(input.position() + bodyLength);
+            ensureOutputCapacity(bodyLength);
+            int plaintextLength = decryptor.update(input, ByteBuffer.wrap(outputBuffer));
+            plaintext.write(outputBuffer, 0, plaintextLength);
+            ((java.nio.Buffer) input).limit(input.position() + length - bodyLength);
+        }
+        int tagBytes = length - bodyLength;
+        if (tagBytes > 0) {
+            input.get(expectedTag, (int) (offset + bodyLength - ciphertextLength), tagBytes);
+        }
+    }
+
+    private void ensureOutputCapacity(int capacity) {
+        if (outputBuffer == null || outputBuffer.length < capacity) {
+            outputBuffer = new byte[capacity];
+        }
+    }
+
+    private void finish() {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (contentRead.get() < contentLength) {
+                throw new AEADBadTagException("Object ended before the authentication tag was read.");
+            }
+            decryptor.verify(expectedTag);
+        } catch (final GeneralSecurityException exception) {
+            closeQuietly();
+            // Forward error, else the wrapped subscriber waits indefinitely
+            wrappedSubscriber.onError(exception);
+            throw new S3EncryptionClientSecurityException(exception.getMessage(), exception);
+        }
+        // The plaintext is authenticated, so it can now be released as downstream requests it
+        releasing = true;
+        drain();
+    }
+
+    /**
+     * Sends buffered plaintext downstream while there is outstanding demand, and
+     * completes as soon as all of it has been sent, whatever the demand left.
+     * Only one thread drains at a time; a request made while draining is
+     * picked up by the thread that is already draining.
+     */
+    private void drain() {
+        if (drainsPending.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            try {
+                while (!done) {
+                    if (plaintext.isEmpty()) {
+                        // Completion needs no demand
+                        done = true;
+                        closeQuietly();
+                        wrappedSubscriber.onComplete();
+                        return;
+                    }
+                    if (demand.get() <= 0) {
+                        break;
+                    }
+                    ByteBuffer chunk = plaintext.read(RELEASE_CHUNK_SIZE);
+                    demand.decrementAndGet();
+                    wrappedSubscriber.onNext(chunk);
+                }
+            } catch (IOException exception) {
+                fail(new S3EncryptionClientException("Unable to read buffered plaintext: " + exception.getMessage(), exception));
+                return;
+            }
+        } while (drainsPending.decrementAndGet() != 0);
+    }
+
+    private void addDemand(long n) {
+        long current;
+        do {
+            current = demand.get();
+            if (current == Long.MAX_VALUE) {
+                return;
+            }
+        } while (!demand.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+    }
+
+    private void fail(Throwable t) {
+        if (done) {
+            return;
+        }
+        done = true;
+        finished.set(true);
+        upstream.cancel();
+        closeQuietly();
+        wrappedSubscriber.onError(t);
+    }
+
+    boolean hasSpilled() {
+        return plaintext.hasSpilled();
+    }
+
+    private void closeQuietly() {
+        try {
+            plaintext.close();
+        } catch (IOException ignored) {
+            // The spill file is opened with DELETE_ON_CLOSE, so there is nothing left to clean up
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        done = true;
+        closeQuietly();
+        wrappedSubscriber.onError(t);
+    }
+
+    @Override
+    public void onComplete() {
+        // Normally the last onNext has already finished decryption,
+        // in which case completion is signalled once all plaintext is released.
+        finish();
+    }
+}
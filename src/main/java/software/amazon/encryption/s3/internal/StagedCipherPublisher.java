@@ -0,0 +1,32 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.reactivestreams.Subscriber;
+import software.amazon.awssdk.core.async.SdkPublisher;
+import software.amazon.encryption.s3.materials.DecryptionMaterials;
+
+import java.nio.ByteBuffer;
+
+public class StagedCipherPublisher implements SdkPublisher<ByteBuffer> {
+
+    private final SdkPublisher<ByteBuffer> wrappedPublisher;
+    private final Long contentLength;
+    private final DecryptionMaterials materials;
+    private final byte[] iv;
+
+    public StagedCipherPublisher(final SdkPublisher<ByteBuffer> wrappedPublisher, final Long contentLength,
+                                 final DecryptionMaterials materials, final byte[] iv) {
+        this.wrappedPublisher = wrappedPublisher;
+        this.contentLength = contentLength;
+        this.materials = materials;
+        this.iv = iv;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
+        // Wrap the (staging) subscriber in a StagedCipherSubscriber, then subscribe it
+        // to the wrapped (ciphertext) publisher
+        wrappedPublisher.subscribe(new StagedCipherSubscriber(subscriber, contentLength, materials, iv));
+    }
+}
@@ -0,0 +1,134 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.encryption.s3.S3EncryptionClientException;
+import software.amazon.encryption.s3.S3EncryptionClientSecurityException;
+import software.amazon.encryption.s3.materials.DecryptionMaterials;
+
+import javax.crypto.AEADBadTagException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A subscriber which decrypts AES-GCM content as it arrives, for a subscriber which stages
+ * everything it receives and only makes it visible once the stream completes, such as a
+ * {@link StagedFileResponseTransformer}. Plaintext is sent on as soon as it is decrypted, and
+ * the stream only completes once the tag has been verified; otherwise it fails.
+ * <p>
+ * JCE providers may hold all GCM ciphertext in memory until doFinal, so decryption is done by
+ * a {@link GcmCtrDecryptor}, and no more than one buffer of the object is held at once.
+ */
+public class StagedCipherSubscriber implements Subscriber<ByteBuffer> {
+    private final AtomicLong contentRead = new AtomicLong(0);
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+    private final Subscriber<? super ByteBuffer> wrappedSubscriber;
+    private final long contentLength;
+    private final long ciphertextLength;
+    private final GcmCtrDecryptor decryptor;
+    private final byte[] expectedTag;
+
+    StagedCipherSubscriber(Subscriber<? super ByteBuffer> wrappedSubscriber, Long contentLength,
+                           DecryptionMaterials materials, byte[] iv) {
+        this.wrappedSubscriber = wrappedSubscriber;
+        if (contentLength == null) {
+            throw new S3EncryptionClientException("contentLength cannot be null to decrypt into a staged output.");
+        }
+        final int tagLength = materials.algorithmSuite().cipherTagLengthBytes();
+        if (contentLength < tagLength) {
+            throw new S3EncryptionClientSecurityException("The object is shorter than the authentication tag.");
+        }
+        this.contentLength = contentLength;
+        this.ciphertextLength = contentLength - tagLength;
+        this.expectedTag = new byte[tagLength];
+        this.decryptor = new GcmCtrDecryptor(materials, iv);
+    }
+
+    @Override
+    public void onSubscribe(Subscription s) {
+        wrappedSubscriber.onSubscribe(s);
+    }
+
+    @Override
+    public void onNext(ByteBuffer byteBuffer) {
+        if (finished.get()) {
+            return;
+        }
+        final long readSoFar = contentRead.getAndAdd(byteBuffer.remaining());
+        final int length = (int) Math.min(byteBuffer.remaining(), Math.max(0, contentLength - readSoFar));
+        final ByteBuffer plaintext;
+        try {
+            plaintext = process(byteBuffer.duplicate(), readSoFar, length);
+        } catch (GeneralSecurityException exception) {
+            finished.set(true);
+            wrappedSubscriber.onError(exception);
+            throw new S3EncryptionClientSecurityException(exception.getMessage(), exception);
+        }
+
+        if (readSoFar + length >= contentLength) {
+            // All content has been read; the last plaintext goes out with the result of verification
+            finish(plaintext);
+        } else {
+            // Downstream stages the plaintext, so it is sent on before the object is authenticated
+            wrappedSubscriber.onNext(plaintext);
+        }
+    }
+
+    private ByteBuffer process(ByteBuffer input, long offset, int length) throws GeneralSecurityException {
+        // The ciphertext body is everything before the tag
+        final int bodyLength = (int) Math.max(0, Math.min(length, ciphertextLength - offset));
+        ByteBuffer plaintext = CipherSubscriber.EMPTY_BUFFER;
+        if (bodyLength > 0) {
+            // This cast is necessary to ensure compatibility with Java 1.8/8
+            // when compiling with a newer Java version than 8
+            ((java.nio.Buffer) input).limit(input.position() + bodyLength);
+            // A new buffer each time, as downstream is free to hold on to it
+            plaintext = ByteBuffer.allocate(bodyLength);
+            decryptor.update(input, plaintext);
+            ((java.nio.Buffer) plaintext).flip();
+            ((java.nio.Buffer) input).limit(input.position() + length - bodyLength);
+        }
+        final int tagBytes = length - bodyLength;
+        if (tagBytes > 0) {
+            input.get(expectedTag, (int) (offset + bodyLength - ciphertextLength), tagBytes);
+        }
+        return plaintext;
+    }
+
+    private void finish(ByteBuffer plaintext) {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (contentRead.get() < contentLength) {
+                throw new AEADBadTagException("Object ended before the authentication tag was read.");
+            }
+            // Compared in constant time
+            decryptor.verify(expectedTag);
+        } catch (final GeneralSecurityException exception) {
+            // Forward error, so downstream discards what it has staged
+            wrappedSubscriber.onError(exception);
+            throw new S3EncryptionClientSecurityException(exception.getMessage(), exception);
+        }
+        if (plaintext != null) {
+            wrappedSubscriber.onNext(plaintext);
+        }
+        wrappedSubscriber.onComplete();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        finished.set(true);
+        wrappedSubscriber.onError(t);
+    }
+
+    @Override
+    public void onComplete() {
+        // Normally the last onNext has already verified the tag and completed the stream
+        finish(null);
+    }
+}
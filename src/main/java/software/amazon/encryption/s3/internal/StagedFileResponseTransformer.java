@@ -0,0 +1,167 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.async.SdkPublisher;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.encryption.s3.S3EncryptionClientException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Writes plaintext to a temporary file next to the destination, and only moves it into place
+ * once the plaintext stream completes. The decrypting publisher only completes once the
+ * object has been authenticated, so the destination never holds unauthenticated plaintext,
+ * and the plaintext never has to be held in memory.
+ * <p>
+ * The temporary file is created when the stream starts, preallocated to the length of the
+ * ciphertext, which bounds the length of the plaintext, and written with positional writes.
+ * It is truncated to the plaintext length and atomically renamed over the destination on
+ * success, and deleted on any failure.
+ */
+public class StagedFileResponseTransformer implements AsyncResponseTransformer<GetObjectResponse, GetObjectResponse> {
+    private final Path _destination;
+
+    private volatile CompletableFuture<GetObjectResponse> _future;
+    private volatile GetObjectResponse _response;
+    private volatile Path _stagingFile;
+
+    public StagedFileResponseTransformer(final Path destination) {
+        _destination = destination.toAbsolutePath();
+    }
+
+    @Override
+    public CompletableFuture<GetObjectResponse> prepare() {
+        // A retried request starts over with a new staging file
+        deleteStagingFile();
+        _future = new CompletableFuture<>();
+        return _future;
+    }
+
+    @Override
+    public void onResponse(final GetObjectResponse response) {
+        _response = response;
+    }
+
+    @Override
+    public void onStream(final SdkPublisher<ByteBuffer> publisher) {
+        final FileChannel channel;
+        try {
+            // The staging file must be in the same directory for the rename to be atomic
+            _stagingFile = Files.createTempFile(_destination.getParent(), "." + _destination.getFileName(), ".tmp");
+            channel = FileChannel.open(_stagingFile, StandardOpenOption.WRITE);
+            final Long contentLength = _response.contentLength();
+            if (contentLength != null && contentLength > 0) {
+                channel.write(ByteBuffer.allocate(1), contentLength - 1);
+            }
+        } catch (IOException exception) {
+            fail(new S3EncryptionClientException("Unable to create a staging file for " + _destination, exception));
+            publisher.subscribe(new CancellingSubscriber());
+            return;
+        }
+        publisher.subscribe(new FileWritingSubscriber(channel));
+    }
+
+    @Override
+    public void exceptionOccurred(final Throwable error) {
+        fail(error);
+    }
+
+    private void fail(final Throwable error) {
+        deleteStagingFile();
+        _future.completeExceptionally(error);
+    }
+
+    private void deleteStagingFile() {
+        final Path stagingFile = _stagingFile;
+        _stagingFile = null;
+        if (stagingFile != null) {
+            try {
+                Files.deleteIfExists(stagingFile);
+            } catch (IOException ignored) {
+                // Best effort; the staging file is hidden and named after the destination
+            }
+        }
+    }
+
+    private void commit(final Path stagingFile) throws IOException {
+        try {
+            Files.move(stagingFile, _destination, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException exception) {
+            Files.move(stagingFile, _destination, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private class FileWritingSubscriber implements Subscriber<ByteBuffer> {
+        private final FileChannel _channel;
+        private Subscription _subscription;
+        private long _position = 0;
+
+        FileWritingSubscriber(final FileChannel channel) {
+            _channel = channel;
+        }
+
+        @Override
+        public void onSubscribe(final Subscription subscription) {
+            _subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(final ByteBuffer byteBuffer) {
+            try {
+                while (byteBuffer.hasRemaining()) {
+                    _position += _channel.write(byteBuffer, _position);
+                }
+            } catch (IOException exception) {
+                _subscription.cancel();
+                onError(new S3EncryptionClientException("Unable to write to " + _stagingFile, exception));
+                return;
+            }
+            _subscription.request(1);
+        }
+
+        @Override
+        public void onError(final Throwable throwable) {
+            close();
+            fail(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            final Path stagingFile = _stagingFile;
+            try {
+                // Drop the unused end of the preallocation, and make the content durable before it is visible
+                _channel.truncate(_position);
+                _channel.force(true);
+                _channel.close();
+                commit(stagingFile);
+            } catch (IOException exception) {
+                close();
+                fail(new S3EncryptionClientException("Unable to move the downloaded object to " + _destination, exception));
+                return;
+            }
+            _stagingFile = null;
+            _future.complete(_response);
+        }
+
+        private void close() {
+            try {
+                _channel.close();
+            } catch (IOException ignored) {
+                // The staging file is deleted regardless
+            }
+        }
+    }
+}
@@ -4,6 +4,7 @@ package software.amazon.encryption.s3.internal;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.encryption.s3.S3EncryptionClientException;
 import software.amazon.encryption.s3.algorithms.AlgorithmSuite;
 import software.amazon.encryption.s3.materials.EncryptionMaterials;
@@ -11,12 +12,15 @@ import software.amazon.encryption.s3.materials.EncryptionMaterials;
 import javax.crypto.Cipher;
 import java.security.SecureRandom;
 
-public class StreamingAesGcmContentStrategy implements AsyncContentEncryptionStrategy, MultipartContentEncryptionStrategy {
+public class StreamingAesGcmContentStrategy implements AsyncContentEncryptionStrategy, ContentEncryptionStrategy,
+        MultipartContentEncryptionStrategy {
 
     final private SecureRandom _secureRandom;
+    final private int _cipherChunkSize;
 
     private StreamingAesGcmContentStrategy(Builder builder) {
         this._secureRandom = builder._secureRandom;
+        this._cipherChunkSize = builder._cipherChunkSize;
     }
 
     public static Builder builder() {
@@ -47,12 +51,34 @@ public class StreamingAesGcmContentStrategy implements AsyncContentEncryptionStr
         final byte[] iv = new byte[materials.algorithmSuite().iVLengthBytes()];
         _secureRandom.nextBytes(iv);
 
-        AsyncRequestBody encryptedAsyncRequestBody = new CipherAsyncRequestBody(content, materials.getCiphertextLength(), materials, iv);
+        AsyncRequestBody encryptedAsyncRequestBody = new CipherAsyncRequestBody(content, materials.getCiphertextLength(), materials, iv,
+                true, _cipherChunkSize);
         return new EncryptedContent(iv, encryptedAsyncRequestBody, materials.getCiphertextLength());
     }
 
+    @Override
+    public EncryptedContent encryptContent(EncryptionMaterials materials, RequestBody content) {
+        if (materials.getPlaintextLength() > AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF.cipherMaxContentLengthBytes()) {
+            throw new S3EncryptionClientException("The contentLength of the object you are attempting to encrypt exceeds" +
+                    "the maximum length allowed for GCM encryption.");
+        }
+
+        final byte[] iv = new byte[materials.algorithmSuite().iVLengthBytes()];
+        _secureRandom.nextBytes(iv);
+
+        // The plaintext is read, encrypted and sent in chunks of the configured size
+        final int chunkSize = _cipherChunkSize > 0 ? _cipherChunkSize : CipherInputStream.DEFAULT_IN_BUFFER_SIZE;
+        // Each stream, e.g. for a retried request, encrypts the same content again with a new cipher
+        RequestBody encryptedRequestBody = RequestBody.fromContentProvider(
+                () -> new AuthenticatedCipherInputStream(content.contentStreamProvider().newStream(),
+                        CipherProvider.createAndInitCipher(materials, iv), chunkSize),
+                materials.getCiphertextLength(), content.contentType());
+        return new EncryptedContent(iv, encryptedRequestBody, materials.getCiphertextLength());
+    }
+
     public static class Builder {
         private SecureRandom _secureRandom = new SecureRandom();
+        private int _cipherChunkSize = CoalescingSubscriber.DEFAULT_TARGET_SIZE;
 
         private Builder() {
         }
@@ -70,6 +96,11 @@ public class StreamingAesGcmContentStrategy implements AsyncContentEncryptionStr
             return this;
         }
 
+        public Builder cipherChunkSize(int cipherChunkSize) {
+            _cipherChunkSize = cipherChunkSize;
+            return this;
+        }
+
         public StreamingAesGcmContentStrategy build() {
             return new StreamingAesGcmContentStrategy(this);
         }
@@ -0,0 +1,383 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.apache.commons.logging.LogFactory;
+import software.amazon.encryption.s3.S3EncryptionClientException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Stages the encrypted parts of a multipart putObject in temporary files spread across
+ * several directories, e.g. one per local disk, so that parts are written (and read back
+ * for upload) at the combined bandwidth of the disks rather than that of one.
+ * <p>
+ * Each part file is written with positional {@link FileChannel} writes. The disk limit applies to each directory on its own: a
+ * directory takes no new part while it holds as many parts as its limit allows, and
+ * writing blocks once every directory is full, until a part has been uploaded.
+ * <p>
+ * Can be used wherever a {@link MultiFileOutputStream} is, e.g. with
+ * {@link software.amazon.encryption.s3.materials.MultipartConfiguration.Builder#multiFileOutputStream(MultiFileOutputStream)}.
+ */
+public class StripedMultiFileOutputStream extends MultiFileOutputStream {
+    /**
+     * How the directory for each part is chosen.
+     */
+    public enum StripingPolicy {
+        /**
+         * Each part goes to the next directory in turn, skipping directories which are full.
+         */
+        ROUND_ROBIN,
+        /**
+         * Each part goes to the directory with the most usable space, of those which are not full.
+         */
+        MOST_FREE_SPACE
+    }
+
+    private final List<File> roots;
+    private final StripingPolicy policy;
+    private final String namePrefix;
+    /**
+     * The file of each part, by part number less one.
+     */
+    private final List<File> partFiles = new ArrayList<>();
+    private UploadObjectObserver observer;
+    private long partSize = DEFAULT_PART_SIZE;
+    private long diskLimit = Long.MAX_VALUE;
+    /**
+     * The number of further parts each directory may hold, guarded by this array;
+     * null means no blocking necessary.
+     */
+    private int[] diskPermits;
+    private int nextRoot;
+    private long currFileBytesWritten;
+    private long totalBytesWritten;
+    private FileChannel channel;
+    private int currRoot;
+    private boolean closed;
+
+    /**
+     * Construct an instance to stripe parts across the given directories, with the
+     * default temp file naming convention. The
+     * {@link #init(UploadObjectObserver, long, long)} must be called before
+     * this stream is considered fully initialized.
+     */
+    public StripedMultiFileOutputStream(List<File> roots, StripingPolicy policy) {
+        this(roots, policy, yyMMdd_hhmmss() + "." + UUID.randomUUID());
+    }
+
+    /**
+     * Construct an instance to stripe parts across the given directories, and the
+     * specified prefix for temp file naming. The
+     * {@link #init(UploadObjectObserver, long, long)} must be called before
+     * this stream is considered fully initialized.
+     */
+    public StripedMultiFileOutputStream(List<File> roots, StripingPolicy policy, String namePrefix) {
+        if (roots == null || roots.isEmpty()) {
+            throw new IllegalArgumentException("Please specify at least one directory");
+        }
+        for (File root : roots) {
+            if (root == null || !root.isDirectory() || !root.canWrite()) {
+                throw new IllegalArgumentException(root
+                        + " must be a writable directory");
+            }
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("Please specify a striping policy");
+        }
+        if (namePrefix == null || namePrefix.trim().length() == 0) {
+            throw new IllegalArgumentException(
+                    "Please specify a non-empty name prefix");
+        }
+        this.roots = Collections.unmodifiableList(new ArrayList<>(roots));
+        this.policy = policy;
+        this.namePrefix = namePrefix;
+    }
+
+    /**
+     * Used to initialize this stream. This method is an SPI (service provider
+     * interface) that is called from <code>S3EncryptionClient</code>.
+     * <p>
+     * Implementation of this method should never block.
+     *
+     * @param observer  the upload object observer
+     * @param partSize  part size for multipart upload
+     * @param diskLimit the maximum disk space to be used in each directory for this multipart upload
+     * @return this object
+     */
+    @Override
+    public StripedMultiFileOutputStream init(UploadObjectObserver observer,
+                                             long partSize, long diskLimit) {
+        if (observer == null) {
+            throw new IllegalArgumentException("Observer must be specified");
+        }
+        this.observer = observer;
+        if (diskLimit < partSize << 1) {
+            throw new IllegalArgumentException(
+                    "Maximum temporary disk space must be at least twice as large as the part size: partSize="
+                            + partSize + ", diskSize=" + diskLimit);
+        }
+        this.partSize = partSize;
+        this.diskLimit = diskLimit;
+        if (diskLimit != Long.MAX_VALUE) {
+            final int max = (int) Math.min(Integer.MAX_VALUE, diskLimit / partSize);
+            diskPermits = new int[roots.size()];
+            Arrays.fill(diskPermits, max);
+        }
+        return this;
+    }
+
+    /**
+     * This method would block as necessary if every directory is full.
+     */
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    /**
+     * This method would block as necessary if every directory is full.
+     */
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    /**
+     * This method would block as necessary if every directory is full.
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            final FileChannel part = channel();
+            final int length = (int) Math.min(len, partSize - currFileBytesWritten);
+            final ByteBuffer source = ByteBuffer.wrap(b, off, length);
+            while (source.hasRemaining()) {
+                currFileBytesWritten += part.write(source, currFileBytesWritten);
+            }
+            off += length;
+            len -= length;
+            totalBytesWritten += length;
+        }
+    }
+
+    /**
+     * Returns the channel of the part file to be written to, starting a new part
+     * in the next directory once the current one is full, and blocking as
+     * necessary if every directory is full.
+     */
+    private FileChannel channel() throws IOException {
+        if (closed) {
+            throw new IOException("Output stream is already closed");
+        }
+        if (channel == null || currFileBytesWritten >= partSize) {
+            if (channel != null) {
+                finishPart(false);
+            }
+            currRoot = acquireRoot();
+            final File file = new File(roots.get(currRoot), namePrefix + "." + (partFiles.size() + 1));
+            partFiles.add(file);
+            currFileBytesWritten = 0;
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        return channel;
+    }
+
+    /**
+     * Closes the current part file and hands it on to the observer.
+     */
+    private void finishPart(boolean isLastPart) throws IOException {
+        final File file = partFiles.get(partFiles.size() - 1);
+        final int root = currRoot;
+        try {
+            channel.close();
+        } finally {
+            channel = null;
+        }
+        if (isLastPart && currFileBytesWritten == 0) {
+            if (!file.delete()) {
+                LogFactory.getLog(getClass()).debug(
+                        "Ignoring failure to delete empty file " + file);
+            }
+            releaseRoot(root);
+            return;
+        }
+        // notify about the new file ready for processing; the part's directory
+        // takes another part once this one has been uploaded and deleted
+        observer.onPartCreate(new PartCreationEvent(file, partFiles.size(), isLastPart, event -> releaseRoot(root)));
+    }
+
+    /**
+     * Chooses the directory for the next part, blocking the running thread while every directory is full.
+     *
+     * @throws S3EncryptionClientException if the running thread is interrupted while waiting
+     */
+    private int acquireRoot() {
+        if (diskPermits == null) {
+            return chooseRoot();
+        }
+        synchronized (diskPermits) {
+            int root;
+            while ((root = chooseRoot()) < 0) {
+                try {
+                    diskPermits.wait();
+                } catch (InterruptedException e) {
+                    // Don't want to re-interrupt, so it won't cause SDK stream to be
+                    // closed in case the thread is reused for a different request
+                    throw new S3EncryptionClientException(e.getMessage(), e);
+                }
+            }
+            diskPermits[root]--;
+            return root;
+        }
+    }
+
+    /**
+     * @return the directory for the next part under the striping policy, of those
+     *         which are not full, or -1 if every directory is full
+     */
+    private int chooseRoot() {
+        int chosen = -1;
+        long mostSpace = -1;
+        for (int i = 0; i < roots.size(); i++) {
+            final int root = (nextRoot + i) % roots.size();
+            if (diskPermits != null && diskPermits[root] <= 0) {
+                continue;
+            }
+            if (policy == StripingPolicy.ROUND_ROBIN) {
+                chosen = root;
+                break;
+            }
+            final long space = roots.get(root).getUsableSpace();
+            if (space > mostSpace) {
+                mostSpace = space;
+                chosen = root;
+            }
+        }
+        if (chosen >= 0) {
+            nextRoot = (chosen + 1) % roots.size();
+        }
+        return chosen;
+    }
+
+    private void releaseRoot(int root) {
+        if (diskPermits == null) {
+            return;
+        }
+        synchronized (diskPermits) {
+            diskPermits[root]++;
+            diskPermits.notifyAll();
+        }
+    }
+
+    @Override
+    public void onFileDelete(FileDeletionEvent event) {
+        // Each part gives back its directory's permit through its own observer; see finishPart
+    }
+
+    @Override
+    public void flush() {
+        // Parts are written with positional writes, which are not buffered
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (channel != null) {
+            finishPart(true);
+        }
+    }
+
+    @Override
+    public void cleanup() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // The file is deleted regardless
+            }
+            channel = null;
+        }
+        for (File f : partFiles) {
+            if (f.exists()) {
+                if (!f.delete()) {
+                    LogFactory.getLog(getClass()).debug(
+                            "Ignoring failure to delete file " + f);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of part files written so far
+     */
+    @Override
+    public int getNumFilesWritten() {
+        return partFiles.size();
+    }
+
+    /**
+     * @return the file of the given part, numbered from 1
+     */
+    @Override
+    public File getFile(int partNumber) {
+        return partFiles.get(partNumber - 1);
+    }
+
+    @Override
+    public long getPartSize() {
+        return partSize;
+    }
+
+    /**
+     * @return the first of the directories parts are striped across
+     */
+    @Override
+    public File getRoot() {
+        return roots.get(0);
+    }
+
+    public List<File> getRoots() {
+        return roots;
+    }
+
+    public StripingPolicy getStripingPolicy() {
+        return policy;
+    }
+
+    @Override
+    public String getNamePrefix() {
+        return namePrefix;
+    }
+
+    @Override
+    public long getTotalBytesWritten() {
+        return totalBytesWritten;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return the maximum disk space to be used in each directory
+     */
+    @Override
+    public long getDiskLimit() {
+        return diskLimit;
+    }
+}
@@ -16,67 +16,322 @@ import software.amazon.encryption.s3.S3EncryptionClient;
 import software.amazon.encryption.s3.S3EncryptionClientException;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
+/**
+ * Uploads the parts of a multipart putObject as they are staged, while the rest of the
+ * object is still being encrypted. At most {@code maxPartsInFlight} parts are staged or
+ * uploading at once; staging the next part waits for one to finish, so encryption never
+ * runs further ahead of the uploads than that.
+ * <p>
+ * Parts complete in any order. On the first failure the outstanding parts are cancelled
+ * and encryption stops at the next part, so the upload can be aborted right away rather
+ * than after the rest of the object has been encrypted and uploaded.
+ */
 public class UploadObjectObserver {
     private final List<Future<Map<Integer, UploadPartResponse>>> futures = new ArrayList<>();
+    private final Map<Integer, Future<Map<Integer, UploadPartResponse>>> outstanding = new HashMap<>();
+    private final Map<Integer, UploadPartResponse> completed = new TreeMap<>();
+    // Parts which have been picked up by the executor and are being sent
+    private final Set<Integer> uploading = new HashSet<>();
     private PutObjectRequest request;
     private String uploadId;
     private S3AsyncClient s3AsyncClient;
     private S3EncryptionClient s3EncryptionClient;
     private ExecutorService es;
+    private int maxPartsInFlight = Integer.MAX_VALUE;
+    private AdaptiveConcurrency adaptiveConcurrency;
+    private Consumer<CompletedPart> partListener;
+    // Parts uploaded before a resumed upload was picked up come before the parts staged now
+    private int partNumberOffset;
+    private Throwable failure;
+    private long partsSubmitted;
+    private long partsFailed;
+    private int peakPartsInFlight;
+    private long failedAtNanos;
+    private long timeToAbortNanos = -1;
 
     public UploadObjectObserver init(PutObjectRequest req,
                                      S3AsyncClient s3AsyncClient, S3EncryptionClient s3EncryptionClient, ExecutorService es) {
+        return init(req, s3AsyncClient, s3EncryptionClient, es, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxPartsInFlight the most parts to have staged or uploading at once, which
+     *                         bounds how far encryption runs ahead of the uploads
+     */
+    public synchronized UploadObjectObserver init(PutObjectRequest req, S3AsyncClient s3AsyncClient,
+                                                  S3EncryptionClient s3EncryptionClient, ExecutorService es,
+                                                  int maxPartsInFlight) {
+        if (maxPartsInFlight < 1) {
+            throw new IllegalArgumentException("maxPartsInFlight must be at least 1");
+        }
         this.request = req;
         this.s3AsyncClient = s3AsyncClient;
         this.s3EncryptionClient = s3EncryptionClient;
         this.es = es;
+        this.maxPartsInFlight = maxPartsInFlight;
+        this.adaptiveConcurrency = null;
+        this.partListener = null;
+        this.partNumberOffset = 0;
+        // An observer may be reused for another upload
+        futures.clear();
+        outstanding.clear();
+        completed.clear();
+        failure = null;
+        partsSubmitted = 0;
+        partsFailed = 0;
+        uploading.clear();
+        peakPartsInFlight = 0;
+        timeToAbortNanos = -1;
+        return this;
+    }
+
+    /**
+     * Reports how long each part takes to upload to the given controller, which tunes how
+     * many parts the executor runs at once. Must be set after {@code init}.
+     */
+    public synchronized UploadObjectObserver adaptiveConcurrency(AdaptiveConcurrency adaptiveConcurrency) {
+        this.adaptiveConcurrency = adaptiveConcurrency;
+        return this;
+    }
+
+    /**
+     * @return the controller tuning the upload's concurrency, or null if it is fixed
+     */
+    public synchronized AdaptiveConcurrency adaptiveConcurrency() {
+        return adaptiveConcurrency;
+    }
+
+    /**
+     * Calls the given listener with each part once it has been uploaded, e.g. to checkpoint
+     * the upload. A listener which throws fails the part. Must be set after {@code init}.
+     */
+    public synchronized UploadObjectObserver partListener(Consumer<CompletedPart> partListener) {
+        this.partListener = partListener;
         return this;
     }
-    
+
+    /**
+     * Carries on an upload created earlier instead of creating one, e.g. by a process which
+     * has since gone away. The parts staged from now on follow the given parts, which S3
+     * already has, and are numbered from the part after them.
+     */
+    public synchronized void onUploadResumption(String uploadId, List<CompletedPart> uploadedParts) {
+        this.uploadId = uploadId;
+        for (CompletedPart part : uploadedParts) {
+            completed.put(part.partNumber(), UploadPartResponse.builder().eTag(part.eTag()).build());
+        }
+        this.partNumberOffset = uploadedParts.size();
+    }
+
     public String onUploadCreation(PutObjectRequest req) {
         CreateMultipartUploadResponse res =
                 s3EncryptionClient.createMultipartUpload(ConvertSDKRequests.convertRequest(req));
         return this.uploadId = res.uploadId();
     }
 
+    /**
+     * Submits the part for upload, first waiting while {@code maxPartsInFlight} parts are
+     * in flight.
+     *
+     * @throws S3EncryptionClientException if a part has failed, so the upload stops
+     */
     public void onPartCreate(PartCreationEvent event) {
         final File part = event.getPart();
+        final ByteBuffer content = event.getContent();
         final UploadPartRequest reqUploadPart =
                 newUploadPartRequest(event);
+        final int partNumber = reqUploadPart.partNumber();
         final OnFileDelete fileDeleteObserver = event.getFileDeleteObserver();
-        futures.add(es.submit(new Callable<Map<Integer, UploadPartResponse>>() {
-            @Override
-            public Map<Integer, UploadPartResponse> call() {
-                // Upload the ciphertext directly via the non-encrypting
-                // s3 client
-                try {
-                    AsyncRequestBody noRetriesBody = new NoRetriesAsyncRequestBody(AsyncRequestBody.fromFile(part));
-                    return uploadPart(reqUploadPart, noRetriesBody);
-                } catch (CompletionException e) {
-                    // Unwrap completion exception
-                    throw new S3EncryptionClientException(e.getCause().getMessage(), e.getCause());
-                } finally {
-                    // clean up part already uploaded
-                    if (!part.delete()) {
-                        LogFactory.getLog(getClass()).debug(
-                                "Ignoring failure to delete file " + part
-                                        + " which has already been uploaded");
-                    } else {
-                        if (fileDeleteObserver != null)
-                            fileDeleteObserver.onFileDelete(null);
+        final long partBytes = content != null ? content.remaining() : part.length();
+        final AdaptiveConcurrency concurrency;
+        final Consumer<CompletedPart> listener;
+        synchronized (this) {
+            concurrency = adaptiveConcurrency;
+            listener = partListener;
+            while (failure == null && outstanding.size() >= maxPartsInFlight) {
+                awaitPart();
+            }
+            throwIfFailed();
+            partsSubmitted++;
+            // Reserve the part's place before it is submitted, as it may complete straight away
+            outstanding.put(partNumber, null);
+            peakPartsInFlight = Math.max(peakPartsInFlight, outstanding.size());
+        }
+        final Future<Map<Integer, UploadPartResponse>> future;
+        try {
+            future = es.submit(new Callable<Map<Integer, UploadPartResponse>>() {
+                @Override
+                public Map<Integer, UploadPartResponse> call() {
+                    if (!onPartStart(partNumber)) {
+                        // Another part failed while this one was queued, so it is not sent
+                        releasePart(part, content, fileDeleteObserver);
+                        final CancellationException skipped = new CancellationException("Part " + partNumber
+                                + " was not uploaded as another part failed");
+                        onPartComplete(partNumber, null, skipped);
+                        throw skipped;
+                    }
+                    final long startNanos = System.nanoTime();
+                    // Upload the ciphertext directly via the non-encrypting
+                    // s3 client
+                    try {
+                        // A part staged in memory is sent straight from its buffer
+                        AsyncRequestBody partBody = content != null
+                                ? AsyncRequestBody.fromRemainingByteBufferUnsafe(content)
+                                : AsyncRequestBody.fromFile(part);
+                        AsyncRequestBody noRetriesBody = new NoRetriesAsyncRequestBody(partBody);
+                        Map<Integer, UploadPartResponse> response = uploadPart(reqUploadPart, noRetriesBody);
+                        if (concurrency != null) {
+                            concurrency.onSuccess(partBytes, System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+                        }
+                        if (listener != null) {
+                            listener.accept(CompletedPart.builder()
+                                    .partNumber(partNumber)
+                                    .eTag(response.get(partNumber).eTag())
+                                    .build());
+                        }
+                        onPartComplete(partNumber, response, null);
+                        return response;
+                    } catch (CompletionException e) {
+                        // Unwrap completion exception
+                        S3EncryptionClientException exception =
+                                new S3EncryptionClientException(e.getCause().getMessage(), e.getCause());
+                        if (concurrency != null) {
+                            concurrency.onFailure();
+                        }
+                        onPartComplete(partNumber, null, exception);
+                        throw exception;
+                    } catch (RuntimeException | Error e) {
+                        if (concurrency != null) {
+                            concurrency.onFailure();
+                        }
+                        onPartComplete(partNumber, null, e);
+                        throw e;
+                    } finally {
+                        releasePart(part, content, fileDeleteObserver);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // e.g. the executor was shut down
+            onPartComplete(partNumber, null, e);
+            throw e;
+        }
+        synchronized (this) {
+            futures.add(future);
+            if (outstanding.containsKey(partNumber)) {
+                outstanding.put(partNumber, future);
+                if (failure != null && uploading.contains(partNumber)) {
+                    // Another part failed while this one was being submitted
+                    future.cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until every part submitted so far has been uploaded, in whatever order they
+     * complete, returning as soon as one fails.
+     *
+     * @return the uploaded parts, in part number order
+     * @throws S3EncryptionClientException if a part failed, or the thread was interrupted
+     */
+    public synchronized List<CompletedPart> awaitCompletion() {
+        while (failure == null && !outstanding.isEmpty()) {
+            awaitPart();
+        }
+        throwIfFailed();
+        final List<CompletedPart> parts = new ArrayList<>(completed.size());
+        completed.forEach((partNumber, response) -> parts.add(CompletedPart.builder()
+                .partNumber(partNumber)
+                .eTag(response.eTag())
+                .build()));
+        return parts;
+    }
+
+    private void awaitPart() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            // Don't want to re-interrupt, so it won't cause SDK stream to be
+            // closed in case the thread is reused for a different request
+            throw new S3EncryptionClientException(e.getMessage(), e);
+        }
+    }
+
+    private void throwIfFailed() {
+        if (failure != null) {
+            throw new S3EncryptionClientException("Failed to upload part: " + failure.getMessage(), failure);
+        }
+    }
+
+    /**
+     * @return false if the part should not be sent, as another part has failed
+     */
+    private synchronized boolean onPartStart(int partNumber) {
+        if (failure != null) {
+            return false;
+        }
+        uploading.add(partNumber);
+        return true;
+    }
+
+    private synchronized void onPartComplete(int partNumber, Map<Integer, UploadPartResponse> response, Throwable t) {
+        outstanding.remove(partNumber);
+        uploading.remove(partNumber);
+        if (t == null) {
+            completed.putAll(response);
+        } else {
+            partsFailed++;
+            if (failure == null) {
+                failure = t;
+                failedAtNanos = System.nanoTime();
+                // Fail fast: stop the parts uploading; those still queued skip themselves, so
+                // that each part is accounted for and its staged content released
+                for (Map.Entry<Integer, Future<Map<Integer, UploadPartResponse>>> entry : outstanding.entrySet()) {
+                    if (entry.getValue() != null && uploading.contains(entry.getKey())) {
+                        entry.getValue().cancel(true);
                     }
                 }
             }
-        }));
+        }
+        notifyAll();
+    }
+
+    /**
+     * Cleans up a part which has been uploaded, or will not be.
+     */
+    private void releasePart(File part, ByteBuffer content, OnFileDelete fileDeleteObserver) {
+        if (content != null) {
+            if (fileDeleteObserver != null)
+                fileDeleteObserver.onFileDelete(null);
+        } else if (!part.delete()) {
+            LogFactory.getLog(getClass()).debug(
+                    "Ignoring failure to delete file " + part
+                            + " which has already been uploaded");
+        } else {
+            if (fileDeleteObserver != null)
+                fileDeleteObserver.onFileDelete(null);
+        }
     }
 
     public CompleteMultipartUploadResponse onCompletion(List<CompletedPart> partETags) {
@@ -88,9 +343,8 @@ public class UploadObjectObserver {
     }
 
     public void onAbort() {
-        for (Future<?> future : futures()) {
-            future.cancel(true);
-        }
+        final long abortStartedAtNanos = System.nanoTime();
+        cancelParts();
         if (uploadId != null) {
             try {
                 s3EncryptionClient.abortMultipartUpload(builder -> builder.bucket(request.bucket())
@@ -101,6 +355,20 @@ public class UploadObjectObserver {
                         .debug("Failed to abort multi-part upload: " + uploadId, e);
             }
         }
+        synchronized (this) {
+            // Timed from the first failed part, or from when the upload failed otherwise
+            timeToAbortNanos = System.nanoTime() - (failure != null ? failedAtNanos : abortStartedAtNanos);
+        }
+    }
+
+    /**
+     * Stops the parts still queued or uploading, leaving the upload itself in place, e.g. so
+     * that it can be resumed.
+     */
+    public synchronized void cancelParts() {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
     }
 
     protected UploadPartRequest newUploadPartRequest(PartCreationEvent event) {
@@ -113,7 +381,7 @@ public class UploadObjectObserver {
         return UploadPartRequest.builder()
                 .bucket(request.bucket())
                 .key(request.key())
-                .partNumber(event.getPartNumber())
+                .partNumber(event.getPartNumber() + partNumberOffset)
                 .sdkPartType(partType)
                 .uploadId(uploadId)
                 .build();
@@ -122,10 +390,123 @@ public class UploadObjectObserver {
     protected Map<Integer, UploadPartResponse> uploadPart(UploadPartRequest reqUploadPart, AsyncRequestBody requestBody) {
         // Upload the ciphertext directly via the non-encrypting
         // s3 client
-        return Collections.singletonMap(reqUploadPart.partNumber(), s3AsyncClient.uploadPart(reqUploadPart, requestBody).join());
+        final CompletableFuture<UploadPartResponse> response = s3AsyncClient.uploadPart(reqUploadPart, requestBody);
+        try {
+            return Collections.singletonMap(reqUploadPart.partNumber(), response.get());
+        } catch (InterruptedException e) {
+            // The part was cancelled, e.g. because another part failed; stop sending it
+            response.cancel(true);
+            throw new S3EncryptionClientException(e.getMessage(), e);
+        } catch (ExecutionException e) {
+            throw new CompletionException(e.getCause());
+        }
+    }
+
+    public synchronized List<Future<Map<Integer, UploadPartResponse>>> futures() {
+        return new ArrayList<>(futures);
     }
 
-    public List<Future<Map<Integer, UploadPartResponse>>> futures() {
-        return futures;
+    /**
+     * @return a snapshot of the parts of the current upload
+     */
+    public synchronized Metrics metrics() {
+        return new Metrics(this);
+    }
+
+    /**
+     * A snapshot of the parts of an upload handled by an {@link UploadObjectObserver}.
+     */
+    public static final class Metrics {
+        private final long _partsSubmitted;
+        private final long _partsCompleted;
+        private final long _partsFailed;
+        private final int _partsInFlight;
+        private final int _partsUploading;
+        private final int _peakPartsInFlight;
+        private final int _maxPartsInFlight;
+        private final long _timeToAbortNanos;
+
+        private Metrics(final UploadObjectObserver observer) {
+            _partsSubmitted = observer.partsSubmitted;
+            _partsCompleted = observer.completed.size();
+            _partsFailed = observer.partsFailed;
+            _partsInFlight = observer.outstanding.size();
+            _partsUploading = observer.uploading.size();
+            _peakPartsInFlight = observer.peakPartsInFlight;
+            _maxPartsInFlight = observer.maxPartsInFlight;
+            _timeToAbortNanos = observer.timeToAbortNanos;
+        }
+
+        /**
+         * @return the number of parts submitted for upload
+         */
+        public long partsSubmitted() {
+            return _partsSubmitted;
+        }
+
+        /**
+         * @return the number of parts uploaded
+         */
+        public long partsCompleted() {
+            return _partsCompleted;
+        }
+
+        /**
+         * @return the number of parts which failed, including those cancelled because another failed
+         */
+        public long partsFailed() {
+            return _partsFailed;
+        }
+
+        /**
+         * @return the number of parts submitted and not yet finished
+         */
+        public int partsInFlight() {
+            return _partsInFlight;
+        }
+
+        /**
+         * @return the number of parts being uploaded now
+         */
+        public int partsUploading() {
+            return _partsUploading;
+        }
+
+        /**
+         * @return the number of parts submitted but waiting for an upload slot
+         */
+        public int queuedParts() {
+            return Math.max(0, _partsInFlight - _partsUploading);
+        }
+
+        /**
+         * @return the most parts which have been in flight at once
+         */
+        public int peakPartsInFlight() {
+            return _peakPartsInFlight;
+        }
+
+        /**
+         * @return the most parts allowed in flight at once
+         */
+        public int maxPartsInFlight() {
+            return _maxPartsInFlight;
+        }
+
+        /**
+         * @return how long it took from the first failure to the upload being aborted,
+         *         or null if the upload was not aborted
+         */
+        public Duration timeToAbort() {
+            return _timeToAbortNanos < 0 ? null : Duration.ofNanos(_timeToAbortNanos);
+        }
+
+        @Override
+        public String toString() {
+            return "UploadObjectObserver.Metrics(partsSubmitted=" + _partsSubmitted + ", partsCompleted=" + _partsCompleted
+                    + ", partsFailed=" + _partsFailed + ", partsInFlight=" + _partsInFlight
+                    + ", partsUploading=" + _partsUploading + ", peakPartsInFlight=" + _peakPartsInFlight
+                    + ", maxPartsInFlight=" + _maxPartsInFlight + ", timeToAbort=" + timeToAbort() + ")";
+        }
     }
 }
\ No newline at end of file
@@ -43,10 +43,11 @@ public class AesKeyring extends S3Keyring {
 
         @Override
         public byte[] decryptDataKey(DecryptionMaterials materials, byte[] encryptedDataKey) throws GeneralSecurityException {
-            final Cipher cipher = CryptoFactory.createCipher(CIPHER_ALGORITHM, materials.cryptoProvider());
-            cipher.init(Cipher.DECRYPT_MODE, _wrappingKey);
+            return CryptoFactory.withPooledCipher(CIPHER_ALGORITHM, materials.cryptoProvider(), cipher -> {
+                cipher.init(Cipher.DECRYPT_MODE, _wrappingKey);
 
-            return cipher.doFinal(encryptedDataKey);
+                return cipher.doFinal(encryptedDataKey);
+            });
         }
     };
 
@@ -67,11 +68,12 @@ public class AesKeyring extends S3Keyring {
 
         @Override
         public byte[] decryptDataKey(DecryptionMaterials materials, byte[] encryptedDataKey) throws GeneralSecurityException {
-            final Cipher cipher = CryptoFactory.createCipher(CIPHER_ALGORITHM, materials.cryptoProvider());
-            cipher.init(Cipher.UNWRAP_MODE, _wrappingKey);
+            return CryptoFactory.withPooledCipher(CIPHER_ALGORITHM, materials.cryptoProvider(), cipher -> {
+                cipher.init(Cipher.UNWRAP_MODE, _wrappingKey);
 
-            Key plaintextKey = cipher.unwrap(encryptedDataKey, CIPHER_ALGORITHM, Cipher.SECRET_KEY);
-            return plaintextKey.getEncoded();
+                Key plaintextKey = cipher.unwrap(encryptedDataKey, CIPHER_ALGORITHM, Cipher.SECRET_KEY);
+                return plaintextKey.getEncoded();
+            });
         }
     };
 
@@ -113,12 +115,13 @@ public class AesKeyring extends S3Keyring {
             secureRandom.nextBytes(iv);
             GCMParameterSpec gcmParameterSpec = new GCMParameterSpec(TAG_LENGTH_BITS, iv);
 
-            final Cipher cipher = CryptoFactory.createCipher(CIPHER_ALGORITHM, materials.cryptoProvider());
-            cipher.init(Cipher.ENCRYPT_MODE, _wrappingKey, gcmParameterSpec, secureRandom);
+            byte[] ciphertext = CryptoFactory.withPooledCipher(CIPHER_ALGORITHM, materials.cryptoProvider(), cipher -> {
+                cipher.init(Cipher.ENCRYPT_MODE, _wrappingKey, gcmParameterSpec, secureRandom);
 
-            final byte[] aADBytes = AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF.cipherName().getBytes(StandardCharsets.UTF_8);
-            cipher.updateAAD(aADBytes);
-            byte[] ciphertext = cipher.doFinal(materials.plaintextDataKey());
+                final byte[] aADBytes = AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF.cipherName().getBytes(StandardCharsets.UTF_8);
+                cipher.updateAAD(aADBytes);
+                return cipher.doFinal(materials.plaintextDataKey());
+            });
 
             // The encrypted data key is the iv prepended to the ciphertext
             byte[] encodedBytes = new byte[iv.length + ciphertext.length];
@@ -137,12 +140,13 @@ public class AesKeyring extends S3Keyring {
             System.arraycopy(encryptedDataKey, iv.length, ciphertext, 0, ciphertext.length);
 
             GCMParameterSpec gcmParameterSpec = new GCMParameterSpec(TAG_LENGTH_BITS, iv);
-            final Cipher cipher = CryptoFactory.createCipher(CIPHER_ALGORITHM, materials.cryptoProvider());
-            cipher.init(Cipher.DECRYPT_MODE, _wrappingKey, gcmParameterSpec);
+            return CryptoFactory.withPooledCipher(CIPHER_ALGORITHM, materials.cryptoProvider(), cipher -> {
+                cipher.init(Cipher.DECRYPT_MODE, _wrappingKey, gcmParameterSpec);
 
-            final byte[] aADBytes = AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF.cipherName().getBytes(StandardCharsets.UTF_8);
-            cipher.updateAAD(aADBytes);
-            return cipher.doFinal(ciphertext);
+                final byte[] aADBytes = AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF.cipherName().getBytes(StandardCharsets.UTF_8);
+                cipher.updateAAD(aADBytes);
+                return cipher.doFinal(ciphertext);
+            });
         }
     };
 
@@ -0,0 +1,63 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.materials;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * A {@link CryptographicMaterialsManager} which gets its materials without blocking the calling
+ * thread. The async client's pipelines compose the returned futures rather than calling the
+ * key provider on the SDK's response threads.
+ * <p>
+ * The synchronous methods wait for the asynchronous ones, so an async CMM can be used wherever
+ * a CMM can.
+ */
+public interface AsyncCryptographicMaterialsManager extends CryptographicMaterialsManager {
+    CompletableFuture<EncryptionMaterials> getEncryptionMaterialsAsync(EncryptionMaterialsRequest request);
+
+    CompletableFuture<DecryptionMaterials> decryptMaterialsAsync(DecryptMaterialsRequest request);
+
+    @Override
+    default EncryptionMaterials getEncryptionMaterials(EncryptionMaterialsRequest request) {
+        return AsyncKeyring.join(getEncryptionMaterialsAsync(request));
+    }
+
+    @Override
+    default DecryptionMaterials decryptMaterials(DecryptMaterialsRequest request) {
+        return AsyncKeyring.join(decryptMaterialsAsync(request));
+    }
+
+    /**
+     * Adapts a synchronous CMM by calling it on the given executor, so that whatever it blocks
+     * on, e.g. a call to AWS KMS, holds up a thread of that executor rather than the caller's.
+     * An async CMM is returned as is.
+     */
+    static AsyncCryptographicMaterialsManager offload(final CryptographicMaterialsManager cmm, final Executor executor) {
+        if (cmm instanceof AsyncCryptographicMaterialsManager) {
+            return (AsyncCryptographicMaterialsManager) cmm;
+        }
+        return new AsyncCryptographicMaterialsManager() {
+            @Override
+            public CompletableFuture<EncryptionMaterials> getEncryptionMaterialsAsync(EncryptionMaterialsRequest request) {
+                return CompletableFuture.supplyAsync(() -> cmm.getEncryptionMaterials(request), executor);
+            }
+
+            @Override
+            public CompletableFuture<DecryptionMaterials> decryptMaterialsAsync(DecryptMaterialsRequest request) {
+                return CompletableFuture.supplyAsync(() -> cmm.decryptMaterials(request), executor);
+            }
+
+            @Override
+            public EncryptionMaterials getEncryptionMaterials(EncryptionMaterialsRequest request) {
+                // Already on a thread which may block
+                return cmm.getEncryptionMaterials(request);
+            }
+
+            @Override
+            public DecryptionMaterials decryptMaterials(DecryptMaterialsRequest request) {
+                return cmm.decryptMaterials(request);
+            }
+        };
+    }
+}
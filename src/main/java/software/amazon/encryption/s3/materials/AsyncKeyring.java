@@ -0,0 +1,54 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.materials;
+
+import software.amazon.encryption.s3.S3EncryptionClientException;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * A {@link Keyring} which wraps and unwraps data keys without blocking the calling thread, e.g.
+ * by calling AWS KMS through the {@code KmsAsyncClient}. The async client's pipelines compose
+ * the returned futures, so no SDK thread waits on the key provider.
+ * <p>
+ * The synchronous methods wait for the asynchronous ones, so an async keyring can be used
+ * wherever a keyring can.
+ */
+public interface AsyncKeyring extends Keyring {
+    CompletableFuture<EncryptionMaterials> onEncryptAsync(final EncryptionMaterials materials);
+
+    CompletableFuture<DecryptionMaterials> onDecryptAsync(final DecryptionMaterials materials,
+                                                          final List<EncryptedDataKey> encryptedDataKeys);
+
+    @Override
+    default EncryptionMaterials onEncrypt(final EncryptionMaterials materials) {
+        return join(onEncryptAsync(materials));
+    }
+
+    @Override
+    default DecryptionMaterials onDecrypt(final DecryptionMaterials materials,
+                                          final List<EncryptedDataKey> encryptedDataKeys) {
+        return join(onDecryptAsync(materials, encryptedDataKeys));
+    }
+
+    /**
+     * Waits for the future, rethrowing what it failed with as it would have been thrown by a
+     * synchronous keyring.
+     */
+    static <T> T join(final CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException exception) {
+            final Throwable cause = exception.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new S3EncryptionClientException(cause.getMessage(), cause);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.materials;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import software.amazon.awssdk.core.ApiName;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.kms.KmsAsyncClient;
+import software.amazon.awssdk.services.kms.model.DecryptRequest;
+import software.amazon.awssdk.services.kms.model.EncryptRequest;
+import software.amazon.awssdk.services.kms.model.GenerateDataKeyRequest;
+import software.amazon.encryption.s3.S3EncryptionClientException;
+import software.amazon.encryption.s3.internal.ApiNameVersion;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * The asynchronous counterpart of {@link KmsKeyring}, which calls AWS KMS through the
+ * {@link KmsAsyncClient}, so that no thread waits on GenerateDataKey, Encrypt or Decrypt.
+ * Objects are wrapped and unwrapped exactly as by a KmsKeyring with the same KMS key, and
+ * either keyring can decrypt what the other encrypted.
+ */
+public class AsyncKmsKeyring implements AsyncKeyring {
+
+    private static final ApiName API_NAME = ApiNameVersion.apiNameWithVersion();
+
+    private final KmsAsyncClient _kmsClient;
+    private final String _wrappingKeyId;
+    private final boolean _enableLegacyWrappingAlgorithms;
+    private final KmsDecryptSingleFlight _decryptSingleFlight = new KmsDecryptSingleFlight();
+
+    private AsyncKmsKeyring(Builder builder) {
+        _kmsClient = builder._kmsClient;
+        _wrappingKeyId = builder._wrappingKeyId;
+        _enableLegacyWrappingAlgorithms = builder._enableLegacyWrappingAlgorithms;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public CompletableFuture<EncryptionMaterials> onEncryptAsync(final EncryptionMaterials materials) {
+        final EncryptionMaterials contextMaterials;
+        try {
+            contextMaterials = KmsKeyring.withKmsEncryptionContext(materials);
+        } catch (RuntimeException exception) {
+            return failed(exception);
+        }
+
+        if (contextMaterials.plaintextDataKey() == null) {
+            return generateDataKey(contextMaterials);
+        }
+
+        // Return materials if they already have an encrypted data key.
+        if (!contextMaterials.encryptedDataKeys().isEmpty()) {
+            return CompletableFuture.completedFuture(contextMaterials);
+        }
+
+        final EncryptRequest request = EncryptRequest.builder()
+                .keyId(_wrappingKeyId)
+                .encryptionContext(contextMaterials.encryptionContext())
+                .plaintext(SdkBytes.fromByteArray(contextMaterials.plaintextDataKey()))
+                .overrideConfiguration(builder -> builder.addApiName(API_NAME))
+                .build();
+        return _kmsClient.encrypt(request).handle((response, error) -> {
+            if (error != null) {
+                throw new S3EncryptionClientException("Unable to " + KmsKeyring.KMS_CONTEXT_KEY_PROVIDER_INFO + " wrap",
+                        unwrap(error));
+            }
+            return withEncryptedDataKey(contextMaterials, response.ciphertextBlob().asByteArray()).build();
+        });
+    }
+
+    private CompletableFuture<EncryptionMaterials> generateDataKey(final EncryptionMaterials materials) {
+        final GenerateDataKeyRequest request;
+        try {
+            request = GenerateDataKeyRequest.builder()
+                    .keyId(_wrappingKeyId)
+                    .keySpec(KmsKeyring.dataKeySpec(materials.algorithmSuite()))
+                    .encryptionContext(materials.encryptionContext())
+                    .overrideConfiguration(builder -> builder.addApiName(API_NAME))
+                    .build();
+        } catch (RuntimeException exception) {
+            return failed(exception);
+        }
+        return _kmsClient.generateDataKey(request).thenApply(response ->
+                withEncryptedDataKey(materials, Objects.requireNonNull(response.ciphertextBlob().asByteArray()))
+                        .plaintextDataKey(response.plaintext().asByteArray())
+                        .build());
+    }
+
+    private static EncryptionMaterials.Builder withEncryptedDataKey(final EncryptionMaterials materials,
+                                                                   final byte[] encryptedDataKeyCiphertext) {
+        final EncryptedDataKey encryptedDataKey = EncryptedDataKey.builder()
+                .keyProviderId(S3Keyring.KEY_PROVIDER_ID)
+                .keyProviderInfo(KmsKeyring.KMS_CONTEXT_KEY_PROVIDER_INFO.getBytes(StandardCharsets.UTF_8))
+                .encryptedDataKey(encryptedDataKeyCiphertext)
+                .build();
+
+        final List<EncryptedDataKey> encryptedDataKeys = new ArrayList<>(materials.encryptedDataKeys());
+        encryptedDataKeys.add(encryptedDataKey);
+
+        return materials.toBuilder().encryptedDataKeys(encryptedDataKeys);
+    }
+
+    @Override
+    public CompletableFuture<DecryptionMaterials> onDecryptAsync(final DecryptionMaterials materials,
+                                                                 final List<EncryptedDataKey> encryptedDataKeys) {
+        final EncryptedDataKey encryptedDataKey;
+        try {
+            encryptedDataKey = checkDecryptable(materials, encryptedDataKeys);
+        } catch (RuntimeException exception) {
+            return failed(exception);
+        }
+
+        final DecryptRequest request = DecryptRequest.builder()
+                .keyId(_wrappingKeyId)
+                .encryptionContext(materials.encryptionContext())
+                .ciphertextBlob(SdkBytes.fromByteArray(encryptedDataKey.encryptedDatakey()))
+                .overrideConfiguration(builder -> builder.addApiName(API_NAME))
+                .build();
+        return _decryptSingleFlight.decrypt(_kmsClient, request).thenApply(plaintext -> materials.toBuilder()
+                .plaintextDataKey(plaintext)
+                .build());
+    }
+
+    /**
+     * @return the counters of the calls to Decrypt this keyring made, and of those it merged
+     *         into an identical call already in flight
+     */
+    public KmsDecryptSingleFlight.Metrics decryptMetrics() {
+        return _decryptSingleFlight.metrics();
+    }
+
+    /**
+     * Makes the same checks as {@link S3Keyring#onDecrypt}, and those of {@link KmsKeyring}
+     * on the encryption context.
+     *
+     * @return the data key to decrypt
+     */
+    private EncryptedDataKey checkDecryptable(final DecryptionMaterials materials,
+                                              final List<EncryptedDataKey> encryptedDataKeys) {
+        if (materials.plaintextDataKey() != null) {
+            throw new S3EncryptionClientException("Decryption materials already contains a plaintext data key.");
+        }
+
+        if (encryptedDataKeys.size() != 1) {
+            throw new S3EncryptionClientException("Only one encrypted data key is supported, found: " + encryptedDataKeys.size());
+        }
+
+        final EncryptedDataKey encryptedDataKey = encryptedDataKeys.get(0);
+        final String keyProviderId = encryptedDataKey.keyProviderId();
+        if (!S3Keyring.KEY_PROVIDER_ID.equals(keyProviderId)) {
+            throw new S3EncryptionClientException("Unknown key provider: " + keyProviderId);
+        }
+
+        final String keyProviderInfo = new String(encryptedDataKey.keyProviderInfo(), StandardCharsets.UTF_8);
+        if (KmsKeyring.KMS_CONTEXT_KEY_PROVIDER_INFO.equals(keyProviderInfo)) {
+            KmsKeyring.validateEncryptionContext(materials);
+        } else if (KmsKeyring.KMS_KEY_PROVIDER_INFO.equals(keyProviderInfo)) {
+            if (!_enableLegacyWrappingAlgorithms) {
+                throw new S3EncryptionClientException("Enable legacy wrapping algorithms to use legacy key wrapping algorithm: " + keyProviderInfo);
+            }
+        } else {
+            throw new S3EncryptionClientException("The keyring does not support the object's key wrapping algorithm: " + keyProviderInfo);
+        }
+        return encryptedDataKey;
+    }
+
+    private static <T> CompletableFuture<T> failed(final Throwable error) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(error);
+        return future;
+    }
+
+    private static Throwable unwrap(final Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    public static class Builder {
+        private KmsAsyncClient _kmsClient;
+        private String _wrappingKeyId;
+        private boolean _enableLegacyWrappingAlgorithms = false;
+
+        private Builder() {
+        }
+
+        /**
+         * Note that this does NOT create a defensive clone of KmsAsyncClient. Any modifications made to the wrapped
+         * client will be reflected in this Builder.
+         */
+        @SuppressFBWarnings(value = "EI_EXPOSE_REP2", justification = "Pass mutability into wrapping client")
+        public Builder kmsClient(KmsAsyncClient kmsClient) {
+            _kmsClient = kmsClient;
+            return this;
+        }
+
+        public Builder wrappingKeyId(String wrappingKeyId) {
+            _wrappingKeyId = wrappingKeyId;
+            return this;
+        }
+
+        public Builder enableLegacyWrappingAlgorithms(boolean shouldEnableLegacyWrappingAlgorithms) {
+            _enableLegacyWrappingAlgorithms = shouldEnableLegacyWrappingAlgorithms;
+            return this;
+        }
+
+        public AsyncKmsKeyring build() {
+            if (_kmsClient == null) {
+                _kmsClient = KmsAsyncClient.create();
+            }
+
+            return new AsyncKmsKeyring(this);
+        }
+    }
+}
@@ -0,0 +1,656 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.materials;
+
+import software.amazon.awssdk.services.s3.model.S3Request;
+import software.amazon.encryption.s3.S3EncryptionClient;
+import software.amazon.encryption.s3.S3EncryptionClientException;
+import software.amazon.encryption.s3.algorithms.AlgorithmSuite;
+
+import java.security.Provider;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A {@link CryptographicMaterialsManager} which reuses the data key of another CMM, or of a
+ * keyring, for several objects, so that not every putObject or createMultipartUpload makes a
+ * round trip to the key provider, e.g. GenerateDataKey in AWS KMS, and which keeps the data
+ * keys it decrypts, so that reading an object again does not either, e.g. Decrypt in AWS KMS.
+ * <p>
+ * A data key is reused for at most {@code maxAge}, for at most {@code maxMessagesPerKey}
+ * objects, and for at most {@code maxBytesPerKey} bytes of plaintext, whichever comes first.
+ * Data keys are kept apart by encryption context, including the context given to the request
+ * with {@link S3EncryptionClient#withAdditionalConfiguration(Map)}, so an object is only ever
+ * encrypted under a key wrapped with its own context, and by the algorithm suite the request
+ * asks for. A data key is only cached when the underlying CMM chose the suite asked for, so a
+ * cached key is never reused for an object of another suite. Objects whose length is not known, e.g. multipart uploads, bypass the cache when there is
+ * a byte limit.
+ * <p>
+ * Reusing a data key means that the objects encrypted under it are protected by one key:
+ * whoever can decrypt one of them can decrypt them all, and they can no longer be told apart
+ * by their encrypted data key. Every object still gets a random IV of its own, so the
+ * number of objects per key is capped at 2^32, the limit for random 96-bit IVs under one
+ * AES-GCM key. Cached data keys are zeroed when they expire, are used up, or are evicted.
+ * <p>
+ * Decrypted data keys are kept for at most {@code decryptionMaxAge}, by encrypted data keys,
+ * encryption context, algorithm suite and the encryption context given to the request, so
+ * that a request which the underlying CMM would turn away, e.g. because its encryption context
+ * does not match the object's, is still passed to it. At most {@code decryptionCapacity} are
+ * kept; the least recently used is evicted, and its data key zeroed, beyond it.
+ */
+public class CachingCryptoMaterialsManager implements CryptographicMaterialsManager {
+    /**
+     * The most objects which may be encrypted under one data key with random 96-bit IVs.
+     */
+    public static final long MAX_MESSAGES_PER_KEY = 1L << 32;
+    public static final int DEFAULT_CAPACITY = 100;
+    public static final int DEFAULT_DECRYPTION_CAPACITY = 1000;
+
+    private final CryptographicMaterialsManager _underlyingCmm;
+    private final long _maxAgeNanos;
+    private final long _maxMessagesPerKey;
+    private final long _maxBytesPerKey;
+    private final int _capacity;
+    private final LongSupplier _nanoClock;
+    // Least recently used first; guarded by itself
+    private final LinkedHashMap<Partition, CachedKey> _cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _bypasses = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+    private final long _decryptionMaxAgeNanos;
+    private final int _decryptionCapacity;
+    // Least recently used first; guarded by itself
+    private final LinkedHashMap<DecryptionKey, CachedDecryption> _decryptionCache = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong _decryptionHits = new AtomicLong();
+    private final AtomicLong _decryptionMisses = new AtomicLong();
+    private final AtomicLong _decryptionEvictions = new AtomicLong();
+
+    private CachingCryptoMaterialsManager(Builder builder) {
+        _underlyingCmm = builder._underlyingCmm;
+        _maxAgeNanos = builder._maxAge.toNanos();
+        _maxMessagesPerKey = builder._maxMessagesPerKey;
+        _maxBytesPerKey = builder._maxBytesPerKey;
+        _capacity = builder._capacity;
+        _nanoClock = builder._nanoClock;
+        _decryptionMaxAgeNanos = (builder._decryptionMaxAge == null ? builder._maxAge : builder._decryptionMaxAge).toNanos();
+        _decryptionCapacity = builder._decryptionCapacity;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public EncryptionMaterials getEncryptionMaterials(EncryptionMaterialsRequest request) {
+        final long plaintextLength = request.plaintextLength();
+        if ((plaintextLength < 0 && _maxBytesPerKey != Long.MAX_VALUE) || plaintextLength > _maxBytesPerKey) {
+            _bypasses.incrementAndGet();
+            return _underlyingCmm.getEncryptionMaterials(request);
+        }
+        final Partition partition = partition(request);
+        final long bytes = Math.max(0, plaintextLength);
+        final long now = _nanoClock.getAsLong();
+        synchronized (_cache) {
+            final CachedKey cached = _cache.get(partition);
+            if (cached != null) {
+                if (cached.tryUse(now, bytes)) {
+                    _hits.incrementAndGet();
+                    return cached.materialsFor(request);
+                }
+                // Expired or used up
+                _cache.remove(partition);
+                evict(cached);
+            }
+        }
+        _misses.incrementAndGet();
+        final EncryptionMaterials materials = _underlyingCmm.getEncryptionMaterials(request);
+        final CachedKey entry = new CachedKey(materials, now, bytes);
+        if (!entry.canBeUsedAgain()
+                || (request.algorithmSuite() != null && materials.algorithmSuite() != request.algorithmSuite())) {
+            entry.destroy();
+            return materials;
+        }
+        synchronized (_cache) {
+            final CachedKey previous = _cache.put(partition, entry);
+            if (previous != null) {
+                // Another thread missed at the same time
+                evict(previous);
+            }
+            final Iterator<CachedKey> leastRecentlyUsed = _cache.values().iterator();
+            while (_cache.size() > _capacity) {
+                final CachedKey evicted = leastRecentlyUsed.next();
+                leastRecentlyUsed.remove();
+                evict(evicted);
+            }
+        }
+        return materials;
+    }
+
+    @Override
+    public DecryptionMaterials decryptMaterials(DecryptMaterialsRequest request) {
+        if (_decryptionCapacity == 0) {
+            return _underlyingCmm.decryptMaterials(request);
+        }
+        final DecryptionKey key = new DecryptionKey(request);
+        final long now = _nanoClock.getAsLong();
+        synchronized (_decryptionCache) {
+            final CachedDecryption cached = _decryptionCache.get(key);
+            if (cached != null) {
+                if (now - cached._createdNanos < _decryptionMaxAgeNanos) {
+                    _decryptionHits.incrementAndGet();
+                    return cached.materialsFor(request);
+                }
+                _decryptionCache.remove(key);
+                evict(cached);
+            }
+        }
+        _decryptionMisses.incrementAndGet();
+        final DecryptionMaterials materials = _underlyingCmm.decryptMaterials(request);
+        final CachedDecryption entry = new CachedDecryption(materials, now);
+        if (entry._plaintextDataKey == null) {
+            return materials;
+        }
+        synchronized (_decryptionCache) {
+            final CachedDecryption previous = _decryptionCache.put(key, entry);
+            if (previous != null) {
+                // Another thread missed at the same time
+                evict(previous);
+            }
+            final Iterator<CachedDecryption> leastRecentlyUsed = _decryptionCache.values().iterator();
+            while (_decryptionCache.size() > _decryptionCapacity) {
+                final CachedDecryption evicted = leastRecentlyUsed.next();
+                leastRecentlyUsed.remove();
+                evict(evicted);
+            }
+        }
+        return materials;
+    }
+
+    /**
+     * Zeroes and forgets every cached data key, e.g. once the wrapping key has been rotated.
+     */
+    public void clear() {
+        synchronized (_cache) {
+            for (CachedKey cached : _cache.values()) {
+                evict(cached);
+            }
+            _cache.clear();
+        }
+        synchronized (_decryptionCache) {
+            for (CachedDecryption cached : _decryptionCache.values()) {
+                evict(cached);
+            }
+            _decryptionCache.clear();
+        }
+    }
+
+    private void evict(final CachedKey cached) {
+        cached.destroy();
+        _evictions.incrementAndGet();
+    }
+
+    private void evict(final CachedDecryption cached) {
+        Arrays.fill(cached._plaintextDataKey, (byte) 0);
+        _decryptionEvictions.incrementAndGet();
+    }
+
+    /**
+     * The encryption context the object will be encrypted with, as far as it is known before
+     * the underlying CMM is called, and the algorithm suite the request asks for.
+     */
+    static Partition partition(final EncryptionMaterialsRequest request) {
+        final Map<String, String> encryptionContext = new HashMap<>(request.encryptionContext());
+        encryptionContext.putAll(requestEncryptionContext(request.s3Request()));
+        return new Partition(Collections.unmodifiableMap(encryptionContext), request.algorithmSuite());
+    }
+
+    /**
+     * The encryption context given to the request with
+     * {@link S3EncryptionClient#withAdditionalConfiguration(Map)}, if any.
+     */
+    private static Map<String, String> requestEncryptionContext(final S3Request s3Request) {
+        if (s3Request == null || !s3Request.overrideConfiguration().isPresent()) {
+            return Collections.emptyMap();
+        }
+        return s3Request.overrideConfiguration().get()
+                .executionAttributes()
+                .getOptionalAttribute(S3EncryptionClient.ENCRYPTION_CONTEXT)
+                .orElse(Collections.emptyMap());
+    }
+
+    public Duration maxAge() {
+        return Duration.ofNanos(_maxAgeNanos);
+    }
+
+    public long maxMessagesPerKey() {
+        return _maxMessagesPerKey;
+    }
+
+    public long maxBytesPerKey() {
+        return _maxBytesPerKey;
+    }
+
+    public int capacity() {
+        return _capacity;
+    }
+
+    public Duration decryptionMaxAge() {
+        return Duration.ofNanos(_decryptionMaxAgeNanos);
+    }
+
+    public int decryptionCapacity() {
+        return _decryptionCapacity;
+    }
+
+    /**
+     * @return a snapshot of how often data keys were reused
+     */
+    public Metrics metrics() {
+        final int size;
+        synchronized (_cache) {
+            size = _cache.size();
+        }
+        final int decryptionSize;
+        synchronized (_decryptionCache) {
+            decryptionSize = _decryptionCache.size();
+        }
+        return new Metrics(this, size, decryptionSize);
+    }
+
+    /**
+     * What a data key is cached by; see {@link #partition(EncryptionMaterialsRequest)}.
+     */
+    static final class Partition {
+        private final Map<String, String> _encryptionContext;
+        private final AlgorithmSuite _algorithmSuite;
+
+        private Partition(final Map<String, String> encryptionContext, final AlgorithmSuite algorithmSuite) {
+            _encryptionContext = encryptionContext;
+            _algorithmSuite = algorithmSuite;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Partition)) {
+                return false;
+            }
+            final Partition other = (Partition) o;
+            return _algorithmSuite == other._algorithmSuite && _encryptionContext.equals(other._encryptionContext);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (_algorithmSuite == null ? 0 : _algorithmSuite.hashCode()) + _encryptionContext.hashCode();
+        }
+    }
+
+    /**
+     * A data key in the cache, with how much it has been used.
+     */
+    private final class CachedKey {
+        // The materials, less the plaintext data key, which is kept apart so it can be zeroed
+        private final EncryptionMaterials _template;
+        private final byte[] _plaintextDataKey;
+        private final long _createdNanos;
+        private long _messages = 1;
+        private long _bytes;
+
+        private CachedKey(final EncryptionMaterials materials, final long createdNanos, final long bytes) {
+            _template = materials.toBuilder().plaintextDataKey(null).build();
+            _plaintextDataKey = materials.plaintextDataKey();
+            _createdNanos = createdNanos;
+            _bytes = bytes;
+        }
+
+        private boolean canBeUsedAgain() {
+            return _plaintextDataKey != null && _messages < _maxMessagesPerKey && _bytes <= _maxBytesPerKey;
+        }
+
+        private boolean tryUse(final long now, final long bytes) {
+            if (now - _createdNanos >= _maxAgeNanos || !canBeUsedAgain() || bytes > _maxBytesPerKey - _bytes) {
+                return false;
+            }
+            _messages++;
+            _bytes += bytes;
+            return true;
+        }
+
+        private EncryptionMaterials materialsFor(final EncryptionMaterialsRequest request) {
+            return _template.toBuilder()
+                    .s3Request(request.s3Request())
+                    .plaintextLength(request.plaintextLength())
+                    .plaintextDataKey(_plaintextDataKey)
+                    .build();
+        }
+
+        private void destroy() {
+            if (_plaintextDataKey != null) {
+                Arrays.fill(_plaintextDataKey, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * What a decrypted data key is looked up by: everything the underlying CMM is given to
+     * decrypt it with, less the parts of the request which do not affect the data key.
+     */
+    private static final class DecryptionKey {
+        private final AlgorithmSuite _algorithmSuite;
+        private final Map<String, String> _encryptionContext;
+        private final Map<String, String> _requestEncryptionContext;
+        private final List<String> _keyProviderIds;
+        private final byte[][] _keyProviderInfos;
+        private final byte[][] _encryptedDataKeys;
+        private final int _hashCode;
+
+        private DecryptionKey(final DecryptMaterialsRequest request) {
+            _algorithmSuite = request.algorithmSuite();
+            _encryptionContext = request.encryptionContext();
+            _requestEncryptionContext = requestEncryptionContext(request.s3Request());
+            final List<EncryptedDataKey> encryptedDataKeys = request.encryptedDataKeys();
+            final String[] keyProviderIds = new String[encryptedDataKeys.size()];
+            _keyProviderInfos = new byte[encryptedDataKeys.size()][];
+            _encryptedDataKeys = new byte[encryptedDataKeys.size()][];
+            for (int i = 0; i < encryptedDataKeys.size(); i++) {
+                keyProviderIds[i] = encryptedDataKeys.get(i).keyProviderId();
+                _keyProviderInfos[i] = encryptedDataKeys.get(i).keyProviderInfo();
+                _encryptedDataKeys[i] = encryptedDataKeys.get(i).encryptedDatakey();
+            }
+            _keyProviderIds = Arrays.asList(keyProviderIds);
+            int hashCode = _algorithmSuite == null ? 0 : _algorithmSuite.hashCode();
+            hashCode = 31 * hashCode + _encryptionContext.hashCode();
+            hashCode = 31 * hashCode + _requestEncryptionContext.hashCode();
+            hashCode = 31 * hashCode + _keyProviderIds.hashCode();
+            hashCode = 31 * hashCode + Arrays.deepHashCode(_keyProviderInfos);
+            _hashCode = 31 * hashCode + Arrays.deepHashCode(_encryptedDataKeys);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof DecryptionKey)) {
+                return false;
+            }
+            final DecryptionKey other = (DecryptionKey) o;
+            return _hashCode == other._hashCode
+                    && _algorithmSuite == other._algorithmSuite
+                    && _encryptionContext.equals(other._encryptionContext)
+                    && _requestEncryptionContext.equals(other._requestEncryptionContext)
+                    && _keyProviderIds.equals(other._keyProviderIds)
+                    && Arrays.deepEquals(_keyProviderInfos, other._keyProviderInfos)
+                    && Arrays.deepEquals(_encryptedDataKeys, other._encryptedDataKeys);
+        }
+
+        @Override
+        public int hashCode() {
+            return _hashCode;
+        }
+    }
+
+    /**
+     * A decrypted data key in the cache.
+     */
+    private static final class CachedDecryption {
+        // The materials, less the plaintext data key, which is kept apart so it can be zeroed
+        private final DecryptionMaterials _template;
+        private final byte[] _plaintextDataKey;
+        private final long _createdNanos;
+
+        private CachedDecryption(final DecryptionMaterials materials, final long createdNanos) {
+            _template = materials.toBuilder().plaintextDataKey(null).build();
+            _plaintextDataKey = materials.plaintextDataKey();
+            _createdNanos = createdNanos;
+        }
+
+        private DecryptionMaterials materialsFor(final DecryptMaterialsRequest request) {
+            return _template.toBuilder()
+                    .s3Request(request.s3Request())
+                    .ciphertextLength(request.ciphertextLength())
+                    .contentRange(request.contentRange())
+                    .plaintextDataKey(_plaintextDataKey)
+                    .build();
+        }
+    }
+
+    /**
+     * A snapshot of the cache's counters.
+     */
+    public static final class Metrics {
+        private final long _hits;
+        private final long _misses;
+        private final long _bypasses;
+        private final long _evictions;
+        private final int _size;
+        private final long _decryptionHits;
+        private final long _decryptionMisses;
+        private final long _decryptionEvictions;
+        private final int _decryptionSize;
+
+        private Metrics(final CachingCryptoMaterialsManager cmm, final int size, final int decryptionSize) {
+            _hits = cmm._hits.get();
+            _misses = cmm._misses.get();
+            _bypasses = cmm._bypasses.get();
+            _evictions = cmm._evictions.get();
+            _size = size;
+            _decryptionHits = cmm._decryptionHits.get();
+            _decryptionMisses = cmm._decryptionMisses.get();
+            _decryptionEvictions = cmm._decryptionEvictions.get();
+            _decryptionSize = decryptionSize;
+        }
+
+        /**
+         * @return the number of requests which reused a cached data key
+         */
+        public long hits() {
+            return _hits;
+        }
+
+        /**
+         * @return the number of requests which had a data key generated, which is then cached
+         */
+        public long misses() {
+            return _misses;
+        }
+
+        /**
+         * @return the number of requests passed straight to the underlying CMM, as the length
+         *         of their object was unknown or over the byte limit
+         */
+        public long bypasses() {
+            return _bypasses;
+        }
+
+        /**
+         * @return the number of data keys zeroed and dropped from the cache
+         */
+        public long evictions() {
+            return _evictions;
+        }
+
+        /**
+         * @return the number of data keys in the cache
+         */
+        public int size() {
+            return _size;
+        }
+
+        /**
+         * @return the number of decryptions which reused a cached data key
+         */
+        public long decryptionHits() {
+            return _decryptionHits;
+        }
+
+        /**
+         * @return the number of decryptions passed to the underlying CMM
+         */
+        public long decryptionMisses() {
+            return _decryptionMisses;
+        }
+
+        /**
+         * @return the number of decrypted data keys zeroed and dropped from the cache
+         */
+        public long decryptionEvictions() {
+            return _decryptionEvictions;
+        }
+
+        /**
+         * @return the number of decrypted data keys in the cache
+         */
+        public int decryptionSize() {
+            return _decryptionSize;
+        }
+
+        @Override
+        public String toString() {
+            return "CachingCryptoMaterialsManager.Metrics(hits=" + _hits + ", misses=" + _misses
+                    + ", bypasses=" + _bypasses + ", evictions=" + _evictions + ", size=" + _size
+                    + ", decryptionHits=" + _decryptionHits + ", decryptionMisses=" + _decryptionMisses
+                    + ", decryptionEvictions=" + _decryptionEvictions + ", decryptionSize=" + _decryptionSize + ")";
+        }
+    }
+
+    public static class Builder {
+        private CryptographicMaterialsManager _underlyingCmm;
+        private Keyring _keyring;
+        private Provider _cryptoProvider;
+        private Duration _maxAge;
+        private long _maxMessagesPerKey = MAX_MESSAGES_PER_KEY;
+        private long _maxBytesPerKey = Long.MAX_VALUE;
+        private int _capacity = DEFAULT_CAPACITY;
+        private Duration _decryptionMaxAge;
+        private int _decryptionCapacity = DEFAULT_DECRYPTION_CAPACITY;
+        private LongSupplier _nanoClock = System::nanoTime;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the CMM to get data keys from, and to decrypt with. Either this or a keyring is required.
+         */
+        public Builder cryptoMaterialsManager(CryptographicMaterialsManager cryptoMaterialsManager) {
+            _underlyingCmm = cryptoMaterialsManager;
+            return this;
+        }
+
+        /**
+         * Sets the keyring to get data keys from, and to decrypt with, through a
+         * {@link DefaultCryptoMaterialsManager}.
+         */
+        public Builder keyring(Keyring keyring) {
+            _keyring = keyring;
+            return this;
+        }
+
+        /**
+         * Sets the provider of the {@link DefaultCryptoMaterialsManager} made for a keyring.
+         */
+        public Builder cryptoProvider(Provider cryptoProvider) {
+            _cryptoProvider = cryptoProvider;
+            return this;
+        }
+
+        /**
+         * Sets how long a data key is reused for after it is generated. Required.
+         */
+        public Builder maxAge(Duration maxAge) {
+            _maxAge = maxAge;
+            return this;
+        }
+
+        /**
+         * Sets how many objects may be encrypted under one data key. Defaults to, and may be
+         * at most, 2^32.
+         */
+        public Builder maxMessagesPerKey(long maxMessagesPerKey) {
+            _maxMessagesPerKey = maxMessagesPerKey;
+            return this;
+        }
+
+        /**
+         * Sets how many bytes of plaintext may be encrypted under one data key. No limit by default.
+         */
+        public Builder maxBytesPerKey(long maxBytesPerKey) {
+            _maxBytesPerKey = maxBytesPerKey;
+            return this;
+        }
+
+        /**
+         * Sets how many data keys, one per encryption context, are kept at once; the least
+         * recently used is evicted beyond it. Defaults to 100.
+         */
+        public Builder capacity(int capacity) {
+            _capacity = capacity;
+            return this;
+        }
+
+        /**
+         * Sets how long a decrypted data key is kept for. Defaults to the maxAge.
+         */
+        public Builder decryptionMaxAge(Duration decryptionMaxAge) {
+            _decryptionMaxAge = decryptionMaxAge;
+            return this;
+        }
+
+        /**
+         * Sets how many decrypted data keys are kept at once; the least recently used is
+         * evicted beyond it. Defaults to 1000; 0 passes every decryption to the underlying CMM.
+         */
+        public Builder decryptionCapacity(int decryptionCapacity) {
+            _decryptionCapacity = decryptionCapacity;
+            return this;
+        }
+
+        Builder nanoClock(LongSupplier nanoClock) {
+            _nanoClock = nanoClock;
+            return this;
+        }
+
+        public CachingCryptoMaterialsManager build() {
+            if ((_underlyingCmm == null) == (_keyring == null)) {
+                throw new S3EncryptionClientException("Exactly one of cryptoMaterialsManager and keyring must be set");
+            }
+            if (_maxAge == null || _maxAge.isNegative() || _maxAge.isZero()) {
+                throw new S3EncryptionClientException("maxAge must be positive: " + _maxAge);
+            }
+            if (_maxMessagesPerKey < 1 || _maxMessagesPerKey > MAX_MESSAGES_PER_KEY) {
+                throw new S3EncryptionClientException("maxMessagesPerKey must be between 1 and 2^32: "
+                        + _maxMessagesPerKey);
+            }
+            if (_maxBytesPerKey < 1) {
+                throw new S3EncryptionClientException("maxBytesPerKey must be positive: " + _maxBytesPerKey);
+            }
+            if (_capacity < 1) {
+                throw new S3EncryptionClientException("capacity must be at least 1: " + _capacity);
+            }
+            if (_decryptionMaxAge != null && (_decryptionMaxAge.isNegative() || _decryptionMaxAge.isZero())) {
+                throw new S3EncryptionClientException("decryptionMaxAge must be positive: " + _decryptionMaxAge);
+            }
+            if (_decryptionCapacity < 0) {
+                throw new S3EncryptionClientException("decryptionCapacity must not be negative: " + _decryptionCapacity);
+            }
+            if (_underlyingCmm == null) {
+                _underlyingCmm = DefaultCryptoMaterialsManager.builder()
+                        .keyring(_keyring)
+                        .cryptoProvider(_cryptoProvider)
+                        .build();
+            }
+            return new CachingCryptoMaterialsManager(this);
+        }
+    }
+}
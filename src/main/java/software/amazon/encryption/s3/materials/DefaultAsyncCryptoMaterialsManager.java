@@ -0,0 +1,109 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.materials;
+
+import software.amazon.encryption.s3.S3EncryptionClientException;
+import software.amazon.encryption.s3.internal.ClientExecutor;
+
+import java.security.Provider;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * The asynchronous counterpart of {@link DefaultCryptoMaterialsManager}. An {@link AsyncKeyring},
+ * e.g. {@link AsyncKmsKeyring}, is called directly. Any other keyring blocks while it wraps or
+ * unwraps a data key, so it is called on the offload executor instead of the caller's thread,
+ * which in the async client is one of the SDK's response threads.
+ */
+public class DefaultAsyncCryptoMaterialsManager implements AsyncCryptographicMaterialsManager {
+    private final Keyring _keyring;
+    private final Provider _cryptoProvider;
+    private final Executor _offloadExecutor;
+
+    private DefaultAsyncCryptoMaterialsManager(Builder builder) {
+        _keyring = builder._keyring;
+        _cryptoProvider = builder._cryptoProvider;
+        _offloadExecutor = builder._offloadExecutor;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public CompletableFuture<EncryptionMaterials> getEncryptionMaterialsAsync(EncryptionMaterialsRequest request) {
+        final EncryptionMaterials materials = DefaultCryptoMaterialsManager.initialEncryptionMaterials(request, _cryptoProvider);
+        if (_keyring instanceof AsyncKeyring) {
+            return ((AsyncKeyring) _keyring).onEncryptAsync(materials);
+        }
+        return CompletableFuture.supplyAsync(() -> _keyring.onEncrypt(materials), _offloadExecutor);
+    }
+
+    @Override
+    public CompletableFuture<DecryptionMaterials> decryptMaterialsAsync(DecryptMaterialsRequest request) {
+        final DecryptionMaterials materials = DefaultCryptoMaterialsManager.initialDecryptionMaterials(request, _cryptoProvider);
+        if (_keyring instanceof AsyncKeyring) {
+            return ((AsyncKeyring) _keyring).onDecryptAsync(materials, request.encryptedDataKeys());
+        }
+        return CompletableFuture.supplyAsync(() -> _keyring.onDecrypt(materials, request.encryptedDataKeys()),
+                _offloadExecutor);
+    }
+
+    @Override
+    public EncryptionMaterials getEncryptionMaterials(EncryptionMaterialsRequest request) {
+        // The caller is prepared to block, so a synchronous keyring need not be offloaded
+        return _keyring.onEncrypt(DefaultCryptoMaterialsManager.initialEncryptionMaterials(request, _cryptoProvider));
+    }
+
+    @Override
+    public DecryptionMaterials decryptMaterials(DecryptMaterialsRequest request) {
+        return _keyring.onDecrypt(DefaultCryptoMaterialsManager.initialDecryptionMaterials(request, _cryptoProvider),
+                request.encryptedDataKeys());
+    }
+
+    /**
+     * The executor synchronous keyrings are offloaded to when none is given: a pool of daemon
+     * threads shared by every CMM, created when first needed, whose threads go once idle.
+     */
+    private static final class SharedOffloadExecutor {
+        private static final ClientExecutor INSTANCE = ClientExecutor.create(false);
+    }
+
+    public static class Builder {
+        private Keyring _keyring;
+        private Provider _cryptoProvider;
+        private Executor _offloadExecutor;
+
+        private Builder() {
+        }
+
+        public Builder keyring(Keyring keyring) {
+            _keyring = keyring;
+            return this;
+        }
+
+        public Builder cryptoProvider(Provider cryptoProvider) {
+            _cryptoProvider = cryptoProvider;
+            return this;
+        }
+
+        /**
+         * Sets the executor a keyring which is not an {@link AsyncKeyring} is called on.
+         * Defaults to a pool of daemon threads shared by every DefaultAsyncCryptoMaterialsManager.
+         */
+        public Builder offloadExecutor(Executor offloadExecutor) {
+            _offloadExecutor = offloadExecutor;
+            return this;
+        }
+
+        public DefaultAsyncCryptoMaterialsManager build() {
+            if (_keyring == null) {
+                throw new S3EncryptionClientException("A keyring must be set");
+            }
+            if (_offloadExecutor == null && !(_keyring instanceof AsyncKeyring)) {
+                _offloadExecutor = SharedOffloadExecutor.INSTANCE;
+            }
+            return new DefaultAsyncCryptoMaterialsManager(this);
+        }
+    }
+}
@@ -20,28 +20,35 @@ public class DefaultCryptoMaterialsManager implements CryptographicMaterialsMana
     }
 
     public EncryptionMaterials getEncryptionMaterials(EncryptionMaterialsRequest request) {
-        EncryptionMaterials materials = EncryptionMaterials.builder()
+        return _keyring.onEncrypt(initialEncryptionMaterials(request, _cryptoProvider));
+    }
+
+    public DecryptionMaterials decryptMaterials(DecryptMaterialsRequest request) {
+        return _keyring.onDecrypt(initialDecryptionMaterials(request, _cryptoProvider), request.encryptedDataKeys());
+    }
+
+    /**
+     * The materials handed to the keyring to add a data key to.
+     */
+    static EncryptionMaterials initialEncryptionMaterials(EncryptionMaterialsRequest request, Provider cryptoProvider) {
+        return EncryptionMaterials.builder()
                 .s3Request(request.s3Request())
                 .algorithmSuite(AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF)
                 .encryptionContext(request.encryptionContext())
-                .cryptoProvider(_cryptoProvider)
+                .cryptoProvider(cryptoProvider)
                 .plaintextLength(request.plaintextLength())
                 .build();
-
-        return _keyring.onEncrypt(materials);
     }
 
-    public DecryptionMaterials decryptMaterials(DecryptMaterialsRequest request) {
-        DecryptionMaterials materials = DecryptionMaterials.builder()
+    static DecryptionMaterials initialDecryptionMaterials(DecryptMaterialsRequest request, Provider cryptoProvider) {
+        return DecryptionMaterials.builder()
                 .s3Request(request.s3Request())
                 .algorithmSuite(request.algorithmSuite())
                 .encryptionContext(request.encryptionContext())
                 .ciphertextLength(request.ciphertextLength())
-                .cryptoProvider(_cryptoProvider)
+                .cryptoProvider(cryptoProvider)
                 .contentRange(request.contentRange())
                 .build();
-
-        return _keyring.onDecrypt(materials, request.encryptedDataKeys());
     }
 
     public static class Builder {
@@ -0,0 +1,180 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.materials;
+
+import software.amazon.awssdk.services.kms.KmsAsyncClient;
+import software.amazon.awssdk.services.kms.KmsClient;
+import software.amazon.awssdk.services.kms.model.DecryptRequest;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merges concurrent, identical calls to AWS KMS Decrypt made by a keyring. While a Decrypt of
+ * an encrypted data key under a given encryption context and KMS key is in flight, any other
+ * request to unwrap the same data key waits for its result rather than calling KMS again, e.g.
+ * when many threads get the same object at once. Each waiter is given its own copy of the
+ * plaintext data key, which is held only while the call is in flight.
+ * <p>
+ * Each KMS keyring has its own, so that calls are only merged when they would have been made
+ * with the same KMS client. A failed call fails every request merged into it.
+ */
+public final class KmsDecryptSingleFlight {
+    private final ConcurrentHashMap<DecryptKey, CompletableFuture<byte[]>> _inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong _calls = new AtomicLong();
+    private final AtomicLong _merged = new AtomicLong();
+
+    KmsDecryptSingleFlight() {
+    }
+
+    /**
+     * Calls Decrypt, or waits for an identical call already in flight.
+     *
+     * @return the plaintext data key
+     */
+    byte[] decrypt(final KmsClient kmsClient, final DecryptRequest request) {
+        final DecryptKey key = new DecryptKey(request);
+        final CompletableFuture<byte[]> call = new CompletableFuture<>();
+        final CompletableFuture<byte[]> inFlight = _inFlight.putIfAbsent(key, call);
+        if (inFlight != null) {
+            _merged.incrementAndGet();
+            return AsyncKeyring.join(inFlight).clone();
+        }
+
+        _calls.incrementAndGet();
+        final byte[] plaintext;
+        try {
+            plaintext = kmsClient.decrypt(request).plaintext().asByteArray();
+        } catch (RuntimeException | Error exception) {
+            _inFlight.remove(key, call);
+            call.completeExceptionally(exception);
+            throw exception;
+        }
+        _inFlight.remove(key, call);
+        call.complete(plaintext);
+        return plaintext.clone();
+    }
+
+    /**
+     * Calls Decrypt, or joins an identical call already in flight, without blocking.
+     *
+     * @return the plaintext data key
+     */
+    CompletableFuture<byte[]> decrypt(final KmsAsyncClient kmsClient, final DecryptRequest request) {
+        final DecryptKey key = new DecryptKey(request);
+        final CompletableFuture<byte[]> call = new CompletableFuture<>();
+        final CompletableFuture<byte[]> inFlight = _inFlight.putIfAbsent(key, call);
+        if (inFlight != null) {
+            _merged.incrementAndGet();
+            return inFlight.thenApply(byte[]::clone);
+        }
+
+        _calls.incrementAndGet();
+        try {
+            kmsClient.decrypt(request).whenComplete((response, error) -> {
+                _inFlight.remove(key, call);
+                if (error != null) {
+                    call.completeExceptionally(error);
+                } else {
+                    call.complete(response.plaintext().asByteArray());
+                }
+            });
+        } catch (RuntimeException exception) {
+            _inFlight.remove(key, call);
+            call.completeExceptionally(exception);
+        }
+        return call.thenApply(byte[]::clone);
+    }
+
+    /**
+     * @return a snapshot of the counters
+     */
+    public Metrics metrics() {
+        return new Metrics(_calls.get(), _merged.get(), _inFlight.size());
+    }
+
+    /**
+     * What identifies a call to Decrypt: the KMS key, if given, the encryption context and the
+     * encrypted data key.
+     */
+    private static final class DecryptKey {
+        private final String _keyId;
+        private final Map<String, String> _encryptionContext;
+        private final byte[] _ciphertext;
+        private final int _hashCode;
+
+        private DecryptKey(final DecryptRequest request) {
+            _keyId = request.keyId();
+            _encryptionContext = new HashMap<>(request.encryptionContext());
+            _ciphertext = request.ciphertextBlob().asByteArray();
+            _hashCode = Objects.hash(_keyId, _encryptionContext) * 31 + Arrays.hashCode(_ciphertext);
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof DecryptKey)) {
+                return false;
+            }
+            final DecryptKey that = (DecryptKey) other;
+            return Objects.equals(_keyId, that._keyId)
+                    && _encryptionContext.equals(that._encryptionContext)
+                    && Arrays.equals(_ciphertext, that._ciphertext);
+        }
+
+        @Override
+        public int hashCode() {
+            return _hashCode;
+        }
+    }
+
+    /**
+     * A snapshot of the counters of a {@link KmsDecryptSingleFlight}.
+     */
+    public static final class Metrics {
+        private final long _calls;
+        private final long _merged;
+        private final int _inFlight;
+
+        private Metrics(final long calls, final long merged, final int inFlight) {
+            _calls = calls;
+            _merged = merged;
+            _inFlight = inFlight;
+        }
+
+        /**
+         * @return the number of calls made to Decrypt
+         */
+        public long calls() {
+            return _calls;
+        }
+
+        /**
+         * @return the number of requests which waited for an identical call already in flight
+         *         rather than calling Decrypt
+         */
+        public long merged() {
+            return _merged;
+        }
+
+        /**
+         * @return the number of calls to Decrypt in flight
+         */
+        public int inFlight() {
+            return _inFlight;
+        }
+
+        @Override
+        public String toString() {
+            return "KmsDecryptSingleFlight.Metrics(calls=" + _calls + ", merged=" + _merged
+                    + ", inFlight=" + _inFlight + ")";
+        }
+    }
+}
@@ -6,7 +6,6 @@ import software.amazon.awssdk.core.ApiName;
 import software.amazon.awssdk.core.SdkBytes;
 import software.amazon.awssdk.services.kms.KmsClient;
 import software.amazon.awssdk.services.kms.model.DecryptRequest;
-import software.amazon.awssdk.services.kms.model.DecryptResponse;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.encryption.s3.S3EncryptionClient;
 import software.amazon.encryption.s3.S3EncryptionClientException;
@@ -21,6 +20,7 @@ public class KmsDiscoveryKeyring extends S3Keyring {
   private static final String KEY_ID_CONTEXT_KEY = "kms_cmk_id";
 
   private final KmsClient _kmsClient;
+  private final KmsDecryptSingleFlight _decryptSingleFlight = new KmsDecryptSingleFlight();
 
   private final Map<String, DecryptDataKeyStrategy> decryptDataKeyStrategies = new HashMap<>();
 
@@ -65,8 +65,7 @@ public class KmsDiscoveryKeyring extends S3Keyring {
         .overrideConfiguration(builder -> builder.addApiName(API_NAME))
         .build();
 
-      DecryptResponse response = _kmsClient.decrypt(request);
-      return response.plaintext().asByteArray();
+      return _decryptSingleFlight.decrypt(_kmsClient, request);
     }
   };
 
@@ -118,8 +117,7 @@ public class KmsDiscoveryKeyring extends S3Keyring {
         .overrideConfiguration(builder -> builder.addApiName(API_NAME))
         .build();
 
-      DecryptResponse response = _kmsClient.decrypt(request);
-      return response.plaintext().asByteArray();
+      return _decryptSingleFlight.decrypt(_kmsClient, request);
     }
   };
 
@@ -127,6 +125,14 @@ public class KmsDiscoveryKeyring extends S3Keyring {
     return new Builder();
   }
 
+  /**
+   * @return the counters of the calls to Decrypt this keyring made, and of those it merged
+   * into an identical call already in flight
+   */
+  public KmsDecryptSingleFlight.Metrics decryptMetrics() {
+    return _decryptSingleFlight.metrics();
+  }
+
   @Override
   protected GenerateDataKeyStrategy generateDataKeyStrategy() {
     throw new S3EncryptionClientException("KmsDiscoveryKeyring does not support GenerateDataKey");
@@ -9,7 +9,6 @@ import software.amazon.awssdk.core.SdkBytes;
 import software.amazon.awssdk.services.kms.KmsClient;
 import software.amazon.awssdk.services.kms.model.DataKeySpec;
 import software.amazon.awssdk.services.kms.model.DecryptRequest;
-import software.amazon.awssdk.services.kms.model.DecryptResponse;
 import software.amazon.awssdk.services.kms.model.EncryptRequest;
 import software.amazon.awssdk.services.kms.model.EncryptResponse;
 import software.amazon.awssdk.services.kms.model.GenerateDataKeyRequest;
@@ -18,6 +17,7 @@ import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.S3Request;
 import software.amazon.encryption.s3.S3EncryptionClient;
 import software.amazon.encryption.s3.S3EncryptionClientException;
+import software.amazon.encryption.s3.algorithms.AlgorithmSuite;
 import software.amazon.encryption.s3.internal.ApiNameVersion;
 
 import java.nio.charset.StandardCharsets;
@@ -37,14 +37,16 @@ public class KmsKeyring extends S3Keyring {
 
     private static final ApiName API_NAME = ApiNameVersion.apiNameWithVersion();
     private static final String KEY_ID_CONTEXT_KEY = "kms_cmk_id";
+    static final String KMS_KEY_PROVIDER_INFO = "kms";
+    static final String KMS_CONTEXT_KEY_PROVIDER_INFO = "kms+context";
+    private static final String ENCRYPTION_CONTEXT_ALGORITHM_KEY = "aws:x-amz-cek-alg";
 
     private final KmsClient _kmsClient;
     private final String _wrappingKeyId;
+    private final KmsDecryptSingleFlight _decryptSingleFlight = new KmsDecryptSingleFlight();
 
     private final DecryptDataKeyStrategy _kmsStrategy = new DecryptDataKeyStrategy() {
 
-        private static final String KEY_PROVIDER_INFO = "kms";
-
         @Override
         public boolean isLegacy() {
             return true;
@@ -52,7 +54,7 @@ public class KmsKeyring extends S3Keyring {
 
         @Override
         public String keyProviderInfo() {
-            return KEY_PROVIDER_INFO;
+            return KMS_KEY_PROVIDER_INFO;
         }
 
         @Override
@@ -64,16 +66,12 @@ public class KmsKeyring extends S3Keyring {
                     .overrideConfiguration(builder -> builder.addApiName(API_NAME))
                     .build();
 
-            DecryptResponse response = _kmsClient.decrypt(request);
-            return response.plaintext().asByteArray();
+            return _decryptSingleFlight.decrypt(_kmsClient, request);
         }
     };
 
     private final DataKeyStrategy _kmsContextStrategy = new DataKeyStrategy() {
 
-        private static final String KEY_PROVIDER_INFO = "kms+context";
-        private static final String ENCRYPTION_CONTEXT_ALGORITHM_KEY = "aws:x-amz-cek-alg";
-
         @Override
         public boolean isLegacy() {
             return false;
@@ -81,53 +79,19 @@ public class KmsKeyring extends S3Keyring {
 
         @Override
         public String keyProviderInfo() {
-            return KEY_PROVIDER_INFO;
+            return KMS_CONTEXT_KEY_PROVIDER_INFO;
         }
 
         @Override
         public EncryptionMaterials modifyMaterials(EncryptionMaterials materials) {
-            S3Request s3Request = materials.s3Request();
-
-            Map<String, String> encryptionContext = new HashMap<>(materials.encryptionContext());
-            if (s3Request.overrideConfiguration().isPresent()) {
-                AwsRequestOverrideConfiguration overrideConfig = s3Request.overrideConfiguration().get();
-                Optional<Map<String, String>> optEncryptionContext = overrideConfig
-                        .executionAttributes()
-                        .getOptionalAttribute(S3EncryptionClient.ENCRYPTION_CONTEXT);
-                optEncryptionContext.ifPresent(encryptionContext::putAll);
-            }
-
-            if (encryptionContext.containsKey(ENCRYPTION_CONTEXT_ALGORITHM_KEY)) {
-                throw new S3EncryptionClientException(ENCRYPTION_CONTEXT_ALGORITHM_KEY + " is a reserved key for the S3 encryption client");
-            }
-
-            encryptionContext.put(ENCRYPTION_CONTEXT_ALGORITHM_KEY, materials.algorithmSuite().cipherName());
-
-            return materials.toBuilder()
-                    .encryptionContext(encryptionContext)
-                    .build();
+            return withKmsEncryptionContext(materials);
         }
 
         @Override
         public EncryptionMaterials generateDataKey(EncryptionMaterials materials) {
-            DataKeySpec dataKeySpec;
-            if (!materials.algorithmSuite().dataKeyAlgorithm().equals("AES")) {
-                throw new S3EncryptionClientException(String.format("The data key algorithm %s is not supported by AWS " + "KMS", materials.algorithmSuite().dataKeyAlgorithm()));
-            }
-            switch (materials.algorithmSuite().dataKeyLengthBits()) {
-                case 128:
-                    dataKeySpec = DataKeySpec.AES_128;
-                    break;
-                case 256:
-                    dataKeySpec = DataKeySpec.AES_256;
-                    break;
-                default:
-                    throw new S3EncryptionClientException(String.format("The data key length %d is not supported by " + "AWS KMS", materials.algorithmSuite().dataKeyLengthBits()));
-            }
-
             GenerateDataKeyRequest request = GenerateDataKeyRequest.builder()
                     .keyId(_wrappingKeyId)
-                    .keySpec(dataKeySpec)
+                    .keySpec(dataKeySpec(materials.algorithmSuite()))
                     .encryptionContext(materials.encryptionContext())
                     .overrideConfiguration(builder -> builder.addApiName(API_NAME))
                     .build();
@@ -165,26 +129,7 @@ public class KmsKeyring extends S3Keyring {
 
         @Override
         public byte[] decryptDataKey(DecryptionMaterials materials, byte[] encryptedDataKey) {
-            Map<String, String> requestEncryptionContext = new HashMap<>();
-            GetObjectRequest s3Request = materials.s3Request();
-            if (s3Request.overrideConfiguration().isPresent()) {
-                AwsRequestOverrideConfiguration overrideConfig = s3Request.overrideConfiguration().get();
-                Optional<Map<String, String>> optEncryptionContext = overrideConfig
-                        .executionAttributes()
-                        .getOptionalAttribute(S3EncryptionClient.ENCRYPTION_CONTEXT);
-                if (optEncryptionContext.isPresent()) {
-                    requestEncryptionContext = new HashMap<>(optEncryptionContext.get());
-                }
-            }
-
-            // We are validating the encryption context to match S3EC V2 behavior
-            // Refer to KMSMaterialsHandler in the V2 client for details
-            Map<String, String> materialsEncryptionContextCopy = new HashMap<>(materials.encryptionContext());
-            materialsEncryptionContextCopy.remove(KEY_ID_CONTEXT_KEY);
-            materialsEncryptionContextCopy.remove(ENCRYPTION_CONTEXT_ALGORITHM_KEY);
-            if (!materialsEncryptionContextCopy.equals(requestEncryptionContext)) {
-                throw new S3EncryptionClientException("Provided encryption context does not match information retrieved from S3");
-            }
+            validateEncryptionContext(materials);
 
             DecryptRequest request = DecryptRequest.builder()
                     .keyId(_wrappingKeyId)
@@ -193,14 +138,81 @@ public class KmsKeyring extends S3Keyring {
                     .overrideConfiguration(builder -> builder.addApiName(API_NAME))
                     .build();
 
-            DecryptResponse response = _kmsClient.decrypt(request);
-            return response.plaintext().asByteArray();
+            return _decryptSingleFlight.decrypt(_kmsClient, request);
         }
 
     };
 
     private final Map<String, DecryptDataKeyStrategy> decryptDataKeyStrategies = new HashMap<>();
 
+    /**
+     * Adds the encryption context given to the request, and the content encryption algorithm,
+     * to the context the data key is wrapped with.
+     */
+    static EncryptionMaterials withKmsEncryptionContext(EncryptionMaterials materials) {
+        S3Request s3Request = materials.s3Request();
+
+        Map<String, String> encryptionContext = new HashMap<>(materials.encryptionContext());
+        if (s3Request.overrideConfiguration().isPresent()) {
+            AwsRequestOverrideConfiguration overrideConfig = s3Request.overrideConfiguration().get();
+            Optional<Map<String, String>> optEncryptionContext = overrideConfig
+                    .executionAttributes()
+                    .getOptionalAttribute(S3EncryptionClient.ENCRYPTION_CONTEXT);
+            optEncryptionContext.ifPresent(encryptionContext::putAll);
+        }
+
+        if (encryptionContext.containsKey(ENCRYPTION_CONTEXT_ALGORITHM_KEY)) {
+            throw new S3EncryptionClientException(ENCRYPTION_CONTEXT_ALGORITHM_KEY + " is a reserved key for the S3 encryption client");
+        }
+
+        encryptionContext.put(ENCRYPTION_CONTEXT_ALGORITHM_KEY, materials.algorithmSuite().cipherName());
+
+        return materials.toBuilder()
+                .encryptionContext(encryptionContext)
+                .build();
+    }
+
+    static DataKeySpec dataKeySpec(AlgorithmSuite algorithmSuite) {
+        if (!algorithmSuite.dataKeyAlgorithm().equals("AES")) {
+            throw new S3EncryptionClientException(String.format("The data key algorithm %s is not supported by AWS " + "KMS", algorithmSuite.dataKeyAlgorithm()));
+        }
+        switch (algorithmSuite.dataKeyLengthBits()) {
+            case 128:
+                return DataKeySpec.AES_128;
+            case 256:
+                return DataKeySpec.AES_256;
+            default:
+                throw new S3EncryptionClientException(String.format("The data key length %d is not supported by " + "AWS KMS", algorithmSuite.dataKeyLengthBits()));
+        }
+    }
+
+    /**
+     * Checks that the encryption context given to the request matches the one the object's
+     * data key was wrapped with.
+     */
+    static void validateEncryptionContext(DecryptionMaterials materials) {
+        Map<String, String> requestEncryptionContext = new HashMap<>();
+        GetObjectRequest s3Request = materials.s3Request();
+        if (s3Request.overrideConfiguration().isPresent()) {
+            AwsRequestOverrideConfiguration overrideConfig = s3Request.overrideConfiguration().get();
+            Optional<Map<String, String>> optEncryptionContext = overrideConfig
+                    .executionAttributes()
+                    .getOptionalAttribute(S3EncryptionClient.ENCRYPTION_CONTEXT);
+            if (optEncryptionContext.isPresent()) {
+                requestEncryptionContext = new HashMap<>(optEncryptionContext.get());
+            }
+        }
+
+        // We are validating the encryption context to match S3EC V2 behavior
+        // Refer to KMSMaterialsHandler in the V2 client for details
+        Map<String, String> materialsEncryptionContextCopy = new HashMap<>(materials.encryptionContext());
+        materialsEncryptionContextCopy.remove(KEY_ID_CONTEXT_KEY);
+        materialsEncryptionContextCopy.remove(ENCRYPTION_CONTEXT_ALGORITHM_KEY);
+        if (!materialsEncryptionContextCopy.equals(requestEncryptionContext)) {
+            throw new S3EncryptionClientException("Provided encryption context does not match information retrieved from S3");
+        }
+    }
+
     public KmsKeyring(Builder builder) {
         super(builder);
 
@@ -215,6 +227,14 @@ public class KmsKeyring extends S3Keyring {
         return new Builder();
     }
 
+    /**
+     * @return the counters of the calls to Decrypt this keyring made, and of those it merged
+     *         into an identical call already in flight
+     */
+    public KmsDecryptSingleFlight.Metrics decryptMetrics() {
+        return _decryptSingleFlight.metrics();
+    }
+
     @Override
     protected GenerateDataKeyStrategy generateDataKeyStrategy() {
         return _kmsContextStrategy;
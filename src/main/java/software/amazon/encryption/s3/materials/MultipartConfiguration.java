@@ -2,29 +2,51 @@
 // SPDX-License-Identifier: Apache-2.0
 package software.amazon.encryption.s3.materials;
 
+import software.amazon.encryption.s3.internal.MemoryPartOutputStream;
 import software.amazon.encryption.s3.internal.MultiFileOutputStream;
+import software.amazon.encryption.s3.internal.MultipartCheckpointStore;
+import software.amazon.encryption.s3.internal.PartBufferPool;
+import software.amazon.encryption.s3.internal.PartOutputStream;
+import software.amazon.encryption.s3.internal.StripedMultiFileOutputStream;
+import software.amazon.encryption.s3.internal.StripedMultiFileOutputStream.StripingPolicy;
 import software.amazon.encryption.s3.internal.UploadObjectObserver;
 
+import java.io.File;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class MultipartConfiguration {
+    // S3 allows at most 10,000 parts of at most 5 GiB each
+    private static final int MAX_PARTS = 10_000;
+    private static final long MAX_PART_SIZE = 5L << 30;
+    // Auto-tuned part sizes are whole MiBs, which are also whole cipher blocks
+    private static final long AUTO_PART_SIZE_GRANULARITY = 1 << 20;
     private final long _partSize;
     private final int _maxConnections;
+    private final int _minConnections;
+    private final boolean _autoTune;
+    private final int _maxPartsInFlight;
     private final long _diskLimit;
     private final UploadObjectObserver _observer;
     private final ExecutorService _es;
     private final boolean _usingDefaultExecutorService;
-    private final MultiFileOutputStream _outputStream;
+    private final PartOutputStream _outputStream;
+    private final MultipartCheckpointStore _checkpointStore;
+    private final String _resumeUploadId;
 
     public MultipartConfiguration(Builder builder) {
         this._maxConnections = builder._maxConnections;
+        this._minConnections = builder._minConnections;
+        this._autoTune = builder._autoTune;
+        this._maxPartsInFlight = builder._maxPartsInFlight;
         this._partSize = builder._partSize;
         this._diskLimit = builder._diskLimit;
         this._observer = builder._observer;
         this._es = builder._es;
         this._usingDefaultExecutorService = builder._usingDefaultExecutorService;
         this._outputStream = builder._outputStream;
+        this._checkpointStore = builder._checkpointStore;
+        this._resumeUploadId = builder._resumeUploadId;
     }
 
     static public Builder builder() {
@@ -35,15 +57,73 @@ public class MultipartConfiguration {
         return _maxConnections;
     }
 
+    /**
+     * @return the most parts to have staged or uploading at once; encryption waits for a
+     *         part to finish before staging another
+     */
+    public int maxPartsInFlight() {
+        return _maxPartsInFlight;
+    }
+
+    /**
+     * @return the fewest parts to upload at once when auto-tuning
+     */
+    public int minConnections() {
+        return _minConnections;
+    }
+
+    /**
+     * @return whether the part size follows the object's length, and the number of parts
+     *         uploaded at once follows how the uploads fare
+     */
+    public boolean autoTune() {
+        return _autoTune;
+    }
+
     public long partSize() {
         return _partSize;
     }
 
+    /**
+     * Returns the part size to upload an object of the given length with. That is the
+     * configured part size, unless auto-tuning, in which case it is the smallest whole number
+     * of MiB, no smaller than the configured part size, which keeps the object within
+     * 10,000 parts.
+     *
+     * @param contentLength the length of the object, or -1 if not known, in which case
+     *                      the configured part size is used
+     * @throws IllegalArgumentException if the object is too large to upload in 10,000 parts
+     */
+    public long partSize(long contentLength) {
+        if (!_autoTune || contentLength < 0) {
+            return _partSize;
+        }
+        final long minPartSize = (contentLength + MAX_PARTS - 1) / MAX_PARTS;
+        final long partSize = Math.max(_partSize, (minPartSize + AUTO_PART_SIZE_GRANULARITY - 1)
+                / AUTO_PART_SIZE_GRANULARITY * AUTO_PART_SIZE_GRANULARITY);
+        if (partSize > MAX_PART_SIZE) {
+            throw new IllegalArgumentException("An object of " + contentLength
+                    + " bytes is too large to upload in " + MAX_PARTS + " parts");
+        }
+        return partSize;
+    }
+
     public long diskLimit() {
         return _diskLimit;
     }
 
+    /**
+     * @return the stream staging parts in temporary files, or null if they are staged
+     *         some other way, e.g. in memory; see {@link #partOutputStream()}
+     */
     public MultiFileOutputStream multiFileOutputStream() {
+        return _outputStream instanceof MultiFileOutputStream ? (MultiFileOutputStream) _outputStream : null;
+    }
+
+    /**
+     * @return the stream staging the encrypted parts
+     */
+    public PartOutputStream partOutputStream() {
         return _outputStream;
     }
 
@@ -51,26 +131,53 @@ public class MultipartConfiguration {
         return _observer;
     }
 
+    /**
+     * @return where uploads are checkpointed so that they can be resumed, or null if they are not
+     */
+    public MultipartCheckpointStore checkpointStore() {
+        return _checkpointStore;
+    }
+
+    /**
+     * @return the checkpointed upload to carry on, or null to start a new upload
+     */
+    public String resumeUploadId() {
+        return _resumeUploadId;
+    }
+
+    /**
+     * @return the executor to upload parts on, or null to use the client's executor
+     */
     public ExecutorService executorService() {
         return _es;
     }
 
+    /**
+     * @return whether parts are uploaded on the client's executor, at most
+     *         {@link #maxConnections()} at a time
+     */
     public boolean usingDefaultExecutorService() {
         return _usingDefaultExecutorService;
     }
 
     static public class Builder {
         private final long MIN_PART_SIZE = 5 << 20;
-        private MultiFileOutputStream _outputStream = new MultiFileOutputStream();
+        private PartOutputStream _outputStream = new MultiFileOutputStream();
         // Default Max Connections is 50
         private int _maxConnections = 50;
+        private int _minConnections = 2;
+        private boolean _autoTune = false;
+        // If unset, twice maxConnections, so a part is staged and ready for each upload slot
+        private int _maxPartsInFlight = 0;
         // Set Min Allowed Part Size as Default
         private long _partSize = MIN_PART_SIZE;
         private long _diskLimit = Long.MAX_VALUE;
         private UploadObjectObserver _observer = new UploadObjectObserver();
-        // If null, ExecutorService will be initialized in build() based on maxConnections.
+        // If null, parts are uploaded on the client's executor, maxConnections at a time
         private ExecutorService _es = null;
         private boolean _usingDefaultExecutorService;
+        private MultipartCheckpointStore _checkpointStore = null;
+        private String _resumeUploadId = null;
 
         private Builder() {
         }
@@ -80,6 +187,41 @@ public class MultipartConfiguration {
             return this;
         }
 
+        /**
+         * Sets the fewest parts to upload at once when auto-tuning, which is also where
+         * tuning starts. Defaults to 2.
+         */
+        public Builder minConnections(int minConnections) {
+            _minConnections = minConnections;
+            return this;
+        }
+
+        /**
+         * When set to true, the part size is chosen from the object's length, when known:
+         * {@link #partSize(long)} becomes the smallest part size, grown as needed to keep the
+         * object within 10,000 parts. The number of parts uploaded at once is tuned between
+         * {@link #minConnections(int)} and {@link #maxConnections(int)}: it grows while parts
+         * upload quickly and is cut when they fail or slow down. Concurrency is only tuned on
+         * the client's executor, not on one given to {@link #executorService(ExecutorService)}.
+         * Disabled by default.
+         */
+        public Builder autoTune(boolean autoTune) {
+            _autoTune = autoTune;
+            return this;
+        }
+
+        /**
+         * Sets the most parts to have staged or uploading at once. Encryption waits for a part
+         * to finish uploading before staging another, so it never runs more than this many parts
+         * ahead of the uploads. Defaults to twice {@link #maxConnections(int)}.
+         */
+        public Builder maxPartsInFlight(int maxPartsInFlight) {
+            if (maxPartsInFlight < 1)
+                throw new IllegalArgumentException("maxPartsInFlight must be at least 1");
+            _maxPartsInFlight = maxPartsInFlight;
+            return this;
+        }
+
         public Builder partSize(long partSize) {
             if (partSize < MIN_PART_SIZE)
                 throw new IllegalArgumentException("partSize must be at least "
@@ -108,12 +250,65 @@ public class MultipartConfiguration {
             return this;
         }
 
+        /**
+         * Stages the encrypted parts in memory, in buffers from the given pool, rather
+         * than in temporary files. Writing blocks while every buffer of the pool is in use.
+         * The disk limit does not apply.
+         */
+        public Builder partBufferPool(PartBufferPool pool) {
+            _outputStream = new MemoryPartOutputStream(pool);
+            return this;
+        }
+
+        /**
+         * Stages the encrypted parts in temporary files spread across the given directories,
+         * e.g. one per local disk, choosing the directory of each part by the given policy.
+         * The disk limit applies to each directory on its own.
+         */
+        public Builder stagingDirectories(List<File> directories, StripingPolicy policy) {
+            _outputStream = new StripedMultiFileOutputStream(directories, policy);
+            return this;
+        }
+
+        /**
+         * Checkpoints each upload in the given store as its parts are uploaded, so that an
+         * upload which did not finish, e.g. because the process went away, can be resumed with
+         * {@link #resumeUploadId(String)}: the parts S3 already has are read to check they are
+         * the same, but neither encrypted nor uploaded again. The content length must be known.
+         * <p>
+         * A checkpointed upload which fails is left in place, rather than aborted, so it can
+         * be resumed; uploads which are never resumed should be cleaned up by a bucket
+         * lifecycle rule. The part size must be a multiple of 16 bytes. Disabled by default.
+         */
+        public Builder checkpointStore(MultipartCheckpointStore checkpointStore) {
+            _checkpointStore = checkpointStore;
+            return this;
+        }
+
+        /**
+         * Carries on the given checkpointed upload of the same bucket and key, rather than
+         * starting a new one. The request must set the same metadata and settings as the one
+         * which created the upload, and the content of each part which is reused must be the
+         * same as was uploaded, or the putObject fails. Needs a {@link #checkpointStore}; when
+         * not set, which is the default, any checkpointed upload of the object is aborted and
+         * a new one is started.
+         */
+        public Builder resumeUploadId(String uploadId) {
+            _resumeUploadId = uploadId;
+            return this;
+        }
+
         public MultipartConfiguration build() {
-            if (_es == null) {
-                _es = Executors.newFixedThreadPool(_maxConnections);
-                _usingDefaultExecutorService = true;
-            } else {
-                _usingDefaultExecutorService = false;
+            _usingDefaultExecutorService = _es == null;
+            if (_autoTune && (_minConnections < 1 || _minConnections > _maxConnections)) {
+                throw new IllegalArgumentException("minConnections must be between 1 and maxConnections ("
+                        + _maxConnections + ")");
+            }
+            if (_maxPartsInFlight == 0) {
+                _maxPartsInFlight = (int) Math.min(Integer.MAX_VALUE, 2L * _maxConnections);
+            }
+            if (_resumeUploadId != null && _checkpointStore == null) {
+                throw new IllegalArgumentException("Resuming an upload needs a checkpointStore");
             }
 
             return new MultipartConfiguration(this);
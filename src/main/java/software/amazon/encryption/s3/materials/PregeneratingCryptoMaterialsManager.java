@@ -0,0 +1,514 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.materials;
+
+import org.apache.commons.logging.LogFactory;
+import software.amazon.encryption.s3.S3EncryptionClient;
+import software.amazon.encryption.s3.S3EncryptionClientException;
+import software.amazon.encryption.s3.internal.ClientExecutor;
+
+import java.security.Provider;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A {@link CryptographicMaterialsManager} which generates data keys ahead of the requests
+ * which use them, so that a putObject or createMultipartUpload does not wait on the round
+ * trip to the key provider, e.g. GenerateDataKey in AWS KMS. Unlike the
+ * {@link CachingCryptoMaterialsManager}, every data key is still used for exactly one object.
+ * <p>
+ * Data keys are kept in a queue per encryption context, including the context given to the
+ * request with {@link S3EncryptionClient#withAdditionalConfiguration(Map)}, so an object is
+ * only ever encrypted under a key wrapped with its own context, and per algorithm suite the
+ * request asks for. Each request takes a key from its queue and has the queue topped up to
+ * the target depth on the refill executor; when the queue is empty, e.g. for the first object of a context, the key is generated on the
+ * request's thread as usual. The materials of a queued key are those the underlying CMM chose
+ * for the last request of its context.
+ * <p>
+ * A queued data key is zeroed, unused, once it is older than {@code maxAge}, so that keys
+ * do not stay in memory for long, whether or not any request comes for them: each queue
+ * holding keys has a task scheduled for when its oldest key expires. At most
+ * {@code capacity} encryption contexts have queues at once; the least recently used queue
+ * is dropped, and its keys zeroed, beyond it.
+ * Decryption is passed straight to the underlying CMM.
+ */
+public class PregeneratingCryptoMaterialsManager implements CryptographicMaterialsManager {
+    public static final int DEFAULT_TARGET_DEPTH = 4;
+    public static final Duration DEFAULT_MAX_AGE = Duration.ofMinutes(5);
+    public static final int DEFAULT_CAPACITY = 100;
+
+    private final CryptographicMaterialsManager _underlyingCmm;
+    private final int _targetDepth;
+    private final long _maxAgeNanos;
+    private final int _capacity;
+    private final Executor _refillExecutor;
+    private final LongSupplier _nanoClock;
+    // Least recently used first; guarded by itself
+    private final LinkedHashMap<CachingCryptoMaterialsManager.Partition, KeyQueue> _queues = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _starvations = new AtomicLong();
+    private final AtomicLong _generated = new AtomicLong();
+    private final AtomicLong _generationNanos = new AtomicLong();
+    private final AtomicLong _refillFailures = new AtomicLong();
+    private final AtomicLong _discarded = new AtomicLong();
+
+    private PregeneratingCryptoMaterialsManager(Builder builder) {
+        _underlyingCmm = builder._underlyingCmm;
+        _targetDepth = builder._targetDepth;
+        _maxAgeNanos = builder._maxAge.toNanos();
+        _capacity = builder._capacity;
+        _refillExecutor = builder._refillExecutor;
+        _nanoClock = builder._nanoClock;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public EncryptionMaterials getEncryptionMaterials(EncryptionMaterialsRequest request) {
+        final CachingCryptoMaterialsManager.Partition partition = CachingCryptoMaterialsManager.partition(request);
+        final long now = _nanoClock.getAsLong();
+        final KeyQueue queue;
+        synchronized (_queues) {
+            KeyQueue existing = _queues.get(partition);
+            if (existing == null) {
+                existing = new KeyQueue();
+                _queues.put(partition, existing);
+                final Iterator<KeyQueue> leastRecentlyUsed = _queues.values().iterator();
+                while (_queues.size() > _capacity) {
+                    final KeyQueue evicted = leastRecentlyUsed.next();
+                    leastRecentlyUsed.remove();
+                    evicted.drop();
+                }
+            }
+            queue = existing;
+        }
+        queue._request = request;
+        final PregeneratedKey key = queue.poll(now);
+        queue.refill();
+        if (key != null) {
+            _hits.incrementAndGet();
+            return key.materialsFor(request);
+        }
+        _starvations.incrementAndGet();
+        return _underlyingCmm.getEncryptionMaterials(request);
+    }
+
+    @Override
+    public DecryptionMaterials decryptMaterials(DecryptMaterialsRequest request) {
+        return _underlyingCmm.decryptMaterials(request);
+    }
+
+    /**
+     * Zeroes and forgets every queued data key, e.g. once the wrapping key has been rotated.
+     */
+    public void clear() {
+        synchronized (_queues) {
+            for (KeyQueue queue : _queues.values()) {
+                queue.drop();
+            }
+            _queues.clear();
+        }
+    }
+
+    private void discard(final PregeneratedKey key) {
+        key.destroy();
+        _discarded.incrementAndGet();
+    }
+
+    public int targetDepth() {
+        return _targetDepth;
+    }
+
+    public Duration maxAge() {
+        return Duration.ofNanos(_maxAgeNanos);
+    }
+
+    public int capacity() {
+        return _capacity;
+    }
+
+    /**
+     * @return a snapshot of how often requests were served a pre-generated data key
+     */
+    public Metrics metrics() {
+        int depth = 0;
+        final int queues;
+        synchronized (_queues) {
+            for (KeyQueue queue : _queues.values()) {
+                depth += queue._keys.size();
+            }
+            queues = _queues.size();
+        }
+        return new Metrics(this, depth, queues);
+    }
+
+    /**
+     * The data keys of one encryption context, and its refill in progress, if any.
+     */
+    private final class KeyQueue {
+        private final LinkedBlockingQueue<PregeneratedKey> _keys = new LinkedBlockingQueue<>(_targetDepth);
+        private final AtomicBoolean _refilling = new AtomicBoolean();
+        private final AtomicBoolean _expiryScheduled = new AtomicBoolean();
+        // The request the queue's data keys are generated for
+        private volatile EncryptionMaterialsRequest _request;
+        private volatile boolean _dropped;
+
+        private PregeneratedKey poll(final long now) {
+            PregeneratedKey key;
+            while ((key = _keys.poll()) != null) {
+                if (now - key._createdNanos < _maxAgeNanos) {
+                    return key;
+                }
+                discard(key);
+            }
+            return null;
+        }
+
+        /**
+         * Tops the queue up on the refill executor, unless it is full or already being refilled.
+         */
+        private void refill() {
+            if (_dropped || _keys.size() >= _targetDepth || !_refilling.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                _refillExecutor.execute(this::fill);
+            } catch (RejectedExecutionException exception) {
+                _refilling.set(false);
+                _refillFailures.incrementAndGet();
+            }
+        }
+
+        private void fill() {
+            try {
+                while (!_dropped && _keys.size() < _targetDepth) {
+                    final long start = _nanoClock.getAsLong();
+                    final EncryptionMaterials materials = _underlyingCmm.getEncryptionMaterials(_request);
+                    final long end = _nanoClock.getAsLong();
+                    _generated.incrementAndGet();
+                    _generationNanos.addAndGet(end - start);
+                    final PregeneratedKey key = new PregeneratedKey(materials, end);
+                    if (key._plaintextDataKey == null || !_keys.offer(key)) {
+                        discard(key);
+                        return;
+                    }
+                    scheduleExpiry();
+                    if (_dropped) {
+                        // Dropped while the key was generated
+                        drop();
+                    }
+                }
+            } catch (RuntimeException exception) {
+                _refillFailures.incrementAndGet();
+                LogFactory.getLog(getClass()).debug("Failed to pre-generate a data key", exception);
+            } finally {
+                _refilling.set(false);
+            }
+        }
+
+        /**
+         * Schedules the queue's keys to be looked at when the oldest expires, unless that is
+         * already scheduled.
+         */
+        private void scheduleExpiry() {
+            final PregeneratedKey oldest = _keys.peek();
+            if (oldest == null || !_expiryScheduled.compareAndSet(false, true)) {
+                return;
+            }
+            final long delay = Math.max(0, oldest._createdNanos + _maxAgeNanos - _nanoClock.getAsLong());
+            try {
+                SharedExpiryScheduler.INSTANCE.schedule(this::expire, delay, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException exception) {
+                // Expired keys are still zeroed when a request polls them
+                _expiryScheduled.set(false);
+            }
+        }
+
+        /**
+         * Zeroes the keys which are too old to be used, and schedules the next look at the rest.
+         */
+        private void expire() {
+            final long now = _nanoClock.getAsLong();
+            for (PregeneratedKey key : _keys) {
+                // Only a key removed here is zeroed: a request may have just polled it
+                if (now - key._createdNanos >= _maxAgeNanos && _keys.remove(key)) {
+                    discard(key);
+                }
+            }
+            // Cleared before looking again, so a key queued meanwhile is not left unscheduled
+            _expiryScheduled.set(false);
+            scheduleExpiry();
+        }
+
+        private void drop() {
+            _dropped = true;
+            PregeneratedKey key;
+            while ((key = _keys.poll()) != null) {
+                discard(key);
+            }
+        }
+    }
+
+    /**
+     * A data key generated ahead of the request which will use it.
+     */
+    private static final class PregeneratedKey {
+        // The materials, less the plaintext data key, which is kept apart so it can be zeroed
+        private final EncryptionMaterials _template;
+        private final byte[] _plaintextDataKey;
+        private final long _createdNanos;
+
+        private PregeneratedKey(final EncryptionMaterials materials, final long createdNanos) {
+            _template = materials.toBuilder().plaintextDataKey(null).build();
+            _plaintextDataKey = materials.plaintextDataKey();
+            _createdNanos = createdNanos;
+        }
+
+        /**
+         * Hands the data key over to the request; the queue keeps no copy of it.
+         */
+        private EncryptionMaterials materialsFor(final EncryptionMaterialsRequest request) {
+            final EncryptionMaterials materials = _template.toBuilder()
+                    .s3Request(request.s3Request())
+                    .plaintextLength(request.plaintextLength())
+                    .plaintextDataKey(_plaintextDataKey)
+                    .build();
+            destroy();
+            return materials;
+        }
+
+        private void destroy() {
+            if (_plaintextDataKey != null) {
+                Arrays.fill(_plaintextDataKey, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * The executor queues are refilled on when none is given: a pool of daemon threads shared
+     * by every CMM, created when first needed, whose threads go once idle.
+     */
+    private static final class SharedRefillExecutor {
+        private static final ClientExecutor INSTANCE = ClientExecutor.create(false);
+    }
+
+    /**
+     * The scheduler queued data keys are expired on: a daemon thread shared by every CMM,
+     * created when first needed.
+     */
+    private static final class SharedExpiryScheduler {
+        private static final ScheduledExecutorService INSTANCE = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "s3ec-pregenerated-key-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * A snapshot of the CMM's counters.
+     */
+    public static final class Metrics {
+        private final long _hits;
+        private final long _starvations;
+        private final long _generated;
+        private final long _generationNanos;
+        private final long _refillFailures;
+        private final long _discarded;
+        private final int _depth;
+        private final int _queues;
+
+        private Metrics(final PregeneratingCryptoMaterialsManager cmm, final int depth, final int queues) {
+            _hits = cmm._hits.get();
+            _starvations = cmm._starvations.get();
+            _generated = cmm._generated.get();
+            _generationNanos = cmm._generationNanos.get();
+            _refillFailures = cmm._refillFailures.get();
+            _discarded = cmm._discarded.get();
+            _depth = depth;
+            _queues = queues;
+        }
+
+        /**
+         * @return the number of requests served a pre-generated data key
+         */
+        public long hits() {
+            return _hits;
+        }
+
+        /**
+         * @return the number of requests which found their queue empty, and so had a data key
+         *         generated on their own thread
+         */
+        public long starvations() {
+            return _starvations;
+        }
+
+        /**
+         * @return the number of data keys generated on the refill executor
+         */
+        public long generated() {
+            return _generated;
+        }
+
+        /**
+         * @return how long generating a data key on the refill executor took, on average
+         */
+        public Duration meanRefillLatency() {
+            return Duration.ofNanos(_generated == 0 ? 0 : _generationNanos / _generated);
+        }
+
+        /**
+         * @return the number of refills which failed, or could not be started
+         */
+        public long refillFailures() {
+            return _refillFailures;
+        }
+
+        /**
+         * @return the number of pre-generated data keys zeroed unused, as they expired or
+         *         their queue was dropped
+         */
+        public long discarded() {
+            return _discarded;
+        }
+
+        /**
+         * @return the number of data keys queued, across every encryption context
+         */
+        public int depth() {
+            return _depth;
+        }
+
+        /**
+         * @return the number of encryption contexts with a queue
+         */
+        public int queues() {
+            return _queues;
+        }
+
+        @Override
+        public String toString() {
+            return "PregeneratingCryptoMaterialsManager.Metrics(hits=" + _hits + ", starvations=" + _starvations
+                    + ", generated=" + _generated + ", meanRefillLatency=" + meanRefillLatency()
+                    + ", refillFailures=" + _refillFailures + ", discarded=" + _discarded
+                    + ", depth=" + _depth + ", queues=" + _queues + ")";
+        }
+    }
+
+    public static class Builder {
+        private CryptographicMaterialsManager _underlyingCmm;
+        private Keyring _keyring;
+        private Provider _cryptoProvider;
+        private int _targetDepth = DEFAULT_TARGET_DEPTH;
+        private Duration _maxAge = DEFAULT_MAX_AGE;
+        private int _capacity = DEFAULT_CAPACITY;
+        private Executor _refillExecutor;
+        private LongSupplier _nanoClock = System::nanoTime;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the CMM to get data keys from, and to decrypt with. Either this or a keyring is required.
+         */
+        public Builder cryptoMaterialsManager(CryptographicMaterialsManager cryptoMaterialsManager) {
+            _underlyingCmm = cryptoMaterialsManager;
+            return this;
+        }
+
+        /**
+         * Sets the keyring to get data keys from, and to decrypt with, through a
+         * {@link DefaultCryptoMaterialsManager}.
+         */
+        public Builder keyring(Keyring keyring) {
+            _keyring = keyring;
+            return this;
+        }
+
+        /**
+         * Sets the provider of the {@link DefaultCryptoMaterialsManager} made for a keyring.
+         */
+        public Builder cryptoProvider(Provider cryptoProvider) {
+            _cryptoProvider = cryptoProvider;
+            return this;
+        }
+
+        /**
+         * Sets how many data keys are kept queued per encryption context. Defaults to 4.
+         */
+        public Builder targetDepth(int targetDepth) {
+            _targetDepth = targetDepth;
+            return this;
+        }
+
+        /**
+         * Sets how long a data key may stay queued before it is zeroed unused. Defaults to 5 minutes.
+         */
+        public Builder maxAge(Duration maxAge) {
+            _maxAge = maxAge;
+            return this;
+        }
+
+        /**
+         * Sets how many encryption contexts have queues at once; the least recently used
+         * queue is dropped beyond it. Defaults to 100.
+         */
+        public Builder capacity(int capacity) {
+            _capacity = capacity;
+            return this;
+        }
+
+        /**
+         * Sets the executor data keys are generated on ahead of the requests. Defaults to a
+         * pool of daemon threads shared by every PregeneratingCryptoMaterialsManager.
+         */
+        public Builder refillExecutor(Executor refillExecutor) {
+            _refillExecutor = refillExecutor;
+            return this;
+        }
+
+        Builder nanoClock(LongSupplier nanoClock) {
+            _nanoClock = nanoClock;
+            return this;
+        }
+
+        public PregeneratingCryptoMaterialsManager build() {
+            if ((_underlyingCmm == null) == (_keyring == null)) {
+                throw new S3EncryptionClientException("Exactly one of cryptoMaterialsManager and keyring must be set");
+            }
+            if (_targetDepth < 1) {
+                throw new S3EncryptionClientException("targetDepth must be at least 1: " + _targetDepth);
+            }
+            if (_maxAge == null || _maxAge.isNegative() || _maxAge.isZero()) {
+                throw new S3EncryptionClientException("maxAge must be positive: " + _maxAge);
+            }
+            if (_capacity < 1) {
+                throw new S3EncryptionClientException("capacity must be at least 1: " + _capacity);
+            }
+            if (_underlyingCmm == null) {
+                _underlyingCmm = DefaultCryptoMaterialsManager.builder()
+                        .keyring(_keyring)
+                        .cryptoProvider(_cryptoProvider)
+                        .build();
+            }
+            if (_refillExecutor == null) {
+                _refillExecutor = SharedRefillExecutor.INSTANCE;
+            }
+            return new PregeneratingCryptoMaterialsManager(this);
+        }
+    }
+}
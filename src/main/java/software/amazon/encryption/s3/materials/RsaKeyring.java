@@ -44,10 +44,11 @@ public class RsaKeyring extends S3Keyring {
 
         @Override
         public byte[] decryptDataKey(DecryptionMaterials materials, byte[] encryptedDataKey) throws GeneralSecurityException {
-            final Cipher cipher = CryptoFactory.createCipher(CIPHER_ALGORITHM, materials.cryptoProvider());
-            cipher.init(Cipher.DECRYPT_MODE, _partialRsaKeyPair.getPrivateKey());
+            return CryptoFactory.withPooledCipher(CIPHER_ALGORITHM, materials.cryptoProvider(), cipher -> {
+                cipher.init(Cipher.DECRYPT_MODE, _partialRsaKeyPair.getPrivateKey());
 
-            return cipher.doFinal(encryptedDataKey);
+                return cipher.doFinal(encryptedDataKey);
+            });
         }
     };
 
@@ -67,12 +68,13 @@ public class RsaKeyring extends S3Keyring {
 
         @Override
         public byte[] decryptDataKey(DecryptionMaterials materials, byte[] encryptedDataKey) throws GeneralSecurityException {
-            final Cipher cipher = CryptoFactory.createCipher(CIPHER_ALGORITHM, materials.cryptoProvider());
-            cipher.init(Cipher.UNWRAP_MODE, _partialRsaKeyPair.getPrivateKey());
+            return CryptoFactory.withPooledCipher(CIPHER_ALGORITHM, materials.cryptoProvider(), cipher -> {
+                cipher.init(Cipher.UNWRAP_MODE, _partialRsaKeyPair.getPrivateKey());
 
-            Key plaintextKey = cipher.unwrap(encryptedDataKey, CIPHER_ALGORITHM, Cipher.SECRET_KEY);
+                Key plaintextKey = cipher.unwrap(encryptedDataKey, CIPHER_ALGORITHM, Cipher.SECRET_KEY);
 
-            return plaintextKey.getEncoded();
+                return plaintextKey.getEncoded();
+            });
         }
     };
 
@@ -113,9 +115,6 @@ public class RsaKeyring extends S3Keyring {
         @Override
         public byte[] encryptDataKey(SecureRandom secureRandom,
                                      EncryptionMaterials materials) throws GeneralSecurityException {
-            final Cipher cipher = CryptoFactory.createCipher(CIPHER_ALGORITHM, materials.cryptoProvider());
-            cipher.init(Cipher.WRAP_MODE, _partialRsaKeyPair.getPublicKey(), OAEP_PARAMETER_SPEC, secureRandom);
-
             // Create a pseudo-data key with the content encryption appended to the data key
             byte[] dataKey = materials.plaintextDataKey();
             byte[] dataCipherName = AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF.cipherName().getBytes(StandardCharsets.UTF_8);
@@ -125,17 +124,21 @@ public class RsaKeyring extends S3Keyring {
             System.arraycopy(dataKey, 0, pseudoDataKey, 1, dataKey.length);
             System.arraycopy(dataCipherName, 0, pseudoDataKey, 1 + dataKey.length, dataCipherName.length);
 
-            byte[] ciphertext = cipher.wrap(new SecretKeySpec(pseudoDataKey, materials.algorithmSuite().dataKeyAlgorithm()));
-            return ciphertext;
+            return CryptoFactory.withPooledCipher(CIPHER_ALGORITHM, materials.cryptoProvider(), cipher -> {
+                cipher.init(Cipher.WRAP_MODE, _partialRsaKeyPair.getPublicKey(), OAEP_PARAMETER_SPEC, secureRandom);
+
+                return cipher.wrap(new SecretKeySpec(pseudoDataKey, materials.algorithmSuite().dataKeyAlgorithm()));
+            });
         }
 
         @Override
         public byte[] decryptDataKey(DecryptionMaterials materials, byte[] encryptedDataKey) throws GeneralSecurityException {
-            final Cipher cipher = CryptoFactory.createCipher(CIPHER_ALGORITHM, materials.cryptoProvider());
-            cipher.init(Cipher.UNWRAP_MODE, _partialRsaKeyPair.getPrivateKey(), OAEP_PARAMETER_SPEC);
-
             String dataKeyAlgorithm = materials.algorithmSuite().dataKeyAlgorithm();
-            Key pseudoDataKey = cipher.unwrap(encryptedDataKey, dataKeyAlgorithm, Cipher.SECRET_KEY);
+            Key pseudoDataKey = CryptoFactory.withPooledCipher(CIPHER_ALGORITHM, materials.cryptoProvider(), cipher -> {
+                cipher.init(Cipher.UNWRAP_MODE, _partialRsaKeyPair.getPrivateKey(), OAEP_PARAMETER_SPEC);
+
+                return cipher.unwrap(encryptedDataKey, dataKeyAlgorithm, Cipher.SECRET_KEY);
+            });
 
             return parsePseudoDataKey(materials, pseudoDataKey.getEncoded());
         }
@@ -41,6 +41,7 @@ import software.amazon.awssdk.services.s3.model.GetObjectResponse;
 import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
 import software.amazon.awssdk.services.s3.model.PutObjectResponse;
 import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
 import software.amazon.awssdk.services.s3.multipart.MultipartConfiguration;
 import software.amazon.encryption.s3.internal.InstructionFileConfig;
 import software.amazon.encryption.s3.materials.KmsKeyring;
@@ -66,6 +67,7 @@ import java.util.concurrent.Executors;
 
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
@@ -924,32 +926,16 @@ public class S3AsyncEncryptionClientTest {
     }
 
     @Test
-    public void s3AsyncClientForbidsCreateMultipartUpload() {
+    public void s3AsyncClientUploadPartRequiresKnownUpload() {
         S3AsyncClient s3AsyncClient = S3AsyncEncryptionClient.builder()
                 .kmsKeyId("fails")
                 .build();
 
-        assertThrows(UnsupportedOperationException.class, () -> s3AsyncClient.createMultipartUpload(builder -> builder.bucket(BUCKET).key("expected-fail").build()).join());
-        s3AsyncClient.close();
-    }
-
-    @Test
-    public void s3AsyncClientForbidsUploadPart() {
-        S3AsyncClient s3AsyncClient = S3AsyncEncryptionClient.builder()
-                .kmsKeyId("fails")
-                .build();
-
-        assertThrows(UnsupportedOperationException.class, () -> s3AsyncClient.uploadPart(builder -> builder.uploadId("fail").build(), AsyncRequestBody.fromString("fail")).join());
-        s3AsyncClient.close();
-    }
-
-    @Test
-    public void s3AsyncClientForbidsCompleteMultipartUpload() {
-        S3AsyncClient s3AsyncClient = S3AsyncEncryptionClient.builder()
-                .kmsKeyId("fails")
-                .build();
-
-        assertThrows(UnsupportedOperationException.class, () -> s3AsyncClient.completeMultipartUpload(builder -> builder.uploadId("fail").build()).join());
+        // The failure is returned in the future rather than thrown
+        CompletableFuture<UploadPartResponse> response = s3AsyncClient.uploadPart(builder -> builder
+                .uploadId("fail").partNumber(1).build(), AsyncRequestBody.fromString("fail"));
+        CompletionException exception = assertThrows(CompletionException.class, response::join);
+        assertInstanceOf(S3EncryptionClientException.class, exception.getCause());
         s3AsyncClient.close();
     }
 }
@@ -34,6 +34,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.Provider;
 import java.security.Security;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -381,6 +382,70 @@ public class S3EncryptionClientMultipartUploadTest {
         v3Client.close();
     }
 
+    @Test
+    public void multipartUploadAsyncConcurrentParts() throws IOException {
+        final String objectKey = appendTestSuffix("multipart-upload-async-concurrent-parts");
+
+        // Overall "file" is 32MB, split into 5MB parts uploaded concurrently, then a 2MB last part
+        final int fileSizeLimit = 1024 * 1024 * 32;
+        final int PART_SIZE = 5 * 1024 * 1024;
+        final byte[] content = IoUtils.toByteArray(new BoundedInputStream(fileSizeLimit));
+
+        // V3 Client
+        S3AsyncClient v3Client = S3AsyncEncryptionClient.builder()
+                .kmsKeyId(KMS_KEY_ID)
+                .enableDelayedAuthenticationMode(true)
+                .cryptoProvider(PROVIDER)
+                .build();
+
+        CreateMultipartUploadResponse initiateResult = v3Client.createMultipartUpload(builder ->
+                builder.bucket(BUCKET).key(objectKey)).join();
+
+        final int partCount = (fileSizeLimit + PART_SIZE - 1) / PART_SIZE;
+        List<CompletableFuture<UploadPartResponse>> uploads = new ArrayList<>();
+        for (int partNumber = partCount - 1; partNumber >= 1; partNumber--) {
+            final int part = partNumber;
+            uploads.add(0, v3Client.uploadPart(builder -> builder
+                            .bucket(BUCKET)
+                            .key(objectKey)
+                            .uploadId(initiateResult.uploadId())
+                            .partNumber(part),
+                    AsyncRequestBody.fromBytes(Arrays.copyOfRange(content, (part - 1) * PART_SIZE, part * PART_SIZE))));
+        }
+        CompletableFuture.allOf(uploads.toArray(new CompletableFuture[0])).join();
+
+        // Last Part, which can only be uploaded once the others are done
+        UploadPartResponse lastPart = v3Client.uploadPart(builder -> builder
+                        .bucket(BUCKET)
+                        .key(objectKey)
+                        .uploadId(initiateResult.uploadId())
+                        .partNumber(partCount)
+                        .sdkPartType(SdkPartType.LAST),
+                AsyncRequestBody.fromBytes(Arrays.copyOfRange(content, (partCount - 1) * PART_SIZE, fileSizeLimit))).join();
+
+        List<CompletedPart> partETags = new ArrayList<>();
+        for (int i = 0; i < uploads.size(); i++) {
+            partETags.add(CompletedPart.builder().partNumber(i + 1).eTag(uploads.get(i).join().eTag()).build());
+        }
+        partETags.add(CompletedPart.builder().partNumber(partCount).eTag(lastPart.eTag()).build());
+
+        v3Client.completeMultipartUpload(builder -> builder
+                .bucket(BUCKET)
+                .key(objectKey)
+                .uploadId(initiateResult.uploadId())
+                .multipartUpload(partBuilder -> partBuilder.parts(partETags))).join();
+
+        // Asserts
+        ResponseBytes<GetObjectResponse> result = v3Client.getObject(builder -> builder
+                .bucket(BUCKET)
+                .key(objectKey), AsyncResponseTransformer.toBytes()).join();
+
+        assertTrue(IOUtils.contentEquals(new ByteArrayInputStream(content), result.asInputStream()));
+
+        deleteObject(BUCKET, objectKey, v3Client);
+        v3Client.close();
+    }
+
     @Test
     public void multipartUploadV3OutputStreamPartSize() throws IOException {
         final String objectKey = appendTestSuffix("multipart-upload-v3-output-stream-part-size");
@@ -0,0 +1,82 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.encryption.s3.S3EncryptionClientException;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AdaptiveConcurrencyTest {
+    private static final long PART = 8 << 20;
+
+    @Test
+    public void doublesEachRoundUntilTheUpperBound() {
+        AdaptiveConcurrency concurrency = new AdaptiveConcurrency(2, 10);
+        assertEquals(2, concurrency.limit());
+
+        concurrency.onSuccess(PART, 100, TimeUnit.MILLISECONDS);
+        concurrency.onSuccess(PART, 100, TimeUnit.MILLISECONDS);
+        assertEquals(4, concurrency.limit());
+        for (int i = 0; i < 20; i++) {
+            concurrency.onSuccess(PART, 100, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(10, concurrency.limit());
+        assertEquals(0, concurrency.decreases());
+    }
+
+    @Test
+    public void halvesOnFailureThenGrowsByOnePerRound() {
+        AdaptiveConcurrency concurrency = new AdaptiveConcurrency(1, 64);
+        for (int i = 0; i < 15; i++) {
+            concurrency.onSuccess(PART, 100, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(16, concurrency.limit());
+
+        concurrency.onFailure();
+        assertEquals(8, concurrency.limit());
+        // The other parts of the round do not cut it again
+        concurrency.onFailure();
+        assertEquals(8, concurrency.limit());
+
+        // About a whole round of parts raises it by one
+        int parts = 0;
+        while (concurrency.limit() == 8) {
+            concurrency.onSuccess(PART, 100, TimeUnit.MILLISECONDS);
+            parts++;
+        }
+        assertEquals(9, concurrency.limit());
+        assertEquals(9, parts);
+    }
+
+    @Test
+    public void treatsSlowPartsAsCongestion() {
+        AdaptiveConcurrency concurrency = new AdaptiveConcurrency(2, 32);
+        for (int i = 0; i < 6; i++) {
+            concurrency.onSuccess(PART, 100, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(8, concurrency.limit());
+
+        // Half the size in the same time is twice as slow per byte, which is not yet congestion
+        concurrency.onSuccess(PART / 2, 100, TimeUnit.MILLISECONDS);
+        assertEquals(9, concurrency.limit());
+        concurrency.onSuccess(PART, 500, TimeUnit.MILLISECONDS);
+        assertEquals(4, concurrency.limit());
+        assertEquals(1, concurrency.decreases());
+
+        // It never drops below the lower bound
+        for (int i = 0; i < 20; i++) {
+            concurrency.onFailure();
+        }
+        assertEquals(2, concurrency.limit());
+    }
+
+    @Test
+    public void rejectsInvalidBounds() {
+        assertThrows(S3EncryptionClientException.class, () -> new AdaptiveConcurrency(0, 4));
+        assertThrows(S3EncryptionClientException.class, () -> new AdaptiveConcurrency(5, 4));
+    }
+}
@@ -0,0 +1,162 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.encryption.s3.S3EncryptionClientException;
+import software.amazon.encryption.s3.internal.BufferMemoryBudget.AdmissionPolicy;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BufferMemoryBudgetTest {
+
+    private static BufferMemoryBudget budget(AdmissionPolicy policy, Duration queueTimeout) {
+        return BufferMemoryBudget.builder()
+                .maxBytes(100)
+                .admissionPolicy(policy)
+                .queueTimeout(queueTimeout)
+                .build();
+    }
+
+    @Test
+    public void reservesAndReleases() {
+        BufferMemoryBudget budget = budget(AdmissionPolicy.FAIL_FAST, Duration.ZERO);
+
+        assertTrue(budget.reserve(60).isDone());
+        assertTrue(budget.reserve(40).isDone());
+        assertEquals(100, budget.reservedBytes());
+
+        budget.release(60);
+        budget.release(40);
+        assertEquals(0, budget.reservedBytes());
+    }
+
+    @Test
+    public void failFastRejectsWhenExhausted() {
+        BufferMemoryBudget budget = budget(AdmissionPolicy.FAIL_FAST, Duration.ZERO);
+        budget.reserve(60).join();
+
+        CompletableFuture<Void> rejected = budget.reserve(50);
+
+        CompletionException exception = assertThrows(CompletionException.class, rejected::join);
+        assertInstanceOf(S3EncryptionClientException.class, exception.getCause());
+        assertEquals(60, budget.reservedBytes());
+        assertEquals(0, budget.queuedBytes());
+    }
+
+    @Test
+    public void rejectsRequestLargerThanBudget() {
+        BufferMemoryBudget budget = budget(AdmissionPolicy.QUEUE, Duration.ofMinutes(1));
+
+        CompletionException exception = assertThrows(CompletionException.class, () -> budget.reserve(101).join());
+        assertInstanceOf(S3EncryptionClientException.class, exception.getCause());
+        assertEquals(0, budget.queuedBytes());
+    }
+
+    @Test
+    public void queuedRequestsAreAdmittedInOrderOnRelease() {
+        BufferMemoryBudget budget = budget(AdmissionPolicy.QUEUE, Duration.ofMinutes(1));
+        budget.reserve(80).join();
+
+        CompletableFuture<Void> first = budget.reserve(50);
+        CompletableFuture<Void> second = budget.reserve(10);
+        // The small request fits, but must not overtake the one ahead of it
+        assertFalse(first.isDone());
+        assertFalse(second.isDone());
+        assertEquals(60, budget.queuedBytes());
+
+        budget.release(80);
+
+        assertTrue(first.isDone());
+        assertTrue(second.isDone());
+        assertEquals(60, budget.reservedBytes());
+        assertEquals(0, budget.queuedBytes());
+    }
+
+    @Test
+    public void queuedRequestTimesOut() {
+        BufferMemoryBudget budget = budget(AdmissionPolicy.QUEUE, Duration.ofMillis(50));
+        budget.reserve(100).join();
+
+        CompletableFuture<Void> waiting = budget.reserve(1);
+        ExecutionException exception = assertThrows(ExecutionException.class, () -> waiting.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(S3EncryptionClientException.class, exception.getCause());
+        assertEquals(0, budget.queuedBytes());
+
+        // A timed-out request must not be admitted later
+        budget.release(100);
+        assertEquals(0, budget.reservedBytes());
+    }
+
+    @Test
+    public void closeFailsWaitingAndLaterRequests() {
+        BufferMemoryBudget budget = budget(AdmissionPolicy.QUEUE, Duration.ofMinutes(1));
+        budget.reserve(100).join();
+        CompletableFuture<Void> waiting = budget.reserve(10);
+
+        budget.close();
+
+        CompletionException exception = assertThrows(CompletionException.class, waiting::join);
+        assertInstanceOf(S3EncryptionClientException.class, exception.getCause());
+        assertEquals(0, budget.queuedBytes());
+        assertThrows(CompletionException.class, () -> budget.reserve(1).join());
+        // Reservations granted before the close can still be given back
+        budget.release(100);
+        assertEquals(0, budget.reservedBytes());
+    }
+
+    @Test
+    public void reservationIsHeldUntilTheSubscriberHasCompleted() {
+        BufferMemoryBudget budget = budget(AdmissionPolicy.FAIL_FAST, Duration.ZERO);
+        budget.reserve(60).join();
+        AtomicLong reservedOnComplete = new AtomicLong(-1);
+
+        new BufferReservationPublisher(AsyncRequestBody.fromBytes(new byte[60]), budget, 60)
+                .subscribe(new Subscriber<ByteBuffer>() {
+                    @Override
+                    public void onSubscribe(Subscription s) {
+                        s.request(Long.MAX_VALUE);
+                    }
+
+                    @Override
+                    public void onNext(ByteBuffer byteBuffer) {
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                    }
+
+                    @Override
+                    public void onComplete() {
+                        reservedOnComplete.set(budget.reservedBytes());
+                    }
+                });
+
+        assertEquals(60, reservedOnComplete.get());
+        assertEquals(0, budget.reservedBytes());
+    }
+
+    @Test
+    public void buildRejectsInvalidBudget() {
+        assertThrows(S3EncryptionClientException.class, () -> BufferMemoryBudget.builder().build());
+        assertThrows(S3EncryptionClientException.class, () -> BufferMemoryBudget.builder()
+                .maxBytes(1)
+                .queueTimeout(Duration.ofSeconds(-1))
+                .build());
+    }
+}
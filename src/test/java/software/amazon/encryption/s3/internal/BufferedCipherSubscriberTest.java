@@ -0,0 +1,282 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.encryption.s3.S3EncryptionClientException;
+import software.amazon.encryption.s3.S3EncryptionClientSecurityException;
+import software.amazon.encryption.s3.algorithms.AlgorithmSuite;
+import software.amazon.encryption.s3.materials.DecryptionMaterials;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BufferedCipherSubscriberTest {
+    private static final AlgorithmSuite ALGORITHM_SUITE = AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF;
+    private static final int PLAINTEXT_LENGTH = 3 * 1024 * 1024 + 5;
+    private static final int UPSTREAM_CHUNK_SIZE = 8195;
+    // Not a multiple of the block size, and the tag straddles the last two segments
+    private static final int SMALL_SEGMENT_SIZE = PLAINTEXT_LENGTH / 4 + 3;
+
+    private SecretKey dataKey;
+    private byte[] iv;
+    private byte[] plaintext;
+
+    /**
+     * Requests one buffer at a time and records everything it is sent.
+     */
+    static class RecordingSubscriber implements Subscriber<ByteBuffer> {
+        private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        private Subscription subscription;
+        private int nonEmptyBuffers = 0;
+        private boolean allReadOnly = true;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private Throwable error;
+        private boolean completed = false;
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            subscription = s;
+            s.request(1);
+        }
+
+        @Override
+        public void onNext(ByteBuffer item) {
+            if (item.hasRemaining()) {
+                nonEmptyBuffers++;
+                allReadOnly &= item.isReadOnly();
+                byte[] bytes = new byte[item.remaining()];
+                item.get(bytes);
+                received.write(bytes, 0, bytes.length);
+            }
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+            done.countDown();
+        }
+
+        /**
+         * Waits for the stream to end, since parallel decryption ends it from the pool.
+         */
+        void awaitDone() throws InterruptedException {
+            assertTrue(done.await(30, TimeUnit.SECONDS), "the stream did not end");
+        }
+    }
+
+    static class NoOpSubscription implements Subscription {
+        @Override
+        public void request(long n) {
+            // Do nothing.
+        }
+
+        @Override
+        public void cancel() {
+            // Do nothing.
+        }
+    }
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        dataKey = keyGen.generateKey();
+        iv = new byte[ALGORITHM_SUITE.iVLengthBytes()];
+        new SecureRandom().nextBytes(iv);
+        plaintext = new byte[PLAINTEXT_LENGTH];
+        new SecureRandom().nextBytes(plaintext);
+    }
+
+    private byte[] encrypt(byte[] input) throws Exception {
+        Cipher cipher = Cipher.getInstance(ALGORITHM_SUITE.cipherName());
+        cipher.init(Cipher.ENCRYPT_MODE, dataKey, new GCMParameterSpec(ALGORITHM_SUITE.cipherTagLengthBits(), iv));
+        return cipher.doFinal(input);
+    }
+
+    private BufferedCipherSubscriber newSubscriber(RecordingSubscriber downstream, long contentLength,
+                                                   boolean offHeap, int segmentSize) {
+        return newSubscriber(downstream, contentLength, offHeap, null, segmentSize);
+    }
+
+    private BufferedCipherSubscriber newSubscriber(RecordingSubscriber downstream, long contentLength,
+                                                   boolean offHeap, ForkJoinPool parallelPool, int segmentSize) {
+        DecryptionMaterials materials = DecryptionMaterials.builder()
+                .plaintextDataKey(dataKey.getEncoded())
+                .algorithmSuite(ALGORITHM_SUITE)
+                .ciphertextLength(contentLength)
+                .build();
+        BufferedCipherSubscriber subscriber = new BufferedCipherSubscriber(downstream, contentLength, materials, iv,
+                contentLength, offHeap, parallelPool, segmentSize);
+        subscriber.onSubscribe(new NoOpSubscription());
+        return subscriber;
+    }
+
+    /**
+     * Sends the ciphertext in chunks and returns how many non-empty buffers
+     * downstream had seen before the final chunk was sent.
+     */
+    private int emitInChunks(BufferedCipherSubscriber subscriber, RecordingSubscriber downstream, byte[] ciphertext) {
+        int releasedBeforeEnd = 0;
+        for (int offset = 0; offset < ciphertext.length; offset += UPSTREAM_CHUNK_SIZE) {
+            int length = Math.min(UPSTREAM_CHUNK_SIZE, ciphertext.length - offset);
+            releasedBeforeEnd = downstream.nonEmptyBuffers;
+            // Direct input buffers exercise the same copy path as SDK-provided buffers
+            ByteBuffer chunk = ByteBuffer.allocateDirect(length);
+            chunk.put(ciphertext, offset, length);
+            chunk.flip();
+            subscriber.onNext(chunk);
+            assertEquals(0, chunk.position(), "the upstream buffer must not be consumed");
+        }
+        return releasedBeforeEnd;
+    }
+
+    private void assertRoundTrip(boolean offHeap, int segmentSize) throws Exception {
+        assertRoundTrip(offHeap, null, segmentSize);
+    }
+
+    private void assertRoundTrip(boolean offHeap, ForkJoinPool parallelPool, int segmentSize) throws Exception {
+        byte[] ciphertext = encrypt(plaintext);
+        RecordingSubscriber downstream = new RecordingSubscriber();
+        BufferedCipherSubscriber subscriber = newSubscriber(downstream, ciphertext.length, offHeap, parallelPool, segmentSize);
+
+        int releasedBeforeEnd = emitInChunks(subscriber, downstream, ciphertext);
+        subscriber.onComplete();
+        downstream.awaitDone();
+
+        assertEquals(0, releasedBeforeEnd, "no plaintext may be released before the tag is verified");
+        assertNull(downstream.error);
+        assertTrue(downstream.completed);
+        assertTrue(downstream.allReadOnly);
+        assertArrayEquals(plaintext, downstream.received.toByteArray());
+    }
+
+    private void assertTamperedTagRejected(int segmentSize) throws Exception {
+        assertTamperedTagRejected(null, segmentSize);
+    }
+
+    private void assertTamperedTagRejected(ForkJoinPool parallelPool, int segmentSize) throws Exception {
+        byte[] ciphertext = encrypt(plaintext);
+        ciphertext[ciphertext.length - 1] ^= 1;
+        RecordingSubscriber downstream = new RecordingSubscriber();
+        BufferedCipherSubscriber subscriber = newSubscriber(downstream, ciphertext.length, false, parallelPool, segmentSize);
+
+        if (parallelPool == null) {
+            assertThrows(S3EncryptionClientSecurityException.class, () -> emitInChunks(subscriber, downstream, ciphertext));
+        } else {
+            // The tag is checked on the pool, so the failure is only signalled downstream
+            emitInChunks(subscriber, downstream, ciphertext);
+            downstream.awaitDone();
+        }
+
+        assertInstanceOf(AEADBadTagException.class, downstream.error);
+        assertEquals(0, downstream.nonEmptyBuffers);
+        assertFalse(downstream.completed);
+    }
+
+    @Test
+    public void decryptsInPlaceOnHeap() throws Exception {
+        assertRoundTrip(false, BufferedCipherSubscriber.MAX_SEGMENT_SIZE);
+    }
+
+    @Test
+    public void decryptsInPlaceOffHeap() throws Exception {
+        assertRoundTrip(true, BufferedCipherSubscriber.MAX_SEGMENT_SIZE);
+    }
+
+    @Test
+    public void decryptsAcrossSegments() throws Exception {
+        assertRoundTrip(false, SMALL_SEGMENT_SIZE);
+        assertRoundTrip(true, SMALL_SEGMENT_SIZE);
+    }
+
+    @Test
+    public void rejectsTamperedTag() throws Exception {
+        assertTamperedTagRejected(BufferedCipherSubscriber.MAX_SEGMENT_SIZE);
+    }
+
+    @Test
+    public void rejectsTamperedTagAcrossSegments() throws Exception {
+        assertTamperedTagRejected(SMALL_SEGMENT_SIZE);
+    }
+
+    @Test
+    public void decryptsInParallel() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertRoundTrip(false, pool, BufferedCipherSubscriber.MAX_SEGMENT_SIZE);
+            assertRoundTrip(true, pool, SMALL_SEGMENT_SIZE);
+            assertTamperedTagRejected(pool, SMALL_SEGMENT_SIZE);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void decryptsStreamSentAgainAfterReset() throws Exception {
+        for (int segmentSize : new int[]{BufferedCipherSubscriber.MAX_SEGMENT_SIZE, SMALL_SEGMENT_SIZE}) {
+            byte[] ciphertext = encrypt(plaintext);
+            RecordingSubscriber downstream = new RecordingSubscriber();
+            BufferedCipherSubscriber subscriber = newSubscriber(downstream, ciphertext.length, false, segmentSize);
+
+            subscriber.onNext(ByteBuffer.wrap(ciphertext, 0, ciphertext.length / 2));
+            // The stream is reset and sent again from the start
+            subscriber.onSubscribe(new NoOpSubscription());
+            emitInChunks(subscriber, downstream, ciphertext);
+
+            assertNull(downstream.error);
+            assertTrue(downstream.completed);
+            assertArrayEquals(plaintext, downstream.received.toByteArray());
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedObjectAcrossSegments() throws Exception {
+        byte[] ciphertext = encrypt(plaintext);
+        RecordingSubscriber downstream = new RecordingSubscriber();
+        BufferedCipherSubscriber subscriber = newSubscriber(downstream, ciphertext.length, false, SMALL_SEGMENT_SIZE);
+
+        subscriber.onNext(ByteBuffer.wrap(ciphertext, 0, ciphertext.length / 2));
+        assertThrows(S3EncryptionClientSecurityException.class, subscriber::onComplete);
+
+        assertInstanceOf(AEADBadTagException.class, downstream.error);
+        assertEquals(0, downstream.nonEmptyBuffers);
+    }
+
+    @Test
+    public void rejectsObjectLargerThanBuffer() {
+        DecryptionMaterials materials = DecryptionMaterials.builder()
+                .plaintextDataKey(dataKey.getEncoded())
+                .algorithmSuite(ALGORITHM_SUITE)
+                .build();
+        assertThrows(S3EncryptionClientException.class, () -> new BufferedCipherSubscriber(new RecordingSubscriber(),
+                1025L, materials, iv, 1024, false));
+    }
+}
@@ -0,0 +1,124 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.encryption.s3.S3EncryptionClientSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.SecureRandom;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CipherInputStreamTest {
+    private static final int CONTENT_LENGTH = 1024 * 1024 + 7;
+
+    private SecretKey key;
+    private byte[] content;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        key = keyGen.generateKey();
+        content = new byte[CONTENT_LENGTH];
+        new SecureRandom().nextBytes(content);
+    }
+
+    private Cipher gcmCipher(int mode) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(mode, key, new GCMParameterSpec(128, new byte[12]));
+        return cipher;
+    }
+
+    private static byte[] readAll(InputStream stream, int readSize) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[readSize];
+        int length;
+        while ((length = stream.read(buffer)) != -1) {
+            output.write(buffer, 0, length);
+        }
+        return output.toByteArray();
+    }
+
+    @Test
+    public void encryptsWithLargeReads() throws Exception {
+        byte[] expected = gcmCipher(Cipher.ENCRYPT_MODE).doFinal(content);
+        InputStream stream = new AuthenticatedCipherInputStream(new ByteArrayInputStream(content),
+                gcmCipher(Cipher.ENCRYPT_MODE));
+
+        assertArrayEquals(expected, readAll(stream, 256 * 1024));
+    }
+
+    @Test
+    public void encryptsWithReadsSmallerThanABlock() throws Exception {
+        byte[] expected = gcmCipher(Cipher.ENCRYPT_MODE).doFinal(content);
+        InputStream stream = new AuthenticatedCipherInputStream(new ByteArrayInputStream(content),
+                gcmCipher(Cipher.ENCRYPT_MODE), 1000);
+
+        assertArrayEquals(expected, readAll(stream, 7));
+    }
+
+    @Test
+    public void encryptsWithSingleByteReads() throws Exception {
+        byte[] input = new byte[4099];
+        System.arraycopy(content, 0, input, 0, input.length);
+        byte[] expected = gcmCipher(Cipher.ENCRYPT_MODE).doFinal(input);
+        InputStream stream = new AuthenticatedCipherInputStream(new ByteArrayInputStream(input),
+                gcmCipher(Cipher.ENCRYPT_MODE));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int b;
+        while ((b = stream.read()) != -1) {
+            output.write(b);
+        }
+        assertArrayEquals(expected, output.toByteArray());
+    }
+
+    @Test
+    public void decryptsGcmAndChecksTag() throws Exception {
+        byte[] ciphertext = gcmCipher(Cipher.ENCRYPT_MODE).doFinal(content);
+        InputStream stream = new AuthenticatedCipherInputStream(new ByteArrayInputStream(ciphertext),
+                gcmCipher(Cipher.DECRYPT_MODE));
+        assertArrayEquals(content, readAll(stream, 64 * 1024));
+
+        ciphertext[ciphertext.length - 1] ^= 1;
+        InputStream tampered = new AuthenticatedCipherInputStream(new ByteArrayInputStream(ciphertext),
+                gcmCipher(Cipher.DECRYPT_MODE));
+        assertThrows(S3EncryptionClientSecurityException.class, () -> readAll(tampered, 64 * 1024));
+    }
+
+    @Test
+    public void decryptsPaddedCbcWithAnyReadSize() throws Exception {
+        byte[] iv = new byte[16];
+        new SecureRandom().nextBytes(iv);
+        Cipher encrypt = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        encrypt.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+        byte[] ciphertext = encrypt.doFinal(content);
+
+        for (int readSize : new int[]{1, 15, 16, 17, 4096, 100 * 1024}) {
+            Cipher decrypt = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            decrypt.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+            InputStream stream = new CipherInputStream(new ByteArrayInputStream(ciphertext), decrypt);
+            assertArrayEquals(content, readAll(stream, readSize), "read size " + readSize);
+        }
+    }
+
+    @Test
+    public void readOfZeroBytesReturnsZero() throws Exception {
+        InputStream stream = new CipherInputStream(new ByteArrayInputStream(content),
+                gcmCipher(Cipher.ENCRYPT_MODE));
+        assertEquals(0, stream.read(new byte[16], 0, 0));
+    }
+}
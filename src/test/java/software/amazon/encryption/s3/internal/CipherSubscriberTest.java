@@ -11,6 +11,8 @@ import software.amazon.encryption.s3.materials.EncryptionMaterials;
 
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
@@ -20,10 +22,16 @@ import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 class CipherSubscriberTest {
+    // Zero-copy path: the only per-chunk allocation is the buffer handed downstream,
+    // so encrypting 1 MiB should allocate roughly 1 MiB (plus small bookkeeping objects).
+    private static final long MAX_ALLOCATED_BYTES_PER_MB = 1024 * 1024 + 256 * 1024;
+
     // Helper classes for testing
     class SimpleSubscriber implements Subscriber<ByteBuffer> {
 
@@ -83,6 +91,37 @@ class CipherSubscriberTest {
         }
     }
 
+    /**
+     * Requests one item at a time like the SDK does, but only counts the bytes it sees
+     * rather than keeping the buffers, so it does not skew allocation measurements.
+     */
+    class CountingSubscriber implements Subscriber<ByteBuffer> {
+        private final AtomicLong bytesSeen = new AtomicLong(0);
+        private Subscription subscription;
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            this.subscription = s;
+            s.request(1);
+        }
+
+        @Override
+        public void onNext(ByteBuffer item) {
+            bytesSeen.addAndGet(item.remaining());
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            System.err.println("Error occurred: " + t.getMessage());
+        }
+
+        @Override
+        public void onComplete() {
+            // Do nothing.
+        }
+    }
+
     class TestPublisher<T> {
         private final List<Subscriber<T>> subscribers = new ArrayList<>(1);
 
@@ -294,4 +333,102 @@ class CipherSubscriberTest {
         // Assert round trip encrypt/decrypt succeeds
         assertEquals(plaintext, new String(ptBytes, StandardCharsets.UTF_8));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testSubscriberBehaviorDirectBuffers() {
+        AlgorithmSuite algorithmSuite = AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF;
+        String plaintext = "unit test of cipher subscriber using direct buffers, which have no backing array";
+        byte[] plaintextBytes = plaintext.getBytes(StandardCharsets.UTF_8);
+        EncryptionMaterials materials = getTestEncryptMaterials(plaintext);
+        byte[] iv = new byte[materials.algorithmSuite().iVLengthBytes()];
+        // we reject 0-ized IVs, so just do something non-zero
+        iv[0] = 1;
+        SimpleSubscriber wrappedSubscriber = new SimpleSubscriber();
+        CipherSubscriber subscriber = new CipherSubscriber(wrappedSubscriber, materials.getCiphertextLength(), materials, iv);
+        TestPublisher<ByteBuffer> publisher = new TestPublisher<>();
+        publisher.subscribe(subscriber);
+
+        // Send the plaintext in two direct buffers, the first not a multiple of the block size
+        int split = 21;
+        ByteBuffer first = ByteBuffer.allocateDirect(split);
+        first.put(plaintextBytes, 0, split);
+        first.flip();
+        ByteBuffer second = ByteBuffer.allocateDirect(plaintextBytes.length - split);
+        second.put(plaintextBytes, split, plaintextBytes.length - split);
+        second.flip();
+        publisher.emit(first);
+        publisher.emit(second);
+        publisher.complete();
+
+        // The cipher reads the buffers in place, it must not consume them
+        assertEquals(split, first.remaining());
+        assertEquals(plaintextBytes.length - split, second.remaining());
+
+        long expectedLength = plaintextBytes.length + algorithmSuite.cipherTagLengthBytes();
+        assertEquals(expectedLength, wrappedSubscriber.lengthOfData.get());
+        byte[] ctBytes = getByteArrayFromFixedLengthByteBuffers(wrappedSubscriber.getBuffersSeen(), expectedLength);
+
+        // Decrypt from a direct buffer as well
+        DecryptionMaterials decryptionMaterials = getTestDecryptionMaterialsFromEncMats(materials);
+        SimpleSubscriber wrappedDecryptSubscriber = new SimpleSubscriber();
+        CipherSubscriber decryptSubscriber = new CipherSubscriber(wrappedDecryptSubscriber, expectedLength, decryptionMaterials, iv);
+        TestPublisher<ByteBuffer> decryptPublisher = new TestPublisher<>();
+        decryptPublisher.subscribe(decryptSubscriber);
+        ByteBuffer ctBb = ByteBuffer.allocateDirect(ctBytes.length);
+        ctBb.put(ctBytes);
+        ctBb.flip();
+        decryptPublisher.emit(ctBb);
+        decryptPublisher.complete();
+
+        assertEquals(plaintextBytes.length, wrappedDecryptSubscriber.lengthOfData.get());
+        byte[] ptBytes = getByteArrayFromFixedLengthByteBuffers(wrappedDecryptSubscriber.getBuffersSeen(), plaintextBytes.length);
+        assertArrayEquals(plaintextBytes, ptBytes);
+    }
+
+    @Test
+    public void testSubscriberAllocationPerMegabyte() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean,
+                "Thread allocation accounting is not available on this JVM");
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadMXBean;
+        assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+        final int megabytes = 16;
+        final int chunkSize = 64 * 1024;
+        ByteBuffer[] chunks = new ByteBuffer[megabytes * 1024 * 1024 / chunkSize];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = ByteBuffer.allocateDirect(chunkSize);
+        }
+        EncryptionMaterials materials = getTestEncryptMaterials("").toBuilder()
+                .plaintextLength((long) megabytes * 1024 * 1024)
+                .build();
+        byte[] iv = new byte[materials.algorithmSuite().iVLengthBytes()];
+        iv[0] = 1;
+
+        // Warm up so that class loading and JIT compilation are not measured
+        encryptChunks(materials, iv, chunks);
+
+        long threadId = Thread.currentThread().getId();
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+        long ciphertextLength = encryptChunks(materials, iv, chunks);
+        long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(materials.getCiphertextLength(), ciphertextLength);
+        long allocatedPerMegabyte = allocated / megabytes;
+        assertTrue(allocatedPerMegabyte <= MAX_ALLOCATED_BYTES_PER_MB,
+                "Allocated " + allocatedPerMegabyte + " bytes per MiB encrypted");
+    }
+
+    private long encryptChunks(EncryptionMaterials materials, byte[] iv, ByteBuffer[] chunks) {
+        CountingSubscriber countingSubscriber = new CountingSubscriber();
+        CipherSubscriber subscriber = new CipherSubscriber(countingSubscriber, materials.getCiphertextLength(), materials, iv);
+        TestPublisher<ByteBuffer> publisher = new TestPublisher<>();
+        publisher.subscribe(subscriber);
+        for (ByteBuffer chunk : chunks) {
+            publisher.emit(chunk);
+        }
+        publisher.complete();
+        return countingSubscriber.bytesSeen.get();
+    }
+}
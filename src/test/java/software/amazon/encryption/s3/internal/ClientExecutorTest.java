@@ -0,0 +1,138 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClientExecutorTest {
+
+    @Test
+    public void countsTheTasksItRuns() throws Exception {
+        ClientExecutor executor = ClientExecutor.create(false);
+        try {
+            executor.submit(() -> { }).get();
+            CountDownLatch failed = new CountDownLatch(1);
+            executor.execute(() -> {
+                failed.countDown();
+                throw new IllegalStateException("task failed");
+            });
+            assertTrue(failed.await(10, TimeUnit.SECONDS));
+            waitFor(() -> executor.metrics().activeTasks() == 0);
+
+            ClientExecutor.Metrics metrics = executor.metrics();
+            assertEquals(2, metrics.submittedTasks());
+            assertEquals(1, metrics.completedTasks());
+            assertEquals(1, metrics.failedTasks());
+            assertEquals(0, metrics.queuedTasks());
+            assertTrue(metrics.peakActiveTasks() >= 1);
+        } finally {
+            executor.close();
+        }
+    }
+
+    @Test
+    public void limitsHowManyTasksRunAtOnce() throws Exception {
+        ClientExecutor executor = ClientExecutor.create(false);
+        try {
+            ExecutorService limited = executor.limitedTo(2);
+            AtomicInteger running = new AtomicInteger();
+            AtomicInteger peak = new AtomicInteger();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                futures.add(limited.submit(() -> {
+                    peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException exception) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            assertEquals(2, peak.get());
+            assertEquals(10, executor.metrics().submittedTasks());
+
+            limited.shutdown();
+            assertTrue(limited.awaitTermination(10, TimeUnit.SECONDS));
+            // The shared executor carries on
+            assertFalse(executor.isShutdown());
+        } finally {
+            executor.close();
+        }
+    }
+
+    @Test
+    public void queuesTasksOnceEveryPoolThreadIsBusy() throws Exception {
+        ClientExecutor executor = ClientExecutor.create(false, 2);
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                futures.add(executor.submit(() -> {
+                    release.await();
+                    return null;
+                }));
+            }
+            waitFor(() -> executor.metrics().activeTasks() == 2);
+
+            ClientExecutor.Metrics metrics = executor.metrics();
+            assertEquals(2, metrics.activeTasks());
+            assertEquals(3, metrics.queuedTasks());
+            release.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            assertEquals(2, executor.metrics().peakActiveTasks());
+        } finally {
+            executor.close();
+        }
+    }
+
+    @Test
+    public void fallsBackToPlatformThreadsWithoutVirtualThreads() throws Exception {
+        ClientExecutor executor = ClientExecutor.create(true);
+        try {
+            assertEquals(ClientExecutor.virtualThreadsAvailable(), executor.usesVirtualThreads());
+            assertEquals("done", executor.submit(() -> "done").get());
+        } finally {
+            executor.close();
+        }
+        assertTrue(executor.isShutdown());
+    }
+
+    @Test
+    public void leavesASuppliedExecutorRunning() {
+        ExecutorService supplied = Executors.newSingleThreadExecutor();
+        try {
+            ClientExecutor executor = ClientExecutor.wrap(supplied);
+            executor.close();
+            assertFalse(supplied.isShutdown());
+        } finally {
+            supplied.shutdown();
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+}
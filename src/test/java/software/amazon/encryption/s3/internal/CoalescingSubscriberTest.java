@@ -0,0 +1,291 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.encryption.s3.algorithms.AlgorithmSuite;
+import software.amazon.encryption.s3.materials.EncryptionMaterials;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CoalescingSubscriberTest {
+    private static final int TARGET_SIZE = 64 * 1024;
+    private static final int TINY_CHUNK_SIZE = 100;
+
+    /**
+     * Emits slices of a byte array synchronously, only as they are requested.
+     */
+    static class ChunkedPublisher implements Subscription {
+        private final byte[] content;
+        private final int chunkSize;
+        private final boolean signalComplete;
+        private Subscriber<? super ByteBuffer> subscriber;
+        private int position = 0;
+        private long demand = 0;
+        private boolean emitting = false;
+        private int emitted = 0;
+
+        ChunkedPublisher(byte[] content, int chunkSize, boolean signalComplete) {
+            this.content = content;
+            this.chunkSize = chunkSize;
+            this.signalComplete = signalComplete;
+        }
+
+        void subscribe(Subscriber<? super ByteBuffer> s) {
+            subscriber = s;
+            s.onSubscribe(this);
+        }
+
+        @Override
+        public void request(long n) {
+            demand += n;
+            if (emitting) {
+                return;
+            }
+            emitting = true;
+            while (demand > 0 && position < content.length) {
+                demand--;
+                int length = Math.min(chunkSize, content.length - position);
+                ByteBuffer chunk = ByteBuffer.wrap(content, position, length);
+                position += length;
+                emitted++;
+                subscriber.onNext(chunk);
+                if (position == content.length && signalComplete) {
+                    subscriber.onComplete();
+                }
+            }
+            emitting = false;
+        }
+
+        @Override
+        public void cancel() {
+            // Do nothing.
+        }
+    }
+
+    /**
+     * Requests one buffer at a time and records what it is sent.
+     */
+    static class RecordingSubscriber implements Subscriber<ByteBuffer> {
+        private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        // Sizes rather than buffers, as the coalescing stage reuses its chunk
+        private final List<Integer> sizes = new ArrayList<>();
+        private Subscription subscription;
+        private long requested = 0;
+        private boolean completed = false;
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            subscription = s;
+            request();
+        }
+
+        @Override
+        public void onNext(ByteBuffer item) {
+            assertTrue(sizes.size() < requested, "onNext called without outstanding demand");
+            sizes.add(item.remaining());
+            byte[] bytes = new byte[item.remaining()];
+            item.duplicate().get(bytes);
+            received.write(bytes, 0, bytes.length);
+            request();
+        }
+
+        private void request() {
+            requested++;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            throw new AssertionError(t);
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new SecureRandom().nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void gathersTinyBuffersUpToTargetSize() {
+        byte[] content = randomBytes(10 * TARGET_SIZE + 17);
+        RecordingSubscriber downstream = new RecordingSubscriber();
+        ChunkedPublisher upstream = new ChunkedPublisher(content, TINY_CHUNK_SIZE, true);
+        upstream.subscribe(new CoalescingSubscriber(downstream, (long) content.length, TARGET_SIZE));
+
+        assertArrayEquals(content, downstream.received.toByteArray());
+        assertEquals((content.length + TINY_CHUNK_SIZE - 1) / TINY_CHUNK_SIZE, upstream.emitted);
+        assertTrue(downstream.sizes.size() <= content.length / TARGET_SIZE + 1);
+        for (int size : downstream.sizes.subList(0, downstream.sizes.size() - 1)) {
+            assertTrue(size >= TARGET_SIZE);
+        }
+        assertTrue(downstream.completed);
+    }
+
+    @Test
+    public void sendsRemainderOnceContentLengthIsReachedWithoutOnComplete() {
+        byte[] content = randomBytes(TARGET_SIZE / 2);
+        RecordingSubscriber downstream = new RecordingSubscriber();
+        ChunkedPublisher upstream = new ChunkedPublisher(content, TINY_CHUNK_SIZE, false);
+        upstream.subscribe(new CoalescingSubscriber(downstream, (long) content.length, TARGET_SIZE));
+
+        assertEquals(1, downstream.sizes.size());
+        assertArrayEquals(content, downstream.received.toByteArray());
+    }
+
+    @Test
+    public void sendsRemainderOnCompleteWhenContentLengthIsUnknown() {
+        byte[] content = randomBytes(TARGET_SIZE + TARGET_SIZE / 2);
+        RecordingSubscriber downstream = new RecordingSubscriber();
+        ChunkedPublisher upstream = new ChunkedPublisher(content, TINY_CHUNK_SIZE, true);
+        upstream.subscribe(new CoalescingSubscriber(downstream, null, TARGET_SIZE));
+
+        assertEquals(2, downstream.sizes.size());
+        assertArrayEquals(content, downstream.received.toByteArray());
+        assertTrue(downstream.completed);
+    }
+
+    @Test
+    public void synchronousUpstreamDoesNotRecursePerBuffer() {
+        byte[] content = randomBytes(4 * TARGET_SIZE);
+        RecordingSubscriber downstream = new RecordingSubscriber();
+        // Sends the next single-byte buffer from within every request
+        Subscriber<ByteBuffer> coalescer = new CoalescingSubscriber(downstream, (long) content.length, TARGET_SIZE);
+        coalescer.onSubscribe(new Subscription() {
+            private int position = 0;
+
+            @Override
+            public void request(long n) {
+                for (long i = 0; i < n && position < content.length; i++) {
+                    coalescer.onNext(ByteBuffer.wrap(content, position++, 1));
+                }
+            }
+
+            @Override
+            public void cancel() {
+                // Do nothing.
+            }
+        });
+
+        assertArrayEquals(content, downstream.received.toByteArray());
+        assertEquals(4, downstream.sizes.size());
+    }
+
+    @Test
+    public void sizesChunkToContentLengthWhenSmallerThanTarget() {
+        byte[] content = randomBytes(TARGET_SIZE / 2);
+        List<ByteBuffer> sent = new ArrayList<>();
+        CoalescingSubscriber coalescer = new CoalescingSubscriber(new RecordingSubscriber() {
+            @Override
+            public void onNext(ByteBuffer byteBuffer) {
+                sent.add(byteBuffer);
+                super.onNext(byteBuffer);
+            }
+        }, (long) content.length, TARGET_SIZE);
+        coalescer.onSubscribe(new BufferedCipherSubscriberTest.NoOpSubscription());
+        for (int offset = 0; offset < content.length; offset += TINY_CHUNK_SIZE) {
+            coalescer.onNext(ByteBuffer.wrap(content, offset, Math.min(TINY_CHUNK_SIZE, content.length - offset)));
+        }
+
+        assertEquals(1, sent.size());
+        assertEquals(content.length, sent.get(0).capacity());
+    }
+
+    @Test
+    public void passesLargeBuffersThroughWithoutCopying() {
+        byte[] content = randomBytes(4 * TARGET_SIZE);
+        RecordingSubscriber downstream = new RecordingSubscriber();
+        List<ByteBuffer> sent = new ArrayList<>();
+        ChunkedPublisher upstream = new ChunkedPublisher(content, TARGET_SIZE, true);
+        upstream.subscribe(new CoalescingSubscriber(new Subscriber<ByteBuffer>() {
+            @Override
+            public void onSubscribe(Subscription s) {
+                downstream.onSubscribe(s);
+            }
+
+            @Override
+            public void onNext(ByteBuffer byteBuffer) {
+                sent.add(byteBuffer);
+                downstream.onNext(byteBuffer);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                downstream.onError(t);
+            }
+
+            @Override
+            public void onComplete() {
+                downstream.onComplete();
+            }
+        }, (long) content.length, TARGET_SIZE));
+
+        assertEquals(4, sent.size());
+        for (int i = 0; i < sent.size(); i++) {
+            assertSame(content, sent.get(i).array());
+            assertEquals(i * TARGET_SIZE, sent.get(i).position());
+        }
+        assertArrayEquals(content, downstream.received.toByteArray());
+    }
+
+    @Test
+    public void mixedBufferSizesAreSentTogether() {
+        // A tiny buffer followed by a large one: both go out in the same buffer
+        byte[] content = randomBytes(TINY_CHUNK_SIZE + 3 * TARGET_SIZE);
+        RecordingSubscriber downstream = new RecordingSubscriber();
+        CoalescingSubscriber coalescer = new CoalescingSubscriber(downstream, (long) content.length, TARGET_SIZE);
+        coalescer.onSubscribe(new BufferedCipherSubscriberTest.NoOpSubscription());
+        coalescer.onNext(ByteBuffer.wrap(content, 0, TINY_CHUNK_SIZE));
+        coalescer.onNext(ByteBuffer.wrap(content, TINY_CHUNK_SIZE, content.length - TINY_CHUNK_SIZE));
+
+        assertEquals(1, downstream.sizes.size());
+        assertArrayEquals(content, downstream.received.toByteArray());
+    }
+
+    @Test
+    public void encryptsTinyBuffersThroughCipherSubscriber() throws Exception {
+        AlgorithmSuite algorithmSuite = AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF;
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        SecretKey dataKey = keyGen.generateKey();
+        byte[] iv = randomBytes(algorithmSuite.iVLengthBytes());
+        byte[] content = randomBytes(3 * TARGET_SIZE + 5);
+        EncryptionMaterials materials = EncryptionMaterials.builder()
+                .algorithmSuite(algorithmSuite)
+                .plaintextDataKey(dataKey.getEncoded())
+                .plaintextLength(content.length)
+                .build();
+
+        RecordingSubscriber downstream = new RecordingSubscriber();
+        CipherSubscriber cipherSubscriber = new CipherSubscriber(downstream, materials.getCiphertextLength(), materials, iv);
+        ChunkedPublisher upstream = new ChunkedPublisher(content, TINY_CHUNK_SIZE, true);
+        upstream.subscribe(CoalescingSubscriber.coalesce(cipherSubscriber, (long) content.length, TARGET_SIZE));
+
+        Cipher cipher = Cipher.getInstance(algorithmSuite.cipherName());
+        cipher.init(Cipher.ENCRYPT_MODE, dataKey, new GCMParameterSpec(algorithmSuite.cipherTagLengthBits(), iv));
+        assertArrayEquals(cipher.doFinal(content), downstream.received.toByteArray());
+        assertTrue(downstream.sizes.size() <= content.length / TARGET_SIZE + 1);
+        assertTrue(downstream.completed);
+    }
+}
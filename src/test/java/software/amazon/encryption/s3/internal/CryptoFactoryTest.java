@@ -0,0 +1,80 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CryptoFactoryTest {
+    private static final String ALGORITHM = "AES/GCM/NoPadding";
+
+    private static Cipher pooledCipher(Provider provider) throws GeneralSecurityException {
+        return CryptoFactory.withPooledCipher(ALGORITHM, provider, cipher -> cipher);
+    }
+
+    @Test
+    public void reusesCipherOnSameThread() throws Exception {
+        assertSame(pooledCipher(null), pooledCipher(null));
+    }
+
+    @Test
+    public void doesNotShareCipherAcrossThreads() throws Exception {
+        Cipher thisThread = pooledCipher(null);
+        Cipher otherThread = CompletableFuture.supplyAsync(() -> {
+            try {
+                return pooledCipher(null);
+            } catch (GeneralSecurityException exception) {
+                throw new RuntimeException(exception);
+            }
+        }).join();
+        assertNotSame(thisThread, otherThread);
+    }
+
+    @Test
+    public void nestedCallsGetDistinctCiphers() throws Exception {
+        CryptoFactory.withPooledCipher(ALGORITHM, null, outer -> {
+            Cipher inner = pooledCipher(null);
+            assertNotSame(outer, inner);
+            return null;
+        });
+    }
+
+    @Test
+    public void keysPoolByProvider() throws Exception {
+        Provider provider = Cipher.getInstance(ALGORITHM).getProvider();
+        Cipher withProvider = pooledCipher(provider);
+        assertSame(withProvider, pooledCipher(provider));
+        assertNotSame(withProvider, pooledCipher(null));
+    }
+
+    @Test
+    public void discardsCipherAfterFailure() throws Exception {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        SecretKey key = keyGen.generateKey();
+        GCMParameterSpec spec = new GCMParameterSpec(128, new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12});
+        Cipher before = pooledCipher(null);
+
+        Cipher[] failed = new Cipher[1];
+        assertThrows(AEADBadTagException.class, () -> CryptoFactory.withPooledCipher(ALGORITHM, null, cipher -> {
+            failed[0] = cipher;
+            cipher.init(Cipher.DECRYPT_MODE, key, spec);
+            return cipher.doFinal(new byte[32]);
+        }));
+
+        assertSame(before, failed[0]);
+        assertNotSame(failed[0], pooledCipher(null));
+    }
+}
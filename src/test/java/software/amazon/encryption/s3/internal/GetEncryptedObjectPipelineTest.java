@@ -0,0 +1,533 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.async.SdkPublisher;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.encryption.s3.S3EncryptionClientException;
+import software.amazon.encryption.s3.S3EncryptionClientSecurityException;
+import software.amazon.encryption.s3.materials.AesKeyring;
+import software.amazon.encryption.s3.materials.AsyncCryptographicMaterialsManager;
+import software.amazon.encryption.s3.materials.CryptographicMaterialsManager;
+import software.amazon.encryption.s3.materials.DecryptMaterialsRequest;
+import software.amazon.encryption.s3.materials.DecryptionMaterials;
+import software.amazon.encryption.s3.materials.DefaultAsyncCryptoMaterialsManager;
+import software.amazon.encryption.s3.materials.DefaultCryptoMaterialsManager;
+import software.amazon.encryption.s3.materials.EncryptionMaterials;
+import software.amazon.encryption.s3.materials.EncryptionMaterialsRequest;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GetEncryptedObjectPipelineTest {
+    private static final int PART_SIZE = 1024;
+
+    /**
+     * Holds a single object, and serves ranged GETs of it the way S3 does.
+     */
+    private static class InMemoryS3AsyncClient implements S3AsyncClient {
+        private final String _eTag = "\"etag\"";
+        private final AtomicInteger _getCount = new AtomicInteger();
+        private final AtomicLong _bytesServed = new AtomicLong();
+        private Map<String, String> _metadata;
+        private byte[] _object;
+        // The connection fails once the response stream has been handed on, if set
+        private Throwable _streamFailure;
+
+        @Override
+        public String serviceName() {
+            return "s3";
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public CompletableFuture<PutObjectResponse> putObject(PutObjectRequest request, AsyncRequestBody body) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            return body.subscribe(buffer -> {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                output.write(bytes, 0, bytes.length);
+            }).thenApply(ignored -> {
+                _metadata = request.metadata();
+                _object = output.toByteArray();
+                return PutObjectResponse.builder().eTag(_eTag).build();
+            });
+        }
+
+        @Override
+        public <T> CompletableFuture<T> getObject(GetObjectRequest request,
+                                                  AsyncResponseTransformer<GetObjectResponse, T> transformer) {
+            _getCount.incrementAndGet();
+            if (request.ifMatch() != null && !request.ifMatch().equals(_eTag)) {
+                CompletableFuture<T> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new IllegalStateException("Precondition failed"));
+                return failed;
+            }
+            int start = 0;
+            int end = _object.length - 1;
+            if (request.range() != null) {
+                String[] bounds = request.range().substring("bytes=".length()).split("-");
+                start = Integer.parseInt(bounds[0]);
+                end = Math.min(end, Integer.parseInt(bounds[1]));
+            }
+            _bytesServed.addAndGet(end - start + 1);
+            CompletableFuture<T> result = transformer.prepare();
+            transformer.onResponse(GetObjectResponse.builder()
+                    .metadata(_metadata)
+                    .eTag(_eTag)
+                    .contentLength((long) end - start + 1)
+                    .contentRange(request.range() == null ? null : "bytes " + start + "-" + end + "/" + _object.length)
+                    .build());
+            transformer.onStream(AsyncRequestBody.fromBytes(Arrays.copyOfRange(_object, start, end + 1)));
+            if (_streamFailure != null) {
+                transformer.exceptionOccurred(_streamFailure);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Serves the same object as an {@link InMemoryS3AsyncClient}, synchronously.
+     */
+    private static class InMemoryS3Client implements S3Client {
+        private final InMemoryS3AsyncClient _store;
+        private boolean _closed;
+
+        InMemoryS3Client(InMemoryS3AsyncClient store) {
+            _store = store;
+        }
+
+        @Override
+        public String serviceName() {
+            return "s3";
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public PutObjectResponse putObject(PutObjectRequest request, RequestBody body) {
+            try (InputStream content = body.contentStreamProvider().newStream()) {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                byte[] chunk = new byte[100];
+                int length;
+                while ((length = content.read(chunk)) != -1) {
+                    output.write(chunk, 0, length);
+                }
+                assertEquals(request.contentLength().longValue(), output.size());
+                _store._metadata = request.metadata();
+                _store._object = output.toByteArray();
+            } catch (IOException exception) {
+                throw new UncheckedIOException(exception);
+            }
+            return PutObjectResponse.builder().eTag(_store._eTag).build();
+        }
+
+        @Override
+        public <T> T getObject(GetObjectRequest request, ResponseTransformer<GetObjectResponse, T> transformer) {
+            _store._getCount.incrementAndGet();
+            GetObjectResponse response = GetObjectResponse.builder()
+                    .metadata(_store._metadata)
+                    .eTag(_store._eTag)
+                    .contentLength((long) _store._object.length)
+                    .build();
+            InputStream content = new ByteArrayInputStream(_store._object) {
+                @Override
+                public void close() {
+                    _closed = true;
+                }
+            };
+            try {
+                return transformer.transform(response, AbortableInputStream.create(content));
+            } catch (Exception exception) {
+                throw new IllegalStateException(exception);
+            }
+        }
+    }
+
+    private final SecureRandom random = new SecureRandom();
+    private InMemoryS3AsyncClient s3;
+    private InMemoryS3Client syncS3;
+    private AesKeyring keyring;
+    private CryptographicMaterialsManager cmm;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        keyring = AesKeyring.builder().wrappingKey(keyGen.generateKey()).secureRandom(random).build();
+        cmm = DefaultCryptoMaterialsManager.builder()
+                .keyring(keyring)
+                .build();
+        s3 = new InMemoryS3AsyncClient();
+        syncS3 = new InMemoryS3Client(s3);
+    }
+
+    private byte[] putObject(int length) {
+        byte[] content = new byte[length];
+        random.nextBytes(content);
+        PutEncryptedObjectPipeline.builder()
+                .s3AsyncClient(s3)
+                .cryptoMaterialsManager(cmm)
+                .secureRandom(random)
+                .build()
+                .putObject(PutObjectRequest.builder().bucket("bucket").key("key").build(), AsyncRequestBody.fromBytes(content))
+                .join();
+        return content;
+    }
+
+    private GetEncryptedObjectPipeline.Builder pipelineBuilder() {
+        return GetEncryptedObjectPipeline.builder()
+                .s3AsyncClient(s3)
+                .cryptoMaterialsManager(cmm)
+                .instructionFileConfig(InstructionFileConfig.builder().disableInstructionFile(true).build());
+    }
+
+    private GetEncryptedObjectPipeline.Builder parallelPipelineBuilder() {
+        return pipelineBuilder()
+                .enableDelayedAuthentication(true)
+                .enableParallelDownload(true)
+                .parallelDownloadPartSize(PART_SIZE)
+                .parallelDownloadConcurrency(2);
+    }
+
+    private static GetObjectRequest getObjectRequest() {
+        return GetObjectRequest.builder().bucket("bucket").key("key").build();
+    }
+
+    private byte[] parallelGetObject() {
+        return parallelPipelineBuilder().build().getObject(getObjectRequest(), AsyncResponseTransformer.toBytes())
+                .thenApply(ResponseBytes::asByteArray).join();
+    }
+
+    @Test
+    public void composesAnAsyncCmmOffTheCallingThread() {
+        AtomicInteger offloaded = new AtomicInteger();
+        Executor offloadExecutor = task -> {
+            offloaded.incrementAndGet();
+            new Thread(task).start();
+        };
+        cmm = DefaultAsyncCryptoMaterialsManager.builder().keyring(keyring).offloadExecutor(offloadExecutor).build();
+        byte[] content = putObject(3 * PART_SIZE + 1);
+        assertEquals(1, offloaded.get());
+
+        byte[] plaintext = pipelineBuilder().bufferSize(4 * PART_SIZE).build()
+                .getObject(getObjectRequest(), AsyncResponseTransformer.toBytes())
+                .thenApply(ResponseBytes::asByteArray).join();
+        assertArrayEquals(content, plaintext);
+        assertArrayEquals(content, parallelGetObject());
+        assertEquals(3, offloaded.get());
+    }
+
+    @Test
+    public void failedAsyncMaterialsFailTheDownload() {
+        putObject(PART_SIZE);
+        CompletableFuture<DecryptionMaterials> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new S3EncryptionClientException("Unable to decrypt the data key"));
+        cmm = new AsyncCryptographicMaterialsManager() {
+            @Override
+            public CompletableFuture<EncryptionMaterials> getEncryptionMaterialsAsync(EncryptionMaterialsRequest request) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public CompletableFuture<DecryptionMaterials> decryptMaterialsAsync(DecryptMaterialsRequest request) {
+                return failed;
+            }
+        };
+
+        CompletionException exception = assertThrows(CompletionException.class, () -> pipelineBuilder().build()
+                .getObject(getObjectRequest(), AsyncResponseTransformer.toBytes()).join());
+        assertInstanceOf(S3EncryptionClientException.class, exception.getCause());
+    }
+
+    @Test
+    public void downloadsInRanges() {
+        byte[] content = putObject(5 * PART_SIZE + 17);
+
+        assertArrayEquals(content, parallelGetObject());
+        assertEquals(6, s3._getCount.get());
+    }
+
+    @Test
+    public void downloadsContentWhichFitsInOnePartInOneRequest() {
+        for (int length : new int[]{0, 1, PART_SIZE}) {
+            s3._getCount.set(0);
+            byte[] content = putObject(length);
+
+            assertArrayEquals(content, parallelGetObject());
+            assertEquals(1, s3._getCount.get());
+        }
+    }
+
+    @Test
+    public void downloadsLegacyContentWithoutFetchingAnyOfItTwice() throws Exception {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        SecretKey wrappingKey = keyGen.generateKey();
+        SecretKey dataKey = keyGen.generateKey();
+        byte[] iv = new byte[16];
+        random.nextBytes(iv);
+        byte[] content = new byte[3 * PART_SIZE + 5];
+        random.nextBytes(content);
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, dataKey, new IvParameterSpec(iv));
+        Cipher wrapCipher = Cipher.getInstance("AESWrap");
+        wrapCipher.init(Cipher.WRAP_MODE, wrappingKey);
+        // An object written by the V1 client in its default mode
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put(MetadataKeyConstants.ENCRYPTED_DATA_KEY_V1, Base64.getEncoder().encodeToString(wrapCipher.wrap(dataKey)));
+        metadata.put(MetadataKeyConstants.ENCRYPTED_DATA_KEY_ALGORITHM, "AESWrap");
+        metadata.put(MetadataKeyConstants.CONTENT_IV, Base64.getEncoder().encodeToString(iv));
+        metadata.put(MetadataKeyConstants.ENCRYPTED_DATA_KEY_CONTEXT, "{}");
+        s3._metadata = metadata;
+        s3._object = cipher.doFinal(content);
+        cmm = DefaultCryptoMaterialsManager.builder()
+                .keyring(AesKeyring.builder().wrappingKey(wrappingKey).enableLegacyWrappingAlgorithms(true).build())
+                .build();
+
+        byte[] plaintext = parallelPipelineBuilder().enableLegacyUnauthenticatedModes(true).build()
+                .getObject(getObjectRequest(), AsyncResponseTransformer.toBytes())
+                .thenApply(ResponseBytes::asByteArray).join();
+
+        assertArrayEquals(content, plaintext);
+        assertEquals(s3._object.length, s3._bytesServed.get());
+    }
+
+    @Test
+    public void tamperedContentFailsTheDownload() {
+        putObject(3 * PART_SIZE);
+        s3._object[2 * PART_SIZE + 5] ^= 1;
+
+        CompletionException exception = assertThrows(CompletionException.class, this::parallelGetObject);
+        assertInstanceOf(S3EncryptionClientSecurityException.class, exception.getCause());
+    }
+
+    @Test
+    public void downloadsToFileWithoutBufferingTheObject(@TempDir Path directory) throws Exception {
+        byte[] content = putObject(5 * PART_SIZE + 17);
+        Path destination = directory.resolve("object");
+        // The object is larger than the buffer, which only applies to plaintext released from memory
+        GetEncryptedObjectPipeline pipeline = pipelineBuilder().bufferSize(PART_SIZE).build();
+
+        pipeline.getObject(getObjectRequest(), destination).join();
+
+        assertArrayEquals(content, Files.readAllBytes(destination));
+        assertEquals(1, countFiles(directory));
+    }
+
+    @Test
+    public void downloadsToFileInRanges(@TempDir Path directory) throws Exception {
+        byte[] content = putObject(3 * PART_SIZE + 1);
+        Path destination = directory.resolve("object");
+
+        parallelPipelineBuilder().build().getObject(getObjectRequest(), destination).join();
+
+        assertArrayEquals(content, Files.readAllBytes(destination));
+        assertEquals(1, countFiles(directory));
+    }
+
+    @Test
+    public void tamperedDownloadLeavesTheDestinationAsItWas(@TempDir Path directory) throws Exception {
+        putObject(3 * PART_SIZE);
+        s3._object[PART_SIZE + 5] ^= 1;
+        Path destination = directory.resolve("object");
+        byte[] previousContent = "previous content".getBytes(StandardCharsets.UTF_8);
+        Files.write(destination, previousContent);
+        GetEncryptedObjectPipeline pipeline = pipelineBuilder().build();
+
+        assertThrows(CompletionException.class, () -> pipeline.getObject(getObjectRequest(), destination).join());
+
+        assertArrayEquals(previousContent, Files.readAllBytes(destination));
+        assertEquals(1, countFiles(directory));
+    }
+
+    /**
+     * Fails the download when given the plaintext stream, never subscribing to it.
+     */
+    private static class FailingOnStreamTransformer implements AsyncResponseTransformer<GetObjectResponse, byte[]> {
+        private final boolean _throwOnStream;
+        private CompletableFuture<byte[]> _result;
+
+        FailingOnStreamTransformer(boolean throwOnStream) {
+            _throwOnStream = throwOnStream;
+        }
+
+        @Override
+        public CompletableFuture<byte[]> prepare() {
+            _result = new CompletableFuture<>();
+            return _result;
+        }
+
+        @Override
+        public void onResponse(GetObjectResponse response) {
+        }
+
+        @Override
+        public void onStream(SdkPublisher<ByteBuffer> publisher) {
+            if (_throwOnStream) {
+                throw new IllegalStateException("Unable to open the destination");
+            }
+        }
+
+        @Override
+        public void exceptionOccurred(Throwable error) {
+            _result.completeExceptionally(error);
+        }
+    }
+
+    @Test
+    public void releasesBufferMemoryWhenTheStreamIsNeverRead() {
+        putObject(3 * PART_SIZE);
+        BufferMemoryBudget budget = BufferMemoryBudget.builder().maxBytes(4 * PART_SIZE).build();
+        GetEncryptedObjectPipeline pipeline = pipelineBuilder().bufferSize(4 * PART_SIZE)
+                .bufferMemoryBudget(budget).build();
+
+        // The transformer throws when given the stream
+        assertThrows(CompletionException.class, () -> pipeline.getObject(getObjectRequest(),
+                new FailingOnStreamTransformer(true)).join());
+        assertEquals(0, budget.reservedBytes());
+
+        // The connection fails before the transformer subscribes
+        s3._streamFailure = new IOException("Connection reset");
+        CompletionException exception = assertThrows(CompletionException.class, () -> pipeline.getObject(
+                getObjectRequest(), new FailingOnStreamTransformer(false)).join());
+        assertInstanceOf(IOException.class, exception.getCause());
+        assertEquals(0, budget.reservedBytes());
+    }
+
+    @Test
+    public void syncPutAndGetRoundTrip() throws Exception {
+        byte[] content = new byte[3 * PART_SIZE + 5];
+        random.nextBytes(content);
+        PutEncryptedObjectPipeline.builder()
+                .s3Client(syncS3)
+                .cryptoMaterialsManager(cmm)
+                .secureRandom(random)
+                .cipherChunkSize(100)
+                .build()
+                .putObject(PutObjectRequest.builder().bucket("bucket").key("key").build(), RequestBody.fromBytes(content));
+
+        GetEncryptedObjectPipeline pipeline = pipelineBuilder().s3Client(syncS3).bufferSize(content.length + 16).build();
+        assertTrue(pipeline.supportsSyncGetObject(getObjectRequest()));
+        assertArrayEquals(content, readAll(pipeline.getObject(getObjectRequest())));
+        // The buffered mode reads the whole object before returning, so the connection is already released
+        assertTrue(syncS3._closed);
+        // The sync and async paths write and read the same objects
+        assertArrayEquals(content, pipeline.getObject(getObjectRequest(), AsyncResponseTransformer.toBytes())
+                .thenApply(ResponseBytes::asByteArray).join());
+    }
+
+    @Test
+    public void syncGetStreamsWithDelayedAuthentication() throws Exception {
+        byte[] content = putObject(5 * PART_SIZE + 17);
+        GetEncryptedObjectPipeline pipeline = pipelineBuilder().s3Client(syncS3).enableDelayedAuthentication(true).build();
+
+        assertArrayEquals(content, readAll(pipeline.getObject(getObjectRequest())));
+    }
+
+    @Test
+    public void syncGetOfTamperedContentFails() {
+        putObject(3 * PART_SIZE);
+        s3._object[PART_SIZE + 5] ^= 1;
+        GetEncryptedObjectPipeline pipeline = pipelineBuilder().s3Client(syncS3).bufferSize(4 * PART_SIZE).build();
+
+        assertThrows(S3EncryptionClientSecurityException.class, () -> pipeline.getObject(getObjectRequest()));
+    }
+
+    @Test
+    public void syncGetReleasesItsBufferMemoryOnceRead() throws Exception {
+        byte[] content = putObject(3 * PART_SIZE);
+        BufferMemoryBudget budget = BufferMemoryBudget.builder().maxBytes(4 * PART_SIZE).build();
+        GetEncryptedObjectPipeline pipeline = pipelineBuilder().s3Client(syncS3).bufferSize(4 * PART_SIZE)
+                .bufferMemoryBudget(budget).build();
+
+        ResponseInputStream<GetObjectResponse> plaintext = pipeline.getObject(getObjectRequest());
+        assertEquals(3 * PART_SIZE + 16, budget.reservedBytes());
+        assertArrayEquals(content, readAll(plaintext));
+        assertEquals(0, budget.reservedBytes());
+    }
+
+    @Test
+    public void syncGetOfObjectLargerThanTheBufferFails() {
+        putObject(3 * PART_SIZE);
+        GetEncryptedObjectPipeline pipeline = pipelineBuilder().s3Client(syncS3).bufferSize(PART_SIZE).build();
+
+        assertThrows(S3EncryptionClientException.class, () -> pipeline.getObject(getObjectRequest()));
+    }
+
+    @Test
+    public void syncGetIsNotSupportedForRangesOrParallelDownload() {
+        GetObjectRequest ranged = getObjectRequest().toBuilder().range("bytes=0-15").build();
+
+        assertFalse(pipelineBuilder().s3Client(syncS3).build().supportsSyncGetObject(ranged));
+        assertFalse(parallelPipelineBuilder().s3Client(syncS3).build().supportsSyncGetObject(getObjectRequest()));
+        assertFalse(pipelineBuilder().build().supportsSyncGetObject(getObjectRequest()));
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        try (InputStream stream = input) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] chunk = new byte[333];
+            int length;
+            while ((length = stream.read(chunk)) != -1) {
+                output.write(chunk, 0, length);
+            }
+            return output.toByteArray();
+        }
+    }
+
+    private static long countFiles(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+}
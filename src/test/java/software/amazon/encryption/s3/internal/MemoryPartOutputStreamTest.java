@@ -0,0 +1,152 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MemoryPartOutputStreamTest {
+    private static final int PART_SIZE = 10;
+
+    /**
+     * Records the parts it is given instead of uploading them, and optionally
+     * "uploads" each part as soon as it is created.
+     */
+    private static class RecordingObserver extends UploadObjectObserver {
+        private final List<PartCreationEvent> parts = new ArrayList<>();
+        private final List<byte[]> contents = new ArrayList<>();
+        private final boolean uploadImmediately;
+
+        RecordingObserver(boolean uploadImmediately) {
+            this.uploadImmediately = uploadImmediately;
+        }
+
+        @Override
+        public synchronized void onPartCreate(PartCreationEvent event) {
+            assertNull(event.getPart());
+            ByteBuffer content = event.getContent().duplicate();
+            byte[] bytes = new byte[content.remaining()];
+            content.get(bytes);
+            parts.add(event);
+            contents.add(bytes);
+            if (uploadImmediately) {
+                event.getFileDeleteObserver().onFileDelete(null);
+            }
+        }
+
+        synchronized PartCreationEvent part(int index) {
+            return parts.get(index);
+        }
+    }
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) i;
+        }
+        return content;
+    }
+
+    @Test
+    public void splitsContentIntoPartsAndReusesBuffers() throws Exception {
+        PartBufferPool pool = PartBufferPool.builder().maxBuffers(2).build();
+        RecordingObserver observer = new RecordingObserver(true);
+        MemoryPartOutputStream stream = new MemoryPartOutputStream(pool).init(observer, PART_SIZE, 0);
+        byte[] content = content(2 * PART_SIZE + 5);
+
+        stream.write(content, 0, 3);
+        stream.write(content[3]);
+        stream.write(content, 4, content.length - 4);
+        stream.close();
+
+        assertEquals(3, observer.parts.size());
+        assertArrayEquals(Arrays.copyOfRange(content, 0, PART_SIZE), observer.contents.get(0));
+        assertArrayEquals(Arrays.copyOfRange(content, PART_SIZE, 2 * PART_SIZE), observer.contents.get(1));
+        assertArrayEquals(Arrays.copyOfRange(content, 2 * PART_SIZE, content.length), observer.contents.get(2));
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i + 1, observer.part(i).getPartNumber());
+            assertEquals(i == 2, observer.part(i).isLastPart());
+        }
+        // Each part was uploaded before the next was written, so one buffer served them all
+        assertSame(observer.part(0).getContent(), observer.part(2).getContent());
+        assertEquals(3, stream.getNumFilesWritten());
+        assertEquals(content.length, stream.getTotalBytesWritten());
+        assertEquals(0, pool.outstandingBuffers());
+    }
+
+    @Test
+    public void blocksWhileEveryBufferIsInUse() throws Exception {
+        PartBufferPool pool = PartBufferPool.builder().maxBuffers(2).build();
+        RecordingObserver observer = new RecordingObserver(false);
+        MemoryPartOutputStream stream = new MemoryPartOutputStream(pool).init(observer, PART_SIZE, 0);
+        byte[] content = content(3 * PART_SIZE);
+
+        CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+            try {
+                stream.write(content);
+                stream.close();
+            } catch (Exception exception) {
+                throw new IllegalStateException(exception);
+            }
+        });
+
+        // The third part waits for one of the first two to be uploaded
+        Thread.sleep(50);
+        assertFalse(writer.isDone());
+        assertEquals(2, pool.outstandingBuffers());
+        observer.part(0).getFileDeleteObserver().onFileDelete(null);
+        writer.get(10, TimeUnit.SECONDS);
+
+        assertEquals(3, observer.parts.size());
+        assertArrayEquals(Arrays.copyOfRange(content, 2 * PART_SIZE, content.length), observer.contents.get(2));
+    }
+
+    @Test
+    public void cleanupGivesBackThePlacesOfPartsNotUploaded() throws Exception {
+        PartBufferPool pool = PartBufferPool.builder().maxBuffers(3).directBuffers(true).build();
+        RecordingObserver observer = new RecordingObserver(false);
+        MemoryPartOutputStream stream = new MemoryPartOutputStream(pool).init(observer, PART_SIZE, 0);
+
+        stream.write(content(2 * PART_SIZE + 1));
+        assertTrue(observer.part(0).getContent().isDirect());
+        assertEquals(3, pool.outstandingBuffers());
+
+        // e.g. the upload failed before the parts were uploaded
+        stream.cleanup();
+        assertEquals(0, pool.outstandingBuffers());
+        // A part which finishes late does not give its buffer back twice
+        observer.part(1).getFileDeleteObserver().onFileDelete(null);
+        assertEquals(0, pool.outstandingBuffers());
+    }
+
+    @Test
+    public void poolKeepsOnlyBuffersOfThePartSizeInUse() {
+        PartBufferPool pool = PartBufferPool.builder().maxBuffers(2).build();
+        ByteBuffer small = pool.acquire(PART_SIZE);
+        pool.release(small);
+        assertSame(small, pool.acquire(PART_SIZE));
+
+        // A buffer of the old size given back after the part size changed is not kept
+        ByteBuffer large = pool.acquire(2 * PART_SIZE);
+        pool.release(small);
+        pool.release(large);
+        ByteBuffer reused = pool.acquire(2 * PART_SIZE);
+        assertSame(large, reused);
+        ByteBuffer next = pool.acquire(2 * PART_SIZE);
+        assertEquals(2 * PART_SIZE, next.capacity());
+        assertEquals(2, pool.outstandingBuffers());
+    }
+}
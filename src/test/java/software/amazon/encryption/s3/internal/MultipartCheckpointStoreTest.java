@@ -0,0 +1,172 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.encryption.s3.S3EncryptionClient;
+import software.amazon.encryption.s3.S3EncryptionClientException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MultipartCheckpointStoreTest {
+    private static MultipartCheckpoint checkpoint(String key) {
+        return MultipartCheckpoint.builder()
+                .bucket("bucket")
+                .key(key)
+                .uploadId("upload-id")
+                .partSize(1024)
+                .contentLength(4000)
+                .requestDigest("cmVxdWVzdA==")
+                .encryptionMetadata(Collections.singletonMap("x-amz-iv", "aXY="))
+                .build();
+    }
+
+    private static MultipartCheckpoint.Part part(int partNumber) {
+        return new MultipartCheckpoint.Part(partNumber, "\"etag,=" + partNumber + "\"", (partNumber - 1) * 1024L,
+                1024, new byte[]{(byte) partNumber, 2, 3});
+    }
+
+    @Test
+    public void loadsWhatWasCreatedAndRecorded(@TempDir Path directory) {
+        MultipartCheckpointStore store = MultipartCheckpointStore.builder().directory(directory).build();
+        MultipartCheckpoint checkpoint = checkpoint("dir/key with spaces");
+        checkpoint.addPart(part(1));
+        store.create(checkpoint);
+        store.recordPart(checkpoint, part(3));
+        store.recordPart(checkpoint, part(2));
+
+        MultipartCheckpoint loaded = store.load("bucket", "dir/key with spaces");
+        assertEquals("upload-id", loaded.uploadId());
+        assertEquals(1024, loaded.partSize());
+        assertEquals(4000, loaded.contentLength());
+        assertEquals("cmVxdWVzdA==", loaded.requestDigest());
+        assertEquals(checkpoint.encryptionMetadata(), loaded.encryptionMetadata());
+        List<MultipartCheckpoint.Part> parts = loaded.parts();
+        assertEquals(3, parts.size());
+        for (int i = 0; i < 3; i++) {
+            MultipartCheckpoint.Part expected = part(i + 1);
+            assertEquals(expected.partNumber(), parts.get(i).partNumber());
+            assertEquals(expected.eTag(), parts.get(i).eTag());
+            assertEquals(expected.offset(), parts.get(i).offset());
+            assertArrayEquals(expected.sealedState(), parts.get(i).sealedState());
+        }
+        assertNull(store.load("bucket", "other-key"));
+    }
+
+    @Test
+    public void ignoresAPartLeftHalfWritten(@TempDir Path directory) throws Exception {
+        MultipartCheckpointStore store = MultipartCheckpointStore.builder().directory(directory).build();
+        MultipartCheckpoint checkpoint = checkpoint("key");
+        store.create(checkpoint);
+        store.recordPart(checkpoint, part(1));
+        try (Stream<Path> files = Files.list(directory)) {
+            Path file = files.findFirst().get();
+            Files.write(file, "part.2=1024,10".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        }
+
+        List<MultipartCheckpoint.Part> parts = store.load("bucket", "key").parts();
+        assertEquals(1, parts.size());
+        assertEquals(1, parts.get(0).partNumber());
+    }
+
+    @Test
+    public void ignoresALastLineWhichCannotBeParsed(@TempDir Path directory) throws Exception {
+        MultipartCheckpointStore store = MultipartCheckpointStore.builder().directory(directory).build();
+        MultipartCheckpoint checkpoint = checkpoint("key");
+        store.create(checkpoint);
+        store.recordPart(checkpoint, part(1));
+        try (Stream<Path> files = Files.list(directory)) {
+            Path file = files.findFirst().get();
+            // Cut short in the middle of an escape, which Properties can't load
+            Files.write(file, "part.2=1024,10,AQID,\\u00".getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.APPEND);
+        }
+
+        MultipartCheckpoint loaded = store.load("bucket", "key");
+        assertEquals("upload-id", loaded.uploadId());
+        assertEquals(1, loaded.parts().size());
+        assertEquals(1, loaded.parts().get(0).partNumber());
+    }
+
+    @Test
+    public void rejectsALineWhichCannotBeParsedBeforeTheLast(@TempDir Path directory) throws Exception {
+        MultipartCheckpointStore store = MultipartCheckpointStore.builder().directory(directory).build();
+        MultipartCheckpoint checkpoint = checkpoint("key");
+        store.create(checkpoint);
+        try (Stream<Path> files = Files.list(directory)) {
+            Path file = files.findFirst().get();
+            Files.write(file, "part.2=1024,10,AQID,\\u00\n".getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.APPEND);
+        }
+        store.recordPart(checkpoint, part(1));
+
+        assertThrows(S3EncryptionClientException.class, () -> store.load("bucket", "key"));
+    }
+
+    @Test
+    public void requestDigestFollowsWhatTheRequestSetsOnTheObject() {
+        CreateMultipartUploadRequest request = CreateMultipartUploadRequest.builder()
+                .bucket("bucket")
+                .key("key")
+                .contentType("text/plain")
+                .metadata(metadata("a", "b"))
+                .build();
+        MultipartCheckpoint checkpoint = MultipartCheckpoint.builder()
+                .bucket("bucket")
+                .key("key")
+                .uploadId("upload-id")
+                .requestDigest(MultipartCheckpoint.requestDigest(request))
+                .build();
+
+        // The same metadata, in another order
+        assertTrue(checkpoint.isFor(request.toBuilder().metadata(metadata("b", "a")).build()));
+        assertFalse(checkpoint.isFor(request.toBuilder().metadata(Collections.singletonMap("a", "changed")).build()));
+        assertFalse(checkpoint.isFor(request.toBuilder().contentType("text/html").build()));
+        assertFalse(checkpoint.isFor(request.toBuilder().overrideConfiguration(builder -> builder
+                .putExecutionAttribute(S3EncryptionClient.ENCRYPTION_CONTEXT, Collections.singletonMap("k", "v")))
+                .build()));
+    }
+
+    private static Map<String, String> metadata(String... keys) {
+        Map<String, String> metadata = new LinkedHashMap<>();
+        for (String key : keys) {
+            metadata.put(key, "value of " + key);
+        }
+        return metadata;
+    }
+
+    @Test
+    public void createReplacesAndDeleteRemoves(@TempDir Path directory) throws Exception {
+        MultipartCheckpointStore store = MultipartCheckpointStore.builder().directory(directory).build();
+        MultipartCheckpoint checkpoint = checkpoint("key");
+        store.create(checkpoint);
+        store.recordPart(checkpoint, part(1));
+        store.create(checkpoint("key"));
+        assertEquals(0, store.load("bucket", "key").parts().size());
+
+        store.delete("bucket", "key");
+        assertNull(store.load("bucket", "key"));
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(0, files.count());
+        }
+        assertThrows(S3EncryptionClientException.class,
+                () -> MultipartCheckpointStore.builder().directory(directory.resolve("missing")).build());
+    }
+}
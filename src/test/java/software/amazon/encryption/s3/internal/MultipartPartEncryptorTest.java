@@ -0,0 +1,465 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.encryption.s3.S3EncryptionClientException;
+import software.amazon.encryption.s3.S3EncryptionClientSecurityException;
+import software.amazon.encryption.s3.algorithms.AlgorithmSuite;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MultipartPartEncryptorTest {
+    private static final AlgorithmSuite ALGORITHM_SUITE = AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF;
+    private static final int PART_SIZE = 64 * 1024;
+
+    private final SecureRandom random = new SecureRandom();
+    private SecretKey dataKey;
+    private byte[] iv;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        dataKey = keyGen.generateKey();
+        iv = new byte[ALGORITHM_SUITE.iVLengthBytes()];
+        random.nextBytes(iv);
+    }
+
+    private Cipher gcmCipher() throws Exception {
+        Cipher cipher = Cipher.getInstance(ALGORITHM_SUITE.cipherName());
+        cipher.init(Cipher.ENCRYPT_MODE, dataKey, new GCMParameterSpec(ALGORITHM_SUITE.cipherTagLengthBits(), iv));
+        return cipher;
+    }
+
+    private MultipartUploadMaterials materials() throws Exception {
+        return MultipartUploadMaterials.builder()
+                .algorithmSuite(ALGORITHM_SUITE)
+                .plaintextDataKey(dataKey.getEncoded())
+                .cipher(gcmCipher())
+                .build();
+    }
+
+    /**
+     * Encrypts one part through the same request body as uploadPart, in small buffers.
+     */
+    private static byte[] encryptPart(MultipartUploadMaterials materials, int partNumber, byte[] plaintext,
+                                      boolean isLastPart) throws Exception {
+        return encryptPart(materials, materials.beginPartUpload(partNumber, plaintext.length, isLastPart),
+                partNumber, plaintext);
+    }
+
+    private static byte[] encryptPart(MultipartUploadMaterials materials, MultipartPartEncryptor partEncryptor,
+                                      int partNumber, byte[] plaintext) throws Exception {
+        try {
+            long ciphertextLength = plaintext.length
+                    + (partEncryptor.isLastPart() ? ALGORITHM_SUITE.cipherTagLengthBytes() : 0);
+            AsyncRequestBody body = new CipherAsyncRequestBody(AsyncRequestBody.fromBytes(plaintext),
+                    ciphertextLength, partEncryptor, 1000);
+            CompletableFuture<byte[]> ciphertext = new CompletableFuture<>();
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            body.subscribe(new Subscriber<ByteBuffer>() {
+                @Override
+                public void onSubscribe(Subscription s) {
+                    s.request(Long.MAX_VALUE);
+                }
+
+                @Override
+                public void onNext(ByteBuffer byteBuffer) {
+                    byte[] bytes = new byte[byteBuffer.remaining()];
+                    byteBuffer.get(bytes);
+                    output.write(bytes, 0, bytes.length);
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    ciphertext.completeExceptionally(t);
+                }
+
+                @Override
+                public void onComplete() {
+                    ciphertext.complete(output.toByteArray());
+                }
+            });
+            return ciphertext.get();
+        } finally {
+            materials.endPartUpload(partNumber);
+        }
+    }
+
+    private byte[][] split(byte[] content, int partSize) {
+        int count = (content.length + partSize - 1) / partSize;
+        byte[][] parts = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            parts[i] = Arrays.copyOfRange(content, i * partSize, Math.min(content.length, (i + 1) * partSize));
+        }
+        return parts;
+    }
+
+    private static byte[] sha256(byte[] plaintext) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(plaintext);
+    }
+
+    private static byte[] concat(byte[][] parts) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            output.write(part, 0, part.length);
+        }
+        return output.toByteArray();
+    }
+
+    @Test
+    public void partsUploadedOutOfOrderMatchOnePassEncryption() throws Exception {
+        byte[] content = new byte[5 * PART_SIZE + 123];
+        random.nextBytes(content);
+        byte[][] parts = split(content, PART_SIZE);
+        byte[][] ciphertexts = new byte[parts.length][];
+        MultipartUploadMaterials materials = materials();
+
+        for (int index : new int[]{3, 0, 4, 2, 1}) {
+            ciphertexts[index] = encryptPart(materials, index + 1, parts[index], false);
+        }
+        int last = parts.length - 1;
+        ciphertexts[last] = encryptPart(materials, last + 1, parts[last], true);
+
+        assertArrayEquals(gcmCipher().doFinal(content), concat(ciphertexts));
+    }
+
+    @Test
+    public void partsUploadedConcurrentlyMatchOnePassEncryption() throws Exception {
+        byte[] content = new byte[8 * PART_SIZE + 5];
+        random.nextBytes(content);
+        byte[][] parts = split(content, PART_SIZE);
+        byte[][] ciphertexts = new byte[parts.length][];
+        MultipartUploadMaterials materials = materials();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<?>[] uploads = new Future<?>[parts.length - 1];
+            for (int i = uploads.length - 1; i >= 0; i--) {
+                final int index = i;
+                uploads[i] = executor.submit(() -> {
+                    ciphertexts[index] = encryptPart(materials, index + 1, parts[index], false);
+                    return null;
+                });
+            }
+            for (Future<?> upload : uploads) {
+                upload.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        int last = parts.length - 1;
+        ciphertexts[last] = encryptPart(materials, last + 1, parts[last], true);
+
+        assertArrayEquals(gcmCipher().doFinal(content), concat(ciphertexts));
+    }
+
+    @Test
+    public void partsOfDifferentSizesInSeriesMatchOnePassEncryption() throws Exception {
+        byte[] content = new byte[PART_SIZE + 3 * 4096 + 16 + 7];
+        random.nextBytes(content);
+        byte[][] parts = {
+                Arrays.copyOfRange(content, 0, PART_SIZE),
+                Arrays.copyOfRange(content, PART_SIZE, PART_SIZE + 3 * 4096),
+                Arrays.copyOfRange(content, PART_SIZE + 3 * 4096, PART_SIZE + 3 * 4096 + 16),
+                Arrays.copyOfRange(content, PART_SIZE + 3 * 4096 + 16, content.length)
+        };
+        byte[][] ciphertexts = new byte[parts.length][];
+        MultipartUploadMaterials materials = materials();
+
+        for (int i = 0; i < parts.length; i++) {
+            ciphertexts[i] = encryptPart(materials, i + 1, parts[i], i == parts.length - 1);
+        }
+
+        assertArrayEquals(gcmCipher().doFinal(content), concat(ciphertexts));
+    }
+
+    @Test
+    public void retriedPartProducesTheSameCiphertext() throws Exception {
+        byte[] content = new byte[2 * PART_SIZE + 1];
+        random.nextBytes(content);
+        byte[][] parts = split(content, PART_SIZE);
+        MultipartUploadMaterials materials = materials();
+
+        byte[] second = encryptPart(materials, 2, parts[1], false);
+        byte[] first = encryptPart(materials, 1, parts[0], false);
+        assertArrayEquals(second, encryptPart(materials, 2, parts[1], false));
+        byte[] last = encryptPart(materials, 3, parts[2], true);
+
+        assertArrayEquals(gcmCipher().doFinal(content), concat(new byte[][]{first, second, last}));
+    }
+
+    @Test
+    public void retriedPartWithDifferentContentIsRejectedBeforeItIsEncrypted() throws Exception {
+        byte[] content = new byte[2 * PART_SIZE + 1];
+        random.nextBytes(content);
+        byte[][] parts = split(content, PART_SIZE);
+        MultipartUploadMaterials materials = materials();
+        byte[] second = encryptPart(materials, 2, parts[1], false);
+
+        byte[] altered = parts[1].clone();
+        altered[PART_SIZE - 1] ^= 1;
+        MultipartPartEncryptor retry = materials.beginPartUpload(2, PART_SIZE, false);
+        try {
+            // Nothing is released until the window has been checked
+            assertFalse(retry.admit(ByteBuffer.wrap(altered, 0, PART_SIZE - 1)).hasRemaining());
+            assertThrows(S3EncryptionClientSecurityException.class,
+                    () -> retry.admit(ByteBuffer.wrap(altered, PART_SIZE - 1, 1)));
+        } finally {
+            materials.endPartUpload(2);
+        }
+        assertThrows(S3EncryptionClientSecurityException.class,
+                () -> materials.beginPartUpload(2, PART_SIZE - 16, false));
+
+        // The part can still be retried with its own content
+        assertArrayEquals(second, encryptPart(materials, 2, parts[1], false));
+    }
+
+    @Test
+    public void retryIsCheckedUpToWhereEarlierAttemptsStopped() throws Exception {
+        byte[] part = new byte[PART_SIZE];
+        random.nextBytes(part);
+        MultipartUploadMaterials materials = materials();
+        MultipartPartEncryptor failed = materials.beginPartUpload(2, PART_SIZE, false);
+        failed.admit(ByteBuffer.wrap(part, 0, 1000));
+        materials.endPartUpload(2);
+
+        byte[] changedAfter = part.clone();
+        changedAfter[1000] ^= 1;
+        MultipartPartEncryptor retry = materials.beginPartUpload(2, PART_SIZE, false);
+        try {
+            assertEquals(PART_SIZE, retry.admit(ByteBuffer.wrap(changedAfter)).remaining());
+        } finally {
+            materials.endPartUpload(2);
+        }
+
+        // The second attempt encrypted the whole part, so it is checked in full from now on
+        MultipartPartEncryptor second = materials.beginPartUpload(2, PART_SIZE, false);
+        try {
+            assertThrows(S3EncryptionClientSecurityException.class, () -> second.admit(ByteBuffer.wrap(part)));
+        } finally {
+            materials.endPartUpload(2);
+        }
+    }
+
+    @Test
+    public void partsUploadedInOrderShareTheObjectCipher() throws Exception {
+        byte[] content = new byte[3 * PART_SIZE + 5];
+        random.nextBytes(content);
+        byte[][] parts = split(content, PART_SIZE);
+        byte[][] ciphertexts = new byte[parts.length][];
+        // A provider with no ciphers at all, so no part can have a cipher of its own
+        MultipartUploadMaterials materials = MultipartUploadMaterials.builder()
+                .algorithmSuite(ALGORITHM_SUITE)
+                .plaintextDataKey(dataKey.getEncoded())
+                .cryptoProvider(new Provider("Empty", 1.0, "No services") {
+                })
+                .cipher(gcmCipher())
+                .build();
+
+        ciphertexts[0] = encryptPart(materials, 1, parts[0], false);
+        // Out of order, so it would need a cipher of its own
+        assertThrows(S3EncryptionClientException.class, () -> materials.beginPartUpload(3, PART_SIZE, false));
+        for (int i = 1; i < parts.length; i++) {
+            MultipartPartEncryptor partEncryptor = materials.beginPartUpload(i + 1, parts[i].length, i == parts.length - 1);
+            assertTrue(partEncryptor.sharesCipher());
+            assertSame(materials.getCipher(iv), partEncryptor.cipher());
+            ciphertexts[i] = encryptPart(materials, partEncryptor, i + 1, parts[i]);
+        }
+
+        assertArrayEquals(gcmCipher().doFinal(content), concat(ciphertexts));
+    }
+
+    @Test
+    public void partStartedWhileAnotherSharesTheCipherHasItsOwn() throws Exception {
+        byte[] content = new byte[4 * PART_SIZE + 33];
+        random.nextBytes(content);
+        byte[][] parts = split(content, PART_SIZE);
+        byte[][] ciphertexts = new byte[parts.length][];
+        MultipartUploadMaterials materials = materials();
+
+        ciphertexts[0] = encryptPart(materials, 1, parts[0], false);
+        MultipartPartEncryptor second = materials.beginPartUpload(2, PART_SIZE, false);
+        assertTrue(second.sharesCipher());
+        // Part 3 starts before part 2 is done with the shared cipher
+        MultipartPartEncryptor third = materials.beginPartUpload(3, PART_SIZE, false);
+        assertFalse(third.sharesCipher());
+        ciphertexts[2] = encryptPart(materials, third, 3, parts[2]);
+        ciphertexts[1] = encryptPart(materials, second, 2, parts[1]);
+        ciphertexts[3] = encryptPart(materials, 4, parts[3], false);
+        ciphertexts[4] = encryptPart(materials, 5, parts[4], true);
+
+        assertArrayEquals(gcmCipher().doFinal(content), concat(ciphertexts));
+    }
+
+    @Test
+    public void partWhichFailedWithTheSharedCipherFailsTheUpload() throws Exception {
+        MultipartUploadMaterials materials = materials();
+        // A part which ends before using the shared cipher can start again
+        materials.beginPartUpload(1, PART_SIZE, false);
+        materials.endPartUpload(1);
+        MultipartPartEncryptor partEncryptor = materials.beginPartUpload(1, PART_SIZE, false);
+        assertTrue(partEncryptor.sharesCipher());
+        partEncryptor.cipher().update(new byte[PART_SIZE / 2]);
+        materials.endPartUpload(1);
+
+        assertThrows(S3EncryptionClientException.class, () -> materials.beginPartUpload(1, PART_SIZE, false));
+        assertThrows(S3EncryptionClientException.class, () -> materials.beginPartUpload(2, PART_SIZE, false));
+    }
+
+    @Test
+    public void partPlacedByPartSizeIsCheckedAgainstThePartsBeforeIt() throws Exception {
+        MultipartUploadMaterials materials = materials();
+        // Parts in series may differ in size
+        encryptPart(materials, 1, new byte[PART_SIZE], false);
+        encryptPart(materials, 2, new byte[2 * PART_SIZE], false);
+
+        // But not once a part is placed by the size of the parts before it
+        assertThrows(S3EncryptionClientException.class, () -> materials.beginPartUpload(4, PART_SIZE, false));
+    }
+
+    @Test
+    public void lastPartRequiresAllOtherParts() throws Exception {
+        byte[] part = new byte[PART_SIZE];
+        MultipartUploadMaterials materials = materials();
+        encryptPart(materials, 1, part, false);
+
+        assertThrows(S3EncryptionClientException.class, () -> materials.beginPartUpload(3, 10, true));
+    }
+
+    @Test
+    public void outOfOrderPartsOfDifferentSizesAreRejected() throws Exception {
+        MultipartUploadMaterials materials = materials();
+        // Part 3 is placed after two parts of its own size
+        encryptPart(materials, 3, new byte[PART_SIZE], false);
+        encryptPart(materials, 1, new byte[PART_SIZE], false);
+
+        assertThrows(S3EncryptionClientException.class, () -> materials.beginPartUpload(2, 2 * PART_SIZE, false));
+        assertThrows(S3EncryptionClientException.class, () -> materials.beginPartUpload(4, 10, true));
+    }
+
+    @Test
+    public void lastPartIsClaimedBeforeItIsEncrypted() throws Exception {
+        MultipartUploadMaterials materials = materials();
+        encryptPart(materials, 1, new byte[PART_SIZE], false);
+
+        materials.beginPartUpload(2, 10, true);
+        assertTrue(materials.hasFinalPartBeenSeen());
+        // Another last part can't start while the first is still being uploaded
+        assertThrows(S3EncryptionClientException.class, () -> materials.beginPartUpload(3, 10, true));
+
+        // Once the upload of the last part fails, it can be uploaded again
+        materials.setHasFinalPartBeenSeen(false);
+        materials.endPartUpload(2);
+        byte[] ciphertext = encryptPart(materials, 2, new byte[10], true);
+        assertEquals(10 + ALGORITHM_SUITE.cipherTagLengthBytes(), ciphertext.length);
+        assertTrue(materials.hasFinalPartBeenSeen());
+    }
+
+    @Test
+    public void partCannotBeUploadedTwiceAtOnce() throws Exception {
+        MultipartUploadMaterials materials = materials();
+        materials.beginPartUpload(1, PART_SIZE, false);
+
+        assertThrows(S3EncryptionClientException.class, () -> materials.beginPartUpload(1, PART_SIZE, false));
+    }
+
+    @Test
+    public void restoredPartsLetAnotherProcessFinishTheObject() throws Exception {
+        byte[] content = new byte[3 * PART_SIZE + 9];
+        random.nextBytes(content);
+        byte[][] parts = split(content, PART_SIZE);
+        byte[][] ciphertexts = new byte[parts.length][];
+        MultipartUploadMaterials first = materials();
+        ciphertexts[1] = encryptPart(first, 2, parts[1], false);
+        ciphertexts[0] = encryptPart(first, 1, parts[0], false);
+        first.recordPlaintextDigest(1, sha256(parts[0]));
+        first.recordPlaintextDigest(2, sha256(parts[1]));
+        MultipartCheckpoint.Part firstCheckpoint = first.checkpointPart(1, "etag-1");
+        MultipartCheckpoint.Part secondCheckpoint = first.checkpointPart(2, "etag-2");
+
+        MultipartUploadMaterials resumed = materials();
+        resumed.restorePart(secondCheckpoint);
+        resumed.restorePart(firstCheckpoint);
+        assertTrue(resumed.verifyRestoredPart(1, sha256(parts[0])));
+        assertTrue(resumed.verifyRestoredPart(2, sha256(parts[1])));
+        ciphertexts[2] = encryptPart(resumed, 3, parts[2], false);
+        ciphertexts[3] = encryptPart(resumed, 4, parts[3], true);
+
+        assertArrayEquals(gcmCipher().doFinal(content), concat(ciphertexts));
+    }
+
+    @Test
+    public void alteredCheckpointIsRejected() throws Exception {
+        MultipartUploadMaterials materials = materials();
+        encryptPart(materials, materials.beginPartUpload(1, PART_SIZE, false, true), 1, new byte[PART_SIZE]);
+        materials.recordPlaintextDigest(1, sha256(new byte[PART_SIZE]));
+        MultipartCheckpoint.Part checkpoint = materials.checkpointPart(1, "etag-1");
+        byte[] state = checkpoint.sealedState();
+        state[state.length - 1] ^= 1;
+
+        assertThrows(S3EncryptionClientException.class, () -> materials().restorePart(
+                new MultipartCheckpoint.Part(1, "etag-1", 0, PART_SIZE, state)));
+        // Moved to another place in the object
+        assertThrows(S3EncryptionClientException.class, () -> materials().restorePart(
+                new MultipartCheckpoint.Part(2, "etag-1", PART_SIZE, PART_SIZE, checkpoint.sealedState())));
+    }
+
+    @Test
+    public void restoredPartIsOnlyReusedForTheSameContent() throws Exception {
+        byte[] part = new byte[PART_SIZE];
+        random.nextBytes(part);
+        MultipartUploadMaterials first = materials();
+        encryptPart(first, first.beginPartUpload(1, PART_SIZE, false, true), 1, part);
+        first.recordPlaintextDigest(1, sha256(part));
+        MultipartCheckpoint.Part checkpoint = first.checkpointPart(1, "etag-1");
+
+        MultipartUploadMaterials resumed = materials();
+        resumed.restorePart(checkpoint);
+        byte[] changed = part.clone();
+        changed[PART_SIZE / 2] ^= 1;
+        assertFalse(resumed.verifyRestoredPart(1, sha256(changed)));
+        assertFalse(resumed.verifyRestoredPart(2, sha256(part)));
+        assertTrue(resumed.verifyRestoredPart(1, sha256(part)));
+    }
+
+    @Test
+    public void partWithoutPlaintextDigestIsNotCheckpointed() throws Exception {
+        MultipartUploadMaterials materials = materials();
+        encryptPart(materials, materials.beginPartUpload(1, PART_SIZE, false, true), 1, new byte[PART_SIZE]);
+
+        assertNull(materials.checkpointPart(1, "etag-1"));
+    }
+
+    @Test
+    public void invertsInTheGcmField() {
+        long[] h = {0x66e94bd4ef8a2c3bL, 0x884cfa59ca342b2eL};
+        assertArrayEquals(new long[]{1L << 63, 0}, GcmUtils.multiply(h, GcmUtils.inverse(h)));
+    }
+}
@@ -0,0 +1,141 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.encryption.s3.S3EncryptionClientException;
+import software.amazon.encryption.s3.algorithms.AlgorithmSuite;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MultipartUploadMaterialsRegistryTest {
+    private final AtomicLong now = new AtomicLong();
+
+    private MultipartUploadMaterialsRegistry registry(int maxUploads) {
+        return MultipartUploadMaterialsRegistry.builder()
+                .maxUploads(maxUploads)
+                .idleTimeout(Duration.ofMinutes(10))
+                .nanoClock(now::get)
+                .build();
+    }
+
+    private static MultipartUploadMaterials materials() {
+        return MultipartUploadMaterials.builder()
+                .algorithmSuite(AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF)
+                .plaintextDataKey(new byte[32])
+                .build();
+    }
+
+    private void advance(long minutes) {
+        now.addAndGet(TimeUnit.MINUTES.toNanos(minutes));
+    }
+
+    @Test
+    public void evictsIdleUploadsAndZeroesTheirKeys() {
+        MultipartUploadMaterialsRegistry registry = registry(10);
+        MultipartUploadMaterials idle = materials();
+        MultipartUploadMaterials busy = materials();
+        registry.register("idle", "bucket", "idle-key", idle);
+        registry.register("busy", "bucket", "busy-key", busy);
+        advance(5);
+        assertSame(busy, registry.get("busy"));
+        advance(6);
+
+        List<MultipartUploadMaterialsRegistry.Upload> evicted = registry.evictIdle();
+        assertEquals(1, evicted.size());
+        assertEquals("idle", evicted.get(0).uploadId());
+        assertEquals("idle-key", evicted.get(0).key());
+        assertNull(registry.get("idle"));
+        assertThrows(S3EncryptionClientException.class, idle::dataKey);
+        assertSame(busy, registry.get("busy"));
+
+        MultipartUploadMaterialsRegistry.Metrics metrics = registry.metrics();
+        assertEquals(1, metrics.uploads());
+        assertEquals(2, metrics.registeredUploads());
+        assertEquals(1, metrics.evictedUploads());
+    }
+
+    @Test
+    public void keepsUploadsInUse() {
+        MultipartUploadMaterialsRegistry registry = registry(10);
+        registry.register("upload", "bucket", "key", materials());
+        registry.acquire("upload");
+        advance(30);
+        assertTrue(registry.evictIdle().isEmpty());
+
+        registry.release("upload");
+        advance(11);
+        assertEquals(1, registry.evictIdle().size());
+    }
+
+    @Test
+    public void turnsAwayUploadsBeyondTheMaximum() {
+        MultipartUploadMaterialsRegistry registry = registry(2);
+        MultipartUploadMaterials first = materials();
+        registry.reserve();
+        registry.register("first", "bucket", "key", first);
+        registry.reserve();
+        registry.register("second", "bucket", "key", materials());
+        assertThrows(S3EncryptionClientException.class, registry::reserve);
+
+        registry.remove("first");
+        assertThrows(S3EncryptionClientException.class, first::dataKey);
+        registry.reserve();
+        registry.register("third", "bucket", "key", materials());
+        // A full registry evicts idle uploads straight away
+        advance(11);
+        assertEquals(2, registry.reserve().size());
+
+        MultipartUploadMaterialsRegistry.Metrics metrics = registry.metrics();
+        assertEquals(0, metrics.uploads());
+        assertEquals(2, metrics.peakUploads());
+        assertEquals(1, metrics.rejectedUploads());
+        assertEquals(2, metrics.evictedUploads());
+    }
+
+    @Test
+    public void neverHandsOutAnUploadBeingEvicted() throws Exception {
+        MultipartUploadMaterialsRegistry registry = registry(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            for (int i = 0; i < 1000; i++) {
+                registry.register("upload", "bucket", "key", materials());
+                advance(11);
+                CyclicBarrier start = new CyclicBarrier(2);
+                Future<MultipartUploadMaterials> acquired = executor.submit(() -> {
+                    start.await();
+                    return registry.acquire("upload");
+                });
+                start.await();
+                // A full registry evicts idle uploads straight away
+                try {
+                    registry.reserve();
+                } catch (S3EncryptionClientException ignored) {
+                    // The upload was acquired first, so it was kept
+                }
+                MultipartUploadMaterials materials = acquired.get(10, TimeUnit.SECONDS);
+                if (materials != null) {
+                    // An acquired upload is never evicted, so its data key is still there
+                    materials.dataKey();
+                    registry.release("upload");
+                }
+                registry.remove("upload");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
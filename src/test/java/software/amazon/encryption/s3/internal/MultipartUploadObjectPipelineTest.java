@@ -0,0 +1,190 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.encryption.s3.S3EncryptionClientSecurityException;
+import software.amazon.encryption.s3.materials.AesKeyring;
+import software.amazon.encryption.s3.materials.AsyncKeyring;
+import software.amazon.encryption.s3.materials.CryptographicMaterialsManager;
+import software.amazon.encryption.s3.materials.DecryptionMaterials;
+import software.amazon.encryption.s3.materials.DefaultAsyncCryptoMaterialsManager;
+import software.amazon.encryption.s3.materials.DefaultCryptoMaterialsManager;
+import software.amazon.encryption.s3.materials.EncryptedDataKey;
+import software.amazon.encryption.s3.materials.EncryptionMaterials;
+import software.amazon.encryption.s3.materials.Keyring;
+
+import javax.crypto.KeyGenerator;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MultipartUploadObjectPipelineTest {
+    private static final int PART_SIZE = 16 * 1024;
+    private static final int UPLOADED_PARTS = 3;
+    private static final String UPLOAD_ID = "upload-id";
+    private static final CreateMultipartUploadRequest REQUEST = CreateMultipartUploadRequest.builder()
+            .bucket("bucket")
+            .key("key")
+            .build();
+
+    /**
+     * Creates uploads, and has nothing else.
+     */
+    private static class UploadCreatingS3AsyncClient implements S3AsyncClient {
+        @Override
+        public String serviceName() {
+            return "s3";
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public CompletableFuture<CreateMultipartUploadResponse> createMultipartUpload(CreateMultipartUploadRequest request) {
+            return CompletableFuture.completedFuture(CreateMultipartUploadResponse.builder().uploadId(UPLOAD_ID).build());
+        }
+    }
+
+    /**
+     * Wraps data keys with another keyring once the test completes {@link #pending}, and never
+     * blocks for it.
+     */
+    private static class DeferredAsyncKeyring implements AsyncKeyring {
+        private final CompletableFuture<EncryptionMaterials> pending = new CompletableFuture<>();
+        private EncryptionMaterials requested;
+
+        @Override
+        public CompletableFuture<EncryptionMaterials> onEncryptAsync(EncryptionMaterials materials) {
+            requested = materials;
+            return pending;
+        }
+
+        @Override
+        public CompletableFuture<DecryptionMaterials> onDecryptAsync(DecryptionMaterials materials,
+                                                                     List<EncryptedDataKey> encryptedDataKeys) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public EncryptionMaterials onEncrypt(EncryptionMaterials materials) {
+            throw new UnsupportedOperationException("The keyring was called synchronously");
+        }
+    }
+
+    private final SecureRandom random = new SecureRandom();
+    private Keyring keyring;
+    private CryptographicMaterialsManager cmm;
+    private byte[] content;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        keyring = AesKeyring.builder().wrappingKey(keyGen.generateKey()).secureRandom(random).build();
+        cmm = DefaultCryptoMaterialsManager.builder()
+                .keyring(keyring)
+                .build();
+        content = new byte[UPLOADED_PARTS * PART_SIZE + 100];
+        random.nextBytes(content);
+    }
+
+    private MultipartUploadObjectPipeline pipeline() {
+        return MultipartUploadObjectPipeline.builder()
+                .s3AsyncClient(new UploadCreatingS3AsyncClient())
+                .cryptoMaterialsManager(cmm)
+                .secureRandom(random)
+                .build();
+    }
+
+    /**
+     * Encrypts the whole object, checkpointing all but the last part, as a process which went
+     * away before the last part was uploaded.
+     *
+     * @return the ciphertext of the whole object
+     */
+    private byte[] uploadAllButLastPart(MultipartCheckpointStore store) throws Exception {
+        MultipartUploadObjectPipeline pipeline = pipeline();
+        String uploadId = pipeline.createMultipartUpload(REQUEST).uploadId();
+        MultipartCheckpoint checkpoint = pipeline.newCheckpoint(uploadId, REQUEST, PART_SIZE, content.length);
+        store.create(checkpoint);
+        ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+        pipeline.putLocalObject(RequestBody.fromBytes(content), uploadId, ciphertext, PART_SIZE, content.length, 1);
+        for (int partNumber = 1; partNumber <= UPLOADED_PARTS; partNumber++) {
+            pipeline.checkpointPart(store, checkpoint, partNumber, "etag-" + partNumber);
+        }
+        pipeline.releaseMultipartUpload(uploadId);
+        return ciphertext.toByteArray();
+    }
+
+    private static Map<Integer, String> uploadedETags() {
+        Map<Integer, String> eTags = new HashMap<>();
+        for (int partNumber = 1; partNumber <= UPLOADED_PARTS; partNumber++) {
+            eTags.put(partNumber, "etag-" + partNumber);
+        }
+        return eTags;
+    }
+
+    @Test
+    public void createsTheUploadOnceTheAsyncKeyringHasWrappedTheDataKey() {
+        DeferredAsyncKeyring asyncKeyring = new DeferredAsyncKeyring();
+        cmm = DefaultAsyncCryptoMaterialsManager.builder().keyring(asyncKeyring).build();
+        MultipartUploadObjectPipeline pipeline = pipeline();
+
+        CompletableFuture<CreateMultipartUploadResponse> created = pipeline.createMultipartUploadAsync(REQUEST);
+        assertFalse(created.isDone());
+
+        asyncKeyring.pending.complete(keyring.onEncrypt(asyncKeyring.requested));
+        assertEquals(UPLOAD_ID, created.join().uploadId());
+        pipeline.releaseMultipartUpload(UPLOAD_ID);
+    }
+
+    @Test
+    public void resumedUploadOnlyEncryptsThePartsAfterThoseUploaded(@TempDir Path directory) throws Exception {
+        MultipartCheckpointStore store = MultipartCheckpointStore.builder().directory(directory).build();
+        byte[] ciphertext = uploadAllButLastPart(store);
+
+        MultipartUploadObjectPipeline resumed = pipeline();
+        assertEquals(UPLOADED_PARTS, resumed.resumeMultipartUpload(store.load("bucket", "key"), uploadedETags()));
+        ByteArrayOutputStream rest = new ByteArrayOutputStream();
+        resumed.putLocalObject(RequestBody.fromBytes(content), UPLOAD_ID, rest, PART_SIZE, content.length,
+                UPLOADED_PARTS + 1);
+
+        assertArrayEquals(Arrays.copyOfRange(ciphertext, UPLOADED_PARTS * PART_SIZE, ciphertext.length),
+                rest.toByteArray());
+    }
+
+    @Test
+    public void resumeFailsWhenTheContentOfAnUploadedPartHasChanged(@TempDir Path directory) throws Exception {
+        MultipartCheckpointStore store = MultipartCheckpointStore.builder().directory(directory).build();
+        uploadAllButLastPart(store);
+        // The same length, so only the plaintext digest tells them apart
+        byte[] changed = content.clone();
+        changed[PART_SIZE + 1] ^= 1;
+
+        MultipartUploadObjectPipeline resumed = pipeline();
+        assertEquals(UPLOADED_PARTS, resumed.resumeMultipartUpload(store.load("bucket", "key"), uploadedETags()));
+        ByteArrayOutputStream rest = new ByteArrayOutputStream();
+        assertThrows(S3EncryptionClientSecurityException.class, () -> resumed.putLocalObject(
+                RequestBody.fromBytes(changed), UPLOAD_ID, rest, PART_SIZE, content.length, UPLOADED_PARTS + 1));
+
+        assertEquals(0, rest.size());
+    }
+}
@@ -0,0 +1,161 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.encryption.s3.S3EncryptionClientSecurityException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OrderedPartPublisherTest {
+
+    /**
+     * Hands out futures which the test completes by hand, in any order.
+     */
+    private static class ManualFetcher implements OrderedPartPublisher.PartFetcher {
+        private final List<CompletableFuture<ByteBuffer>> fetches = new ArrayList<>();
+
+        @Override
+        public synchronized CompletableFuture<ByteBuffer> fetch(int partIndex) {
+            assertEquals(fetches.size(), partIndex, "parts must be fetched in order");
+            CompletableFuture<ByteBuffer> fetch = new CompletableFuture<>();
+            fetches.add(fetch);
+            return fetch;
+        }
+
+        void complete(int partIndex) {
+            fetches.get(partIndex).complete(ByteBuffer.wrap(new byte[]{(byte) partIndex}));
+        }
+    }
+
+    private static class RecordingSubscriber implements Subscriber<ByteBuffer> {
+        private final List<Integer> received = new ArrayList<>();
+        private Subscription subscription;
+        private Throwable error;
+        private boolean completed;
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            subscription = s;
+        }
+
+        @Override
+        public void onNext(ByteBuffer byteBuffer) {
+            received.add((int) byteBuffer.get(0));
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+
+    @Test
+    public void sendsPartsInOrderWhateverOrderTheyArriveIn() {
+        ManualFetcher fetcher = new ManualFetcher();
+        AtomicInteger finished = new AtomicInteger();
+        OrderedPartPublisher publisher = new OrderedPartPublisher(4, 4, fetcher, finished::incrementAndGet);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+
+        fetcher.complete(2);
+        fetcher.complete(3);
+        assertTrue(subscriber.received.isEmpty());
+        fetcher.complete(0);
+        fetcher.complete(1);
+
+        assertEquals(Arrays.asList(0, 1, 2, 3), subscriber.received);
+        assertEquals(1, finished.get());
+        assertTrue(subscriber.completed);
+        assertNull(subscriber.error);
+    }
+
+    @Test
+    public void fetchesNoMoreThanTheWindowAhead() {
+        ManualFetcher fetcher = new ManualFetcher();
+        OrderedPartPublisher publisher = new OrderedPartPublisher(10, 3, fetcher, () -> { });
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        assertEquals(3, fetcher.fetches.size());
+
+        // Parts which have arrived but are not yet sent still count against the window
+        fetcher.complete(0);
+        assertEquals(3, fetcher.fetches.size());
+        subscriber.subscription.request(1);
+        assertEquals(4, fetcher.fetches.size());
+        assertEquals(1, subscriber.received.size());
+    }
+
+    @Test
+    public void fetchesMoreOnceTheWholeWindowIsSent() {
+        ManualFetcher fetcher = new ManualFetcher();
+        OrderedPartPublisher publisher = new OrderedPartPublisher(4, 2, fetcher, () -> { });
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        fetcher.complete(0);
+        fetcher.complete(1);
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertEquals(Arrays.asList(0, 1), subscriber.received);
+        assertEquals(4, fetcher.fetches.size());
+
+        fetcher.complete(2);
+        fetcher.complete(3);
+        assertEquals(Arrays.asList(0, 1, 2, 3), subscriber.received);
+        assertTrue(subscriber.completed);
+    }
+
+    @Test
+    public void failsWithoutWaitingForEarlierParts() {
+        ManualFetcher fetcher = new ManualFetcher();
+        OrderedPartPublisher publisher = new OrderedPartPublisher(3, 3, fetcher, () -> { });
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+
+        RuntimeException failure = new RuntimeException("part failed");
+        fetcher.fetches.get(2).completeExceptionally(failure);
+
+        assertSame(failure, subscriber.error);
+        assertTrue(subscriber.received.isEmpty());
+        fetcher.complete(0);
+        assertTrue(subscriber.received.isEmpty());
+    }
+
+    @Test
+    public void failsInsteadOfCompletingWhenTheFinisherThrows() {
+        ManualFetcher fetcher = new ManualFetcher();
+        S3EncryptionClientSecurityException tagMismatch = new S3EncryptionClientSecurityException("Tag mismatch!");
+        OrderedPartPublisher publisher = new OrderedPartPublisher(2, 2, fetcher, () -> {
+            throw tagMismatch;
+        });
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        fetcher.complete(0);
+        fetcher.complete(1);
+
+        assertEquals(2, subscriber.received.size());
+        assertSame(tagMismatch, subscriber.error);
+        assertFalse(subscriber.completed);
+    }
+}
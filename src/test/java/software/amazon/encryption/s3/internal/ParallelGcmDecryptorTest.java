@@ -0,0 +1,252 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.encryption.s3.algorithms.AlgorithmSuite;
+import software.amazon.encryption.s3.materials.DecryptionMaterials;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ParallelGcmDecryptorTest {
+    private static final AlgorithmSuite ALGORITHM_SUITE = AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF;
+    private static final int SMALL_TASK_SIZE = 4096;
+
+    private final SecureRandom random = new SecureRandom();
+    private ForkJoinPool pool;
+    private SecretKey dataKey;
+    private byte[] iv;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        pool = new ForkJoinPool(4);
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        dataKey = keyGen.generateKey();
+        iv = new byte[ALGORITHM_SUITE.iVLengthBytes()];
+        random.nextBytes(iv);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    private byte[] encrypt(byte[] plaintext) throws Exception {
+        Cipher cipher = Cipher.getInstance(ALGORITHM_SUITE.cipherName());
+        cipher.init(Cipher.ENCRYPT_MODE, dataKey, new GCMParameterSpec(ALGORITHM_SUITE.cipherTagLengthBits(), iv));
+        return cipher.doFinal(plaintext);
+    }
+
+    private ParallelGcmDecryptor decryptor(int minTaskSize) {
+        DecryptionMaterials materials = DecryptionMaterials.builder()
+                .plaintextDataKey(dataKey.getEncoded())
+                .algorithmSuite(ALGORITHM_SUITE)
+                .build();
+        return new ParallelGcmDecryptor(materials, iv, pool, minTaskSize);
+    }
+
+    /**
+     * Waits for the decryption, rethrowing the exception it failed with.
+     */
+    private static long decrypt(ParallelGcmDecryptor decryptor, ByteBuffer[] segments, long contentLength) throws Exception {
+        try {
+            return decryptor.decrypt(segments, contentLength).get();
+        } catch (ExecutionException exception) {
+            throw (Exception) exception.getCause();
+        }
+    }
+
+    /**
+     * Splits the content across segments of the given size, as BufferedCipherSubscriber holds it.
+     */
+    private static ByteBuffer[] segments(byte[] content, int segmentSize) {
+        int count = Math.max(1, (content.length + segmentSize - 1) / segmentSize);
+        ByteBuffer[] segments = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            int length = Math.min(segmentSize, content.length - i * segmentSize);
+            segments[i] = ByteBuffer.allocate(length);
+            segments[i].put(content, i * segmentSize, length);
+            segments[i].clear();
+        }
+        return segments;
+    }
+
+    private static byte[] plaintextOf(ByteBuffer[] segments, long length) {
+        byte[] plaintext = new byte[(int) length];
+        int offset = 0;
+        for (ByteBuffer segment : segments) {
+            int pieceLength = Math.min(segment.capacity(), plaintext.length - offset);
+            segment.duplicate().get(plaintext, offset, pieceLength);
+            offset += pieceLength;
+        }
+        return plaintext;
+    }
+
+    @Test
+    public void matchesJceForManySizes() throws Exception {
+        for (int length : new int[]{0, 1, 15, 16, 17, 4095, 4096, 4097, 100 * 1024 + 3}) {
+            byte[] plaintext = new byte[length];
+            random.nextBytes(plaintext);
+            byte[] ciphertext = encrypt(plaintext);
+
+            ByteBuffer[] segments = segments(ciphertext, ciphertext.length + 1);
+            long plaintextLength = decrypt(decryptor(SMALL_TASK_SIZE), segments, ciphertext.length);
+
+            assertEquals(length, plaintextLength);
+            assertArrayEquals(plaintext, plaintextOf(segments, plaintextLength), "length " + length);
+        }
+    }
+
+    @Test
+    public void decryptsAcrossSegmentsWhichAreNotBlockAligned() throws Exception {
+        byte[] plaintext = new byte[1024 * 1024 + 5];
+        random.nextBytes(plaintext);
+        byte[] ciphertext = encrypt(plaintext);
+        // The tag straddles the last two segments
+        ByteBuffer[] segments = segments(ciphertext, (ciphertext.length - 8) / 3);
+
+        long plaintextLength = decrypt(decryptor(SMALL_TASK_SIZE), segments, ciphertext.length);
+
+        assertArrayEquals(plaintext, plaintextOf(segments, plaintextLength));
+    }
+
+    @Test
+    public void decryptsWithDefaultTaskSize() throws Exception {
+        byte[] plaintext = new byte[3 * ParallelGcmDecryptor.MIN_TASK_SIZE + 77];
+        random.nextBytes(plaintext);
+        byte[] ciphertext = encrypt(plaintext);
+        ByteBuffer[] segments = segments(ciphertext, ciphertext.length);
+
+        DecryptionMaterials materials = DecryptionMaterials.builder()
+                .plaintextDataKey(dataKey.getEncoded())
+                .algorithmSuite(ALGORITHM_SUITE)
+                .build();
+        long plaintextLength = decrypt(new ParallelGcmDecryptor(materials, iv, pool), segments, ciphertext.length);
+
+        assertArrayEquals(plaintext, plaintextOf(segments, plaintextLength));
+    }
+
+    @Test
+    public void returnsBeforeTheRangesAreDecrypted() throws Exception {
+        byte[] plaintext = new byte[4 * SMALL_TASK_SIZE + 3];
+        random.nextBytes(plaintext);
+        byte[] ciphertext = encrypt(plaintext);
+        ByteBuffer[] segments = segments(ciphertext, ciphertext.length);
+        pool.shutdown();
+        pool = new ForkJoinPool(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        pool.execute(() -> {
+            try {
+                blocked.await();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        CompletableFuture<Long> decryption = decryptor(SMALL_TASK_SIZE).decrypt(segments, ciphertext.length);
+
+        assertFalse(decryption.isDone());
+        blocked.countDown();
+        assertEquals(plaintext.length, (long) decryption.get());
+        assertArrayEquals(plaintext, plaintextOf(segments, plaintext.length));
+    }
+
+    @Test
+    public void rejectsTamperedCiphertextAndTag() throws Exception {
+        byte[] plaintext = new byte[64 * 1024 + 9];
+        random.nextBytes(plaintext);
+        byte[] ciphertext = encrypt(plaintext);
+
+        for (int position : new int[]{0, SMALL_TASK_SIZE + 1, plaintext.length - 1, ciphertext.length - 1}) {
+            byte[] tampered = ciphertext.clone();
+            tampered[position] ^= 1;
+            assertThrows(AEADBadTagException.class,
+                    () -> decrypt(decryptor(SMALL_TASK_SIZE), segments(tampered, 10000), tampered.length),
+                    "position " + position);
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedContent() {
+        assertThrows(AEADBadTagException.class,
+                () -> decrypt(decryptor(SMALL_TASK_SIZE), segments(new byte[8], 8), 8));
+    }
+
+    @Test
+    public void decryptsPartsFetchedSeparately() throws Exception {
+        byte[] plaintext = new byte[3 * SMALL_TASK_SIZE + 21];
+        random.nextBytes(plaintext);
+        byte[] ciphertext = encrypt(plaintext);
+        int tagLength = ALGORITHM_SUITE.cipherTagLengthBytes();
+        int bodyLength = ciphertext.length - tagLength;
+        byte[] tag = Arrays.copyOfRange(ciphertext, bodyLength, ciphertext.length);
+        int partCount = (bodyLength + SMALL_TASK_SIZE - 1) / SMALL_TASK_SIZE;
+        long[][] partHashes = new long[partCount][];
+        long[] partLengths = new long[partCount];
+        byte[] decrypted = new byte[bodyLength];
+
+        ParallelGcmDecryptor decryptor = decryptor(SMALL_TASK_SIZE);
+        // Parts may be decrypted in any order
+        for (int i = partCount - 1; i >= 0; i--) {
+            int start = i * SMALL_TASK_SIZE;
+            int end = Math.min(bodyLength, start + SMALL_TASK_SIZE);
+            ByteBuffer part = ByteBuffer.wrap(Arrays.copyOfRange(ciphertext, start, end));
+            partHashes[i] = decryptor.decryptPart(part, start);
+            partLengths[i] = end - start;
+            part.get(decrypted, start, end - start);
+        }
+        decryptor.verifyTag(partHashes, partLengths, tag);
+        assertArrayEquals(plaintext, decrypted);
+
+        tag[0] ^= 1;
+        assertThrows(AEADBadTagException.class, () -> decryptor.verifyTag(partHashes, partLengths, tag));
+    }
+
+    @Test
+    public void ghashMatchesFieldMultiplication() {
+        long[] h = {0x66e94bd4ef8a2c3bL, 0x884cfa59ca342b2eL};
+        byte[] input = new byte[5 * GcmUtils.BLOCK_SIZE + 7];
+        random.nextBytes(input);
+
+        // Hashed in pieces which do not line up with the blocks
+        Ghash ghash = new Ghash(h);
+        for (int offset = 0; offset < input.length; offset += 11) {
+            ghash.update(ByteBuffer.wrap(input, offset, Math.min(11, input.length - offset)));
+        }
+
+        byte[] padded = Arrays.copyOf(input, 6 * GcmUtils.BLOCK_SIZE);
+        long[] expected = new long[2];
+        for (int offset = 0; offset < padded.length; offset += GcmUtils.BLOCK_SIZE) {
+            expected = GcmUtils.multiply(GcmUtils.xor(expected, GcmUtils.fromBytes(padded, offset)), h);
+        }
+        assertArrayEquals(expected, ghash.finish());
+    }
+
+    @Test
+    public void multipliesInTheGcmField() {
+        // H * 1 = H, where 1 is the element with only the first bit set
+        long[] h = {0x66e94bd4ef8a2c3bL, 0x884cfa59ca342b2eL};
+        assertArrayEquals(h, GcmUtils.multiply(h, new long[]{1L << 63, 0}));
+        assertArrayEquals(GcmUtils.multiply(h, GcmUtils.multiply(h, h)),
+                GcmUtils.power(h, 3));
+    }
+}
@@ -0,0 +1,79 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SpillBufferTest {
+    private static final int MEMORY_LIMIT = 1024;
+
+    @TempDir
+    Path spillDirectory;
+
+    private long spillFileCount() throws IOException {
+        try (Stream<Path> files = Files.list(spillDirectory)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    public void readAfterCloseFails() throws Exception {
+        SpillBuffer buffer = new SpillBuffer(MEMORY_LIMIT, spillDirectory);
+        buffer.write(new byte[4 * MEMORY_LIMIT], 0, 4 * MEMORY_LIMIT);
+        assertTrue(buffer.hasSpilled());
+        assertEquals(MEMORY_LIMIT, buffer.read(MEMORY_LIMIT).remaining());
+
+        buffer.close();
+
+        assertThrows(IOException.class, () -> buffer.read(MEMORY_LIMIT));
+        assertThrows(IOException.class, () -> buffer.write(new byte[1], 0, 1));
+        assertEquals(0, spillFileCount());
+    }
+
+    @Test
+    public void closeWhileReadingOnAnotherThread() throws Exception {
+        SpillBuffer buffer = new SpillBuffer(MEMORY_LIMIT, spillDirectory);
+        byte[] chunk = new byte[MEMORY_LIMIT];
+        for (int i = 0; i < 1024; i++) {
+            buffer.write(chunk, 0, chunk.length);
+        }
+        CountDownLatch reading = new CountDownLatch(1);
+        CompletableFuture<Void> reader = CompletableFuture.runAsync(() -> {
+            try {
+                ByteBuffer read;
+                do {
+                    read = buffer.read(16);
+                    reading.countDown();
+                } while (read != null);
+            } catch (IOException exception) {
+                throw new CompletionException(exception);
+            }
+        });
+        reading.await();
+
+        buffer.close();
+
+        // The reader either sees the buffer closed, or had already read everything
+        try {
+            reader.join();
+        } catch (CompletionException exception) {
+            assertInstanceOf(IOException.class, exception.getCause());
+        }
+        assertEquals(0, spillFileCount());
+    }
+}
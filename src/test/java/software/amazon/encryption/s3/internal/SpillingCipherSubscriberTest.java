@@ -0,0 +1,275 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.encryption.s3.S3EncryptionClientSecurityException;
+import software.amazon.encryption.s3.algorithms.AlgorithmSuite;
+import software.amazon.encryption.s3.materials.DecryptionMaterials;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SpillingCipherSubscriberTest {
+    private static final AlgorithmSuite ALGORITHM_SUITE = AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF;
+    private static final int PLAINTEXT_LENGTH = 100 * 1024 + 7;
+    private static final long MEMORY_LIMIT = 16 * 1024;
+    // Not a multiple of the block size, so chunk boundaries straddle the tag
+    private static final int UPSTREAM_CHUNK_SIZE = 4099;
+
+    @TempDir
+    Path spillDirectory;
+
+    private SecretKey dataKey;
+    private byte[] iv;
+    private byte[] plaintext;
+
+    /**
+     * Requests one buffer at a time and records everything it is sent.
+     */
+    static class RecordingSubscriber implements Subscriber<ByteBuffer> {
+        private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        private Subscription subscription;
+        private int nonEmptyBuffers = 0;
+        private Throwable error;
+        private boolean completed = false;
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            subscription = s;
+            s.request(1);
+        }
+
+        @Override
+        public void onNext(ByteBuffer item) {
+            if (item.hasRemaining()) {
+                nonEmptyBuffers++;
+                byte[] bytes = new byte[item.remaining()];
+                item.get(bytes);
+                received.write(bytes, 0, bytes.length);
+            }
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+
+    static class TestSubscription implements Subscription {
+        private long requested = 0;
+        private boolean cancelled = false;
+
+        @Override
+        public void request(long n) {
+            requested += n;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        dataKey = keyGen.generateKey();
+        iv = new byte[ALGORITHM_SUITE.iVLengthBytes()];
+        new SecureRandom().nextBytes(iv);
+        plaintext = new byte[PLAINTEXT_LENGTH];
+        new SecureRandom().nextBytes(plaintext);
+    }
+
+    private byte[] encrypt(byte[] input) throws Exception {
+        Cipher cipher = Cipher.getInstance(ALGORITHM_SUITE.cipherName());
+        cipher.init(Cipher.ENCRYPT_MODE, dataKey, new GCMParameterSpec(ALGORITHM_SUITE.cipherTagLengthBits(), iv));
+        return cipher.doFinal(input);
+    }
+
+    private SpillingCipherSubscriber newSubscriber(RecordingSubscriber downstream, long contentLength) {
+        DecryptionMaterials materials = DecryptionMaterials.builder()
+                .plaintextDataKey(dataKey.getEncoded())
+                .algorithmSuite(ALGORITHM_SUITE)
+                .ciphertextLength(contentLength)
+                .build();
+        return new SpillingCipherSubscriber(downstream, contentLength, materials, iv, MEMORY_LIMIT, spillDirectory);
+    }
+
+    private long spillFileCount() throws IOException {
+        try (Stream<Path> files = Files.list(spillDirectory)) {
+            return files.count();
+        }
+    }
+
+    /**
+     * Sends the ciphertext upstream one chunk per request and returns how many
+     * non-empty buffers downstream had seen before the final chunk was sent.
+     */
+    private int emitInChunks(SpillingCipherSubscriber subscriber, TestSubscription upstream,
+                             RecordingSubscriber downstream, byte[] ciphertext) {
+        int releasedBeforeEnd = 0;
+        for (int offset = 0; offset < ciphertext.length; offset += UPSTREAM_CHUNK_SIZE) {
+            int length = Math.min(UPSTREAM_CHUNK_SIZE, ciphertext.length - offset);
+            assertTrue(upstream.requested > 0, "upstream must only send when there is demand");
+            upstream.requested--;
+            releasedBeforeEnd = downstream.nonEmptyBuffers;
+            subscriber.onNext(ByteBuffer.wrap(ciphertext, offset, length).slice());
+        }
+        return releasedBeforeEnd;
+    }
+
+    @Test
+    public void decryptsAndSpillsLargeObject() throws Exception {
+        byte[] ciphertext = encrypt(plaintext);
+        RecordingSubscriber downstream = new RecordingSubscriber();
+        SpillingCipherSubscriber subscriber = newSubscriber(downstream, ciphertext.length);
+        TestSubscription upstream = new TestSubscription();
+        subscriber.onSubscribe(upstream);
+
+        int releasedBeforeEnd = emitInChunks(subscriber, upstream, downstream, ciphertext);
+        subscriber.onComplete();
+
+        assertEquals(0, releasedBeforeEnd, "no plaintext may be released before the tag is verified");
+        assertTrue(subscriber.hasSpilled());
+        assertNull(downstream.error);
+        assertTrue(downstream.completed);
+        assertArrayEquals(plaintext, downstream.received.toByteArray());
+        assertEquals(0, spillFileCount());
+    }
+
+    @Test
+    public void completesWithoutFurtherDemandOnceAllPlaintextIsSent() throws Exception {
+        byte[] ciphertext = encrypt(plaintext);
+        // Requests one buffer at a time only until it has been sent the whole plaintext
+        RecordingSubscriber downstream = new RecordingSubscriber() {
+            @Override
+            public void onNext(ByteBuffer item) {
+                byte[] bytes = new byte[item.remaining()];
+                item.get(bytes);
+                super.received.write(bytes, 0, bytes.length);
+                if (super.received.size() < PLAINTEXT_LENGTH) {
+                    super.subscription.request(1);
+                }
+            }
+        };
+        SpillingCipherSubscriber subscriber = newSubscriber(downstream, ciphertext.length);
+        TestSubscription upstream = new TestSubscription();
+        subscriber.onSubscribe(upstream);
+
+        emitInChunks(subscriber, upstream, downstream, ciphertext);
+        subscriber.onComplete();
+
+        assertNull(downstream.error);
+        assertArrayEquals(plaintext, downstream.received.toByteArray());
+        assertTrue(downstream.completed);
+        assertEquals(0, spillFileCount());
+    }
+
+    @Test
+    public void rejectsTamperedTagWithoutReleasingPlaintext() throws Exception {
+        byte[] ciphertext = encrypt(plaintext);
+        ciphertext[ciphertext.length - 1] ^= 1;
+        RecordingSubscriber downstream = new RecordingSubscriber();
+        SpillingCipherSubscriber subscriber = newSubscriber(downstream, ciphertext.length);
+        TestSubscription upstream = new TestSubscription();
+        subscriber.onSubscribe(upstream);
+
+        assertThrows(S3EncryptionClientSecurityException.class,
+                () -> emitInChunks(subscriber, upstream, downstream, ciphertext));
+
+        assertInstanceOf(AEADBadTagException.class, downstream.error);
+        assertEquals(0, downstream.nonEmptyBuffers);
+        assertFalse(downstream.completed);
+        assertEquals(0, spillFileCount());
+    }
+
+    @Test
+    public void rejectsTruncatedObject() throws Exception {
+        byte[] ciphertext = encrypt(plaintext);
+        RecordingSubscriber downstream = new RecordingSubscriber();
+        SpillingCipherSubscriber subscriber = newSubscriber(downstream, ciphertext.length);
+        TestSubscription upstream = new TestSubscription();
+        subscriber.onSubscribe(upstream);
+
+        subscriber.onNext(ByteBuffer.wrap(ciphertext, 0, ciphertext.length / 2).slice());
+        assertThrows(S3EncryptionClientSecurityException.class, subscriber::onComplete);
+
+        assertInstanceOf(AEADBadTagException.class, downstream.error);
+        assertEquals(0, downstream.nonEmptyBuffers);
+        assertEquals(0, spillFileCount());
+    }
+
+    @Test
+    public void cancelDeletesSpillFile() throws Exception {
+        byte[] ciphertext = encrypt(plaintext);
+        RecordingSubscriber downstream = new RecordingSubscriber();
+        SpillingCipherSubscriber subscriber = newSubscriber(downstream, ciphertext.length);
+        TestSubscription upstream = new TestSubscription();
+        subscriber.onSubscribe(upstream);
+
+        // Send more than the memory limit so the plaintext spills
+        subscriber.onNext(ByteBuffer.wrap(ciphertext, 0, (int) MEMORY_LIMIT * 2).slice());
+        assertNull(downstream.error);
+        assertTrue(subscriber.hasSpilled());
+
+        downstream.subscription.cancel();
+        assertTrue(upstream.cancelled);
+        assertEquals(0, spillFileCount());
+    }
+
+    @Test
+    public void cancelWhileReleasingStopsReadingTheSpillFile() throws Exception {
+        byte[] ciphertext = encrypt(plaintext);
+        // Cancels once it has been sent the first chunk of plaintext, then requests more
+        RecordingSubscriber downstream = new RecordingSubscriber() {
+            @Override
+            public void onNext(ByteBuffer item) {
+                if (item.hasRemaining()) {
+                    super.subscription.cancel();
+                }
+                super.onNext(item);
+            }
+        };
+        SpillingCipherSubscriber subscriber = newSubscriber(downstream, ciphertext.length);
+        TestSubscription upstream = new TestSubscription();
+        subscriber.onSubscribe(upstream);
+
+        emitInChunks(subscriber, upstream, downstream, ciphertext);
+
+        assertTrue(subscriber.hasSpilled());
+        assertNull(downstream.error);
+        assertFalse(downstream.completed);
+        assertEquals(1, downstream.nonEmptyBuffers);
+        assertEquals(0, spillFileCount());
+    }
+}
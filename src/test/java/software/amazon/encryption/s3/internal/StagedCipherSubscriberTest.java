@@ -0,0 +1,160 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.encryption.s3.S3EncryptionClientSecurityException;
+import software.amazon.encryption.s3.algorithms.AlgorithmSuite;
+import software.amazon.encryption.s3.materials.DecryptionMaterials;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StagedCipherSubscriberTest {
+    private static final AlgorithmSuite ALGORITHM_SUITE = AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF;
+    private static final int PLAINTEXT_LENGTH = 3 * 1024 * 1024 + 5;
+    private static final int UPSTREAM_CHUNK_SIZE = 8195;
+
+    private SecretKey dataKey;
+    private byte[] iv;
+    private byte[] plaintext;
+
+    /**
+     * Stages everything it is sent, as a staged file does, and records the largest buffer.
+     */
+    private static class StagingSubscriber implements Subscriber<ByteBuffer> {
+        private final ByteArrayOutputStream staged = new ByteArrayOutputStream();
+        private Subscription subscription;
+        private int largestBuffer = 0;
+        private Throwable error;
+        private boolean completed = false;
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            subscription = s;
+            s.request(1);
+        }
+
+        @Override
+        public void onNext(ByteBuffer item) {
+            largestBuffer = Math.max(largestBuffer, item.remaining());
+            byte[] bytes = new byte[item.remaining()];
+            item.get(bytes);
+            staged.write(bytes, 0, bytes.length);
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        dataKey = keyGen.generateKey();
+        iv = new byte[ALGORITHM_SUITE.iVLengthBytes()];
+        new SecureRandom().nextBytes(iv);
+        plaintext = new byte[PLAINTEXT_LENGTH];
+        new SecureRandom().nextBytes(plaintext);
+    }
+
+    private byte[] encrypt(byte[] input) throws Exception {
+        Cipher cipher = Cipher.getInstance(ALGORITHM_SUITE.cipherName());
+        cipher.init(Cipher.ENCRYPT_MODE, dataKey, new GCMParameterSpec(ALGORITHM_SUITE.cipherTagLengthBits(), iv));
+        return cipher.doFinal(input);
+    }
+
+    private StagedCipherSubscriber newSubscriber(StagingSubscriber downstream, long contentLength) {
+        DecryptionMaterials materials = DecryptionMaterials.builder()
+                .plaintextDataKey(dataKey.getEncoded())
+                .algorithmSuite(ALGORITHM_SUITE)
+                .ciphertextLength(contentLength)
+                .build();
+        StagedCipherSubscriber subscriber = new StagedCipherSubscriber(downstream, contentLength, materials, iv);
+        subscriber.onSubscribe(new BufferedCipherSubscriberTest.NoOpSubscription());
+        return subscriber;
+    }
+
+    /**
+     * Sends all but the last chunk of the ciphertext, and returns the last chunk.
+     */
+    private static ByteBuffer emitAllButLastChunk(StagedCipherSubscriber subscriber, byte[] ciphertext) {
+        int offset = 0;
+        while (ciphertext.length - offset > UPSTREAM_CHUNK_SIZE) {
+            subscriber.onNext(ByteBuffer.wrap(ciphertext, offset, UPSTREAM_CHUNK_SIZE));
+            offset += UPSTREAM_CHUNK_SIZE;
+        }
+        return ByteBuffer.wrap(ciphertext, offset, ciphertext.length - offset);
+    }
+
+    @Test
+    public void streamsPlaintextAndCompletesOnceAuthenticated() throws Exception {
+        byte[] ciphertext = encrypt(plaintext);
+        StagingSubscriber downstream = new StagingSubscriber();
+        StagedCipherSubscriber subscriber = newSubscriber(downstream, ciphertext.length);
+
+        ByteBuffer last = emitAllButLastChunk(subscriber, ciphertext);
+        // Nearly all of the object has been staged, no more than a chunk at a time, before the tag is read
+        assertTrue(downstream.staged.size() > PLAINTEXT_LENGTH - UPSTREAM_CHUNK_SIZE);
+        assertTrue(downstream.largestBuffer <= UPSTREAM_CHUNK_SIZE);
+        assertFalse(downstream.completed);
+
+        subscriber.onNext(last);
+        subscriber.onComplete();
+
+        assertNull(downstream.error);
+        assertTrue(downstream.completed);
+        assertArrayEquals(plaintext, downstream.staged.toByteArray());
+    }
+
+    @Test
+    public void failsInsteadOfCompletingWhenTheTagDoesNotMatch() throws Exception {
+        byte[] ciphertext = encrypt(plaintext);
+        ciphertext[ciphertext.length - 1] ^= 1;
+        StagingSubscriber downstream = new StagingSubscriber();
+        StagedCipherSubscriber subscriber = newSubscriber(downstream, ciphertext.length);
+
+        ByteBuffer last = emitAllButLastChunk(subscriber, ciphertext);
+        assertThrows(S3EncryptionClientSecurityException.class, () -> subscriber.onNext(last));
+
+        assertInstanceOf(AEADBadTagException.class, downstream.error);
+        assertFalse(downstream.completed);
+    }
+
+    @Test
+    public void failsWhenTheObjectEndsBeforeTheTag() throws Exception {
+        byte[] ciphertext = encrypt(plaintext);
+        StagingSubscriber downstream = new StagingSubscriber();
+        StagedCipherSubscriber subscriber = newSubscriber(downstream, ciphertext.length);
+
+        emitAllButLastChunk(subscriber, ciphertext);
+        assertThrows(S3EncryptionClientSecurityException.class, subscriber::onComplete);
+
+        assertInstanceOf(AEADBadTagException.class, downstream.error);
+        assertFalse(downstream.completed);
+    }
+}
@@ -0,0 +1,156 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import software.amazon.encryption.s3.internal.StripedMultiFileOutputStream.StripingPolicy;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class StripedMultiFileOutputStreamTest {
+    private static final int PART_SIZE = 10;
+
+    /**
+     * Records the parts it is given instead of uploading them, and optionally
+     * "uploads" each part as soon as it is created.
+     */
+    private static class RecordingObserver extends UploadObjectObserver {
+        private final List<PartCreationEvent> parts = new ArrayList<>();
+        private final List<byte[]> contents = new ArrayList<>();
+        private final boolean uploadImmediately;
+
+        RecordingObserver(boolean uploadImmediately) {
+            this.uploadImmediately = uploadImmediately;
+        }
+
+        @Override
+        public synchronized void onPartCreate(PartCreationEvent event) {
+            try {
+                contents.add(Files.readAllBytes(event.getPart().toPath()));
+            } catch (Exception exception) {
+                throw new IllegalStateException(exception);
+            }
+            parts.add(event);
+            if (uploadImmediately) {
+                upload(event);
+            }
+        }
+
+        synchronized PartCreationEvent part(int index) {
+            return parts.get(index);
+        }
+
+        synchronized int partCount() {
+            return parts.size();
+        }
+
+        static void upload(PartCreationEvent event) {
+            event.getPart().delete();
+            event.getFileDeleteObserver().onFileDelete(null);
+        }
+    }
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) i;
+        }
+        return content;
+    }
+
+    @Test
+    public void stripesPartsAcrossDirectoriesInTurn(@TempDir Path first, @TempDir Path second) throws Exception {
+        RecordingObserver observer = new RecordingObserver(false);
+        StripedMultiFileOutputStream stream = new StripedMultiFileOutputStream(
+                Arrays.asList(first.toFile(), second.toFile()), StripingPolicy.ROUND_ROBIN)
+                .init(observer, PART_SIZE, Long.MAX_VALUE);
+        byte[] content = content(3 * PART_SIZE + 5);
+
+        stream.write(content, 0, 3);
+        stream.write(content[3]);
+        stream.write(content, 4, content.length - 4);
+        stream.close();
+
+        assertEquals(4, observer.parts.size());
+        for (int i = 0; i < 4; i++) {
+            PartCreationEvent part = observer.part(i);
+            assertEquals(i + 1, part.getPartNumber());
+            assertEquals(i == 3, part.isLastPart());
+            assertEquals(i % 2 == 0 ? first.toFile() : second.toFile(), part.getPart().getParentFile());
+            assertEquals(part.getPart(), stream.getFile(i + 1));
+            int from = i * PART_SIZE;
+            assertArrayEquals(Arrays.copyOfRange(content, from, Math.min(from + PART_SIZE, content.length)),
+                    observer.contents.get(i));
+        }
+        // The last part holds only what was written
+        assertEquals(5, observer.part(3).getPart().length());
+        assertEquals(content.length, stream.getTotalBytesWritten());
+
+        stream.cleanup();
+        assertFalse(observer.part(0).getPart().exists());
+        assertFalse(observer.part(3).getPart().exists());
+    }
+
+    @Test
+    public void blocksOnlyOnceEveryDirectoryIsFull(@TempDir Path first, @TempDir Path second) throws Exception {
+        RecordingObserver observer = new RecordingObserver(false);
+        // Each directory holds two parts
+        StripedMultiFileOutputStream stream = new StripedMultiFileOutputStream(
+                Arrays.asList(first.toFile(), second.toFile()), StripingPolicy.ROUND_ROBIN)
+                .init(observer, PART_SIZE, 2 * PART_SIZE);
+        byte[] content = content(5 * PART_SIZE);
+
+        CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+            try {
+                stream.write(content);
+                stream.close();
+            } catch (Exception exception) {
+                throw new IllegalStateException(exception);
+            }
+        });
+
+        // The fifth part waits for one of the first four to be uploaded
+        Thread.sleep(50);
+        assertFalse(writer.isDone());
+        assertEquals(4, observer.partCount());
+        RecordingObserver.upload(observer.part(1));
+        writer.get(10, TimeUnit.SECONDS);
+
+        assertEquals(5, observer.partCount());
+        // It goes to the directory which had room
+        assertEquals(second.toFile(), observer.part(4).getPart().getParentFile());
+        assertArrayEquals(Arrays.copyOfRange(content, 4 * PART_SIZE, content.length), observer.contents.get(4));
+    }
+
+    @Test
+    public void skipsFullDirectoriesUnderEitherPolicy(@TempDir Path first, @TempDir Path second) throws Exception {
+        for (StripingPolicy policy : StripingPolicy.values()) {
+            RecordingObserver observer = new RecordingObserver(true);
+            StripedMultiFileOutputStream stream = new StripedMultiFileOutputStream(
+                    Arrays.asList(first.toFile(), second.toFile()), policy, policy.name())
+                    .init(observer, PART_SIZE, 2 * PART_SIZE);
+
+            stream.write(content(6 * PART_SIZE + 1));
+            stream.close();
+
+            // Every part was uploaded as soon as it was written, so writing never blocked
+            assertEquals(7, observer.partCount());
+            assertEquals(6 * PART_SIZE + 1, stream.getTotalBytesWritten());
+            for (File root : stream.getRoots()) {
+                assertEquals(0, root.listFiles().length);
+            }
+        }
+    }
+}
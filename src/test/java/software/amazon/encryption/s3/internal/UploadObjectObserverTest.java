@@ -0,0 +1,196 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.internal;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+import software.amazon.encryption.s3.S3EncryptionClientException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UploadObjectObserverTest {
+    private static final PutObjectRequest REQUEST = PutObjectRequest.builder().bucket("bucket").key("key").build();
+
+    private ExecutorService executor;
+
+    /**
+     * "Uploads" each part once its latch is released, failing the parts it is told to.
+     */
+    private static class ScriptedObserver extends UploadObjectObserver {
+        private final Map<Integer, CountDownLatch> latches = new ConcurrentHashMap<>();
+        private final Map<Integer, Boolean> interrupted = new ConcurrentHashMap<>();
+        private final int failingPart;
+
+        ScriptedObserver(int failingPart) {
+            this.failingPart = failingPart;
+        }
+
+        CountDownLatch latch(int partNumber) {
+            return latches.computeIfAbsent(partNumber, ignored -> new CountDownLatch(1));
+        }
+
+        @Override
+        protected Map<Integer, UploadPartResponse> uploadPart(UploadPartRequest request, AsyncRequestBody requestBody) {
+            int partNumber = request.partNumber();
+            if (partNumber == failingPart) {
+                throw new IllegalStateException("part " + partNumber + " failed");
+            }
+            try {
+                latch(partNumber).await();
+            } catch (InterruptedException e) {
+                interrupted.put(partNumber, true);
+                throw new S3EncryptionClientException(e.getMessage(), e);
+            }
+            return Collections.singletonMap(partNumber, UploadPartResponse.builder().eTag("etag-" + partNumber).build());
+        }
+    }
+
+    private static PartCreationEvent part(int partNumber, boolean isLastPart) {
+        return new PartCreationEvent(ByteBuffer.allocate(1), partNumber, isLastPart, null);
+    }
+
+    @BeforeEach
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void collectsPartsInWhateverOrderTheyComplete() {
+        ScriptedObserver observer = new ScriptedObserver(0);
+        observer.init(REQUEST, null, null, executor, 10);
+        for (int partNumber = 1; partNumber <= 3; partNumber++) {
+            observer.onPartCreate(part(partNumber, partNumber == 3));
+        }
+        observer.latch(3).countDown();
+        observer.latch(2).countDown();
+        observer.latch(1).countDown();
+
+        List<CompletedPart> parts = observer.awaitCompletion();
+        assertEquals(3, parts.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i + 1, parts.get(i).partNumber());
+            assertEquals("etag-" + (i + 1), parts.get(i).eTag());
+        }
+        UploadObjectObserver.Metrics metrics = observer.metrics();
+        assertEquals(3, metrics.partsSubmitted());
+        assertEquals(3, metrics.partsCompleted());
+        assertEquals(0, metrics.partsInFlight());
+        assertEquals(3, metrics.peakPartsInFlight());
+        assertNull(metrics.timeToAbort());
+    }
+
+    @Test
+    public void waitsForAPartBeforeSubmittingMoreThanTheWindow() throws Exception {
+        ScriptedObserver observer = new ScriptedObserver(0);
+        observer.init(REQUEST, null, null, executor, 2);
+        observer.onPartCreate(part(1, false));
+        observer.onPartCreate(part(2, false));
+
+        CompletableFuture<Void> third = CompletableFuture.runAsync(() -> observer.onPartCreate(part(3, true)));
+        Thread.sleep(50);
+        assertFalse(third.isDone());
+        assertEquals(2, observer.metrics().partsInFlight());
+
+        observer.latch(2).countDown();
+        third.get(10, TimeUnit.SECONDS);
+        observer.latch(1).countDown();
+        observer.latch(3).countDown();
+
+        assertEquals(3, observer.awaitCompletion().size());
+        assertEquals(2, observer.metrics().peakPartsInFlight());
+        assertEquals(2, observer.metrics().maxPartsInFlight());
+    }
+
+    @Test
+    public void failsFastAndCancelsOutstandingParts() throws Exception {
+        ScriptedObserver observer = new ScriptedObserver(2);
+        observer.init(REQUEST, null, null, executor, 10);
+        observer.onPartCreate(part(1, false));
+        waitFor(() -> observer.metrics().partsUploading() == 1);
+        observer.onPartCreate(part(2, false));
+
+        // Part 1 never finishes by itself; waiting returns as soon as part 2 fails
+        S3EncryptionClientException exception = assertThrows(S3EncryptionClientException.class,
+                observer::awaitCompletion);
+        assertTrue(exception.getMessage().contains("part 2 failed"));
+        waitFor(() -> observer.metrics().partsFailed() == 2);
+        assertTrue(observer.interrupted.containsKey(1));
+        // Encryption stops at the next part
+        assertThrows(S3EncryptionClientException.class, () -> observer.onPartCreate(part(3, true)));
+
+        observer.onAbort();
+        UploadObjectObserver.Metrics metrics = observer.metrics();
+        assertEquals(2, metrics.partsSubmitted());
+        assertEquals(0, metrics.partsCompleted());
+        assertEquals(2, metrics.partsFailed());
+        assertNotNull(metrics.timeToAbort());
+    }
+
+    @Test
+    public void partsQueuedWhenAnotherFailsAreNotSent() throws Exception {
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        try {
+            ScriptedObserver observer = new ScriptedObserver(1);
+            observer.init(REQUEST, null, null, single, 10);
+            // Holds the executor so that every part is queued behind the one which fails
+            CountDownLatch busy = new CountDownLatch(1);
+            single.submit(() -> {
+                busy.await();
+                return null;
+            });
+            List<Integer> released = Collections.synchronizedList(new ArrayList<>());
+            for (int partNumber = 1; partNumber <= 3; partNumber++) {
+                final int number = partNumber;
+                observer.onPartCreate(new PartCreationEvent(ByteBuffer.allocate(1), partNumber, false,
+                        ignored -> released.add(number)));
+            }
+            busy.countDown();
+
+            assertThrows(S3EncryptionClientException.class, observer::awaitCompletion);
+            waitFor(() -> observer.metrics().partsFailed() == 3);
+            assertEquals(0, observer.metrics().partsInFlight());
+            assertEquals(3, released.size());
+            // Only the failing part was sent
+            assertTrue(observer.latches.isEmpty());
+        } finally {
+            single.shutdownNow();
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}
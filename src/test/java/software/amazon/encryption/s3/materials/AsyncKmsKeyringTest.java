@@ -0,0 +1,163 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.materials;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.kms.KmsAsyncClient;
+import software.amazon.awssdk.services.kms.model.DecryptRequest;
+import software.amazon.awssdk.services.kms.model.DecryptResponse;
+import software.amazon.awssdk.services.kms.model.GenerateDataKeyRequest;
+import software.amazon.awssdk.services.kms.model.GenerateDataKeyResponse;
+import software.amazon.awssdk.services.kms.model.InvalidCiphertextException;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.encryption.s3.S3EncryptionClient;
+import software.amazon.encryption.s3.S3EncryptionClientException;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class AsyncKmsKeyringTest {
+
+    /**
+     * Wraps data keys under the encryption context, the way KMS does, without a network.
+     */
+    private static class InMemoryKmsAsyncClient implements KmsAsyncClient {
+        private final SecureRandom random = new SecureRandom();
+        private final Map<String, byte[]> plaintexts = new HashMap<>();
+        private final Map<String, Map<String, String>> contexts = new HashMap<>();
+        private final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public String serviceName() {
+            return "kms";
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public synchronized CompletableFuture<GenerateDataKeyResponse> generateDataKey(GenerateDataKeyRequest request) {
+            calls.incrementAndGet();
+            byte[] plaintext = new byte[32];
+            byte[] ciphertext = new byte[16];
+            random.nextBytes(plaintext);
+            random.nextBytes(ciphertext);
+            String id = Base64.getEncoder().encodeToString(ciphertext);
+            plaintexts.put(id, plaintext);
+            contexts.put(id, request.encryptionContext());
+            return CompletableFuture.completedFuture(GenerateDataKeyResponse.builder()
+                    .keyId(request.keyId())
+                    .plaintext(SdkBytes.fromByteArray(plaintext))
+                    .ciphertextBlob(SdkBytes.fromByteArray(ciphertext))
+                    .build());
+        }
+
+        @Override
+        public synchronized CompletableFuture<DecryptResponse> decrypt(DecryptRequest request) {
+            calls.incrementAndGet();
+            String id = Base64.getEncoder().encodeToString(request.ciphertextBlob().asByteArray());
+            CompletableFuture<DecryptResponse> response = new CompletableFuture<>();
+            if (!plaintexts.containsKey(id) || !contexts.get(id).equals(request.encryptionContext())) {
+                response.completeExceptionally(InvalidCiphertextException.builder().message("Invalid ciphertext").build());
+                return response;
+            }
+            response.complete(DecryptResponse.builder()
+                    .plaintext(SdkBytes.fromByteArray(plaintexts.get(id)))
+                    .build());
+            return response;
+        }
+    }
+
+    private final InMemoryKmsAsyncClient kms = new InMemoryKmsAsyncClient();
+    private final AsyncKmsKeyring keyring = AsyncKmsKeyring.builder().kmsClient(kms).wrappingKeyId("key-id").build();
+
+    private EncryptionMaterials encrypt(Map<String, String> requestContext) {
+        return keyring.onEncryptAsync(EncryptionMaterials.builder()
+                .s3Request(PutObjectRequest.builder().bucket("bucket").key("key")
+                        .overrideConfiguration(S3EncryptionClient.withAdditionalConfiguration(requestContext))
+                        .build())
+                .build()).join();
+    }
+
+    private CompletableFuture<DecryptionMaterials> decrypt(EncryptionMaterials encrypted, Map<String, String> requestContext,
+                                                           List<EncryptedDataKey> encryptedDataKeys) {
+        return keyring.onDecryptAsync(DecryptionMaterials.builder()
+                .s3Request(GetObjectRequest.builder().bucket("bucket").key("key")
+                        .overrideConfiguration(S3EncryptionClient.withAdditionalConfiguration(requestContext))
+                        .build())
+                .encryptionContext(encrypted.encryptionContext())
+                .build(), encryptedDataKeys);
+    }
+
+    @Test
+    public void unwrapsWhatItWraps() {
+        Map<String, String> context = Collections.singletonMap("tenant", "a");
+        EncryptionMaterials encrypted = encrypt(context);
+        assertEquals(1, encrypted.encryptedDataKeys().size());
+        EncryptedDataKey encryptedDataKey = encrypted.encryptedDataKeys().get(0);
+        assertEquals(S3Keyring.KEY_PROVIDER_ID, encryptedDataKey.keyProviderId());
+        assertEquals("kms+context", new String(encryptedDataKey.keyProviderInfo(), StandardCharsets.UTF_8));
+        assertEquals("AES/GCM/NoPadding", encrypted.encryptionContext().get("aws:x-amz-cek-alg"));
+
+        DecryptionMaterials decrypted = decrypt(encrypted, context, encrypted.encryptedDataKeys()).join();
+        assertArrayEquals(encrypted.plaintextDataKey(), decrypted.plaintextDataKey());
+        // The synchronous methods wait for the asynchronous ones
+        assertArrayEquals(encrypted.plaintextDataKey(), keyring.onDecrypt(DecryptionMaterials.builder()
+                .s3Request(GetObjectRequest.builder()
+                        .overrideConfiguration(S3EncryptionClient.withAdditionalConfiguration(context))
+                        .build())
+                .encryptionContext(encrypted.encryptionContext())
+                .build(), encrypted.encryptedDataKeys()).plaintextDataKey());
+    }
+
+    @Test
+    public void failsTheFutureOnAMismatchedContextWithoutCallingKms() {
+        EncryptionMaterials encrypted = encrypt(Collections.singletonMap("tenant", "a"));
+        int calls = kms.calls.get();
+
+        CompletionException exception = assertThrows(CompletionException.class, () -> decrypt(encrypted,
+                Collections.singletonMap("tenant", "b"), encrypted.encryptedDataKeys()).join());
+        assertInstanceOf(S3EncryptionClientException.class, exception.getCause());
+        assertEquals(calls, kms.calls.get());
+    }
+
+    @Test
+    public void rejectsLegacyWrappingUnlessEnabled() {
+        EncryptionMaterials encrypted = encrypt(Collections.emptyMap());
+        List<EncryptedDataKey> legacy = Collections.singletonList(EncryptedDataKey.builder()
+                .keyProviderId(S3Keyring.KEY_PROVIDER_ID)
+                .keyProviderInfo("kms".getBytes(StandardCharsets.UTF_8))
+                .encryptedDataKey(encrypted.encryptedDataKeys().get(0).encryptedDatakey())
+                .build());
+
+        // Synchronously, the failure is thrown as by any other keyring
+        assertThrows(S3EncryptionClientException.class, () -> AsyncKeyring.join(decrypt(encrypted,
+                Collections.emptyMap(), legacy)));
+        AsyncKmsKeyring legacyKeyring = AsyncKmsKeyring.builder()
+                .kmsClient(kms)
+                .wrappingKeyId("key-id")
+                .enableLegacyWrappingAlgorithms(true)
+                .build();
+        DecryptionMaterials decrypted = legacyKeyring.onDecryptAsync(DecryptionMaterials.builder()
+                .s3Request(GetObjectRequest.builder().build())
+                .encryptionContext(encrypted.encryptionContext())
+                .build(), legacy).join();
+        assertArrayEquals(encrypted.plaintextDataKey(), decrypted.plaintextDataKey());
+    }
+}
@@ -0,0 +1,307 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.materials;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.encryption.s3.S3EncryptionClient;
+import software.amazon.encryption.s3.S3EncryptionClientException;
+import software.amazon.encryption.s3.algorithms.AlgorithmSuite;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CachingCryptoMaterialsManagerTest {
+    private final AtomicLong now = new AtomicLong();
+
+    /**
+     * Generates a new random data key for every request, as a key provider would.
+     */
+    private static class CountingCmm implements CryptographicMaterialsManager {
+        private final SecureRandom random = new SecureRandom();
+        private final List<EncryptionMaterials> generated = new ArrayList<>();
+        private int decrypted;
+        private boolean honorsAlgorithmSuite = true;
+
+        @Override
+        public synchronized EncryptionMaterials getEncryptionMaterials(EncryptionMaterialsRequest request) {
+            byte[] dataKey = new byte[32];
+            random.nextBytes(dataKey);
+            EncryptionMaterials.Builder builder = EncryptionMaterials.builder();
+            if (honorsAlgorithmSuite && request.algorithmSuite() != null) {
+                builder.algorithmSuite(request.algorithmSuite());
+            }
+            EncryptionMaterials materials = builder
+                    .s3Request(request.s3Request())
+                    .encryptionContext(request.encryptionContext())
+                    .plaintextLength(request.plaintextLength())
+                    .plaintextDataKey(dataKey)
+                    .encryptedDataKeys(Collections.singletonList(EncryptedDataKey.builder()
+                            .keyProviderId("test")
+                            .encryptedDataKey(dataKey)
+                            .build()))
+                    .build();
+            generated.add(materials);
+            return materials;
+        }
+
+        @Override
+        public synchronized DecryptionMaterials decryptMaterials(DecryptMaterialsRequest request) {
+            decrypted++;
+            // The "encrypted" data key is the data key itself
+            return DecryptionMaterials.builder()
+                    .s3Request(request.s3Request())
+                    .algorithmSuite(request.algorithmSuite())
+                    .encryptionContext(request.encryptionContext())
+                    .ciphertextLength(request.ciphertextLength())
+                    .plaintextDataKey(request.encryptedDataKeys().get(0).encryptedDatakey())
+                    .build();
+        }
+    }
+
+    private static EncryptionMaterialsRequest request(String key, long plaintextLength) {
+        return EncryptionMaterialsRequest.builder()
+                .s3Request(PutObjectRequest.builder().bucket("bucket").key(key).build())
+                .plaintextLength(plaintextLength)
+                .build();
+    }
+
+    private static DecryptMaterialsRequest decryptRequest(byte[] encryptedDataKey, Map<String, String> requestContext) {
+        GetObjectRequest.Builder s3Request = GetObjectRequest.builder().bucket("bucket").key("key");
+        if (requestContext != null) {
+            s3Request.overrideConfiguration(S3EncryptionClient.withAdditionalConfiguration(requestContext));
+        }
+        return DecryptMaterialsRequest.builder()
+                .s3Request(s3Request.build())
+                .encryptedDataKeys(Collections.singletonList(EncryptedDataKey.builder()
+                        .keyProviderId("test")
+                        .keyProviderInfo("info".getBytes(StandardCharsets.UTF_8))
+                        .encryptedDataKey(encryptedDataKey)
+                        .build()))
+                .encryptionContext(Collections.singletonMap("stored", "context"))
+                .ciphertextLength(100)
+                .build();
+    }
+
+    private CachingCryptoMaterialsManager.Builder cachingCmm(CountingCmm underlying) {
+        return CachingCryptoMaterialsManager.builder()
+                .cryptoMaterialsManager(underlying)
+                .maxAge(Duration.ofMinutes(5))
+                .nanoClock(now::get);
+    }
+
+    @Test
+    public void reusesADataKeyUpToTheMessageLimit() {
+        CountingCmm underlying = new CountingCmm();
+        CachingCryptoMaterialsManager cmm = cachingCmm(underlying).maxMessagesPerKey(3).build();
+
+        List<EncryptionMaterials> materials = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            materials.add(cmm.getEncryptionMaterials(request("key-" + i, 100)));
+        }
+
+        assertEquals(2, underlying.generated.size());
+        assertArrayEquals(materials.get(0).plaintextDataKey(), materials.get(2).plaintextDataKey());
+        assertEquals(materials.get(0).encryptedDataKeys(), materials.get(1).encryptedDataKeys());
+        // Each object keeps its own request
+        assertEquals("key-1", ((PutObjectRequest) materials.get(1).s3Request()).key());
+        assertFalse(Arrays.equals(materials.get(0).plaintextDataKey(), materials.get(3).plaintextDataKey()));
+        CachingCryptoMaterialsManager.Metrics metrics = cmm.metrics();
+        assertEquals(2, metrics.hits());
+        assertEquals(2, metrics.misses());
+        assertEquals(1, metrics.evictions());
+        assertEquals(1, metrics.size());
+    }
+
+    @Test
+    public void keepsDataKeysApartByEncryptionContext() {
+        CountingCmm underlying = new CountingCmm();
+        CachingCryptoMaterialsManager cmm = cachingCmm(underlying).build();
+        EncryptionMaterialsRequest withContext = EncryptionMaterialsRequest.builder()
+                .s3Request(PutObjectRequest.builder().bucket("bucket").key("key")
+                        .overrideConfiguration(S3EncryptionClient.withAdditionalConfiguration(
+                                Collections.singletonMap("tenant", "a")))
+                        .build())
+                .plaintextLength(100)
+                .build();
+
+        cmm.getEncryptionMaterials(request("key", 100));
+        cmm.getEncryptionMaterials(withContext);
+        cmm.getEncryptionMaterials(withContext);
+        cmm.getEncryptionMaterials(request("key", 100));
+
+        assertEquals(2, underlying.generated.size());
+        assertEquals(2, cmm.metrics().hits());
+    }
+
+    private static EncryptionMaterialsRequest request(String key, AlgorithmSuite algorithmSuite) {
+        return EncryptionMaterialsRequest.builder()
+                .s3Request(PutObjectRequest.builder().bucket("bucket").key(key).build())
+                .plaintextLength(100)
+                .algorithmSuite(algorithmSuite)
+                .build();
+    }
+
+    @Test
+    public void keepsDataKeysApartByAlgorithmSuite() {
+        CountingCmm underlying = new CountingCmm();
+        CachingCryptoMaterialsManager cmm = cachingCmm(underlying).build();
+
+        EncryptionMaterials gcm = cmm.getEncryptionMaterials(request("key", AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF));
+        EncryptionMaterials cbc = cmm.getEncryptionMaterials(request("key", AlgorithmSuite.ALG_AES_256_CBC_IV16_NO_KDF));
+        EncryptionMaterials gcmAgain = cmm.getEncryptionMaterials(request("key", AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF));
+        EncryptionMaterials cbcAgain = cmm.getEncryptionMaterials(request("key", AlgorithmSuite.ALG_AES_256_CBC_IV16_NO_KDF));
+
+        assertEquals(2, underlying.generated.size());
+        assertEquals(2, cmm.metrics().hits());
+        assertEquals(AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF, gcmAgain.algorithmSuite());
+        assertEquals(AlgorithmSuite.ALG_AES_256_CBC_IV16_NO_KDF, cbcAgain.algorithmSuite());
+        assertArrayEquals(gcm.plaintextDataKey(), gcmAgain.plaintextDataKey());
+        assertArrayEquals(cbc.plaintextDataKey(), cbcAgain.plaintextDataKey());
+        assertFalse(Arrays.equals(gcm.plaintextDataKey(), cbc.plaintextDataKey()));
+    }
+
+    @Test
+    public void doesNotCacheADataKeyOfAnotherSuiteThanAskedFor() {
+        CountingCmm underlying = new CountingCmm();
+        underlying.honorsAlgorithmSuite = false;
+        CachingCryptoMaterialsManager cmm = cachingCmm(underlying).build();
+
+        cmm.getEncryptionMaterials(request("key", AlgorithmSuite.ALG_AES_256_CBC_IV16_NO_KDF));
+        EncryptionMaterials materials = cmm.getEncryptionMaterials(request("key", AlgorithmSuite.ALG_AES_256_CBC_IV16_NO_KDF));
+
+        // The underlying CMM chose GCM both times, so nothing was cached for CBC
+        assertEquals(AlgorithmSuite.ALG_AES_256_GCM_IV12_TAG16_NO_KDF, materials.algorithmSuite());
+        assertEquals(2, underlying.generated.size());
+        assertEquals(0, cmm.metrics().hits());
+        assertEquals(0, cmm.metrics().size());
+    }
+
+    @Test
+    public void expiresDataKeysByAgeAndBytes() {
+        CountingCmm underlying = new CountingCmm();
+        CachingCryptoMaterialsManager cmm = cachingCmm(underlying).maxBytesPerKey(250).build();
+
+        EncryptionMaterials first = cmm.getEncryptionMaterials(request("a", 100));
+        cmm.getEncryptionMaterials(request("b", 100));
+        // Over the byte limit
+        cmm.getEncryptionMaterials(request("c", 100));
+        assertEquals(2, underlying.generated.size());
+
+        now.addAndGet(TimeUnit.MINUTES.toNanos(5));
+        cmm.getEncryptionMaterials(request("d", 100));
+        assertEquals(3, underlying.generated.size());
+
+        // Unknown lengths can't be counted against the byte limit
+        cmm.getEncryptionMaterials(request("e", -1));
+        assertEquals(4, underlying.generated.size());
+        assertEquals(1, cmm.metrics().bypasses());
+
+        cmm.clear();
+        assertEquals(0, cmm.metrics().size());
+        // Zeroing the cached copy leaves the caller's key alone
+        assertArrayEquals(underlying.generated.get(0).plaintextDataKey(), first.plaintextDataKey());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedContext() {
+        CountingCmm underlying = new CountingCmm();
+        CachingCryptoMaterialsManager cmm = cachingCmm(underlying).capacity(1).build();
+        EncryptionMaterialsRequest other = EncryptionMaterialsRequest.builder()
+                .s3Request(PutObjectRequest.builder().bucket("bucket").key("key").build())
+                .encryptionContext(Collections.singletonMap("tenant", "b"))
+                .plaintextLength(1)
+                .build();
+
+        EncryptionMaterials first = cmm.getEncryptionMaterials(request("key", 1));
+        cmm.getEncryptionMaterials(other);
+        EncryptionMaterials again = cmm.getEncryptionMaterials(request("key", 1));
+
+        assertEquals(3, underlying.generated.size());
+        assertFalse(Arrays.equals(first.plaintextDataKey(), again.plaintextDataKey()));
+        assertEquals(2, cmm.metrics().evictions());
+    }
+
+    @Test
+    public void reusesDecryptedDataKeys() {
+        CountingCmm underlying = new CountingCmm();
+        CachingCryptoMaterialsManager cmm = cachingCmm(underlying).decryptionMaxAge(Duration.ofMinutes(1)).build();
+        byte[] dataKey = new byte[32];
+        dataKey[0] = 1;
+
+        DecryptionMaterials first = cmm.decryptMaterials(decryptRequest(dataKey, null));
+        DecryptionMaterials again = cmm.decryptMaterials(decryptRequest(dataKey.clone(), null));
+        assertEquals(1, underlying.decrypted);
+        assertArrayEquals(dataKey, again.plaintextDataKey());
+        assertEquals(first.encryptionContext(), again.encryptionContext());
+        assertEquals(100, again.ciphertextLength());
+
+        // A different request context is checked by the underlying CMM again
+        cmm.decryptMaterials(decryptRequest(dataKey, Collections.singletonMap("tenant", "a")));
+        assertEquals(2, underlying.decrypted);
+        // As is a different data key
+        byte[] otherKey = dataKey.clone();
+        otherKey[1] = 1;
+        cmm.decryptMaterials(decryptRequest(otherKey, null));
+        assertEquals(3, underlying.decrypted);
+
+        now.addAndGet(TimeUnit.MINUTES.toNanos(1));
+        cmm.decryptMaterials(decryptRequest(dataKey, null));
+        assertEquals(4, underlying.decrypted);
+
+        CachingCryptoMaterialsManager.Metrics metrics = cmm.metrics();
+        assertEquals(1, metrics.decryptionHits());
+        assertEquals(4, metrics.decryptionMisses());
+        assertEquals(1, metrics.decryptionEvictions());
+        assertEquals(3, metrics.decryptionSize());
+    }
+
+    @Test
+    public void boundsTheDecryptedDataKeys() {
+        CountingCmm underlying = new CountingCmm();
+        CachingCryptoMaterialsManager cmm = cachingCmm(underlying).decryptionCapacity(1).build();
+        byte[] dataKey = new byte[32];
+        byte[] otherKey = new byte[32];
+        otherKey[0] = 1;
+
+        cmm.decryptMaterials(decryptRequest(dataKey, null));
+        cmm.decryptMaterials(decryptRequest(otherKey, null));
+        cmm.decryptMaterials(decryptRequest(dataKey, null));
+        assertEquals(3, underlying.decrypted);
+        assertEquals(2, cmm.metrics().decryptionEvictions());
+
+        CachingCryptoMaterialsManager disabled = cachingCmm(underlying).decryptionCapacity(0).build();
+        disabled.decryptMaterials(decryptRequest(dataKey, null));
+        disabled.decryptMaterials(decryptRequest(dataKey, null));
+        assertEquals(5, underlying.decrypted);
+        assertEquals(0, disabled.metrics().decryptionSize());
+    }
+
+    @Test
+    public void rejectsUnsafeSettings() {
+        CountingCmm underlying = new CountingCmm();
+        assertThrows(S3EncryptionClientException.class, () -> CachingCryptoMaterialsManager.builder()
+                .cryptoMaterialsManager(underlying).build());
+        assertThrows(S3EncryptionClientException.class, () -> cachingCmm(underlying)
+                .maxMessagesPerKey(CachingCryptoMaterialsManager.MAX_MESSAGES_PER_KEY + 1).build());
+        // Both a CMM and a keyring
+        assertThrows(S3EncryptionClientException.class, () -> cachingCmm(underlying)
+                .keyring(AesKeyring.builder().wrappingKey(new SecretKeySpec(new byte[32], "AES")).build())
+                .build());
+    }
+}
@@ -0,0 +1,186 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.materials;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.kms.KmsAsyncClient;
+import software.amazon.awssdk.services.kms.KmsClient;
+import software.amazon.awssdk.services.kms.model.DecryptRequest;
+import software.amazon.awssdk.services.kms.model.DecryptResponse;
+import software.amazon.awssdk.services.kms.model.KmsException;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class KmsDecryptSingleFlightTest {
+    private static final int THREADS = 4;
+    private static final byte[] PLAINTEXT = new byte[32];
+
+    /**
+     * Holds every call to Decrypt until released.
+     */
+    private static class BlockingKmsClient implements KmsClient {
+        private final CountDownLatch _release = new CountDownLatch(1);
+        private final AtomicInteger _calls = new AtomicInteger();
+        private volatile boolean _fail;
+
+        @Override
+        public String serviceName() {
+            return "kms";
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public DecryptResponse decrypt(DecryptRequest request) {
+            _calls.incrementAndGet();
+            try {
+                _release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (_fail) {
+                throw KmsException.builder().message("Throttled").build();
+            }
+            return DecryptResponse.builder().plaintext(SdkBytes.fromByteArray(PLAINTEXT)).build();
+        }
+    }
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static DecryptionMaterials materials(String algorithm) {
+        return DecryptionMaterials.builder()
+                .s3Request(GetObjectRequest.builder().bucket("bucket").key("key").build())
+                .encryptionContext(Collections.singletonMap("aws:x-amz-cek-alg", algorithm))
+                .build();
+    }
+
+    private static List<EncryptedDataKey> encryptedDataKeys(String keyProviderInfo) {
+        return Collections.singletonList(EncryptedDataKey.builder()
+                .keyProviderId(S3Keyring.KEY_PROVIDER_ID)
+                .keyProviderInfo(keyProviderInfo.getBytes(StandardCharsets.UTF_8))
+                .encryptedDataKey(new byte[]{1, 2, 3})
+                .build());
+    }
+
+    private List<Future<DecryptionMaterials>> decryptConcurrently(Keyring keyring, LongSupplier merged) {
+        List<Future<DecryptionMaterials>> results = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(executor.submit(() -> keyring.onDecrypt(materials("AES/GCM/NoPadding"),
+                    encryptedDataKeys("kms+context"))));
+        }
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (merged.getAsLong() < THREADS - 1 && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+        return results;
+    }
+
+    @Test
+    public void mergesConcurrentIdenticalDecrypts() throws Exception {
+        BlockingKmsClient kms = new BlockingKmsClient();
+        KmsKeyring keyring = KmsKeyring.builder().kmsClient(kms).wrappingKeyId("key-id").build();
+
+        List<Future<DecryptionMaterials>> results = decryptConcurrently(keyring, () -> keyring.decryptMetrics().merged());
+        assertEquals(1, keyring.decryptMetrics().inFlight());
+        kms._release.countDown();
+        byte[] first = results.get(0).get().plaintextDataKey();
+        for (Future<DecryptionMaterials> result : results) {
+            assertArrayEquals(PLAINTEXT, result.get().plaintextDataKey());
+        }
+        assertNotSame(first, results.get(1).get().plaintextDataKey());
+
+        KmsDecryptSingleFlight.Metrics metrics = keyring.decryptMetrics();
+        assertEquals(1, kms._calls.get());
+        assertEquals(1, metrics.calls());
+        assertEquals(THREADS - 1, metrics.merged());
+        assertEquals(0, metrics.inFlight());
+
+        // Nothing is kept once the call completes
+        keyring.onDecrypt(materials("AES/GCM/NoPadding"), encryptedDataKeys("kms+context"));
+        assertEquals(2, kms._calls.get());
+    }
+
+    @Test
+    public void failsEveryMergedRequestWithTheFailedCall() throws Exception {
+        BlockingKmsClient kms = new BlockingKmsClient();
+        kms._fail = true;
+        KmsDiscoveryKeyring keyring = KmsDiscoveryKeyring.builder().kmsClient(kms).build();
+
+        List<Future<DecryptionMaterials>> results = decryptConcurrently(keyring, () -> keyring.decryptMetrics().merged());
+        kms._release.countDown();
+        for (Future<DecryptionMaterials> result : results) {
+            ExecutionException exception = assertThrows(ExecutionException.class, result::get);
+            assertInstanceOf(KmsException.class, exception.getCause());
+        }
+        assertEquals(1, kms._calls.get());
+        assertEquals(0, keyring.decryptMetrics().inFlight());
+    }
+
+    @Test
+    public void asyncKeyringJoinsTheCallInFlight() {
+        List<CompletableFuture<DecryptResponse>> calls = new ArrayList<>();
+        KmsAsyncClient kms = new KmsAsyncClient() {
+            @Override
+            public String serviceName() {
+                return "kms";
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public synchronized CompletableFuture<DecryptResponse> decrypt(DecryptRequest request) {
+                CompletableFuture<DecryptResponse> call = new CompletableFuture<>();
+                calls.add(call);
+                return call;
+            }
+        };
+        AsyncKmsKeyring keyring = AsyncKmsKeyring.builder().kmsClient(kms).wrappingKeyId("key-id").build();
+
+        CompletableFuture<DecryptionMaterials> first = keyring.onDecryptAsync(materials("AES/GCM/NoPadding"),
+                encryptedDataKeys("kms+context"));
+        CompletableFuture<DecryptionMaterials> second = keyring.onDecryptAsync(materials("AES/GCM/NoPadding"),
+                encryptedDataKeys("kms+context"));
+        // A data key wrapped under another encryption context is a different call
+        CompletableFuture<DecryptionMaterials> other = keyring.onDecryptAsync(materials("AES/CBC/PKCS5Padding"),
+                encryptedDataKeys("kms+context"));
+        assertEquals(2, calls.size());
+        assertEquals(1, keyring.decryptMetrics().merged());
+        assertEquals(2, keyring.decryptMetrics().inFlight());
+
+        calls.get(0).complete(DecryptResponse.builder().plaintext(SdkBytes.fromByteArray(PLAINTEXT)).build());
+        assertArrayEquals(PLAINTEXT, first.join().plaintextDataKey());
+        assertArrayEquals(PLAINTEXT, second.join().plaintextDataKey());
+        assertFalse(other.isDone());
+        assertEquals(1, keyring.decryptMetrics().inFlight());
+    }
+}
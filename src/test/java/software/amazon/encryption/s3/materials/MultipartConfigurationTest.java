@@ -0,0 +1,43 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.materials;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class MultipartConfigurationTest {
+    private static final long MIB = 1 << 20;
+
+    @Test
+    public void fixedPartSizeIgnoresContentLength() {
+        MultipartConfiguration configuration = MultipartConfiguration.builder().partSize(8 * MIB).build();
+        assertEquals(8 * MIB, configuration.partSize(100L << 30));
+        assertEquals(100, configuration.maxPartsInFlight());
+    }
+
+    @Test
+    public void autoTunedPartSizeKeepsObjectsWithinTenThousandParts() {
+        MultipartConfiguration configuration = MultipartConfiguration.builder().autoTune(true).build();
+        // Small objects use the smallest part size
+        assertEquals(5 * MIB, configuration.partSize(10 * MIB));
+        assertEquals(5 * MIB, configuration.partSize(-1));
+        // 64 GiB needs parts of just over 6.5 MiB, rounded up to whole MiB
+        long partSize = configuration.partSize(64L << 30);
+        assertEquals(7 * MIB, partSize);
+        assertEquals(0, partSize % 16);
+        // 2 TiB needs parts of just under 210 MiB
+        assertEquals(210 * MIB, configuration.partSize(2L << 40));
+        assertThrows(IllegalArgumentException.class, () -> configuration.partSize(60L << 40));
+    }
+
+    @Test
+    public void rejectsConnectionBoundsWhichCross() {
+        assertThrows(IllegalArgumentException.class, () -> MultipartConfiguration.builder()
+                .autoTune(true)
+                .minConnections(8)
+                .maxConnections(4)
+                .build());
+    }
+}
@@ -0,0 +1,210 @@
+// Copyright Amazon.com Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+package software.amazon.encryption.s3.materials;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.encryption.s3.S3EncryptionClient;
+import software.amazon.encryption.s3.S3EncryptionClientException;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PregeneratingCryptoMaterialsManagerTest {
+    private final AtomicLong now = new AtomicLong();
+    // Refills run when the test says so
+    private final List<Runnable> refills = new ArrayList<>();
+
+    /**
+     * Generates a new random data key for every request, as a key provider would.
+     */
+    private static class CountingCmm implements CryptographicMaterialsManager {
+        private final SecureRandom random = new SecureRandom();
+        private final List<EncryptionMaterials> generated = new ArrayList<>();
+        private volatile boolean failing;
+
+        @Override
+        public synchronized EncryptionMaterials getEncryptionMaterials(EncryptionMaterialsRequest request) {
+            if (failing) {
+                throw new S3EncryptionClientException("Unable to generate a data key");
+            }
+            byte[] dataKey = new byte[32];
+            random.nextBytes(dataKey);
+            EncryptionMaterials materials = EncryptionMaterials.builder()
+                    .s3Request(request.s3Request())
+                    .encryptionContext(request.encryptionContext())
+                    .plaintextLength(request.plaintextLength())
+                    .plaintextDataKey(dataKey)
+                    .encryptedDataKeys(Collections.singletonList(EncryptedDataKey.builder()
+                            .keyProviderId("test")
+                            .encryptedDataKey(dataKey)
+                            .build()))
+                    .build();
+            generated.add(materials);
+            return materials;
+        }
+
+        @Override
+        public DecryptionMaterials decryptMaterials(DecryptMaterialsRequest request) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static EncryptionMaterialsRequest request(String key, Map<String, String> requestContext) {
+        return EncryptionMaterialsRequest.builder()
+                .s3Request(PutObjectRequest.builder().bucket("bucket").key(key)
+                        .overrideConfiguration(S3EncryptionClient.withAdditionalConfiguration(requestContext))
+                        .build())
+                .plaintextLength(100)
+                .build();
+    }
+
+    private PregeneratingCryptoMaterialsManager.Builder pregeneratingCmm(CountingCmm underlying) {
+        return PregeneratingCryptoMaterialsManager.builder()
+                .cryptoMaterialsManager(underlying)
+                .targetDepth(3)
+                .refillExecutor(refills::add)
+                .nanoClock(now::get);
+    }
+
+    private void runRefills() {
+        List<Runnable> pending = new ArrayList<>(refills);
+        refills.clear();
+        pending.forEach(Runnable::run);
+    }
+
+    @Test
+    public void servesEachPregeneratedKeyToOneObject() {
+        CountingCmm underlying = new CountingCmm();
+        PregeneratingCryptoMaterialsManager cmm = pregeneratingCmm(underlying).build();
+        Map<String, String> context = Collections.singletonMap("tenant", "a");
+
+        // Nothing is queued for the first object of a context
+        EncryptionMaterials first = cmm.getEncryptionMaterials(request("key-0", context));
+        assertEquals(1, underlying.generated.size());
+        assertEquals(1, refills.size());
+        runRefills();
+        assertEquals(4, underlying.generated.size());
+        assertEquals(3, cmm.metrics().depth());
+
+        List<byte[]> dataKeys = new ArrayList<>();
+        dataKeys.add(first.plaintextDataKey());
+        for (int i = 1; i <= 3; i++) {
+            EncryptionMaterials materials = cmm.getEncryptionMaterials(request("key-" + i, context));
+            assertArrayEquals(underlying.generated.get(i).plaintextDataKey(), materials.plaintextDataKey());
+            // Each object keeps its own request
+            assertEquals("key-" + i, ((PutObjectRequest) materials.s3Request()).key());
+            dataKeys.add(materials.plaintextDataKey());
+        }
+        for (int i = 0; i < dataKeys.size(); i++) {
+            for (int j = i + 1; j < dataKeys.size(); j++) {
+                assertFalse(Arrays.equals(dataKeys.get(i), dataKeys.get(j)));
+            }
+        }
+        // Only one refill of a queue is in flight at once
+        assertEquals(1, refills.size());
+        assertEquals(4, underlying.generated.size());
+
+        PregeneratingCryptoMaterialsManager.Metrics metrics = cmm.metrics();
+        assertEquals(3, metrics.hits());
+        assertEquals(1, metrics.starvations());
+        assertEquals(3, metrics.generated());
+        assertEquals(0, metrics.depth());
+        assertEquals(1, metrics.queues());
+    }
+
+    @Test
+    public void keepsQueuesApartByEncryptionContext() {
+        CountingCmm underlying = new CountingCmm();
+        PregeneratingCryptoMaterialsManager cmm = pregeneratingCmm(underlying).capacity(1).build();
+
+        cmm.getEncryptionMaterials(request("key", Collections.singletonMap("tenant", "a")));
+        runRefills();
+        EncryptionMaterials other = cmm.getEncryptionMaterials(request("key", Collections.singletonMap("tenant", "b")));
+        assertEquals(2, cmm.metrics().starvations());
+        assertEquals(5, underlying.generated.size());
+        assertEquals(Collections.singletonMap("tenant", "b"), other.s3Request().overrideConfiguration().get()
+                .executionAttributes().getAttribute(S3EncryptionClient.ENCRYPTION_CONTEXT));
+
+        // The queue of the other context was dropped and its keys zeroed
+        PregeneratingCryptoMaterialsManager.Metrics metrics = cmm.metrics();
+        assertEquals(3, metrics.discarded());
+        assertEquals(1, metrics.queues());
+        assertEquals(0, metrics.depth());
+    }
+
+    @Test
+    public void zeroesKeysOlderThanMaxAge() {
+        CountingCmm underlying = new CountingCmm();
+        PregeneratingCryptoMaterialsManager cmm = pregeneratingCmm(underlying).maxAge(Duration.ofSeconds(30)).build();
+        Map<String, String> context = Collections.emptyMap();
+
+        cmm.getEncryptionMaterials(request("key", context));
+        runRefills();
+        now.addAndGet(TimeUnit.SECONDS.toNanos(31));
+        EncryptionMaterials materials = cmm.getEncryptionMaterials(request("key", context));
+        assertArrayEquals(underlying.generated.get(4).plaintextDataKey(), materials.plaintextDataKey());
+        assertEquals(3, cmm.metrics().discarded());
+        assertEquals(2, cmm.metrics().starvations());
+    }
+
+    @Test
+    public void zeroesExpiredKeysWithoutFurtherRequests() throws Exception {
+        CountingCmm underlying = new CountingCmm();
+        PregeneratingCryptoMaterialsManager cmm = PregeneratingCryptoMaterialsManager.builder()
+                .cryptoMaterialsManager(underlying)
+                .targetDepth(3)
+                .maxAge(Duration.ofMillis(50))
+                .refillExecutor(Runnable::run)
+                .build();
+
+        cmm.getEncryptionMaterials(request("key", Collections.emptyMap()));
+        assertEquals(3, cmm.metrics().depth());
+
+        // No other request comes, yet the queued keys are zeroed once they expire
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (cmm.metrics().discarded() < 3 && System.nanoTime() - deadline < 0) {
+            Thread.sleep(10);
+        }
+        assertEquals(3, cmm.metrics().discarded());
+        assertEquals(0, cmm.metrics().depth());
+    }
+
+    @Test
+    public void fallsBackToTheRequestThreadWhenRefillsFail() {
+        CountingCmm underlying = new CountingCmm();
+        PregeneratingCryptoMaterialsManager cmm = pregeneratingCmm(underlying).build();
+        Map<String, String> context = Collections.emptyMap();
+
+        cmm.getEncryptionMaterials(request("key", context));
+        underlying.failing = true;
+        runRefills();
+        assertEquals(1, cmm.metrics().refillFailures());
+        assertEquals(0, cmm.metrics().depth());
+
+        underlying.failing = false;
+        cmm.getEncryptionMaterials(request("key", context));
+        assertEquals(2, cmm.metrics().starvations());
+        // And refills again
+        runRefills();
+        assertEquals(3, cmm.metrics().depth());
+    }
+
+    @Test
+    public void rejectsAnInvalidConfiguration() {
+        assertThrows(S3EncryptionClientException.class, () -> PregeneratingCryptoMaterialsManager.builder().build());
+        assertThrows(S3EncryptionClientException.class, () -> pregeneratingCmm(new CountingCmm()).targetDepth(0).build());
+    }
+}